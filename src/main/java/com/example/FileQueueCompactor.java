@@ -0,0 +1,173 @@
+package com.example;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+import static com.example.QueueServiceUtil.*;
+
+import static com.google.common.base.Preconditions.*;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background compaction for every queue under a file queue service's root.
+ *
+ * <p>Segments are dropped once the head moves past them, but an in flight message pins its
+ * segment and everything after it. Every interval a single low priority thread visits each queue
+ * and, where in flight messages are all that is left of the segments behind the read position,
+ * moves them forward with {@link FileQueueLog#compact(long)} so that those segments can be
+ * dropped. The queue lock is only held for small steps at a time, so pushes and pulls are
+ * interleaved with compaction rather than blocked by it, and the bytes written are throttled.
+ */
+public class FileQueueCompactor {
+    // Constants
+    private static final long STEP_BYTES = 256L * 1024; // moved per hold of the queue lock
+
+    // Fields
+    private final FileQueueService service;
+    private final RateLimiter rateLimiter; // bytes written per second
+    private final ScheduledExecutorService executor;
+    private final AtomicLong compactions = new AtomicLong();
+    private final AtomicLong movedBytes = new AtomicLong();
+    private final AtomicLong reclaimedBytes = new AtomicLong();
+    private final AtomicLong compactionTimeNanos = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * @param service the service whose queues are compacted
+     * @param intervalMillis how long to wait between compaction runs
+     * @param maxBytesPerSecond the most bytes compaction may write per second
+     * @throws IllegalArgumentException if the interval or throttle are not positive
+     */
+    public FileQueueCompactor(FileQueueService service, long intervalMillis, long maxBytesPerSecond) {
+        checkArgument(intervalMillis > 0, "Compaction interval must be a positive number");
+        checkArgument(maxBytesPerSecond > 0, "Compaction throttle must be a positive number");
+        this.service = service;
+        this.rateLimiter = RateLimiter.create(maxBytesPerSecond);
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread compactor = new Thread(runnable, "file-queue-compactor");
+            compactor.setDaemon(true);
+            compactor.setPriority(Thread.MIN_PRIORITY);
+            return compactor;
+        });
+        this.executor.scheduleWithFixedDelay(this::compactAll, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Compacts a single queue until there is nothing left worth compacting, throttled.
+     *
+     * @return the number of bytes of segments dropped as a result
+     * @throws IllegalStateException if the queue does not exist, e.g. deleted while compacting
+     * @throws UncheckedIOException if reading or writing the queue's files fails otherwise
+     */
+    public long compact(String queueName) throws InterruptedException {
+        long startTime = nowNano();
+        long reclaimed = 0;
+        long moved;
+
+        do {
+            FileQueueLock queueLock = service.getQueueLock(queueName);
+            try {
+                queueLock.lock();
+            } catch (IOException e) {
+                throw toUnchecked(queueName, e);
+            }
+            try {
+                FileQueueLog queueLog = service.getQueueLog(queueName);
+                long droppedBefore = queueLog.getDroppedBytes();
+                moved = queueLog.compact(STEP_BYTES);
+                reclaimed += queueLog.getDroppedBytes() - droppedBefore;
+            } catch (IOException e) {
+                throw toUnchecked(queueName, e);
+            } finally {
+                queueLock.unlock();
+            }
+
+            if (moved > 0) {
+                movedBytes.addAndGet(moved);
+                rateLimiter.acquire((int) moved); // outside the lock, so only compaction waits
+            }
+        } while (moved > 0);
+
+        if (reclaimed > 0) {
+            compactions.incrementAndGet();
+            reclaimedBytes.addAndGet(reclaimed);
+            compactionTimeNanos.addAndGet(nowNano() - startTime);
+        }
+        return reclaimed;
+    }
+
+    /**
+     * Stops compacting, waiting for a run in progress to finish its current step.
+     */
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return the number of compactions that reclaimed any space
+     */
+    public long getCompactions() {
+        return compactions.get();
+    }
+
+    /**
+     * @return the total bytes of in flight messages moved forward
+     */
+    public long getMovedBytes() {
+        return movedBytes.get();
+    }
+
+    /**
+     * @return the total bytes of segments dropped as a result of compaction
+     */
+    public long getReclaimedBytes() {
+        return reclaimedBytes.get();
+    }
+
+    /**
+     * @return the total time spent in compactions that reclaimed any space, including throttling
+     */
+    public long getCompactionTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(compactionTimeNanos.get());
+    }
+
+    /**
+     * @return the number of background compactions of a queue that failed other than because the
+     *         queue was deleted, each tried again on the next run
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    // Private methods
+
+    private void compactAll() {
+        for (String queueUrl : service.listQueues()) {
+            try {
+                compact(FileQueueService.fromUrl(queueUrl));
+            } catch (InterruptedException e) {
+                return; // closed
+            } catch (IllegalStateException e) {
+                // queue deleted while compacting, carry on with the rest
+            } catch (RuntimeException e) {
+                failures.incrementAndGet(); // carry on with the rest, and try this one again next run
+            }
+        }
+    }
+
+    /**
+     * @return an illegal state exception if the queue directory is gone, which is why the I/O
+     *         failed, or the failure as it is otherwise
+     */
+    private RuntimeException toUnchecked(String queueName, IOException e) {
+        if (!service.getQueueDir(queueName).exists()) {
+            return new IllegalStateException(QUEUE_URL_DOES_NOT_EXIST, e);
+        }
+        return new UncheckedIOException(e);
+    }
+}
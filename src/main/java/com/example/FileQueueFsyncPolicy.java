@@ -0,0 +1,66 @@
+package com.example;
+
+import static com.google.common.base.Preconditions.*;
+
+/**
+ * How durable a push to a file queue is by the time it returns.
+ *
+ * <ul>
+ *     <li>{@link #NONE} leaves flushing to the operating system, a push returns once its record
+ *     has been written and can be lost if the machine crashes</li>
+ *     <li>{@link #everyMillis(long)} forces written records to disk in the background at a fixed
+ *     interval, bounding how much can be lost to the interval</li>
+ *     <li>{@link #EVERY_BATCH} forces each group commit to disk before any push in it returns</li>
+ * </ul>
+ *
+ * <p>Pull and delete records are never forced on their own, losing one in a crash can only cause
+ * a message to be delivered again.
+ */
+public class FileQueueFsyncPolicy {
+    public static final FileQueueFsyncPolicy NONE = new FileQueueFsyncPolicy(false, 0);
+    public static final FileQueueFsyncPolicy EVERY_BATCH = new FileQueueFsyncPolicy(true, 0);
+
+    // Fields
+    private final boolean everyBatch;
+    private final long intervalMillis;
+
+    private FileQueueFsyncPolicy(boolean everyBatch, long intervalMillis) {
+        this.everyBatch = everyBatch;
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * @param intervalMillis how often written records are forced to disk
+     * @throws IllegalArgumentException if the interval is not positive
+     */
+    public static FileQueueFsyncPolicy everyMillis(long intervalMillis) {
+        checkArgument(intervalMillis > 0, "Fsync interval must be a positive number");
+        return new FileQueueFsyncPolicy(false, intervalMillis);
+    }
+
+    public boolean isEveryBatch() {
+        return everyBatch;
+    }
+
+    /**
+     * @return the background fsync interval, or 0 if there is none
+     */
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    /**
+     * @return true if records are ever forced to disk
+     */
+    public boolean isDurable() {
+        return everyBatch || intervalMillis > 0;
+    }
+
+    @Override
+    public String toString() {
+        return "FileQueueFsyncPolicy{" +
+                "everyBatch=" + everyBatch +
+                ", intervalMillis=" + intervalMillis +
+                '}';
+    }
+}
@@ -0,0 +1,105 @@
+package com.example;
+
+import com.google.common.util.concurrent.Striped;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.FileLockInterruptionException;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Exclusive lock over a lock file that is shared between threads and processes.
+ *
+ * <p>Threads within this JVM first queue on a {@link java.util.concurrent.locks.ReentrantLock}
+ * striped by the lock file's path, so they never touch the file system to coordinate with each
+ * other. Only the thread that wins goes on to take a {@link FileLock} over the file to exclude
+ * other processes. The operating system releases file locks when a process dies, so a crash
+ * can never leave a queue wedged.
+ *
+ * <p>An instance holds the state of a single acquisition and should be confined to the thread
+ * that locks it.
+ */
+public class FileQueueLock {
+    // Constants
+    private static final int PROCESS_LOCK_STRIPES = 64;
+    private static final Striped<Lock> PROCESS_LOCKS = Striped.lock(PROCESS_LOCK_STRIPES); // shared by every service in this JVM
+
+    // Fields
+    private File lockFile;
+    private Lock processLock;
+    private FileChannel channel;
+    private FileLock fileLock;
+
+    public FileQueueLock(File lockFile) {
+        this.lockFile = lockFile;
+        this.processLock = PROCESS_LOCKS.get(lockFile.getAbsolutePath());
+    }
+
+    /**
+     * Blocks until both the in process lock and the file lock are held.
+     *
+     * @throws InterruptedException if interrupted while waiting for either lock
+     * @throws IOException if the lock file cannot be opened or locked
+     */
+    public void lock() throws InterruptedException, IOException {
+        processLock.lockInterruptibly();
+        try {
+            channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            fileLock = channel.lock();
+        } catch (FileLockInterruptionException e) {
+            release();
+            throw new InterruptedException("Interrupted waiting for lock on " + lockFile);
+        } catch (IOException | RuntimeException e) {
+            release();
+            throw e;
+        }
+    }
+
+    /**
+     * Takes both the in process lock and the file lock if neither is held, without waiting.
+     *
+     * @return true if both locks are held, false if either is held by another thread or process
+     * @throws IOException if the lock file cannot be opened or locked
+     */
+    public boolean tryLock() throws IOException {
+        if (!processLock.tryLock()) {
+            return false;
+        }
+        try {
+            channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            fileLock = channel.tryLock();
+        } catch (IOException | RuntimeException e) {
+            release();
+            throw e;
+        }
+        if (fileLock == null) { // held by another process
+            release();
+            return false;
+        }
+        return true;
+    }
+
+    public void unlock() {
+        release();
+    }
+
+    private void release() {
+        try {
+            if (fileLock != null && fileLock.isValid()) {
+                fileLock.release();
+            }
+            if (channel != null) {
+                channel.close(); // also releases the file lock
+            }
+        } catch (IOException e) {
+            // nothing more can be done, the lock dies with the channel
+        } finally {
+            fileLock = null;
+            channel = null;
+            processLock.unlock();
+        }
+    }
+}
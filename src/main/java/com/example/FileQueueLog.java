@@ -0,0 +1,988 @@
+package com.example;
+
+import static com.example.FileQueueSegments.*;
+import static com.example.QueueServiceUtil.*;
+
+import static com.google.common.base.Preconditions.*;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+
+/**
+ * Segmented append-only storage for a single file queue.
+ *
+ * <p>Pushed messages are appended to the message log and are never rewritten. Pulls and deletes
+ * append small state records to a separate in flight journal, which refer back to the position of
+ * the pushed message, and the head file persists the position of the oldest message that is still
+ * needed along with the position of the next unread message. Push, pull and delete therefore cost
+ * O(1) I/O no matter how deep the queue is, reading the next message never has to step over state
+ * records, and message log segments lying wholly before the head are deleted.
+ *
+ * <p>Both logs are {@link FileQueueSegments} of binary {@link FileQueueRecord}s. A torn write left
+ * by a crashed process fails its CRC check, readers skip over it to the next good record and a
+ * torn tail is truncated once it has been read up to. The body of a pulled message is a view of
+ * the message log's memory mapping, so it is never copied out of the page cache unless it is
+ * decoded.
+ *
+ * <p>Every process keeps the in flight state in memory, indexed by receipt id so that a delete is
+ * a hash lookup and by visibility deadline so that the next expired message is found without a
+ * scan, and catches up on the journal records appended by other processes before each pull or
+ * delete. An expired message is redelivered straight from its position in the message log. After
+ * every segment's worth of journal the in flight state is checkpointed and the journal segments
+ * before the previous checkpoint are dropped, so a process starting up only has to load the
+ * checkpoint and replay the journal after it. A checkpoint's header carries the version of its
+ * layout, one without a version being read in whichever layout was written before versions were
+ * added. Instances are not thread safe, callers must hold the queue lock around every call.
+ *
+ * <p>A pull record journalled again with the same receipt id replaces the one before it, which is
+ * how compaction moves an in flight message and how its visibility timeout is changed. Every pull
+ * record's visibility timeout is journalled as if it were the queue's, from a start shifted so
+ * that it ends at the right time, which keeps the deadline index and the checkpoint format the
+ * same whatever timeout a message was pulled with. Every pull record also carries how many times
+ * its message has been pulled, which a redelivery counts on from and the checkpoint keeps, so a
+ * message that keeps timing out can be handed back as a dead letter rather than redelivered.
+ *
+ * <p>A delayed push carries the time it becomes visible. When reading first gets to it before
+ * then, it is journalled as pulled under a receipt id nobody is given, so it waits in the
+ * deadline index with the in flight messages and is delivered as if redelivered once due.
+ * Reading never has to go back for it, and pulls never look at messages that are not yet due.
+ *
+ * <p>A push in a message group carries its group id, and so does every pull record of it. When
+ * reading gets to a push whose group already has a message in flight, it is journalled as held
+ * back under a receipt id nobody is given, with a deadline beyond any other in position order,
+ * so it never times out and is never read again. Applying the delete of a group's message
+ * releases the group's first held back message by moving its deadline before any other, still
+ * in position order, so the next pull delivers it as if redelivered, or delays it as if read for
+ * the first time if it was pushed with a delay that is not up yet. Every process applies the
+ * same journal in the same order, so no record is needed for the release itself.
+ */
+public class FileQueueLog {
+    // Constants
+    protected static final long DEFAULT_SEGMENT_SIZE_BYTES = 64L * 1024 * 1024;
+    protected static final long MAX_SEGMENT_SIZE_BYTES = 1024L * 1024 * 1024;
+    protected static final String SEGMENT_FILE_SUFFIX = ".log";
+    protected static final String JOURNAL_FILE_SUFFIX = ".journal";
+    protected static final String WAKE_FILE_NAME = "wake"; // touched when a message may have become visible other than by a push
+    private static final String HEAD_FILE_NAME = "head";
+    private static final String DELAY_FILE_NAME = "delay";
+    private static final String REDRIVE_FILE_NAME = "redrive";
+    private static final String CHECKPOINT_FILE_NAME = "checkpoint";
+    private static final String CHECKPOINT_PREVIOUS_FILE_NAME = "checkpoint.prev";
+    private static final String CHECKPOINT_TEMP_FILE_NAME = "checkpoint.tmp";
+    private static final int CHECKPOINT_HEADER_SIZE = 20; // crc, version, journal position, in flight count
+    private static final int CHECKPOINT_RECORD_SIZE = 54; // position, message id, receipt id, visibility timeout from, receive count, group id length, then the group id
+    private static final int CHECKPOINT_VERSION = 0x80000003; // records with receive counts and group ids, the top bit never set where a checkpoint without a version has its journal position
+    private static final long HELD_VISIBILITY_TIMEOUT_FROM = Long.MAX_VALUE / 2; // plus the position, after anything in flight and never timed out
+    private static final long RELEASED_VISIBILITY_TIMEOUT_FROM = Long.MIN_VALUE / 2; // plus the position, before anything in flight and already timed out
+    private static final byte[] NO_BODY = new byte[0];
+    private static final double COMPACTION_LIVE_RATIO = 0.5; // compact once less than this much of the pinned segments is live
+    private static final Comparator<InflightRecord> BY_DEADLINE = Comparator
+            .comparingLong((InflightRecord record) -> record.visibilityTimeoutFrom)
+            .thenComparing(record -> record.receiptId);
+
+    // Fields
+    private final File queueDir;
+    private final long segmentSizeBytes;
+    private final long visibilityTimeoutMillis;
+    private final FileQueueFsyncPolicy fsyncPolicy;
+    private final FileQueueSegments messages; // pushes, and in flight messages moved by compaction
+    private final FileQueueSegments journal; // pulls and deletes
+    private final FileQueueRecord appended; // view over the journal records this process appends
+
+    private long headPosition; // everything in the message log before here has been consumed
+    private long readPosition; // the next push record that has never been pulled
+    private long journalPosition; // how far this process has replayed the journal
+    private boolean replayed; // false until the in flight state has been rebuilt
+    private long bytesSinceCheckpoint; // of journal replayed or appended since the last checkpoint
+    private Map<UUID, InflightRecord> inflight; // receipt id > record
+    private TreeSet<InflightRecord> inflightByDeadline; // first times out first
+    private TreeMap<Long, InflightRecord> inflightByPosition; // lowest position pins the head
+    private Map<String, TreeSet<InflightRecord>> inflightByGroup; // group id > in flight first, then held back in order, present while any are
+    private volatile long nextVisibleAt = Long.MAX_VALUE; // when the oldest in flight message times out
+    private long droppedBytes; // size of every message log segment this instance has dropped
+    private volatile long delayMillis = -1; // of messages pushed without a delay of their own, -1 until read
+    private volatile int maxReceiveCount = -1; // before a message is dead lettered, 0 for never, -1 until read
+    private volatile String deadLetterQueueName; // null if messages are never dead lettered
+
+    public FileQueueLog(File queueDir, long segmentSizeBytes, long visibilityTimeoutMillis) {
+        this(queueDir, segmentSizeBytes, visibilityTimeoutMillis, FileQueueFsyncPolicy.NONE);
+    }
+
+    public FileQueueLog(File queueDir, long segmentSizeBytes, long visibilityTimeoutMillis, FileQueueFsyncPolicy fsyncPolicy) {
+        checkArgument(segmentSizeBytes > 0 && segmentSizeBytes <= MAX_SEGMENT_SIZE_BYTES,
+                "Segment size must be between 1 byte and 1GB");
+        this.queueDir = queueDir;
+        this.segmentSizeBytes = segmentSizeBytes;
+        this.visibilityTimeoutMillis = visibilityTimeoutMillis;
+        this.fsyncPolicy = fsyncPolicy;
+        this.messages = new FileQueueSegments(queueDir, SEGMENT_FILE_SUFFIX, segmentSizeBytes, fsyncPolicy);
+        this.journal = new FileQueueSegments(queueDir, JOURNAL_FILE_SUFFIX, segmentSizeBytes, fsyncPolicy);
+        this.appended = new FileQueueRecord();
+        this.inflight = new HashMap<>();
+        this.inflightByDeadline = new TreeSet<>(BY_DEADLINE);
+        this.inflightByPosition = new TreeMap<>();
+        this.inflightByGroup = new HashMap<>();
+    }
+
+    /**
+     * Lays out an empty log in the specified queue directory.
+     *
+     * @param queueDir an existing, empty queue directory
+     * @throws IOException if the head file or first segments cannot be created
+     */
+    public static void create(File queueDir) throws IOException {
+        writeHead(new File(queueDir, HEAD_FILE_NAME), 0, 0);
+        segmentFile(queueDir, SEGMENT_FILE_SUFFIX, 0).createNewFile();
+        segmentFile(queueDir, JOURNAL_FILE_SUFFIX, 0).createNewFile();
+    }
+
+    /**
+     * Encodes a push record, which can be done before taking the queue lock.
+     */
+    public static ByteBuffer encodePush(QueueMessage message) {
+        return encodePush(message, 0);
+    }
+
+    /**
+     * Encodes a push record for a message that only becomes visible at the specified time.
+     *
+     * @param visibleAt when the message becomes visible, 0 for straight away
+     */
+    public static ByteBuffer encodePush(QueueMessage message, long visibleAt) {
+        return FileQueueRecord.encode(FileQueueRecord.PUSH, visibleAt,
+                message.getMessageQueueId().getHigh(), message.getMessageQueueId().getLow(),
+                0, 0,
+                0,
+                toBytes(message.getGroupId()),
+                ByteBuffer.wrap(message.getMessageBody().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * @return how long messages pushed without a delay of their own stay invisible, as read from
+     *         the delay file the first time it is asked for, safe to call without the queue lock
+     */
+    public long getDelay() throws IOException {
+        if (delayMillis < 0) {
+            File delayFile = new File(queueDir, DELAY_FILE_NAME);
+            if (!delayFile.exists()) {
+                delayMillis = 0;
+            } else {
+                try (DataInputStream in = new DataInputStream(new FileInputStream(delayFile))) {
+                    delayMillis = in.readLong();
+                }
+            }
+        }
+        return delayMillis;
+    }
+
+    /**
+     * Persists how long messages pushed without a delay of their own stay invisible. Other
+     * processes that have already read the delay keep the one they read.
+     */
+    public void setDelay(long delayMillis) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(new File(queueDir, DELAY_FILE_NAME), "rw")) {
+            raf.writeLong(delayMillis);
+        }
+        this.delayMillis = delayMillis;
+    }
+
+    /**
+     * @return the name of the queue messages are moved to once pulled too many times, or null if
+     *         they never are, as read from the redrive file the first time it is asked for, safe
+     *         to call without the queue lock
+     */
+    public String getDeadLetterQueueName() throws IOException {
+        readRedrivePolicy();
+        return deadLetterQueueName;
+    }
+
+    /**
+     * @return how many times a message may be pulled before it is moved to the dead letter
+     *         queue, or 0 if it never is, safe to call without the queue lock
+     */
+    public int getMaxReceiveCount() throws IOException {
+        readRedrivePolicy();
+        return maxReceiveCount;
+    }
+
+    /**
+     * Persists where messages go once they have been pulled the specified number of times.
+     * Other processes that have already read the redrive policy keep the one they read.
+     */
+    public void setRedrivePolicy(String deadLetterQueueName, int maxReceiveCount) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(new File(queueDir, REDRIVE_FILE_NAME), "rw")) {
+            raf.setLength(0);
+            raf.writeInt(maxReceiveCount);
+            raf.writeUTF(deadLetterQueueName);
+        }
+        this.deadLetterQueueName = deadLetterQueueName;
+        this.maxReceiveCount = maxReceiveCount;
+    }
+
+    public QueueMessage push(QueueMessage message) throws IOException {
+        pushAll(Collections.singletonList(encodePush(message)));
+        return message;
+    }
+
+    /**
+     * Appends push records to the message log with a single gathering write.
+     *
+     * @param pushRecords records encoded by {@link #encodePush(QueueMessage)}
+     */
+    public void pushAll(List<ByteBuffer> pushRecords) throws IOException {
+        messages.append(pushRecords.toArray(new ByteBuffer[pushRecords.size()]));
+    }
+
+    public QueueMessage pull() throws IOException {
+        List<QueueMessage> pulledMessages = pull(1);
+        return pulledMessages.isEmpty() ? new QueueMessage() : pulledMessages.get(0);
+    }
+
+    /**
+     * Pulls up to the specified number of messages, redelivering timed out messages first, and
+     * journals them all with a single gathering write.
+     *
+     * @return the pulled messages, empty if there are none
+     */
+    public List<QueueMessage> pull(int maxMessages) throws IOException {
+        return pull(maxMessages, visibilityTimeoutMillis);
+    }
+
+    /**
+     * Pulls up to the specified number of messages, invisible for the specified visibility
+     * timeout rather than the queue's.
+     *
+     * @return the pulled messages, empty if there are none
+     */
+    public List<QueueMessage> pull(int maxMessages, long visibilityTimeoutMillis) throws IOException {
+        return pull(maxMessages, visibilityTimeoutMillis, 0, null);
+    }
+
+    /**
+     * Pulls up to the specified number of messages as {@link #pull(int, long)} does, but rather
+     * than redelivering a timed out message that has already been pulled the specified number
+     * of times, makes it in flight for the queue's visibility timeout under a fresh receipt id
+     * and hands it back as a dead letter. The caller pushes it to the dead letter queue, then
+     * deletes it, so it is redelivered as a dead letter again if the caller fails part way.
+     *
+     * @param maxReceiveCount how many times a message may be pulled, or 0 for any number
+     * @param deadLetters where to add the dead letters, only used if there is a maximum
+     * @return the pulled messages, empty if there are none
+     */
+    public List<QueueMessage> pull(int maxMessages, long visibilityTimeoutMillis, int maxReceiveCount, List<QueueMessage> deadLetters) throws IOException {
+        sync();
+
+        List<QueueMessage> pulledMessages = new ArrayList<>(maxMessages);
+        List<ByteBuffer> journalRecords = new ArrayList<>(maxMessages);
+
+        while (pulledMessages.size() < maxMessages && !inflightByDeadline.isEmpty() && isExpired(inflightByDeadline.first())) { // redeliver before reading any further
+            InflightRecord expired = inflightByDeadline.first();
+            FileQueueSegments.Reader reader = messages.read(expired.position);
+            if (reader.next() && reader.recordPosition() == expired.position) {
+                if (reader.record().getVisibilityTimeoutFrom() > now()) { // released from its group before its delay is up, left to the deadline index until it is due
+                    journalRecords.add(applyAppended(encodeDelay(expired.position, reader.record())));
+                    continue;
+                }
+                if (maxReceiveCount > 0 && expired.receiveCount >= maxReceiveCount) {
+                    deadLetters.add(deliver(expired.position, reader.record(), journalRecords, this.visibilityTimeoutMillis, expired.receiveCount + 1));
+                    continue;
+                }
+                pulledMessages.add(deliver(expired.position, reader.record(), journalRecords, visibilityTimeoutMillis, expired.receiveCount + 1));
+            } else {
+                journalRecords.add(applyAppended(encodeDelete(expired))); // damaged since it was pushed, give up on it
+            }
+        }
+
+        if (pulledMessages.size() < maxMessages) {
+            FileQueueSegments.Reader reader = messages.read(readPosition);
+            boolean more;
+            while ((more = reader.next())) {
+                readPosition = reader.position(); // messages moved by compaction are skipped over
+                if (reader.record().getRecordType() == FileQueueRecord.PUSH) {
+                    String groupId = reader.record().getGroupId();
+                    if (groupId != null && inflightByGroup.containsKey(groupId)) { // held back until the group's messages before it are deleted
+                        journalRecords.add(applyAppended(encodeHold(reader.recordPosition(), reader.record(), groupId)));
+                        continue;
+                    }
+                    if (reader.record().getVisibilityTimeoutFrom() > now()) { // delayed, left to the deadline index until it is due
+                        journalRecords.add(applyAppended(encodeDelay(reader.recordPosition(), reader.record())));
+                        continue;
+                    }
+                    pulledMessages.add(deliver(reader.recordPosition(), reader.record(), journalRecords, visibilityTimeoutMillis, 1));
+                    if (pulledMessages.size() == maxMessages) {
+                        break;
+                    }
+                }
+            }
+            if (!more) { // read to the end, anything after the read position is torn
+                messages.truncate(readPosition);
+            }
+        }
+
+        appendAll(journalRecords);
+        advanceHead();
+        return pulledMessages;
+    }
+
+    public boolean delete(String receiptId) throws IOException {
+        return deleteAll(Collections.singletonList(receiptId)).get(0);
+    }
+
+    /**
+     * Makes the in flight messages with the specified receipt ids invisible for the specified
+     * visibility timeout from now, journalling a fresh pull record for each with a single
+     * gathering write. Nothing in the message log is touched.
+     *
+     * @return whether each message's visibility timeout was changed, in the order of the receipt
+     *         ids
+     */
+    public List<Boolean> changeVisibilityAll(List<String> receiptIds, long visibilityTimeoutMillis) throws IOException {
+        sync();
+
+        long visibilityTimeoutFrom = now() + visibilityTimeoutMillis - this.visibilityTimeoutMillis; // ends the queue's visibility timeout at the new deadline
+
+        List<Boolean> changed = new ArrayList<>(receiptIds.size());
+        List<ByteBuffer> journalRecords = new ArrayList<>(receiptIds.size());
+        for (String receiptId : receiptIds) {
+            UUID receipt;
+            try {
+                receipt = UUID.fromString(receiptId);
+            } catch (IllegalArgumentException e) { // not a receipt id this queue could have issued
+                changed.add(false);
+                continue;
+            }
+
+            InflightRecord record = inflight.get(receipt);
+            if (record == null || isExpired(record)) { // unknown, or no longer valid and will be redelivered
+                changed.add(false);
+                continue;
+            }
+
+            journalRecords.add(applyAppended(FileQueueRecord.encode(FileQueueRecord.PULL, visibilityTimeoutFrom,
+                    record.messageIdHigh, record.messageIdLow,
+                    record.receiptId.getMostSignificantBits(), record.receiptId.getLeastSignificantBits(),
+                    record.position, record.receiveCount,
+                    toBytes(record.groupId))));
+            changed.add(true);
+        }
+
+        if (!journalRecords.isEmpty()) {
+            appendAll(journalRecords);
+            advanceHead(); // moves the next visible time along with the deadlines
+            wake(); // a message may be visible sooner than pullers waiting elsewhere expect
+        }
+        return changed;
+    }
+
+    /**
+     * Deletes the in flight messages with the specified receipt ids and journals them all with a
+     * single gathering write.
+     *
+     * @return whether each message was deleted, in the order of the receipt ids
+     */
+    public List<Boolean> deleteAll(List<String> receiptIds) throws IOException {
+        sync();
+
+        List<Boolean> deleted = new ArrayList<>(receiptIds.size());
+        List<ByteBuffer> journalRecords = new ArrayList<>(receiptIds.size());
+        for (String receiptId : receiptIds) {
+            UUID receipt;
+            try {
+                receipt = UUID.fromString(receiptId);
+            } catch (IllegalArgumentException e) { // not a receipt id this queue could have issued
+                deleted.add(false);
+                continue;
+            }
+
+            InflightRecord record = inflight.get(receipt); // in memory only, no I/O
+            if (record == null || isExpired(record)) { // unknown, or no longer valid and will be redelivered
+                deleted.add(false);
+                continue;
+            }
+
+            journalRecords.add(applyAppended(encodeDelete(record)));
+            deleted.add(true);
+        }
+
+        if (!journalRecords.isEmpty()) {
+            appendAll(journalRecords);
+            advanceHead();
+            if (nextVisibleAt <= now()) {
+                wake(); // e.g. the next message of a group released
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Forces everything written to the message log and journal to disk.
+     */
+    public void force() throws IOException {
+        messages.force();
+        journal.force();
+    }
+
+    /**
+     * May be called without holding the queue lock.
+     *
+     * @return true if anything has been written since the log was last forced to disk
+     */
+    public boolean isDirty() {
+        return messages.isDirty() || journal.isDirty();
+    }
+
+    /**
+     * Closes the tail segments, for when the queue is deleted. The log reopens them if used again.
+     */
+    public void close() throws IOException {
+        try {
+            messages.close();
+        } finally {
+            journal.close();
+        }
+    }
+
+    /**
+     * Copies in flight messages that are pinning segments behind the read position forward to
+     * the tail of the message log, and journals their new position, so that those segments can
+     * be dropped, if the segments are sparse enough to be worth it. Messages are moved lowest
+     * position first, so segments are dropped as soon as they are emptied.
+     *
+     * @param maxBytes roughly how many bytes of messages to move before returning
+     * @return the number of bytes appended, 0 if there is nothing worth compacting
+     */
+    public long compact(long maxBytes) throws IOException {
+        sync();
+
+        long readSegmentStart = toPosition(segmentOf(readPosition), 0);
+        if (!isSparse(readSegmentStart)) {
+            return 0;
+        }
+
+        long moved = 0;
+        while (moved < maxBytes && !inflightByPosition.isEmpty() && inflightByPosition.firstKey() < readSegmentStart) {
+            InflightRecord record = inflightByPosition.firstEntry().getValue();
+            FileQueueSegments.Reader reader = messages.read(record.position);
+            if (!reader.next() || reader.recordPosition() != record.position) {
+                break; // damaged since it was pushed, leave it where it is
+            }
+            ByteBuffer move = FileQueueRecord.encode(FileQueueRecord.MOVE, reader.record().getVisibilityTimeoutFrom(), // when the push becomes visible, not the deadline in flight
+                    record.messageIdHigh, record.messageIdLow,
+                    record.receiptId.getMostSignificantBits(), record.receiptId.getLeastSignificantBits(),
+                    record.position,
+                    toBytes(record.groupId),
+                    reader.record().getMessageBodyBuffer());
+            long movedTo = messages.append(move) - move.limit();
+            appendAndApply(FileQueueRecord.encode(FileQueueRecord.PULL, record.visibilityTimeoutFrom, // same receipt, new position
+                    record.messageIdHigh, record.messageIdLow,
+                    record.receiptId.getMostSignificantBits(), record.receiptId.getLeastSignificantBits(),
+                    movedTo, record.receiveCount,
+                    toBytes(record.groupId)));
+            moved += move.limit();
+        }
+
+        advanceHead();
+        return moved;
+    }
+
+    /**
+     * @return the total size of the message log segments dropped through this instance
+     */
+    public long getDroppedBytes() {
+        return droppedBytes;
+    }
+
+    /**
+     * May be called without holding the queue lock.
+     *
+     * @return the time at which the oldest in flight message, as last seen by this process,
+     *         becomes visible again, or {@code Long.MAX_VALUE} if none are in flight
+     */
+    public long getNextVisibleAt() {
+        return nextVisibleAt;
+    }
+
+    // Private methods
+
+    /**
+     * Makes the message in flight in memory for the specified visibility timeout and adds its
+     * pull record to the journal records still to be appended.
+     *
+     * @param receiveCount the number of times the message has been pulled, including this time
+     */
+    private QueueMessage deliver(long position, FileQueueRecord pushRecord, List<ByteBuffer> journalRecords, long visibilityTimeoutMillis, int receiveCount) {
+        String groupId = pushRecord.getGroupId();
+        QueueMessage message = new QueueMessage(pushRecord.getMessageBodyBuffer(), new QueueId(pushRecord.getMessageIdHigh(), pushRecord.getMessageIdLow()), groupId);
+        QueueMessage pulledMessage = new QueueMessage(message, generateId(), now(), receiveCount);
+
+        long visibilityTimeoutFrom = pulledMessage.getVisibilityTimeoutFrom() + visibilityTimeoutMillis - this.visibilityTimeoutMillis; // ends the queue's visibility timeout at the same deadline
+        journalRecords.add(applyAppended(FileQueueRecord.encode(FileQueueRecord.PULL, visibilityTimeoutFrom,
+                pushRecord.getMessageIdHigh(), pushRecord.getMessageIdLow(),
+                pulledMessage.getReceiptQueueId().getHigh(), pulledMessage.getReceiptQueueId().getLow(),
+                position, receiveCount,
+                toBytes(groupId))));
+
+        return pulledMessage;
+    }
+
+    /**
+     * @return a pull record for a delayed push under a receipt id nobody is given, which makes
+     *         the message in flight until it becomes visible and is delivered as a redelivery
+     */
+    private ByteBuffer encodeDelay(long position, FileQueueRecord pushRecord) {
+        QueueId receiptId = generateId();
+        return FileQueueRecord.encode(FileQueueRecord.PULL, pushRecord.getVisibilityTimeoutFrom() - visibilityTimeoutMillis, // the queue's visibility timeout ends when it becomes visible
+                pushRecord.getMessageIdHigh(), pushRecord.getMessageIdLow(),
+                receiptId.getHigh(), receiptId.getLow(),
+                position, 0,
+                toBytes(pushRecord.getGroupId()));
+    }
+
+    /**
+     * @return a pull record for a push held back behind its group under a receipt id nobody is
+     *         given, which makes the message in flight until the group's messages before it are
+     *         deleted
+     */
+    private ByteBuffer encodeHold(long position, FileQueueRecord pushRecord, String groupId) {
+        QueueId receiptId = generateId();
+        return FileQueueRecord.encode(FileQueueRecord.PULL, HELD_VISIBILITY_TIMEOUT_FROM + position,
+                pushRecord.getMessageIdHigh(), pushRecord.getMessageIdLow(),
+                receiptId.getHigh(), receiptId.getLow(),
+                position, 0,
+                toBytes(groupId));
+    }
+
+    private static byte[] toBytes(String groupId) {
+        return (groupId == null) ? NO_BODY : groupId.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static ByteBuffer encodeDelete(InflightRecord record) {
+        return FileQueueRecord.encode(FileQueueRecord.DELETE, 0,
+                record.messageIdHigh, record.messageIdLow,
+                record.receiptId.getMostSignificantBits(), record.receiptId.getLeastSignificantBits(),
+                record.position,
+                NO_BODY);
+    }
+
+    private boolean isExpired(InflightRecord record) {
+        return now() - record.visibilityTimeoutFrom > visibilityTimeoutMillis;
+    }
+
+    /**
+     * Reloads the head file and applies any journal records appended since this process last
+     * looked, which is how pulls and deletes made by other processes become visible here.
+     */
+    private void sync() throws IOException {
+        long[] head = readHead(getHeadFile());
+
+        int journalSegment = segmentOf(journalPosition);
+        if (!replayed || head[0] < headPosition // starting up, or queue was recreated
+                || !journal.exists(journalSegment) || journal.length(journalSegment) < offsetOf(journalPosition)) { // or journal dropped under us
+            inflight.clear();
+            inflightByDeadline.clear();
+            inflightByPosition.clear();
+            inflightByGroup.clear();
+            messages.unmapAll();
+            journal.unmapAll();
+            headPosition = head[0];
+            journalPosition = toPosition(Math.max(journal.findHeadSegment(), 0), 0);
+            bytesSinceCheckpoint = 0;
+            if (!readCheckpoint(CHECKPOINT_FILE_NAME)) {
+                readCheckpoint(CHECKPOINT_PREVIOUS_FILE_NAME); // crashed between renames, or damaged
+            }
+            replayed = true;
+        }
+        headPosition = head[0];
+        readPosition = head[1];
+
+        FileQueueSegments.Reader reader = journal.read(journalPosition);
+        while (reader.next()) {
+            apply(reader.record());
+            journalPosition = reader.position();
+            bytesSinceCheckpoint += FileQueueRecord.HEADER_SIZE + reader.record().getBodyLength();
+        }
+
+        journal.truncate(journalPosition); // replayed to the end, anything after is torn
+        checkpointIfDue();
+    }
+
+    /**
+     * Writes a checkpoint once a segment's worth of journal has gone by since the last one, then
+     * drops the journal segments that are no longer needed to replay from the previous
+     * checkpoint. The checkpoint is written to a temporary file and the last one is kept as the
+     * previous checkpoint, so a crash or a damaged checkpoint leaves one to start from.
+     */
+    private void checkpointIfDue() throws IOException {
+        if (bytesSinceCheckpoint < segmentSizeBytes) {
+            return;
+        }
+
+        int groupIdBytes = 0;
+        for (TreeSet<InflightRecord> group : inflightByGroup.values()) {
+            groupIdBytes += group.size() * toBytes(group.first().groupId).length;
+        }
+
+        ByteBuffer checkpoint = ByteBuffer.allocate(CHECKPOINT_HEADER_SIZE + inflight.size() * CHECKPOINT_RECORD_SIZE + groupIdBytes);
+        checkpoint.putInt(0); // crc, filled in below
+        checkpoint.putInt(CHECKPOINT_VERSION);
+        checkpoint.putLong(journalPosition);
+        checkpoint.putInt(inflight.size());
+        for (InflightRecord record : inflightByDeadline) {
+            checkpoint.putLong(record.position);
+            checkpoint.putLong(record.messageIdHigh);
+            checkpoint.putLong(record.messageIdLow);
+            checkpoint.putLong(record.receiptId.getMostSignificantBits());
+            checkpoint.putLong(record.receiptId.getLeastSignificantBits());
+            checkpoint.putLong(record.visibilityTimeoutFrom);
+            checkpoint.putInt(record.receiveCount);
+            byte[] groupId = toBytes(record.groupId);
+            checkpoint.putShort((short) groupId.length);
+            checkpoint.put(groupId);
+        }
+        checkpoint.putInt(0, FileQueueRecord.crc32c(checkpoint, 4, checkpoint.limit()));
+        checkpoint.flip();
+
+        File tempFile = new File(queueDir, CHECKPOINT_TEMP_FILE_NAME);
+        try (FileChannel channel = FileChannel.open(tempFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (checkpoint.hasRemaining()) {
+                channel.write(checkpoint);
+            }
+            if (fsyncPolicy.isDurable()) {
+                channel.force(false);
+            }
+        }
+
+        File checkpointFile = new File(queueDir, CHECKPOINT_FILE_NAME);
+        ByteBuffer previous = loadCheckpoint(CHECKPOINT_FILE_NAME);
+        if (checkpointFile.exists()) {
+            Files.move(checkpointFile.toPath(), new File(queueDir, CHECKPOINT_PREVIOUS_FILE_NAME).toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.move(tempFile.toPath(), checkpointFile.toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        bytesSinceCheckpoint = 0;
+
+        if (previous != null) {
+            for (int segment = Math.max(journal.findHeadSegment(), 0); segment < segmentOf(journalPositionOf(previous)); segment++) {
+                journal.drop(segment);
+            }
+        }
+    }
+
+    /**
+     * Loads the in flight state from a checkpoint, if it is intact and the journal it was taken
+     * from is still there, so that only the journal after it needs to be replayed.
+     *
+     * @return true if the checkpoint was loaded
+     */
+    private boolean readCheckpoint(String fileName) throws IOException {
+        ByteBuffer checkpoint = loadCheckpoint(fileName);
+        if (checkpoint == null || !journal.exists(segmentOf(journalPositionOf(checkpoint)))) {
+            return false;
+        }
+
+        checkpoint.position(CHECKPOINT_HEADER_SIZE);
+        for (int i = checkpoint.getInt(16); i > 0; i--) {
+            InflightRecord record = new InflightRecord(checkpoint.getLong(),
+                    checkpoint.getLong(), checkpoint.getLong(),
+                    new UUID(checkpoint.getLong(), checkpoint.getLong()),
+                    checkpoint.getLong(),
+                    checkpoint.getInt(),
+                    readGroupId(checkpoint));
+            if (record.position >= headPosition) { // otherwise deleted since
+                addInflight(record);
+            }
+        }
+        journalPosition = journalPositionOf(checkpoint);
+        return true;
+    }
+
+    /**
+     * @return the position in the journal the checkpoint was taken at
+     */
+    private static long journalPositionOf(ByteBuffer checkpoint) {
+        return checkpoint.getLong(8);
+    }
+
+    /**
+     * @return the group id of a checkpointed in flight message, or null if it is in no group
+     */
+    private static String readGroupId(ByteBuffer checkpoint) {
+        byte[] groupId = new byte[checkpoint.getShort() & 0xFFFF];
+        checkpoint.get(groupId);
+        return (groupId.length == 0) ? null : new String(groupId, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the checkpoint, or null if there is none, it fails its CRC check or it has no
+     *         version or one other than this code writes, in which case the journal is replayed
+     */
+    private ByteBuffer loadCheckpoint(String fileName) throws IOException {
+        ByteBuffer checkpoint;
+        try {
+            checkpoint = ByteBuffer.wrap(Files.readAllBytes(new File(queueDir, fileName).toPath()));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+
+        if (checkpoint.limit() < CHECKPOINT_HEADER_SIZE
+                || checkpoint.getInt(0) != FileQueueRecord.crc32c(checkpoint, 4, checkpoint.limit())
+                || checkpoint.getInt(4) != CHECKPOINT_VERSION) {
+            return null;
+        }
+        return checkpoint;
+    }
+
+    private void apply(FileQueueRecord record) {
+        UUID receipt = new UUID(record.getReceiptIdHigh(), record.getReceiptIdLow());
+        long position = record.getPosition();
+
+        switch (record.getRecordType()) {
+            case FileQueueRecord.PULL: {
+                if (position < headPosition) { // message has since been deleted
+                    break;
+                }
+                InflightRecord moved = inflight.get(receipt); // same receipt, moved by compaction
+                if (moved != null) {
+                    removeInflight(moved);
+                }
+                InflightRecord redelivered = inflightByPosition.get(position); // the old receipt is no longer valid
+                if (redelivered != null) {
+                    removeInflight(redelivered);
+                }
+                addInflight(new InflightRecord(position,
+                        record.getMessageIdHigh(), record.getMessageIdLow(),
+                        receipt,
+                        record.getVisibilityTimeoutFrom(),
+                        record.getReceiveCount(),
+                        record.getGroupId()));
+                break;
+            }
+            case FileQueueRecord.DELETE: {
+                InflightRecord deleted = inflight.get(receipt);
+                if (deleted != null && deleted.position == position) {
+                    removeInflight(deleted);
+                    releaseNextOfGroup(deleted.groupId);
+                }
+                break;
+            }
+            default: // only pulls and deletes are journalled
+                break;
+        }
+    }
+
+    private void addInflight(InflightRecord record) {
+        inflight.put(record.receiptId, record);
+        inflightByDeadline.add(record);
+        inflightByPosition.put(record.position, record);
+        if (record.groupId != null) {
+            inflightByGroup.computeIfAbsent(record.groupId, groupId -> new TreeSet<>(BY_DEADLINE)).add(record);
+        }
+    }
+
+    private void removeInflight(InflightRecord record) {
+        inflight.remove(record.receiptId);
+        inflightByDeadline.remove(record);
+        inflightByPosition.remove(record.position);
+        if (record.groupId != null) {
+            TreeSet<InflightRecord> group = inflightByGroup.get(record.groupId);
+            if (group != null && group.remove(record) && group.isEmpty()) {
+                inflightByGroup.remove(record.groupId);
+            }
+        }
+    }
+
+    /**
+     * Releases the first message held back in the specified group, if nothing of the group is
+     * still in flight, by making it due before anything else, to be delivered as a redelivery.
+     */
+    private void releaseNextOfGroup(String groupId) {
+        TreeSet<InflightRecord> group = (groupId == null) ? null : inflightByGroup.get(groupId);
+        if (group == null || group.first().visibilityTimeoutFrom < HELD_VISIBILITY_TIMEOUT_FROM) {
+            return; // in no group, nothing held back, or the group's next message is already released
+        }
+        InflightRecord held = group.first();
+        removeInflight(held);
+        addInflight(new InflightRecord(held.position,
+                held.messageIdHigh, held.messageIdLow,
+                held.receiptId,
+                RELEASED_VISIBILITY_TIMEOUT_FROM + held.position,
+                held.receiveCount,
+                held.groupId));
+    }
+
+    /**
+     * Moves the head up to the oldest message that is still unread or in flight, persists it
+     * and drops every message log segment that now lies wholly before it.
+     */
+    private void advanceHead() throws IOException {
+        long newHeadPosition = inflightByPosition.isEmpty()
+                ? readPosition
+                : Math.min(readPosition, inflightByPosition.firstKey());
+
+        writeHead(getHeadFile(), newHeadPosition, readPosition);
+
+        for (int segment = segmentOf(headPosition); segment < segmentOf(newHeadPosition); segment++) {
+            droppedBytes += messages.drop(segment);
+        }
+        headPosition = newHeadPosition;
+
+        nextVisibleAt = inflightByDeadline.isEmpty()
+                ? Long.MAX_VALUE
+                : inflightByDeadline.first().visibilityTimeoutFrom + visibilityTimeoutMillis + 1;
+    }
+
+    /**
+     * @return true if in flight messages pin segments before the specified position and make up
+     *         little enough of them to be worth moving
+     */
+    private boolean isSparse(long readSegmentStart) throws IOException {
+        if (inflightByPosition.isEmpty() || inflightByPosition.firstKey() >= readSegmentStart) {
+            return false;
+        }
+
+        long pinnedBytes = 0;
+        for (int segment = segmentOf(headPosition); segment < segmentOf(readSegmentStart); segment++) {
+            pinnedBytes += messages.length(segment);
+        }
+
+        long liveBytes = 0;
+        FileQueueRecord pinning = new FileQueueRecord();
+        for (InflightRecord record : inflightByPosition.headMap(readSegmentStart).values()) {
+            MappedByteBuffer mapped = messages.map(segmentOf(record.position));
+            if (mapped != null) {
+                liveBytes += FileQueueRecord.HEADER_SIZE + pinning.wrap(mapped, (int) offsetOf(record.position)).getBodyLength();
+            }
+            if (liveBytes >= pinnedBytes * COMPACTION_LIVE_RATIO) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void appendAndApply(ByteBuffer record) throws IOException {
+        appendAll(Collections.singletonList(applyAppended(record)));
+    }
+
+    /**
+     * Applies a record this process is about to append to the journal.
+     *
+     * @return the record
+     */
+    private ByteBuffer applyAppended(ByteBuffer record) {
+        apply(appended.wrap(record, 0));
+        return record;
+    }
+
+    /**
+     * Appends records that have already been applied to the journal with a single gathering
+     * write.
+     */
+    private void appendAll(List<ByteBuffer> records) throws IOException {
+        if (records.isEmpty()) {
+            return;
+        }
+
+        long end;
+        try {
+            end = journal.append(records.toArray(new ByteBuffer[records.size()]));
+        } catch (IOException e) {
+            replayed = false; // applied but maybe not journalled, rebuild the in flight state from the journal
+            throw e;
+        }
+        journalPosition = end; // we were caught up by sync() and still hold the queue lock
+        for (ByteBuffer record : records) {
+            bytesSinceCheckpoint += record.limit();
+        }
+        checkpointIfDue();
+    }
+
+    /**
+     * Touches the wake file, so that pullers waiting in other processes look again. Journal
+     * writes in general do not, or every pull would wake every waiting puller.
+     */
+    private void wake() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(new File(queueDir, WAKE_FILE_NAME), "rw")) {
+            raf.writeLong(now());
+        }
+    }
+
+    /**
+     * Reads the redrive file the first time the redrive policy is asked for.
+     */
+    private void readRedrivePolicy() throws IOException {
+        if (maxReceiveCount >= 0) {
+            return;
+        }
+        File redriveFile = new File(queueDir, REDRIVE_FILE_NAME);
+        if (!redriveFile.exists()) {
+            maxReceiveCount = 0;
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(redriveFile))) {
+            int max = in.readInt();
+            deadLetterQueueName = in.readUTF();
+            maxReceiveCount = max; // last, so a caller that sees it sees the name as well
+        }
+    }
+
+    private File getHeadFile() {
+        return new File(queueDir, HEAD_FILE_NAME);
+    }
+
+    private static long[] readHead(File headFile) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(headFile))) {
+            return new long[] {in.readLong(), in.readLong()};
+        } catch (IOException e) {
+            throw new IllegalStateException(QUEUE_URL_DOES_NOT_EXIST, e); // queue deleted by another process
+        }
+    }
+
+    private static void writeHead(File headFile, long headPosition, long readPosition) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(headFile, "rw")) {
+            raf.writeLong(headPosition);
+            raf.writeLong(readPosition);
+        }
+    }
+
+    private static class InflightRecord {
+        private final long position;
+        private final long messageIdHigh;
+        private final long messageIdLow;
+        private final UUID receiptId;
+        private final long visibilityTimeoutFrom;
+        private final int receiveCount;
+        private final String groupId; // null if in no group
+
+        InflightRecord(long position, long messageIdHigh, long messageIdLow, UUID receiptId, long visibilityTimeoutFrom, int receiveCount, String groupId) {
+            this.position = position;
+            this.messageIdHigh = messageIdHigh;
+            this.messageIdLow = messageIdLow;
+            this.receiptId = receiptId;
+            this.visibilityTimeoutFrom = visibilityTimeoutFrom;
+            this.receiveCount = receiveCount;
+            this.groupId = groupId;
+        }
+    }
+}
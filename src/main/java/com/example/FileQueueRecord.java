@@ -0,0 +1,293 @@
+package com.example;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.zip.CRC32C;
+
+/**
+ * Binary record format for file queue logs, and a reusable view for decoding records in place.
+ *
+ * <p>Each record is a fixed size header followed by the message body, big endian:
+ *
+ * <pre>
+ *  0  int   CRC32C of bytes 4 to the end of the record
+ *  4  byte  format version
+ *  5  byte  flags, the record type 0=push, 1=pull, 2=delete, 3=move
+ *  6  short receive count for pulls, group id length for pushes and moves, both unsigned
+ *  8  int   body length
+ * 12  long  visibility timeout from for pulls and moves, visible at for delayed pushes
+ * 20  long  message id, most significant bits
+ * 28  long  message id, least significant bits
+ * 36  long  receipt id, most significant bits, pulls, deletes and moves only
+ * 44  long  receipt id, least significant bits
+ * 52  long  position of the pushed message, pulls, deletes and moves only
+ * 60  ...   UTF-8 group id, if any, then the UTF-8 message body for pushes and moves, the UTF-8
+ *            group id, if any, for pulls
+ * </pre>
+ *
+ * <p>Pushes and moves are appended to the message log, pulls and deletes to the in flight
+ * journal. A move is an in flight message copied forward by compaction so that the segment it
+ * was pushed to can be dropped. Readers skip over it, and a pull with the same receipt id
+ * journalled after it gives the in flight message its new position. A pull journalled again at
+ * the same position with the same receipt id changes the message's visibility timeout instead.
+ * Records written before receive counts and message groups were added have zeroes at offset 6,
+ * so read as never pulled and in no group.
+ *
+ * <p>A view is pointed at a buffer with {@link #wrap(ByteBuffer, int)} and its accessors read
+ * straight from the buffer, so decoding a record allocates nothing until the body is asked for.
+ * The CRC lets a reader tell a torn or corrupt write from a good record.
+ */
+public class FileQueueRecord {
+    // Constants
+    protected static final byte FORMAT_VERSION = 1;
+    protected static final byte PUSH = 0;
+    protected static final byte PULL = 1;
+    protected static final byte DELETE = 2;
+    protected static final byte MOVE = 3;
+    protected static final int HEADER_SIZE = 60;
+    protected static final int INCOMPLETE = 0;
+    protected static final int CORRUPT = -1;
+    private static final int CRC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int FLAGS_OFFSET = 5;
+    private static final int RECEIVE_COUNT_OFFSET = 6;
+    private static final int GROUP_ID_LENGTH_OFFSET = 6;
+    private static final int BODY_LENGTH_OFFSET = 8;
+    private static final int VISIBILITY_TIMEOUT_OFFSET = 12;
+    private static final int MESSAGE_ID_OFFSET = 20;
+    private static final int RECEIPT_ID_OFFSET = 36;
+    private static final int POSITION_OFFSET = 52;
+    private static final int RECORD_TYPE_MASK = 0x03;
+    private static final byte[] NO_GROUP_ID = new byte[0];
+
+    // Fields
+    private ByteBuffer buffer;
+    private int offset;
+
+    /**
+     * Points this view at the record starting at the specified offset of the buffer.
+     */
+    public FileQueueRecord wrap(ByteBuffer buffer, int offset) {
+        this.buffer = buffer;
+        this.offset = offset;
+        return this;
+    }
+
+    /**
+     * Checks the record this view points at against the bytes available in its buffer.
+     *
+     * @param limit the offset in the buffer after the last byte read from the log
+     * @return the length of the record if it is whole and intact, {@link #INCOMPLETE} if the
+     *         record runs past the limit or {@link #CORRUPT} if it fails the CRC check
+     */
+    public int check(int limit) {
+        if (limit - offset < HEADER_SIZE) {
+            return INCOMPLETE;
+        }
+        int length = HEADER_SIZE + getBodyLength();
+        if (buffer.get(offset + VERSION_OFFSET) != FORMAT_VERSION || getBodyLength() < 0 || length < 0) {
+            return CORRUPT;
+        }
+        if (limit - offset < length) {
+            return INCOMPLETE;
+        }
+        if (crc32c(buffer, offset + VERSION_OFFSET, offset + length) != buffer.getInt(offset + CRC_OFFSET)) {
+            return CORRUPT;
+        }
+        return length;
+    }
+
+    public byte getRecordType() {
+        return (byte) (buffer.get(offset + FLAGS_OFFSET) & RECORD_TYPE_MASK);
+    }
+
+    /**
+     * @return the number of times a pulled message has been pulled, including this time, or 0
+     *         if it is not known
+     */
+    public int getReceiveCount() {
+        return buffer.getShort(offset + RECEIVE_COUNT_OFFSET) & 0xFFFF;
+    }
+
+    /**
+     * @return the message group id of a push, move or pull, or null if the message is in no
+     *         group
+     */
+    public String getGroupId() {
+        int length = (getRecordType() == PULL) ? getBodyLength() : getGroupIdLength();
+        if (length == 0) {
+            return null;
+        }
+        ByteBuffer groupId = buffer.asReadOnlyBuffer();
+        groupId.limit(offset + HEADER_SIZE + length);
+        groupId.position(offset + HEADER_SIZE);
+        return StandardCharsets.UTF_8.decode(groupId).toString();
+    }
+
+    /**
+     * @return the length of everything after the header, the group id included
+     */
+    public int getBodyLength() {
+        return buffer.getInt(offset + BODY_LENGTH_OFFSET);
+    }
+
+    public long getVisibilityTimeoutFrom() {
+        return buffer.getLong(offset + VISIBILITY_TIMEOUT_OFFSET);
+    }
+
+    public long getMessageIdHigh() {
+        return buffer.getLong(offset + MESSAGE_ID_OFFSET);
+    }
+
+    public long getMessageIdLow() {
+        return buffer.getLong(offset + MESSAGE_ID_OFFSET + 8);
+    }
+
+    public long getReceiptIdHigh() {
+        return buffer.getLong(offset + RECEIPT_ID_OFFSET);
+    }
+
+    public long getReceiptIdLow() {
+        return buffer.getLong(offset + RECEIPT_ID_OFFSET + 8);
+    }
+
+    public long getPosition() {
+        return buffer.getLong(offset + POSITION_OFFSET);
+    }
+
+    public String getMessageId() {
+        return toId(getMessageIdHigh(), getMessageIdLow());
+    }
+
+    public String getMessageBody() {
+        return StandardCharsets.UTF_8.decode(getMessageBodyBuffer()).toString();
+    }
+
+    /**
+     * @return a read only view of the UTF-8 message body that shares the underlying buffer, so
+     *         it stays valid after this view moves on to another record
+     */
+    public ByteBuffer getMessageBodyBuffer() {
+        ByteBuffer body = buffer.asReadOnlyBuffer();
+        body.limit(offset + HEADER_SIZE + getBodyLength());
+        body.position(offset + HEADER_SIZE + getGroupIdLength());
+        return body.slice();
+    }
+
+    /**
+     * @return the length of the group id in front of the message body, 0 for pulls and deletes
+     */
+    private int getGroupIdLength() {
+        byte recordType = getRecordType();
+        return (recordType == PUSH || recordType == MOVE) ? buffer.getShort(offset + GROUP_ID_LENGTH_OFFSET) & 0xFFFF : 0;
+    }
+
+    /**
+     * @return a buffer holding the encoded record, ready to be written
+     */
+    public static ByteBuffer encode(byte recordType, long visibilityTimeoutFrom,
+                                    long messageIdHigh, long messageIdLow,
+                                    long receiptIdHigh, long receiptIdLow,
+                                    long position, byte[] body) {
+        return encode(recordType, visibilityTimeoutFrom,
+                messageIdHigh, messageIdLow,
+                receiptIdHigh, receiptIdLow,
+                position, ByteBuffer.wrap(body));
+    }
+
+    /**
+     * @param body the UTF-8 message body, read from its position without changing it
+     * @return a buffer holding the encoded record, ready to be written
+     */
+    public static ByteBuffer encode(byte recordType, long visibilityTimeoutFrom,
+                                    long messageIdHigh, long messageIdLow,
+                                    long receiptIdHigh, long receiptIdLow,
+                                    long position, ByteBuffer body) {
+        return encode(recordType, visibilityTimeoutFrom,
+                messageIdHigh, messageIdLow,
+                receiptIdHigh, receiptIdLow,
+                position, (short) 0, NO_GROUP_ID, body);
+    }
+
+    /**
+     * @param receiveCount the number of times a pulled message has been pulled, kept at 65535
+     *                     once it gets there
+     * @return a buffer holding the encoded record, ready to be written
+     */
+    public static ByteBuffer encode(byte recordType, long visibilityTimeoutFrom,
+                                    long messageIdHigh, long messageIdLow,
+                                    long receiptIdHigh, long receiptIdLow,
+                                    long position, int receiveCount, byte[] body) {
+        return encode(recordType, visibilityTimeoutFrom,
+                messageIdHigh, messageIdLow,
+                receiptIdHigh, receiptIdLow,
+                position, (short) Math.min(receiveCount, 0xFFFF), NO_GROUP_ID, ByteBuffer.wrap(body));
+    }
+
+    /**
+     * Encodes a push or move of a message in a message group.
+     *
+     * @param groupId the UTF-8 message group id, up to 65535 bytes
+     * @param body the UTF-8 message body, read from its position without changing it
+     * @return a buffer holding the encoded record, ready to be written
+     */
+    public static ByteBuffer encode(byte recordType, long visibilityTimeoutFrom,
+                                    long messageIdHigh, long messageIdLow,
+                                    long receiptIdHigh, long receiptIdLow,
+                                    long position, byte[] groupId, ByteBuffer body) {
+        return encode(recordType, visibilityTimeoutFrom,
+                messageIdHigh, messageIdLow,
+                receiptIdHigh, receiptIdLow,
+                position, (short) groupId.length, groupId, body);
+    }
+
+    private static ByteBuffer encode(byte recordType, long visibilityTimeoutFrom,
+                                     long messageIdHigh, long messageIdLow,
+                                     long receiptIdHigh, long receiptIdLow,
+                                     long position, short receiveCountOrGroupIdLength, byte[] groupId, ByteBuffer body) {
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + groupId.length + body.remaining());
+        record.put(VERSION_OFFSET, FORMAT_VERSION);
+        record.put(FLAGS_OFFSET, recordType);
+        record.putShort(RECEIVE_COUNT_OFFSET, receiveCountOrGroupIdLength);
+        record.putInt(BODY_LENGTH_OFFSET, groupId.length + body.remaining());
+        record.putLong(VISIBILITY_TIMEOUT_OFFSET, visibilityTimeoutFrom);
+        record.putLong(MESSAGE_ID_OFFSET, messageIdHigh);
+        record.putLong(MESSAGE_ID_OFFSET + 8, messageIdLow);
+        record.putLong(RECEIPT_ID_OFFSET, receiptIdHigh);
+        record.putLong(RECEIPT_ID_OFFSET + 8, receiptIdLow);
+        record.putLong(POSITION_OFFSET, position);
+        record.position(HEADER_SIZE);
+        record.put(groupId);
+        record.put(body.duplicate());
+        record.putInt(CRC_OFFSET, crc32c(record, VERSION_OFFSET, record.limit()));
+        record.flip();
+        return record;
+    }
+
+    // Ids are 128 bit UUIDs, stored as two longs
+
+    public static long idHigh(String id) {
+        return UUID.fromString(id).getMostSignificantBits();
+    }
+
+    public static long idLow(String id) {
+        return UUID.fromString(id).getLeastSignificantBits();
+    }
+
+    public static String toId(long high, long low) {
+        return new UUID(high, low).toString();
+    }
+
+    /**
+     * CRC32C (Castagnoli) of the bytes between the specified absolute offsets, leaving the
+     * buffer's position and limit as they are.
+     */
+    public static int crc32c(ByteBuffer buffer, int from, int to) {
+        ByteBuffer range = buffer.duplicate();
+        range.limit(to).position(from);
+        CRC32C crc = new CRC32C(); // not thread safe, and cheap to make
+        crc.update(range);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,337 @@
+package com.example;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A sequence of numbered segment files sharing a suffix in a queue directory, holding
+ * {@link FileQueueRecord}s back to back.
+ *
+ * <p>Records are appended through the tail segment, which is kept open, and a new segment is
+ * started once the tail reaches the segment size. Nothing is forced to disk unless
+ * {@link #force()} is called, except that a segment written to under a durable fsync policy is
+ * forced before the next one is started.
+ *
+ * <p>Segments are read through read only memory mappings, which are shared by every read of
+ * the segment and remapped when the segment has changed size. A torn write left by a crashed
+ * process fails its CRC check and readers skip over it to the next good record.
+ *
+ * <p>A position packs the segment number into its high 32 bits and the byte offset within the
+ * segment into its low 32 bits. Instances are not thread safe, callers must hold the queue lock.
+ */
+public class FileQueueSegments {
+    // Fields
+    private final File queueDir;
+    private final String suffix;
+    private final long segmentSizeBytes;
+    private final FileQueueFsyncPolicy fsyncPolicy;
+
+    private int tailSegment = -1; // unknown until first append
+    private FileChannel tailChannel; // open for appending to tailChannelSegment
+    private int tailChannelSegment;
+    private volatile boolean dirty; // written since last forced to disk
+    private Map<Integer, MappedByteBuffer> mappedSegments; // segment > read only mapping of the whole segment
+
+    public FileQueueSegments(File queueDir, String suffix, long segmentSizeBytes, FileQueueFsyncPolicy fsyncPolicy) {
+        this.queueDir = queueDir;
+        this.suffix = suffix;
+        this.segmentSizeBytes = segmentSizeBytes;
+        this.fsyncPolicy = fsyncPolicy;
+        this.mappedSegments = new HashMap<>();
+    }
+
+    /**
+     * Appends records to the tail segment with a single gathering write.
+     *
+     * @return the position immediately after the appended records
+     */
+    public long append(ByteBuffer... records) throws IOException {
+        FileChannel channel = getTailChannel();
+        long offset = channel.size();
+        long length = 0;
+        for (ByteBuffer record : records) {
+            length += record.remaining();
+        }
+
+        dirty = true;
+        for (long written = 0; written < length; ) {
+            written += channel.write(records);
+        }
+        for (ByteBuffer record : records) {
+            record.rewind();
+        }
+        return toPosition(tailSegment, offset + length);
+    }
+
+    /**
+     * @return a reader positioned before the record at the specified position
+     */
+    public Reader read(long position) {
+        return new Reader(position);
+    }
+
+    /**
+     * Forces everything written to the tail segment to disk.
+     */
+    public void force() throws IOException {
+        if (dirty && tailChannel != null) {
+            dirty = false;
+            tailChannel.force(false);
+        }
+    }
+
+    /**
+     * May be called without holding the queue lock.
+     *
+     * @return true if anything has been written since last forced to disk
+     */
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Closes the tail segment and forgets every mapping. Segments are reopened if used again.
+     */
+    public void close() throws IOException {
+        mappedSegments.clear();
+        closeTailChannel(false);
+    }
+
+    /**
+     * Forgets every mapping, for when the segments may have been replaced by another process.
+     */
+    public void unmapAll() {
+        mappedSegments.clear();
+    }
+
+    public boolean exists(int segment) {
+        return segmentFile(segment).exists();
+    }
+
+    public long length(int segment) {
+        return segmentFile(segment).length();
+    }
+
+    /**
+     * Deletes a segment.
+     *
+     * @return the number of bytes freed
+     */
+    public long drop(int segment) {
+        mappedSegments.remove(segment);
+        File file = segmentFile(segment);
+        long length = file.length();
+        return file.delete() ? length : 0;
+    }
+
+    /**
+     * @return the lowest numbered segment on disk, or -1 if there are none
+     */
+    public int findHeadSegment() {
+        int head = -1;
+        for (int segment : listSegments()) {
+            head = (head < 0) ? segment : Math.min(head, segment);
+        }
+        return head;
+    }
+
+    /**
+     * @return the highest numbered segment on disk, or 0 if there are none
+     */
+    public int findTailSegment() {
+        int tail = 0;
+        for (int segment : listSegments()) {
+            tail = Math.max(tail, segment);
+        }
+        return tail;
+    }
+
+    /**
+     * Cuts off the remains of a write torn by a crash at the end of the last segment so that the
+     * next append starts on a record boundary. Only safe once the segments have been read up to
+     * the specified position and no good records were found after it.
+     */
+    public void truncate(long position) throws IOException {
+        int segment = segmentOf(position);
+        File tail = segmentFile(segment);
+        if (tail.length() > offsetOf(position) && !exists(segment + 1)) {
+            try (FileChannel channel = FileChannel.open(tail.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(offsetOf(position));
+            }
+        }
+    }
+
+    /**
+     * @return a read only mapping of the whole segment as it is now, or null if there is no such
+     *         segment
+     */
+    public MappedByteBuffer map(int segment) throws IOException {
+        File file = segmentFile(segment);
+        long size;
+        try {
+            size = Files.size(file.toPath());
+        } catch (NoSuchFileException e) {
+            mappedSegments.remove(segment);
+            return null;
+        }
+
+        MappedByteBuffer mapped = mappedSegments.get(segment);
+        if (mapped == null || mapped.capacity() != size) { // appended to, or a torn tail was truncated
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            mappedSegments.put(segment, mapped);
+        }
+        return mapped;
+    }
+
+    public File segmentFile(int segment) {
+        return segmentFile(queueDir, suffix, segment);
+    }
+
+    public static File segmentFile(File queueDir, String suffix, int segment) {
+        return new File(queueDir, String.format("%010d%s", segment, suffix));
+    }
+
+    // Positions
+
+    public static long toPosition(int segment, long offset) {
+        return ((long) segment << 32) | offset;
+    }
+
+    public static int segmentOf(long position) {
+        return (int) (position >>> 32);
+    }
+
+    public static long offsetOf(long position) {
+        return position & 0xFFFFFFFFL;
+    }
+
+    // Private methods
+
+    private int[] listSegments() {
+        String[] names = queueDir.list((dir, name) -> name.endsWith(suffix));
+        if (names == null) {
+            return new int[0];
+        }
+        int[] segments = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            segments[i] = Integer.parseInt(names[i].substring(0, names[i].length() - suffix.length()));
+        }
+        return segments;
+    }
+
+    private FileChannel getTailChannel() throws IOException {
+        if (tailSegment < 0) {
+            tailSegment = findTailSegment();
+        }
+        while (exists(tailSegment + 1)) { // another process has rolled over to a new segment
+            tailSegment++;
+        }
+
+        if (tailChannel != null && (tailChannelSegment != tailSegment || !exists(tailSegment))) {
+            closeTailChannel(true); // rolled or deleted by another process
+        }
+        if (tailChannel == null) {
+            tailChannel = openSegment(tailSegment);
+        }
+        if (tailChannel.size() >= segmentSizeBytes) { // roll over to a new segment
+            closeTailChannel(true);
+            tailChannel = openSegment(++tailSegment);
+        }
+        return tailChannel;
+    }
+
+    private FileChannel openSegment(int segment) throws IOException {
+        FileChannel channel = FileChannel.open(segmentFile(segment).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        tailChannelSegment = segment;
+        return channel;
+    }
+
+    private void closeTailChannel(boolean force) throws IOException {
+        if (tailChannel != null) {
+            try {
+                if (force && fsyncPolicy.isDurable()) {
+                    force();
+                }
+            } finally {
+                tailChannel.close();
+                tailChannel = null;
+            }
+        }
+    }
+
+    /**
+     * Reads good records forwards from a position, following on across segment files. The
+     * current record is decoded in place from the segment mapping.
+     */
+    public class Reader {
+        private int segment;
+        private int offset; // of the next record in the current segment
+        private long recordPosition;
+        private ByteBuffer mapped; // current segment, null until mapped
+        private FileQueueRecord record;
+
+        private Reader(long position) {
+            this.segment = segmentOf(position);
+            this.offset = (int) offsetOf(position);
+            this.record = new FileQueueRecord();
+        }
+
+        /**
+         * @return true if moved on to the next good record, false at the end of the segments
+         */
+        public boolean next() throws IOException {
+            while (true) {
+                if (mapped == null) {
+                    mapped = map(segment);
+                    if (mapped == null) {
+                        return false;
+                    }
+                }
+
+                int length = record.wrap(mapped, offset).check(mapped.limit());
+                if (length > 0) {
+                    recordPosition = toPosition(segment, offset);
+                    offset += length;
+                    return true;
+                }
+                if (offset < mapped.limit()) { // torn or damaged write, look for the next good record after it
+                    offset++;
+                    continue;
+                }
+
+                if (!exists(segment + 1)) { // end of the last segment
+                    return false;
+                }
+                mapped = null; // end of this segment, carry on from the start of the next one
+                segment++;
+                offset = 0;
+            }
+        }
+
+        public FileQueueRecord record() {
+            return record;
+        }
+
+        public long recordPosition() {
+            return recordPosition;
+        }
+
+        /**
+         * @return the position after the current record
+         */
+        public long position() {
+            return toPosition(segment, offset);
+        }
+    }
+}
@@ -6,42 +6,97 @@ import static com.example.QueueServiceUtil.*;
 
 import static com.google.common.base.Preconditions.*;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.nio.ByteBuffer;
 import java.nio.file.FileVisitOption;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
-
-public class FileQueueService implements QueueService {
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class FileQueueService implements QueueService, AutoCloseable {
     // Constants
-    private static String MESSAGE_FILE_NAME = "messages";
-    private static String TEMP_MESSAGE_FILE_NAME = "messages.temp";
-    private static String LOCK_DIR_NAME = ".lock";
-    private static int INT_FLIGHT_INDEX = 0;
-    private static int VISIBILITY_TIMEOUT_INDEX = 1;
-    private static int RECEIPT_ID_INDEX = 2;
-    private static int MESSAGE_ID_INDEX = 3;
-    private static int MESSAGE_BODY_INDEX = 4;
+    private static String LOCK_FILE_NAME = ".lock";
+    private static final int ASYNC_PULLER_THREADS = 2;
+    private static final long ASYNC_PULLER_KEEP_ALIVE_MILLIS = 1000L;
+    private static final long LOCK_RETRY_MILLIS = 5L; // how soon an async pull tries the queue lock again
 
     // Fields
     private String rootDir;
     private String urlPrefix;
     private long pullWaitTimeMillis;
     private long visibilityTimeoutMillis;
+    private long segmentSizeBytes;
+    private FileQueueFsyncPolicy fsyncPolicy;
+    private ConcurrentMap<String, FileQueueLog> queueLogs; // name > this process' view of the queue's log
+    private ConcurrentMap<String, FileQueueWriter> queueWriters; // name > group commit for pushes to the queue
+    private FileQueueCompactor compactor; // null if compaction is off
+    private ScheduledThreadPoolExecutor asyncPuller; // this service's async pulls, idle threads time out
+    private ThreadPoolExecutor deadLetterMover; // moves the dead letters async pulls find, so they never wait on a dead letter queue's lock
+    private AtomicLong failedDeadLetterMoves;
+    private Set<PendingPull> pendingPulls; // async pulls not yet complete, completed empty on close
 
     public FileQueueService(String rootDir, String urlPrefix, long pullWaitTimeMillis, long visibilityTimeoutMillis) {
+        this(rootDir, urlPrefix, pullWaitTimeMillis, visibilityTimeoutMillis, FileQueueLog.DEFAULT_SEGMENT_SIZE_BYTES);
+    }
+
+    public FileQueueService(String rootDir, String urlPrefix, long pullWaitTimeMillis, long visibilityTimeoutMillis, long segmentSizeBytes) {
+        this(rootDir, urlPrefix, pullWaitTimeMillis, visibilityTimeoutMillis, segmentSizeBytes, FileQueueFsyncPolicy.NONE);
+    }
+
+    public FileQueueService(String rootDir, String urlPrefix, long pullWaitTimeMillis, long visibilityTimeoutMillis, long segmentSizeBytes, FileQueueFsyncPolicy fsyncPolicy) {
+        this(rootDir, urlPrefix, pullWaitTimeMillis, visibilityTimeoutMillis, segmentSizeBytes, fsyncPolicy, 0, 0);
+    }
+
+    /**
+     * @param compactionIntervalMillis how often to compact the queues in the background, 0 for never
+     * @param compactionBytesPerSecond the most bytes compaction may write per second
+     */
+    public FileQueueService(String rootDir, String urlPrefix, long pullWaitTimeMillis, long visibilityTimeoutMillis, long segmentSizeBytes, FileQueueFsyncPolicy fsyncPolicy,
+                            long compactionIntervalMillis, long compactionBytesPerSecond) {
         this.rootDir = rootDir;
         this.urlPrefix = urlPrefix;
         this.pullWaitTimeMillis = pullWaitTimeMillis;
         this.visibilityTimeoutMillis = visibilityTimeoutMillis;
+        this.segmentSizeBytes = segmentSizeBytes;
+        this.fsyncPolicy = fsyncPolicy;
+        this.queueLogs = new ConcurrentHashMap<>();
+        this.queueWriters = new ConcurrentHashMap<>();
+        this.asyncPuller = new ScheduledThreadPoolExecutor(ASYNC_PULLER_THREADS, runnable -> {
+            Thread puller = new Thread(runnable, "file-queue-async-puller");
+            puller.setDaemon(true);
+            return puller;
+        });
+        this.asyncPuller.setKeepAliveTime(ASYNC_PULLER_KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS);
+        this.asyncPuller.allowCoreThreadTimeOut(true);
+        this.asyncPuller.setRejectedExecutionHandler(new ThreadPoolExecutor.DiscardPolicy()); // once closed, e.g. a signal from another service sharing the queue
+        this.deadLetterMover = new ThreadPoolExecutor(1, 1, ASYNC_PULLER_KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread mover = new Thread(runnable, "file-queue-dead-letter-mover");
+            mover.setDaemon(true);
+            return mover;
+        });
+        this.deadLetterMover.allowCoreThreadTimeOut(true);
+        this.deadLetterMover.setRejectedExecutionHandler(new ThreadPoolExecutor.DiscardPolicy()); // once closed, left in flight to be dead lettered again
+        this.failedDeadLetterMoves = new AtomicLong();
+        this.pendingPulls = ConcurrentHashMap.newKeySet();
+        if (compactionIntervalMillis > 0) {
+            this.compactor = new FileQueueCompactor(this, compactionIntervalMillis, compactionBytesPerSecond);
+        }
     }
 
     @Override
@@ -51,15 +106,22 @@ public class FileQueueService implements QueueService {
         /*
          * Queue is defined on the file system as...
          *
-         *             .rootLock
-         * <rootDir> / <queueName> / .lock /
-         *                            messages
+         *             .lock
+         * <rootDir> / <queueName> / .lock
+         *                            head
+         *                            delay
+         *                            redrive
+         *                            checkpoint
+         *                            checkpoint.prev
+         *                            0000000000.log
+         *                            0000000001.log ...
+         *                            0000000000.journal
+         *                            0000000001.journal ...
          */
 
         String queueUrl = toUrl(queueName);
         File queueDir = getQueueDir(queueName);
-        File messagesFile = getMessagesFile(queueName);
-        File rootLock = getRootLock();
+        FileQueueLock rootLock = getRootLock();
 
         try {
             // get main lock
@@ -68,7 +130,7 @@ public class FileQueueService implements QueueService {
             try {
                 if (!queueDir.exists()) {
                     queueDir.mkdir(); // create queue name dir
-                    messagesFile.createNewFile();
+                    FileQueueLog.create(queueDir);
                 }
             } catch (IOException e) {
                 Throwables.propagate(e);
@@ -85,7 +147,7 @@ public class FileQueueService implements QueueService {
     @Override
     public Set<String> listQueues() {
         File rootDir = getRootDir();
-        File rootLock = getRootLock();
+        FileQueueLock rootLock = getRootLock();
         Set<String> queueUrls = new HashSet<>();
         File[] directories;
 
@@ -94,7 +156,7 @@ public class FileQueueService implements QueueService {
             directories = rootDir.listFiles(File::isDirectory); // count the directory names under root dir
             for (File dir : directories) {
                 String directory = dir.getName();
-                if (!directory.startsWith(".")) { // omit the main lock
+                if (!directory.startsWith(".")) { // omit hidden directories
                     queueUrls.add(toUrl(directory));
                 }
             }
@@ -121,9 +183,8 @@ public class FileQueueService implements QueueService {
 
         String queueName = fromUrl(queueUrl);
         File queueDir = getQueueDir(fromUrl(queueUrl));
-        File messagesFile = getMessagesFile(queueName);
-        File queueLock = getQueueLock(queueName);
-        File rootLock = getRootLock();
+        FileQueueLock queueLock = getQueueLock(queueName);
+        FileQueueLock rootLock = getRootLock();
 
         try {
             lock(rootLock);
@@ -138,6 +199,8 @@ public class FileQueueService implements QueueService {
                     } catch (IOException e) {
                         Throwables.propagate(e);
                     } finally {
+                        close(queueName);
+                        FileQueueSignal.remove(queueDir);
                         unlock(queueLock); // technically this file will be deleted already previous line?1?
                     }
                 }
@@ -154,19 +217,150 @@ public class FileQueueService implements QueueService {
     @Override
     public QueueMessage push(String queueUrl, String message) {
         checkQueueUrl(queueUrl);
+        checkMessageBody(message);
 
         String queueName = fromUrl(queueUrl);
-        File messagesFile = getMessagesFile(queueName);
-        File queueLock = getQueueLock(queueName);
 
-        QueueMessage pushMessage = new QueueMessage(message, generateMessageId());
+        checkState(getQueueDir(queueName).exists(), QUEUE_URL_DOES_NOT_EXIST);
+
+        return push(queueUrl, message, getQueueDelay(queueName));
+    }
+
+    /**
+     * Appends the message with the time it becomes visible, pulls leave it be until then.
+     */
+    @Override
+    public QueueMessage push(String queueUrl, String message, long delayMillis) {
+        checkQueueUrl(queueUrl);
+        checkMessageBody(message);
+        checkDelay(delayMillis);
+
+        String queueName = fromUrl(queueUrl);
+
+        QueueMessage pushMessage = new QueueMessage(message, generateId());
+
+        checkState(getQueueDir(queueName).exists(), QUEUE_URL_DOES_NOT_EXIST);
+
+        try {
+            getQueueWriter(queueName).write(FileQueueLog.encodePush(pushMessage, visibleAt(delayMillis))); // append along with any concurrent pushes
+        } catch (IOException | InterruptedException e) {
+            Throwables.propagate(e);
+        }
+
+        getQueueSignal(queueName).signalAll(); // wake pullers waiting in this process
+
+        return pushMessage;
+    }
+
+    /**
+     * Appends the message with its group id and when the queue's delay lets it become visible.
+     * Pulls hold it back once they read it if a message of its group is still in flight.
+     */
+    @Override
+    public QueueMessage push(String queueUrl, String message, String groupId) {
+        checkQueueUrl(queueUrl);
+        checkMessageBody(message);
+        checkGroupId(groupId);
+
+        String queueName = fromUrl(queueUrl);
+
+        QueueMessage pushMessage = new QueueMessage(message, generateId(), groupId);
+
+        checkState(getQueueDir(queueName).exists(), QUEUE_URL_DOES_NOT_EXIST);
+
+        try {
+            getQueueWriter(queueName).write(FileQueueLog.encodePush(pushMessage, visibleAt(getQueueDelay(queueName)))); // append along with any concurrent pushes
+        } catch (IOException | InterruptedException e) {
+            Throwables.propagate(e);
+        }
+
+        getQueueSignal(queueName).signalAll(); // wake pullers waiting in this process
+
+        return pushMessage;
+    }
+
+    /**
+     * Appends the whole batch with a single gathering write under one acquisition of the queue
+     * lock, along with any concurrent pushes. Every message is accepted.
+     */
+    @Override
+    public List<QueueMessage> pushBatch(String queueUrl, List<String> messages) {
+        checkQueueUrl(queueUrl);
+        checkMessageBodies(messages);
+
+        String queueName = fromUrl(queueUrl);
+
+        checkState(getQueueDir(queueName).exists(), QUEUE_URL_DOES_NOT_EXIST);
+
+        long visibleAt = visibleAt(getQueueDelay(queueName));
+        List<QueueMessage> pushMessages = new ArrayList<>(messages.size());
+        List<ByteBuffer> pushRecords = new ArrayList<>(messages.size());
+        for (String message : messages) {
+            QueueMessage pushMessage = new QueueMessage(message, generateId());
+            pushMessages.add(pushMessage);
+            pushRecords.add(FileQueueLog.encodePush(pushMessage, visibleAt));
+        }
+
+        try {
+            getQueueWriter(queueName).write(pushRecords);
+        } catch (IOException | InterruptedException e) {
+            Throwables.propagate(e);
+        }
+
+        getQueueSignal(queueName).signalAll(); // wake pullers waiting in this process
+
+        return pushMessages;
+    }
+
+    /**
+     * Persists the delay in the queue directory. Other processes already pushing to the queue
+     * keep the delay they read when they first pushed.
+     */
+    @Override
+    public void setQueueDelay(String queueUrl, long delayMillis) {
+        checkQueueUrl(queueUrl);
+        checkDelay(delayMillis);
+
+        String queueName = fromUrl(queueUrl);
+        FileQueueLock queueLock = getQueueLock(queueName);
 
         checkState(getQueueDir(queueName).exists(), QUEUE_URL_DOES_NOT_EXIST);
 
         try {
             lock(queueLock);
-            try (PrintWriter pw = new PrintWriter(new FileWriter(messagesFile, true))) {
-                pw.println(createVisibleQueueRecord(pushMessage)); // append
+            try {
+                getQueueLog(queueName).setDelay(delayMillis);
+            } catch (IOException e) {
+                Throwables.propagate(e);
+            } finally {
+                unlock(queueLock);
+            }
+        } catch (InterruptedException e) {
+            Throwables.propagate(e);
+        }
+    }
+
+    /**
+     * Persists the redrive policy in the queue directory. Other processes already pulling from
+     * the queue keep the policy they read when they first pulled.
+     */
+    @Override
+    public void setRedrivePolicy(String queueUrl, String deadLetterQueueUrl, int maxReceiveCount) {
+        checkQueueUrl(queueUrl);
+        checkQueueUrl(deadLetterQueueUrl);
+        checkMaxReceiveCount(maxReceiveCount);
+
+        String queueName = fromUrl(queueUrl);
+        String deadLetterQueueName = fromUrl(deadLetterQueueUrl);
+        FileQueueLock queueLock = getQueueLock(queueName);
+
+        checkArgument(!queueName.equals(deadLetterQueueName), DEAD_LETTER_QUEUE_CANNOT_BE_THE_QUEUE);
+        checkState(getQueueDir(queueName).exists() && getQueueDir(deadLetterQueueName).exists(), QUEUE_URL_DOES_NOT_EXIST);
+
+        try {
+            lock(queueLock);
+            try {
+                getQueueLog(queueName).setRedrivePolicy(deadLetterQueueName, maxReceiveCount);
             } catch (IOException e) {
                 Throwables.propagate(e);
             } finally {
@@ -175,34 +369,53 @@ public class FileQueueService implements QueueService {
         } catch (InterruptedException e) {
             Throwables.propagate(e);
         }
-        return pushMessage;
     }
 
     @Override
     public QueueMessage pull(String queueUrl) {
+        List<QueueMessage> pulledMessages = pull(queueUrl, 1);
+
+        return pulledMessages.isEmpty() ? new QueueMessage() : pulledMessages.get(0);
+    }
+
+    @Override
+    public List<QueueMessage> pull(String queueUrl, int maxMessages) {
+        return pull(queueUrl, maxMessages, visibilityTimeoutMillis);
+    }
+
+    @Override
+    public List<QueueMessage> pull(String queueUrl, int maxMessages, long visibilityTimeoutMillis) {
         checkQueueUrl(queueUrl);
+        checkMaxMessages(maxMessages);
+        checkVisibilityTimeout(visibilityTimeoutMillis);
+
+        String queueName = fromUrl(queueUrl);
+
+        checkState(getQueueDir(queueName).exists(), QUEUE_URL_DOES_NOT_EXIST);
 
-        QueueMessage pulledMessage = new QueueMessage();
+        FileQueueSignal signal = getQueueSignal(queueName);
+        List<QueueMessage> pulledMessages;
 
         long startTime = now(); // start timer for wait time for pulling
 
-        do {
-            pulledMessage = processMessages(queueUrl, false, null);
+        while (true) {
+            long version = signal.version(); // read before pulling so that a push in between wakes us straight away
 
-            if (pulledMessage.isEmpty()) { // block
-                try {
-                    Thread.sleep(50);
-                } catch (InterruptedException e) {
-                    Throwables.propagate(e);
-                }
-            }
+            pulledMessages = pullOnce(queueUrl, maxMessages, visibilityTimeoutMillis);
 
-            if ((now() - startTime) > pullWaitTimeMillis) { // if time elapsed is greater than wait time
+            long waitUntil = Math.min(startTime + pullWaitTimeMillis, getQueueLog(queueName).getNextVisibleAt());
+            if (!pulledMessages.isEmpty() || now() >= startTime + pullWaitTimeMillis) { // if time elapsed is greater than wait time
                 break;
             }
-        } while (pulledMessage.isEmpty());
 
-        return pulledMessage;
+            try {
+                signal.await(version, Math.max(waitUntil - now(), 1)); // block until pushed or an in flight message times out
+            } catch (InterruptedException e) {
+                Throwables.propagate(e);
+            }
+        }
+
+        return pulledMessages;
     }
 
     @Override
@@ -210,9 +423,175 @@ public class FileQueueService implements QueueService {
         checkQueueUrl(queueUrl);
         checkReceiptId(receiptId);
 
-        QueueMessage deletedMessage = processMessages(queueUrl, true, receiptId);
+        return deleteBatch(queueUrl, Collections.singletonList(receiptId)).get(0);
+    }
+
+    /**
+     * Journals the whole batch with a single gathering write under one acquisition of the queue
+     * lock.
+     */
+    @Override
+    public List<Boolean> deleteBatch(String queueUrl, List<String> receiptIds) {
+        checkQueueUrl(queueUrl);
+        checkReceiptIds(receiptIds);
+
+        String queueName = fromUrl(queueUrl);
+        FileQueueLock queueLock = getQueueLock(queueName);
+
+        List<Boolean> deleted = Collections.nCopies(receiptIds.size(), false);
 
-        return deletedMessage.getReceiptId().equals(receiptId) ? true : false;
+        checkState(getQueueDir(queueName).exists(), QUEUE_URL_DOES_NOT_EXIST);
+
+        try {
+            lock(queueLock);
+            try {
+                deleted = getQueueLog(queueName).deleteAll(receiptIds);
+            } catch (IOException e) {
+                Throwables.propagate(e);
+            } finally {
+                unlock(queueLock);
+            }
+        } catch (InterruptedException e) {
+            Throwables.propagate(e);
+        }
+
+        if (getQueueLog(queueName).getNextVisibleAt() <= now()) { // released the next message of a group
+            getQueueSignal(queueName).signalAll();
+        }
+
+        return deleted;
+    }
+
+    @Override
+    public boolean changeVisibility(String queueUrl, String receiptId, long visibilityTimeoutMillis) {
+        checkQueueUrl(queueUrl);
+        checkReceiptId(receiptId);
+
+        return changeVisibilityBatch(queueUrl, Collections.singletonList(receiptId), visibilityTimeoutMillis).get(0);
+    }
+
+    /**
+     * Journals a new deadline for each message, with a single gathering write under one
+     * acquisition of the queue lock, rather than rewriting anything in the message log.
+     */
+    @Override
+    public List<Boolean> changeVisibilityBatch(String queueUrl, List<String> receiptIds, long visibilityTimeoutMillis) {
+        checkQueueUrl(queueUrl);
+        checkReceiptIds(receiptIds);
+        checkVisibilityTimeout(visibilityTimeoutMillis);
+
+        String queueName = fromUrl(queueUrl);
+        FileQueueLock queueLock = getQueueLock(queueName);
+
+        List<Boolean> changed = Collections.nCopies(receiptIds.size(), false);
+
+        checkState(getQueueDir(queueName).exists(), QUEUE_URL_DOES_NOT_EXIST);
+
+        try {
+            lock(queueLock);
+            try {
+                changed = getQueueLog(queueName).changeVisibilityAll(receiptIds, visibilityTimeoutMillis);
+            } catch (IOException e) {
+                Throwables.propagate(e);
+            } finally {
+                unlock(queueLock);
+            }
+        } catch (InterruptedException e) {
+            Throwables.propagate(e);
+        }
+
+        getQueueSignal(queueName).signalAll(); // a shortened timeout may make a message visible sooner than waiting pullers expect
+
+        return changed;
+    }
+
+    /**
+     * Pushes on the calling thread, a push being a short append that goes out with any
+     * concurrent pushes.
+     */
+    @Override
+    public CompletableFuture<QueueMessage> pushAsync(String queueUrl, String message) {
+        try {
+            return CompletableFuture.completedFuture(push(queueUrl, message));
+        } catch (RuntimeException e) {
+            return failedFuture(e);
+        }
+    }
+
+    /**
+     * Pulls on a small pool of background threads of this service's own. A pull that finds
+     * nothing is tried again when the queue is signalled, or an in flight message times out,
+     * and nothing waits for it in the meantime. Nor does anything wait for the queue lock, a pull
+     * that finds it held is tried again shortly, so a queue locked by another process holds up
+     * no other pulls. Dead letters a pull finds are moved on a thread of their own, so neither
+     * does a dead letter queue locked by another process.
+     */
+    @Override
+    public CompletableFuture<QueueMessage> pullAsync(String queueUrl) {
+        try {
+            checkQueueUrl(queueUrl);
+
+            checkState(getQueueDir(fromUrl(queueUrl)).exists(), QUEUE_URL_DOES_NOT_EXIST);
+            checkState(!asyncPuller.isShutdown(), SERVICE_IS_CLOSED);
+
+            PendingPull pending = new PendingPull(queueUrl, now() + pullWaitTimeMillis);
+            pendingPulls.add(pending);
+            pending.future.whenComplete((message, e) -> pendingPulls.remove(pending));
+            asyncPuller.execute(() -> tryPull(pending));
+            if (asyncPuller.isShutdown()) {
+                pending.future.complete(new QueueMessage()); // closed since the check, maybe after close completed the pending pulls
+            }
+            return pending.future;
+        } catch (RuntimeException e) {
+            return failedFuture(e);
+        }
+    }
+
+    /**
+     * Deletes on the calling thread, a delete being a short append to the journal.
+     */
+    @Override
+    public CompletableFuture<Boolean> deleteMessageAsync(String queueUrl, String receiptId) {
+        try {
+            return CompletableFuture.completedFuture(deleteMessage(queueUrl, receiptId));
+        } catch (RuntimeException e) {
+            return failedFuture(e);
+        }
+    }
+
+    /**
+     * @return the number of times moving dead letters failed, leaving them in flight to be dead
+     *         lettered again once they time out
+     */
+    public long getFailedDeadLetterMoves() {
+        return failedDeadLetterMoves.get();
+    }
+
+    /**
+     * @return the background compactor, for its metrics, or null if compaction is off
+     */
+    public FileQueueCompactor getCompactor() {
+        return compactor;
+    }
+
+    /**
+     * Stops background compaction, fsync and async pulls and closes the queue logs. Pending async
+     * pulls complete with no message, as if they had timed out, and async pulls made afterwards
+     * fail. The queues themselves are left as they are.
+     */
+    @Override
+    public void close() {
+        if (compactor != null) {
+            compactor.close();
+        }
+        asyncPuller.shutdownNow();
+        deadLetterMover.shutdownNow();
+        for (PendingPull pending : pendingPulls) {
+            pending.future.complete(new QueueMessage());
+        }
+        for (String queueName : queueLogs.keySet()) {
+            close(queueName);
+        }
     }
 
     // Private methods
@@ -229,178 +608,243 @@ public class FileQueueService implements QueueService {
         return Paths.get(rootDir).toFile();
     }
 
-    private File getQueueDir(String queueName) {
+    protected File getQueueDir(String queueName) {
         return Paths.get(rootDir, queueName).toFile();
     }
 
-    private File getRootLock() {
-        return Paths.get(rootDir, LOCK_DIR_NAME).toFile();
+    private FileQueueLock getRootLock() {
+        return new FileQueueLock(Paths.get(rootDir, LOCK_FILE_NAME).toFile());
+    }
+
+    protected FileQueueLock getQueueLock(String queueName) {
+        return new FileQueueLock(Paths.get(rootDir, queueName, LOCK_FILE_NAME).toFile());
     }
 
-    private File getMessagesFile(String queueName) {
-        return Paths.get(rootDir, queueName, MESSAGE_FILE_NAME).toFile();
+    private void lock(FileQueueLock lock) throws InterruptedException {
+        try {
+            lock.lock();
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
     }
 
-    private File getTempMessagesFile(String queueName) {
-        return Paths.get(rootDir, queueName, TEMP_MESSAGE_FILE_NAME).toFile();
+    /**
+     * @return true if the lock is held, false if it is held elsewhere
+     */
+    private boolean tryLock(FileQueueLock lock) {
+        try {
+            return lock.tryLock();
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
     }
 
-    private File getQueueLock(String queueName) {
-        return Paths.get(rootDir, queueName, LOCK_DIR_NAME).toFile();
+    private void unlock(FileQueueLock lock) {
+        lock.unlock();
     }
 
-    private void lock(File lock) throws InterruptedException {
-        while (!lock.mkdir()) {
-            Thread.sleep(50);
+    protected FileQueueLog getQueueLog(String queueName) {
+        return queueLogs.computeIfAbsent(queueName,
+                name -> new FileQueueLog(getQueueDir(name), segmentSizeBytes, visibilityTimeoutMillis, fsyncPolicy));
+    }
+
+    private long getQueueDelay(String queueName) {
+        try {
+            return getQueueLog(queueName).getDelay();
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
         }
     }
 
-    private void unlock(File lock) {
-        lock.delete();
+    /**
+     * @return when a message pushed now with the specified delay becomes visible, 0 for straight
+     *         away
+     */
+    private static long visibleAt(long delayMillis) {
+        return (delayMillis > 0) ? now() + delayMillis : 0;
     }
 
-    private String createVisibleQueueRecord(QueueMessage messageObj) {
-        return createFileQueueRecord(false,
-                0,
-                "",
-                messageObj.getMessageId(),
-                messageObj.getMessageBody());
+    private FileQueueWriter getQueueWriter(String queueName) {
+        return queueWriters.computeIfAbsent(queueName,
+                name -> new FileQueueWriter(Paths.get(rootDir, name, LOCK_FILE_NAME).toFile(), getQueueLog(name), fsyncPolicy));
+    }
+
+    private void close(String queueName) {
+        FileQueueWriter queueWriter = queueWriters.remove(queueName);
+        if (queueWriter != null) {
+            queueWriter.close();
+        }
+        FileQueueLog queueLog = queueLogs.remove(queueName);
+        if (queueLog != null) {
+            try {
+                queueLog.close();
+            } catch (IOException e) {
+                // already deleted, nothing left to lose
+            }
+        }
     }
 
-    private String createInvisibleQueueRecord(QueueMessage messageObj) {
-        return createFileQueueRecord(true,
-                messageObj.getVisibilityTimeoutFrom(),
-                messageObj.getReceiptId(),
-                messageObj.getMessageId(),
-                messageObj.getMessageBody());
+    private FileQueueSignal getQueueSignal(String queueName) {
+        return FileQueueSignal.forQueue(getQueueDir(queueName));
     }
 
-    private String createFileQueueRecord(boolean inFlight, long visibilityTimeoutMillis, String receiptId, String messageId, String messageBody) {
-        // e.g. 0:0:614c58b8-c319-4137-a1da-eb0b75fa19a2:02fa4094-2a2d-4677-a1c9-89bf9420cb1a:{"media":"MABJsxUmBps",...}
-        // [0] in flight 0=false, 1=true
-        // [1] visibility timeout from
-        // [2] receipt id
-        // [3] message id
-        // [4] message
-        StringBuilder fileRecord = new StringBuilder();
-        fileRecord.append((inFlight) ? 1 : 0 );
-        fileRecord.append(":");
-        fileRecord.append(visibilityTimeoutMillis);
-        fileRecord.append(":");
-        fileRecord.append(receiptId);
-        fileRecord.append(":");
-        fileRecord.append(messageId);
-        fileRecord.append(":");
-        fileRecord.append(messageBody);
-        return fileRecord.toString();
+    /**
+     * Pulls under the queue lock, then moves any messages that have been pulled too often to the
+     * dead letter queue once the lock is released, so no two queue locks are ever held at once.
+     * A dead letter queue that has been deleted is ignored.
+     */
+    private List<QueueMessage> pullOnce(String queueUrl, int maxMessages, long visibilityTimeoutMillis) {
+        return pullOnce(queueUrl, maxMessages, visibilityTimeoutMillis, true);
     }
 
-    private QueueMessage processMessages(String queueUrl, boolean processDelete, String receiptId) {
+    /**
+     * @param waitForLock whether to wait for the queue lock, or give up if it is held elsewhere,
+     *        in which case dead letters are handed to the dead letter mover rather than waiting
+     *        for the dead letter queue's lock either
+     * @return the pulled messages, or null if not waiting for the queue lock and it is held
+     */
+    private List<QueueMessage> pullOnce(String queueUrl, int maxMessages, long visibilityTimeoutMillis, boolean waitForLock) {
         String queueName = fromUrl(queueUrl);
-        File messagesFile = getMessagesFile(queueName);
-        File tempMessagesFile = getTempMessagesFile(queueName);
-        File queueLock = getQueueLock(queueName);
+        FileQueueLock queueLock = getQueueLock(queueName);
 
-        QueueMessage pulledOrDeletedMessage = new QueueMessage();
+        List<QueueMessage> pulledMessages = Collections.emptyList();
+        List<QueueMessage> deadLetters = new ArrayList<>();
+        String deadLetterQueueName = null;
 
         checkState(getQueueDir(queueName).exists(), QUEUE_URL_DOES_NOT_EXIST);
 
         try {
-            lock(queueLock);
-
-            if (messagesFile.length() == 0) { // if no messages then return empty
-                unlock(queueLock);
-                return new QueueMessage();
+            if (waitForLock) {
+                lock(queueLock);
+            } else if (!tryLock(queueLock)) {
+                return null;
             }
-
-            messagesFile.renameTo(tempMessagesFile); // rename messsages file
-
-            try (BufferedReader br = new BufferedReader(new FileReader(tempMessagesFile)); // then read from temp file
-                 PrintWriter pw = new PrintWriter(new FileWriter(messagesFile, true)) // and append to messages file
-            ) {
-                pulledOrDeletedMessage = processLines(pw, br, processDelete, receiptId);
+            try {
+                FileQueueLog queueLog = getQueueLog(queueName);
+                deadLetterQueueName = queueLog.getDeadLetterQueueName();
+                int maxReceiveCount = (deadLetterQueueName != null && getQueueDir(deadLetterQueueName).exists()) ? queueLog.getMaxReceiveCount() : 0;
+                pulledMessages = queueLog.pull(maxMessages, visibilityTimeoutMillis, maxReceiveCount, deadLetters);
             } catch (IOException e) {
                 Throwables.propagate(e);
             } finally {
-                tempMessagesFile.delete(); // clean up temp file
                 unlock(queueLock);
             }
         } catch (InterruptedException e) {
             Throwables.propagate(e);
         }
 
-        return pulledOrDeletedMessage;
-    }
-
-    private QueueMessage processLines(PrintWriter pw, BufferedReader br, boolean processDelete, String receiptId) throws IOException {
-        QueueMessage result = new QueueMessage();
-
-        boolean pullOrDeleteHasOccurred = false;
+        if (!deadLetters.isEmpty() && waitForLock) {
+            moveToDeadLetterQueue(queueName, deadLetterQueueName, deadLetters);
+        } else if (!deadLetters.isEmpty()) {
+            String movedTo = deadLetterQueueName;
+            deadLetterMover.execute(() -> moveToDeadLetterQueue(queueName, movedTo, deadLetters));
+        }
 
-        for (String line = br.readLine(); line != null; line = br.readLine()) {
-            String[] parts = line.split(":", 5); // we have 5 fields, last being message body
+        return pulledMessages;
+    }
 
-            // e.g. 0:0:614c58b8-c319-4137-a1da-eb0b75fa19a2:02fa4094-2a2d-4677-a1c9-89bf9420cb1a:{"media":"MABJsxUmBps",...}
-            boolean inFlight = (Integer.parseInt(parts[INT_FLIGHT_INDEX]) == 1) ? true : false;// [0] in flight 0=false, 1=true
-            long visibilityTimeoutFrom = Long.parseLong(parts[VISIBILITY_TIMEOUT_INDEX]);// [1] visibility timeout from
-            String currReceiptId = parts[RECEIPT_ID_INDEX];// [2] receipt id
-            QueueMessage message = new QueueMessage(parts[MESSAGE_BODY_INDEX], parts[MESSAGE_ID_INDEX]); // [3] message id, [4] message
+    /**
+     * Pushes the dead letters, with the same message ids, to the dead letter queue and then
+     * deletes them from the queue. If either fails, or is interrupted, the failure is counted
+     * and they are dead lettered again once they time out. The copies are in no group.
+     */
+    private void moveToDeadLetterQueue(String queueName, String deadLetterQueueName, List<QueueMessage> deadLetters) {
+        List<ByteBuffer> pushRecords = new ArrayList<>(deadLetters.size());
+        List<String> receiptIds = new ArrayList<>(deadLetters.size());
+        for (QueueMessage deadLetter : deadLetters) {
+            pushRecords.add(FileQueueLog.encodePush(new QueueMessage(deadLetter.getMessageBody(), deadLetter.getMessageQueueId()))); // in no group
+            receiptIds.add(deadLetter.getReceiptId());
+        }
 
-            QueueMessage resultThisLine; // track the result if processing this line, an empty QueueMessage object indicates that the pull/delete was unsuccessful
+        try {
+            checkState(getQueueDir(deadLetterQueueName).exists(), QUEUE_URL_DOES_NOT_EXIST);
+            getQueueWriter(deadLetterQueueName).write(pushRecords);
+            getQueueSignal(deadLetterQueueName).signalAll();
+            deleteBatch(toUrl(queueName), receiptIds);
+        } catch (IOException | RuntimeException e) {
+            failedDeadLetterMoves.incrementAndGet(); // left in flight, dead lettered again when they time out
+        } catch (InterruptedException e) {
+            failedDeadLetterMoves.incrementAndGet();
+            Thread.currentThread().interrupt();
+        }
+    }
 
-            if (processDelete) {
-                resultThisLine = processLineAsDelete(inFlight, visibilityTimeoutFrom, message, pw, line, currReceiptId, receiptId);
-            } else {
-                resultThisLine = processLineAsPull(inFlight, visibilityTimeoutFrom, message, pw, line, pullOrDeleteHasOccurred);
+    /**
+     * Tries a pending async pull once, on one of the async puller threads. If there is nothing
+     * to pull, another try is set off by the next signal or when the next in flight message times
+     * out, whichever is first, but no later than the pull wait time. If the queue lock is held,
+     * another try is set off shortly.
+     */
+    private void tryPull(PendingPull pending) {
+        synchronized (pending) { // tried on any of the pool's threads, but never on two at once
+            if (pending.future.isDone()) {
+                return; // already tried on an earlier signal, or cancelled
             }
 
-            if (!pullOrDeleteHasOccurred && !resultThisLine.isEmpty()) { // if processing this line has produced a result
-                pullOrDeleteHasOccurred = true;
-                result = resultThisLine; // return either the pulled message or confirm the deleted message
-                if (processDelete) {
-                    result = new QueueMessage(resultThisLine, currReceiptId, visibilityTimeoutFrom); // recreate original message, a bit messy
+            String queueName = fromUrl(pending.queueUrl);
+            try {
+                FileQueueSignal signal = getQueueSignal(queueName);
+                long version = signal.version(); // read before pulling so that a push in between sets off another try straight away
+
+                List<QueueMessage> pulledMessages = pullOnce(pending.queueUrl, 1, visibilityTimeoutMillis, false);
+                if (pulledMessages == null) { // queue lock held, maybe by another process, try again shortly rather than wait for it
+                    pulledMessages = Collections.emptyList();
+                    if (now() < pending.pullUntil) {
+                        int attempt = ++pending.attempts;
+                        pending.retry = asyncPuller.schedule(() -> retryPull(pending, attempt), LOCK_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+                        return;
+                    }
+                }
+                if (!pulledMessages.isEmpty() || now() >= pending.pullUntil) {
+                    pending.future.complete(pulledMessages.isEmpty() ? new QueueMessage() : pulledMessages.get(0)); // if cancelled once pulled, the message is redelivered when it times out
+                    return;
+                }
+
+                long waitUntil = Math.min(pending.pullUntil, getQueueLog(queueName).getNextVisibleAt());
+                if (!signal.isWatched()) {
+                    waitUntil = Math.min(waitUntil, now() + FileQueueSignal.POLL_INTERVAL_MILLIS);
                 }
+                int attempt = ++pending.attempts;
+                if (!signal.whenSignalled(version, () -> asyncPuller.execute(() -> retryPull(pending, attempt)))) {
+                    asyncPuller.execute(() -> tryPull(pending)); // pushed while we pulled
+                    return;
+                }
+                pending.retry = asyncPuller.schedule(() -> retryPull(pending, attempt), Math.max(waitUntil - now(), 1), TimeUnit.MILLISECONDS);
+            } catch (RuntimeException e) {
+                pending.future.completeExceptionally(e);
             }
         }
-
-        return result;
     }
 
-    private QueueMessage processLineAsPull(boolean inFlight, long visibilityTimeoutFrom, QueueMessage message, PrintWriter pw, String line, boolean visibleMessageFound) {
-        QueueMessage result = new QueueMessage();
-
-        if (inFlight) { // in flight
-            if (now() - visibilityTimeoutFrom > visibilityTimeoutMillis) { // visibility timeout has elapsed
-                if (!visibleMessageFound) { // return the first re-visible message
-                    result = new QueueMessage(message, generateReceiptId(), now());
-                }
-                pw.println(createVisibleQueueRecord(message)); // and make visible again
-            } else { // else if visibility timeout not elapsed then it remains in flight
-                pw.println(line);
+    /**
+     * Tries a pending async pull again if neither the signal nor the timer set off for the
+     * specified attempt has done so already.
+     */
+    private void retryPull(PendingPull pending, int attempt) {
+        synchronized (pending) {
+            if (pending.attempts != attempt) {
+                return;
             }
-        } else if (!visibleMessageFound && !inFlight) { // we found the first visible message that's not in flight
-            result = new QueueMessage(message, generateReceiptId(), now());
-            pw.println(createInvisibleQueueRecord(result));
-        } else { // and simply reprint the remaining messages not in flight
-            pw.println(line);
+            if (pending.retry != null) {
+                pending.retry.cancel(false);
+            }
+            tryPull(pending);
         }
-        return result;
     }
 
-    private QueueMessage processLineAsDelete(boolean inFlight, long visibilityTimeoutFrom, QueueMessage message, PrintWriter pw, String line, String currReceiptId, String receiptId) {
-        QueueMessage result = new QueueMessage();
-
-        if (inFlight) { // in flight
-            if (now() - visibilityTimeoutFrom > visibilityTimeoutMillis) { // visibility timeout has elapsed, including perhaps our receipt id
-                pw.println(createVisibleQueueRecord(message)); // so make visible again
-            } else if (currReceiptId.equals(receiptId)) { // if receipt id matches then DELETE! cos we're here while visibility has not elapsed
-                result = message; // return the deleted message
-            } else {
-                pw.println(line); // else if visibility timeout not elapsed then it remains in flight
-            }
-        } else { // and simply reprint the remaining messages not in flight
-            pw.println(line);
+    /**
+     * An async pull waiting for a message. Only used holding its own monitor once created.
+     */
+    private static class PendingPull {
+        private final CompletableFuture<QueueMessage> future = new CompletableFuture<>();
+        private final String queueUrl;
+        private final long pullUntil;
+        private int attempts;
+        private ScheduledFuture<?> retry; // timer for the latest attempt
+
+        PendingPull(String queueUrl, long pullUntil) {
+            this.queueUrl = queueUrl;
+            this.pullUntil = pullUntil;
         }
-        return result;
     }
 }
@@ -0,0 +1,181 @@
+package com.example;
+
+import static com.example.QueueServiceUtil.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Wakes pullers that are long polling an empty file queue.
+ *
+ * <p>Pushes made by this process signal the queue directly. Pushes made by other processes are
+ * picked up by a single daemon thread watching every signalled queue directory for changes to
+ * segment files, so waiting pullers are parked rather than polling the file system. A change to
+ * the queue's wake file wakes them too, as it is touched when a delete or visibility change
+ * journalled by another process may have made a message visible, e.g. the next message of a
+ * group. Other journal writes, such as pulls, wake nobody. Signals are shared by every service
+ * in the JVM. Where a queue directory cannot be watched pullers fall
+ * back to polling.
+ */
+public class FileQueueSignal {
+    // Constants
+    protected static final long POLL_INTERVAL_MILLIS = 50L; // only when the queue directory is not watched
+    private static final ConcurrentMap<Path, FileQueueSignal> SIGNALS = new ConcurrentHashMap<>(); // queue dir > signal
+    private static WatchService watchService;
+
+    // Fields
+    private final WatchKey watchKey;
+    private long version;
+    private List<Runnable> callbacks = new ArrayList<>(); // run once on the next signal
+
+    private FileQueueSignal(WatchKey watchKey) {
+        this.watchKey = watchKey;
+    }
+
+    /**
+     * @param queueDir an existing queue directory
+     * @return the signal shared by every service in this JVM for the specified queue
+     */
+    public static FileQueueSignal forQueue(File queueDir) {
+        return SIGNALS.computeIfAbsent(queueDir.getAbsoluteFile().toPath(), path -> new FileQueueSignal(watch(path)));
+    }
+
+    /**
+     * Stops watching a queue directory that is being deleted and wakes anyone waiting on it.
+     */
+    public static void remove(File queueDir) {
+        FileQueueSignal signal = SIGNALS.remove(queueDir.getAbsoluteFile().toPath());
+        if (signal != null) {
+            if (signal.watchKey != null) {
+                signal.watchKey.cancel();
+            }
+            signal.signalAll();
+        }
+    }
+
+    /**
+     * @return a version to pass to {@link #await(long, long)}, read before checking the queue
+     *         so that a push landing after the check is never missed
+     */
+    public synchronized long version() {
+        return version;
+    }
+
+    public void signalAll() {
+        List<Runnable> signalled;
+        synchronized (this) {
+            version++;
+            notifyAll();
+            if (callbacks.isEmpty()) {
+                return;
+            }
+            signalled = callbacks;
+            callbacks = new ArrayList<>();
+        }
+        for (Runnable callback : signalled) {
+            callback.run(); // outside the lock, so a callback can wait again
+        }
+    }
+
+    /**
+     * Runs a callback once, on the thread that signals the queue, when the queue is signalled
+     * after the specified version was read. Nothing waits for it in the meantime. The callback
+     * should be quick, e.g. hand off to an executor.
+     *
+     * @return false, without keeping the callback, if the queue has been signalled already
+     */
+    public synchronized boolean whenSignalled(long version, Runnable callback) {
+        if (this.version != version) {
+            return false;
+        }
+        callbacks.add(callback);
+        return true;
+    }
+
+    /**
+     * @return false if pushes by other processes are not watched for, and waiting pullers have
+     *         to poll
+     */
+    public boolean isWatched() {
+        return watchKey != null;
+    }
+
+    /**
+     * Parks until the queue is signalled after the specified version was read or until the
+     * timeout elapses, whichever is first.
+     */
+    public synchronized void await(long version, long timeoutMillis) throws InterruptedException {
+        if (watchKey == null) {
+            timeoutMillis = Math.min(timeoutMillis, POLL_INTERVAL_MILLIS);
+        }
+
+        long deadline = now() + timeoutMillis;
+        for (long remaining = timeoutMillis; this.version == version && remaining > 0; remaining = deadline - now()) {
+            wait(remaining);
+        }
+    }
+
+    // Private methods
+
+    private static WatchKey watch(Path queueDir) {
+        try {
+            return queueDir.register(getWatchService(),
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException | ClosedWatchServiceException e) {
+            return null; // fall back to polling
+        }
+    }
+
+    private static synchronized WatchService getWatchService() throws IOException {
+        if (watchService == null) {
+            watchService = FileSystems.getDefault().newWatchService();
+            Thread watcher = new Thread(FileQueueSignal::dispatchEvents, "file-queue-watcher");
+            watcher.setDaemon(true);
+            watcher.start();
+        }
+        return watchService;
+    }
+
+    private static void dispatchEvents() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            Path queueDir = (Path) key.watchable();
+            boolean changed = false;
+            for (WatchEvent<?> event : key.pollEvents()) {
+                String fileName = String.valueOf(event.context());
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW
+                        || fileName.endsWith(FileQueueLog.SEGMENT_FILE_SUFFIX)
+                        || fileName.equals(FileQueueLog.WAKE_FILE_NAME)) { // pushes and releases count, not pulls, the lock, head or checkpoint
+                    changed = true;
+                }
+            }
+
+            FileQueueSignal signal = SIGNALS.get(queueDir);
+            if (!key.reset()) { // queue dir has been deleted
+                SIGNALS.remove(queueDir, signal);
+                changed = true;
+            }
+            if (changed && signal != null) {
+                signal.signalAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.example;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Group commit for pushes to a single file queue.
+ *
+ * <p>Each push adds its encoded record to the pending batch and then waits its turn to commit.
+ * Whoever gets the turn first writes every record that has joined the batch so far with a single
+ * gathering write under the queue lock, forcing it to disk once if the fsync policy asks for it,
+ * and the pushes whose records went with it return without touching the file themselves. While
+ * one batch is being written the next one fills up, so the busier the queue the bigger the
+ * batches.
+ *
+ * <p>With an interval fsync policy a background thread shared by every writer in the JVM forces
+ * written records to disk at the configured interval.
+ */
+public class FileQueueWriter {
+    // Constants
+    private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread flusher = new Thread(runnable, "file-queue-flusher");
+        flusher.setDaemon(true);
+        return flusher;
+    });
+
+    // Fields
+    private final File lockFile;
+    private final FileQueueLog queueLog;
+    private final FileQueueFsyncPolicy fsyncPolicy;
+    private final ReentrantLock commitLock; // whoever holds this commits the pending batch
+    private final ScheduledFuture<?> flush;
+    private Batch pending; // guarded by this
+
+    public FileQueueWriter(File lockFile, FileQueueLog queueLog, FileQueueFsyncPolicy fsyncPolicy) {
+        this.lockFile = lockFile;
+        this.queueLog = queueLog;
+        this.fsyncPolicy = fsyncPolicy;
+        this.commitLock = new ReentrantLock();
+        this.pending = new Batch();
+        this.flush = (fsyncPolicy.getIntervalMillis() > 0)
+                ? FLUSHER.scheduleWithFixedDelay(this::flush, fsyncPolicy.getIntervalMillis(), fsyncPolicy.getIntervalMillis(), TimeUnit.MILLISECONDS)
+                : null;
+    }
+
+    /**
+     * Appends a push record to the log, returning once it has been written and, if the fsync
+     * policy is every batch, forced to disk.
+     *
+     * @param pushRecord an encoded push record
+     * @throws IOException if the batch the record went out with could not be written, including
+     *         when the push that took it to commit was interrupted
+     * @throws InterruptedException if interrupted waiting to commit
+     */
+    public void write(ByteBuffer pushRecord) throws IOException, InterruptedException {
+        write(Collections.singletonList(pushRecord));
+    }
+
+    /**
+     * Appends push records to the log together, in order, returning once they have been written
+     * and, if the fsync policy is every batch, forced to disk.
+     *
+     * @param pushRecords encoded push records
+     * @throws IOException if the batch the records went out with could not be written, including
+     *         when the push that took it to commit was interrupted
+     * @throws InterruptedException if interrupted waiting to commit
+     */
+    public void write(List<ByteBuffer> pushRecords) throws IOException, InterruptedException {
+        Batch batch;
+        synchronized (this) {
+            batch = pending;
+            batch.records.addAll(pushRecords);
+        }
+
+        commitLock.lockInterruptibly();
+        try {
+            if (!batch.committed) { // nobody has committed our batch yet so we take it and anyone who joined it
+                synchronized (this) {
+                    pending = new Batch();
+                }
+                commit(batch);
+            }
+        } finally {
+            commitLock.unlock();
+        }
+
+        if (batch.failure != null) {
+            throw new IOException("Group commit failed", batch.failure);
+        }
+    }
+
+    /**
+     * Stops the background fsync, if any.
+     */
+    public void close() {
+        if (flush != null) {
+            flush.cancel(false);
+        }
+    }
+
+    // Private methods
+
+    private void commit(Batch batch) throws InterruptedException {
+        FileQueueLock queueLock = new FileQueueLock(lockFile);
+        try {
+            queueLock.lock();
+            try {
+                queueLog.pushAll(batch.records);
+                if (fsyncPolicy.isEveryBatch()) {
+                    queueLog.force();
+                }
+            } finally {
+                queueLock.unlock();
+            }
+        } catch (IOException e) {
+            batch.failure = e;
+        } catch (Throwable e) { // interrupted waiting for the lock or failed unchecked, the others in the batch must not think it was written
+            batch.failure = e;
+            throw e;
+        } finally {
+            batch.committed = true;
+        }
+    }
+
+    private void flush() {
+        if (!queueLog.isDirty()) {
+            return; // nothing written since the last fsync, don't bother taking the lock
+        }
+
+        FileQueueLock queueLock = new FileQueueLock(lockFile);
+        try {
+            queueLock.lock();
+            try {
+                queueLog.force();
+            } finally {
+                queueLock.unlock();
+            }
+        } catch (IOException | RuntimeException e) {
+            // try again next interval, the queue may have been deleted
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Records waiting to be committed together. Only read or written while holding the commit
+     * lock once the batch has been taken for commit.
+     */
+    private static class Batch {
+        private final List<ByteBuffer> records = new ArrayList<>();
+        private boolean committed;
+        private Throwable failure; // why the batch was not written, null if it was
+    }
+}
@@ -0,0 +1,14 @@
+package com.example;
+
+/**
+ * Issues message and receipt ids. Implementations must be thread safe, and the ids they issue
+ * must not repeat, including across restarts, since a file queue keeps them on disk.
+ *
+ * @see QueueServiceUtil#setIdGenerator(IdGenerator)
+ */
+public interface IdGenerator {
+    /**
+     * @return a numeric id that has not been issued before
+     */
+    QueueId nextId();
+}
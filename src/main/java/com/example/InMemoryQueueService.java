@@ -6,48 +6,140 @@ import com.google.common.base.Throwables;
 
 import static com.google.common.base.Preconditions.*;
 
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayDeque;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
-import java.util.Stack;
 import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 public class InMemoryQueueService implements QueueService {
+    // Constants
+    protected static final long DEFAULT_TICK_MILLIS = 10L;
+    private static final int TICKS_PER_WHEEL = 512;
+    private static final ScheduledExecutorService TICKER = Executors.newSingleThreadScheduledExecutor(runnable -> { // also times out pending async pulls
+        Thread ticker = new Thread(runnable, "in-memory-queue-visibility");
+        ticker.setDaemon(true);
+        return ticker;
+    });
+
     // Fields
-    private volatile ConcurrentMap<String, BlockingDeque<QueueMessage>> messageQueues; // name > visible FIFO queue
-    private volatile ConcurrentMap<String, Queue<QueueMessage>> inflightQueues; // name > invisible/in flight queue, also FIFO
+    private volatile ConcurrentMap<String, VisibleQueue> messageQueues; // name > visible FIFO queue
+    private volatile ConcurrentMap<String, Map<QueueId, TimingWheel<QueueMessage>.Timeout>> inflightQueues; // name > receipt id > invisible/in flight message, guarded by the queue's visibility timer
+    private volatile ConcurrentMap<String, TimingWheel<QueueMessage>> visibilityTimers; // name > when each in flight message becomes visible again
+    private volatile ConcurrentMap<String, OffHeapArena.Quota> offHeapQuotas; // name > share of the off heap arena, empty if bodies are kept on heap
+    private volatile ConcurrentMap<String, Queue<PendingPull>> pendingPulls; // name > async pulls waiting for a message, oldest first
+    private volatile ConcurrentMap<String, TimingWheel<PackedMessage>> delayTimers; // name > when each delayed message becomes visible
+    private volatile ConcurrentMap<String, Long> queueDelays; // name > delay of messages pushed without one
+    private volatile ConcurrentMap<String, RedrivePolicy> redrivePolicies; // name > where messages pulled too often go, if anywhere
+    private volatile ConcurrentMap<String, Map<String, Queue<HeldBackMessage>>> messageGroups; // name > group id > messages held back behind the group's released one, present while one is released, guarded by the map
     private volatile Object mainLock;
     private String urlPrefix;
     private long pullWaitTimeMillis;
     private long visibilityTimeoutMillis;
+    private long tickMillis;
+    private OffHeapArena offHeapArena; // null if bodies are kept on heap
+    private long offHeapQueueBudgetBytes;
 
     public InMemoryQueueService(String urlPrefix, long pullWaitTimeMillis, long visibilityTimeoutMillis) {
+        this(urlPrefix, pullWaitTimeMillis, visibilityTimeoutMillis, DEFAULT_TICK_MILLIS);
+    }
+
+    /**
+     * @param tickMillis how often in flight messages are checked for having timed out, the most
+     *                   their redelivery can be late by
+     */
+    public InMemoryQueueService(String urlPrefix, long pullWaitTimeMillis, long visibilityTimeoutMillis, long tickMillis) {
+        this(urlPrefix, pullWaitTimeMillis, visibilityTimeoutMillis, tickMillis, 0, 0);
+    }
+
+    /**
+     * Keeps message bodies off heap, in an {@link OffHeapArena} of direct buffers, so that a
+     * large backlog does not fill the old generation. Only a small handle per message is left on
+     * heap. A push that would take a queue or the service over its budget fails. Bodies larger
+     * than a slab, 1MB, are kept on heap.
+     *
+     * @param offHeapBudgetBytes the most memory the bodies of all queues may take off heap, or 0
+     *                           to keep bodies on heap
+     * @param offHeapQueueBudgetBytes the most space the bodies of each queue may take up off heap
+     * @throws IllegalArgumentException if the service budget is negative or does not hold a
+     *         slab, or the queue budget is not positive when there is a service budget
+     */
+    public InMemoryQueueService(String urlPrefix, long pullWaitTimeMillis, long visibilityTimeoutMillis, long tickMillis,
+                                long offHeapBudgetBytes, long offHeapQueueBudgetBytes) {
+        checkArgument(tickMillis > 0, "Tick must be a positive number");
+        checkArgument(offHeapBudgetBytes >= 0, "Off heap budget cannot be negative");
+        checkArgument(offHeapBudgetBytes == 0 || offHeapQueueBudgetBytes > 0, "Off heap queue budget must be a positive number");
         messageQueues = new ConcurrentHashMap<>();
         inflightQueues = new ConcurrentHashMap<>();
+        visibilityTimers = new ConcurrentHashMap<>();
+        offHeapQuotas = new ConcurrentHashMap<>();
+        pendingPulls = new ConcurrentHashMap<>();
+        delayTimers = new ConcurrentHashMap<>();
+        queueDelays = new ConcurrentHashMap<>();
+        redrivePolicies = new ConcurrentHashMap<>();
+        messageGroups = new ConcurrentHashMap<>();
         mainLock = new Object();
         this.urlPrefix = urlPrefix;
         this.pullWaitTimeMillis = pullWaitTimeMillis;
         this.visibilityTimeoutMillis = visibilityTimeoutMillis;
+        this.tickMillis = tickMillis;
+        this.offHeapArena = (offHeapBudgetBytes > 0) ? new OffHeapArena(offHeapBudgetBytes) : null;
+        this.offHeapQueueBudgetBytes = offHeapQueueBudgetBytes;
+        TICKER.scheduleAtFixedRate(new VisibilityTicker(this), tickMillis, tickMillis, TimeUnit.MILLISECONDS);
     }
 
     // Queue methods
 
     @Override
     public String createQueue(String queueName) {
+        return createQueue(queueName, 0);
+    }
+
+    /**
+     * Creates a queue whose visible messages are held in a preallocated lock-free ring buffer
+     * rather than a linked deque, so pushes and pulls take no lock and allocate nothing. The
+     * ring is bounded, a push to a full queue fails.
+     *
+     * @param ringBufferCapacity the most visible messages the queue can hold, rounded up to a
+     *                           power of 2, or 0 for an unbounded linked deque
+     * @throws IllegalArgumentException if the capacity is negative
+     */
+    public String createQueue(String queueName, int ringBufferCapacity) {
         checkQueueName(queueName);
+        checkArgument(ringBufferCapacity >= 0, "Ring buffer capacity cannot be negative");
 
         String queueUrl = toUrl(queueName);
 
         synchronized (mainLock) {
             if (!messageQueues.containsKey(queueName)) {
-                messageQueues.put(queueName, new LinkedBlockingDeque<QueueMessage>());
-                inflightQueues.put(queueName, new ArrayDeque<>());
+                visibilityTimers.put(queueName, new TimingWheel<>(tickMillis, TICKS_PER_WHEEL, now()));
+                inflightQueues.put(queueName, new HashMap<>());
+                if (offHeapArena != null) {
+                    offHeapQuotas.put(queueName, offHeapArena.newQuota(offHeapQueueBudgetBytes));
+                }
+                pendingPulls.put(queueName, new ConcurrentLinkedQueue<>());
+                delayTimers.put(queueName, new TimingWheel<>(tickMillis, TICKS_PER_WHEEL, now()));
+                queueDelays.put(queueName, 0L);
+                messageGroups.put(queueName, new HashMap<>());
+                messageQueues.put(queueName, (ringBufferCapacity > 0) ? new RingVisibleQueue(ringBufferCapacity) : new LinkedVisibleQueue());
             }
         }
 
@@ -74,13 +166,50 @@ public class InMemoryQueueService implements QueueService {
 
         String queueName = fromUrl(queueUrl);
 
+        VisibleQueue messageQueue;
+        Map<QueueId, TimingWheel<QueueMessage>.Timeout> inflightQueue;
+        TimingWheel<QueueMessage> visibilityTimer;
+        Queue<PendingPull> pendingQueue;
+        TimingWheel<PackedMessage> delayTimer;
+        Map<String, Queue<HeldBackMessage>> groups;
         synchronized (mainLock) {
-            if (messageQueues.containsKey(queueName)) {
-                synchronized (messageQueues.get(queueName)) {
-                    inflightQueues.remove(queueName);
-                    messageQueues.remove(queueName);
+            messageQueue = messageQueues.remove(queueName); // consumers still waiting on it give up when their wait time is up
+            inflightQueue = inflightQueues.remove(queueName);
+            visibilityTimer = visibilityTimers.remove(queueName);
+            offHeapQuotas.remove(queueName);
+            pendingQueue = pendingPulls.remove(queueName);
+            delayTimer = delayTimers.remove(queueName);
+            queueDelays.remove(queueName);
+            redrivePolicies.remove(queueName);
+            groups = messageGroups.remove(queueName);
+        }
+
+        if (pendingQueue != null) { // async pulls get nothing, as a waiting pull would
+            for (PendingPull pending = pendingQueue.poll(); pending != null; pending = pendingQueue.poll()) {
+                pending.complete(new QueueMessage());
+            }
+        }
+
+        if (offHeapArena != null && messageQueue != null) { // give back the space its bodies took up off heap
+            synchronized (visibilityTimer) {
+                for (TimingWheel<QueueMessage>.Timeout inflight : inflightQueue.values()) {
+                    inflight.cancel();
+                    inflight.item().getPackedMessage().release();
+                }
+                inflightQueue.clear();
+            }
+            synchronized (delayTimer) {
+                for (TimingWheel<PackedMessage>.Timeout delayed : delayTimer.clear()) {
+                    delayed.item().release();
+                }
+            }
+            synchronized (groups) {
+                for (Queue<HeldBackMessage> heldBack : groups.values()) {
+                    heldBack.forEach(held -> held.packedMessage.release());
                 }
+                groups.clear();
             }
+            releaseIfDeleted(queueName, messageQueue);
         }
     }
 
@@ -88,50 +217,248 @@ public class InMemoryQueueService implements QueueService {
 
     @Override
     public QueueMessage push(String queueUrl, String message) {
+        QueueMessage pushMessage = pushBatch(queueUrl, Collections.singletonList(message)).get(0);
+
+        checkState(!pushMessage.isEmpty(), QUEUE_IS_FULL);
+
+        return pushMessage;
+    }
+
+    /**
+     * Schedules the message on the queue's delay timer, which the ticker advances off the request
+     * path, so pulls never look at delayed messages.
+     */
+    @Override
+    public QueueMessage push(String queueUrl, String message, long delayMillis) {
         checkQueueUrl(queueUrl);
         checkMessageBody(message);
+        checkDelay(delayMillis);
+
+        QueueMessage pushMessage = pushAll(queueUrl, Collections.singletonList(message), delayMillis).get(0);
+
+        checkState(!pushMessage.isEmpty(), QUEUE_IS_FULL);
+
+        return pushMessage;
+    }
+
+    /**
+     * Pushes straight onto the visible queue if no message of the group is released, otherwise
+     * holds the message back behind the group's, to be released when the messages before it are
+     * deleted. A message released before the queue's delay is up is scheduled on the queue's
+     * delay timer, still holding back the rest of its group.
+     */
+    @Override
+    public QueueMessage push(String queueUrl, String message, String groupId) {
+        checkQueueUrl(queueUrl);
+        checkMessageBody(message);
+        checkGroupId(groupId);
 
         String queueName = fromUrl(queueUrl);
 
-        QueueMessage pushMessage = new QueueMessage(message, generateMessageId());
+        VisibleQueue messageQueue = messageQueues.get(queueName);
+        Map<String, Queue<HeldBackMessage>> groups = messageGroups.get(queueName);
+        Long queueDelay = queueDelays.get(queueName);
+
+        checkState(messageQueue != null && groups != null && queueDelay != null, QUEUE_URL_DOES_NOT_EXIST);
+
+        long visibleAt = (queueDelay > 0) ? now() + queueDelay : 0;
 
-        checkState(messageQueues.containsKey(queueName), QUEUE_URL_DOES_NOT_EXIST);
+        PackedMessage packedMessage = pack(queueName, generateId(), message.getBytes(StandardCharsets.UTF_8));
 
-//        synchronized (messageQueues.get(queueName)) {
-            messageQueues.get(queueName).offer(pushMessage);
-//            messageQueues.get(queueName).notifyAll();
-//        }
+        checkState(packedMessage != null, QUEUE_IS_FULL);
+
+        packedMessage.setGroupId(groupId);
+        QueueMessage pushMessage = new QueueMessage(packedMessage); // before it can be pulled and released
+
+        boolean released;
+        synchronized (groups) {
+            if (messageGroups.get(queueName) != groups) {
+                packedMessage.release(); // deleted as it was pushed, so it can never become visible
+                return pushMessage;
+            }
+            Queue<HeldBackMessage> heldBack = groups.get(groupId);
+            released = (heldBack == null);
+            if (released) {
+                groups.put(groupId, new ArrayDeque<>());
+            } else {
+                heldBack.add(new HeldBackMessage(packedMessage, visibleAt));
+            }
+        }
+
+        if (released && visibleAt > 0) {
+            scheduleDelayed(queueName, packedMessage, visibleAt); // the rest of the group are held back behind it all the same
+        } else if (released) {
+            if (messageQueue.offerAll(Collections.singletonList(packedMessage)) == 0) { // a full ring buffer
+                boolean refused;
+                synchronized (groups) {
+                    Queue<HeldBackMessage> heldBack = groups.get(groupId);
+                    refused = (heldBack == null || heldBack.isEmpty());
+                    if (refused) {
+                        groups.remove(groupId);
+                    }
+                }
+                if (refused) {
+                    packedMessage.release();
+                    throw new IllegalStateException(QUEUE_IS_FULL);
+                }
+                messageQueue.offerFirst(packedMessage); // others of the group are held back behind it, never lose it
+            }
+            releaseIfDeleted(queueName, messageQueue); // in case the queue was deleted as the message was pushed
+            completePendingPulls(queueName, messageQueue);
+        }
 
         return pushMessage;
     }
 
+    /**
+     * Pushes the whole batch with one pass over the visible queue, a single lock acquisition for
+     * the linked deque on Java 9 and later. A message is not accepted if the queue is a ring
+     * buffer that fills up, or it would take the queue over its off heap budget.
+     */
     @Override
-    public QueueMessage pull(String queueUrl) {
+    public List<QueueMessage> pushBatch(String queueUrl, List<String> messages) {
         checkQueueUrl(queueUrl);
+        checkMessageBodies(messages);
+
+        Long queueDelay = queueDelays.get(fromUrl(queueUrl));
+
+        checkState(queueDelay != null, QUEUE_URL_DOES_NOT_EXIST);
 
+        return pushAll(queueUrl, messages, queueDelay);
+    }
+
+    @Override
+    public void setQueueDelay(String queueUrl, long delayMillis) {
+        checkQueueUrl(queueUrl);
+        checkDelay(delayMillis);
+
+        checkState(queueDelays.replace(fromUrl(queueUrl), delayMillis) != null, QUEUE_URL_DOES_NOT_EXIST);
+    }
+
+    /**
+     * Checked by the ticker as each in flight message times out, so pulls are not slowed down by
+     * it.
+     */
+    @Override
+    public void setRedrivePolicy(String queueUrl, String deadLetterQueueUrl, int maxReceiveCount) {
+        checkQueueUrl(queueUrl);
+        checkQueueUrl(deadLetterQueueUrl);
+        checkMaxReceiveCount(maxReceiveCount);
+
+        String queueName = fromUrl(queueUrl);
+        String deadLetterQueueName = fromUrl(deadLetterQueueUrl);
+
+        checkArgument(!queueName.equals(deadLetterQueueName), DEAD_LETTER_QUEUE_CANNOT_BE_THE_QUEUE);
+
+        synchronized (mainLock) {
+            checkState(messageQueues.containsKey(queueName) && messageQueues.containsKey(deadLetterQueueName), QUEUE_URL_DOES_NOT_EXIST);
+            redrivePolicies.put(queueName, new RedrivePolicy(deadLetterQueueName, maxReceiveCount));
+        }
+    }
+
+    /**
+     * Pushes straight onto the visible queue if there is no delay, otherwise schedules every
+     * message on the queue's delay timer under a single lock acquisition.
+     */
+    private List<QueueMessage> pushAll(String queueUrl, List<String> messages, long delayMillis) {
         String queueName = fromUrl(queueUrl);
 
-        QueueMessage dequeued = new QueueMessage();
+        VisibleQueue messageQueue = messageQueues.get(queueName);
+        TimingWheel<PackedMessage> delayTimer = delayTimers.get(queueName);
 
-        checkState(messageQueues.containsKey(queueName), QUEUE_URL_DOES_NOT_EXIST);
+        checkState(messageQueue != null && delayTimer != null, QUEUE_URL_DOES_NOT_EXIST);
 
-        synchronized (messageQueues.get(queueName)) {
-            processInflightMessages(queueName);
+        List<PackedMessage> packedMessages = new ArrayList<>(messages.size());
+        for (String message : messages) {
+            PackedMessage packedMessage = pack(queueName, generateId(), message.getBytes(StandardCharsets.UTF_8)); // all the backlog holds
+            if (packedMessage == null) {
+                break; // no room for it, nor for the ones after it if they are to stay in order
+            }
+            packedMessages.add(packedMessage);
+        }
 
-            try {
-                dequeued = messageQueues.get(queueName).poll(pullWaitTimeMillis, TimeUnit.MILLISECONDS); // blocking poll
-                if ( dequeued != null) {
-                    dequeued = new QueueMessage(dequeued, generateReceiptId(), now()); // queue message with visibility timeout timestamp
-                    inflightQueues.get(queueName).offer(dequeued); // push onto invisible queue
-                } else {
-                    dequeued = new QueueMessage();
+        int accepted;
+        if (delayMillis == 0) {
+            accepted = messageQueue.offerAll(packedMessages);
+            releaseIfDeleted(queueName, messageQueue); // in case the queue was deleted as the messages were pushed
+            completePendingPulls(queueName, messageQueue);
+        } else {
+            accepted = packedMessages.size(); // a delayed message is only refused by a full ring once it is due, and then goes to the head instead
+            long visibleAt = now() + delayMillis;
+            synchronized (delayTimer) {
+                for (PackedMessage packedMessage : packedMessages) {
+                    if (delayTimers.get(queueName) != delayTimer) {
+                        packedMessage.release(); // deleted as they were pushed, so they can never become visible
+                    } else {
+                        delayTimer.schedule(packedMessage, visibleAt);
+                    }
                 }
-            } catch (InterruptedException e) {
-                Throwables.propagate(e); // fatal
             }
         }
 
-        return dequeued;
+        List<QueueMessage> pushMessages = new ArrayList<>(messages.size());
+        for (int i = 0; i < messages.size(); i++) {
+            if (i < accepted) {
+                pushMessages.add(new QueueMessage(packedMessages.get(i)));
+            } else {
+                if (i < packedMessages.size()) {
+                    packedMessages.get(i).release(); // queue full
+                }
+                pushMessages.add(new QueueMessage());
+            }
+        }
+
+        return pushMessages;
+    }
+
+    @Override
+    public QueueMessage pull(String queueUrl) {
+        List<QueueMessage> pulledMessages = pull(queueUrl, 1);
+
+        return pulledMessages.isEmpty() ? new QueueMessage() : pulledMessages.get(0);
+    }
+
+    @Override
+    public List<QueueMessage> pull(String queueUrl, int maxMessages) {
+        return pull(queueUrl, maxMessages, visibilityTimeoutMillis);
+    }
+
+    /**
+     * Waits for the first message only, then takes whatever else is visible without waiting,
+     * and makes them all invisible under a single lock acquisition.
+     */
+    @Override
+    public List<QueueMessage> pull(String queueUrl, int maxMessages, long visibilityTimeoutMillis) {
+        checkQueueUrl(queueUrl);
+        checkMaxMessages(maxMessages);
+        checkVisibilityTimeout(visibilityTimeoutMillis);
+
+        String queueName = fromUrl(queueUrl);
+
+        VisibleQueue messageQueue = messageQueues.get(queueName);
+        Map<QueueId, TimingWheel<QueueMessage>.Timeout> inflightQueue = inflightQueues.get(queueName);
+        TimingWheel<QueueMessage> visibilityTimer = visibilityTimers.get(queueName);
+
+        checkState(messageQueue != null && inflightQueue != null && visibilityTimer != null, QUEUE_URL_DOES_NOT_EXIST);
+
+        PackedMessage dequeued = null;
+
+        try {
+            dequeued = messageQueue.poll(pullWaitTimeMillis); // blocking poll, no lock held so any number of consumers can wait at once
+        } catch (InterruptedException e) {
+            Throwables.propagate(e); // fatal
+        }
+
+        if (dequeued == null) {
+            return Collections.emptyList();
+        }
+
+        List<PackedMessage> dequeuedMessages = new ArrayList<>(maxMessages);
+        do {
+            dequeuedMessages.add(dequeued);
+        } while (dequeuedMessages.size() < maxMessages && (dequeued = messageQueue.poll()) != null);
+
+        return makeInflight(queueName, inflightQueue, visibilityTimer, dequeuedMessages, visibilityTimeoutMillis);
     }
 
     @Override
@@ -139,29 +466,239 @@ public class InMemoryQueueService implements QueueService {
         checkQueueUrl(queueUrl);
         checkReceiptId(receiptId);
 
+        return deleteBatch(queueUrl, Collections.singletonList(receiptId)).get(0);
+    }
+
+    /**
+     * Deletes the whole batch under a single lock acquisition.
+     */
+    @Override
+    public List<Boolean> deleteBatch(String queueUrl, List<String> receiptIds) {
+        checkQueueUrl(queueUrl);
+        checkReceiptIds(receiptIds);
+
+        String queueName = fromUrl(queueUrl);
+
+        Map<QueueId, TimingWheel<QueueMessage>.Timeout> inflightQueue = inflightQueues.get(queueName);
+        TimingWheel<QueueMessage> visibilityTimer = visibilityTimers.get(queueName);
+
+        checkState(inflightQueue != null && visibilityTimer != null, QUEUE_URL_DOES_NOT_EXIST);
+
+        List<QueueId> receipts = receiptIds.stream().map(QueueId::fromString).collect(Collectors.toList()); // matched on their bits, not rendered
+        List<Boolean> deleted = new ArrayList<>(receipts.size());
+        List<PackedMessage> deletedMessages = new ArrayList<>(receipts.size());
+        synchronized (visibilityTimer) { // only ever held briefly, never across a waiting pull
+            for (QueueId receipt : receipts) {
+                TimingWheel<QueueMessage>.Timeout inflight = inflightQueue.get(receipt);
+                if (inflight == null || now() >= inflight.getDeadline()) {
+                    deleted.add(false); // unknown, or timed out and about to be redelivered
+                    continue;
+                }
+                inflight.cancel();
+                inflightQueue.remove(receipt);
+                deletedMessages.add(inflight.item().getPackedMessage());
+                deleted.add(true);
+            }
+        }
+        for (PackedMessage deletedMessage : deletedMessages) {
+            deletedMessage.release(); // off heap space, if any, is free to reuse
+        }
+        releaseNextOfGroups(queueName, deletedMessages);
+
+        return deleted;
+    }
+
+    @Override
+    public boolean changeVisibility(String queueUrl, String receiptId, long visibilityTimeoutMillis) {
+        checkQueueUrl(queueUrl);
+        checkReceiptId(receiptId);
+
+        return changeVisibilityBatch(queueUrl, Collections.singletonList(receiptId), visibilityTimeoutMillis).get(0);
+    }
+
+    /**
+     * Moves each message's timeout to its new deadline on the visibility timer, O(1) a message,
+     * under a single lock acquisition.
+     */
+    @Override
+    public List<Boolean> changeVisibilityBatch(String queueUrl, List<String> receiptIds, long visibilityTimeoutMillis) {
+        checkQueueUrl(queueUrl);
+        checkReceiptIds(receiptIds);
+        checkVisibilityTimeout(visibilityTimeoutMillis);
+
         String queueName = fromUrl(queueUrl);
 
-        checkState(messageQueues.containsKey(queueName), QUEUE_URL_DOES_NOT_EXIST);
+        Map<QueueId, TimingWheel<QueueMessage>.Timeout> inflightQueue = inflightQueues.get(queueName);
+        TimingWheel<QueueMessage> visibilityTimer = visibilityTimers.get(queueName);
 
-        synchronized (messageQueues.get(queueName)) {
-            processInflightMessages(queueName);
+        checkState(inflightQueue != null && visibilityTimer != null, QUEUE_URL_DOES_NOT_EXIST);
 
-            // Iterate from head (oldest pulled messages) to tail and look for receipt id
-            Iterator<QueueMessage> itr = inflightQueues.get(queueName).iterator();
-            while (itr.hasNext()) {
-                QueueMessage message = itr.next();
-                if (message.getReceiptId().equals(receiptId)) { // case sensitive
-                    inflightQueues.get(queueName).remove(message);
-                    return true;
+        List<Boolean> changed = new ArrayList<>(receiptIds.size());
+        synchronized (visibilityTimer) {
+            long now = now();
+            for (String receiptId : receiptIds) {
+                TimingWheel<QueueMessage>.Timeout inflight = inflightQueue.get(QueueId.fromString(receiptId));
+                if (inflight == null || now >= inflight.getDeadline()) {
+                    changed.add(false); // unknown, or timed out and about to be redelivered
+                    continue;
                 }
+                changed.add(visibilityTimer.reschedule(inflight, now + visibilityTimeoutMillis + 1)); // visible again once the new timeout has gone by
             }
         }
 
-        return false;
+        return changed;
+    }
+
+    @Override
+    public CompletableFuture<QueueMessage> pushAsync(String queueUrl, String message) {
+        try {
+            return CompletableFuture.completedFuture(push(queueUrl, message)); // never blocks
+        } catch (RuntimeException e) {
+            return failedFuture(e);
+        }
+    }
+
+    /**
+     * Takes a visible message straight away if there is one. Otherwise the pull waits in the
+     * queue's pending pulls, oldest first, to be completed by the next push or redelivery, or
+     * with an empty message by the visibility ticker once the pull wait time is up.
+     */
+    @Override
+    public CompletableFuture<QueueMessage> pullAsync(String queueUrl) {
+        try {
+            checkQueueUrl(queueUrl);
+
+            String queueName = fromUrl(queueUrl);
+
+            VisibleQueue messageQueue = messageQueues.get(queueName);
+            Map<QueueId, TimingWheel<QueueMessage>.Timeout> inflightQueue = inflightQueues.get(queueName);
+            TimingWheel<QueueMessage> visibilityTimer = visibilityTimers.get(queueName);
+            Queue<PendingPull> pendingQueue = pendingPulls.get(queueName);
+
+            checkState(messageQueue != null && inflightQueue != null && visibilityTimer != null && pendingQueue != null, QUEUE_URL_DOES_NOT_EXIST);
+
+            PackedMessage dequeued = messageQueue.poll();
+            if (dequeued != null) {
+                return CompletableFuture.completedFuture(makeInflight(queueName, inflightQueue, visibilityTimer, Collections.singletonList(dequeued), visibilityTimeoutMillis).get(0));
+            }
+
+            PendingPull pending = new PendingPull();
+            pendingQueue.add(pending);
+            pending.timeout = TICKER.schedule(() -> {
+                if (pendingQueue.remove(pending)) { // not taken for a message in the meantime
+                    pending.complete(new QueueMessage());
+                }
+            }, pullWaitTimeMillis, TimeUnit.MILLISECONDS);
+            completePendingPulls(queueName, messageQueue); // in case a push landed before we were pending
+
+            return pending.future;
+        } catch (RuntimeException e) {
+            return failedFuture(e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Boolean> deleteMessageAsync(String queueUrl, String receiptId) {
+        try {
+            return CompletableFuture.completedFuture(deleteMessage(queueUrl, receiptId)); // never blocks
+        } catch (RuntimeException e) {
+            return failedFuture(e);
+        }
     }
 
     // private methods
 
+    /**
+     * Makes dequeued messages invisible until the specified visibility timeout expires.
+     *
+     * @return views of the messages with their receipt ids
+     */
+    private List<QueueMessage> makeInflight(String queueName, Map<QueueId, TimingWheel<QueueMessage>.Timeout> inflightQueue,
+                                            TimingWheel<QueueMessage> visibilityTimer, List<PackedMessage> dequeuedMessages,
+                                            long visibilityTimeoutMillis) {
+        List<QueueMessage> pulledMessages = new ArrayList<>(dequeuedMessages.size());
+        long visibilityTimeoutFrom = now();
+        for (PackedMessage dequeued : dequeuedMessages) {
+            dequeued.incrementReceiveCount(); // ours alone until it is in flight
+            pulledMessages.add(new QueueMessage(dequeued, generateId(), visibilityTimeoutFrom)); // view over the packed message with visibility timeout timestamp
+        }
+
+        synchronized (visibilityTimer) {
+            if (inflightQueues.get(queueName) != inflightQueue) { // deleted as they were pulled, so they can never be deleted or redelivered
+                for (QueueMessage pulledMessage : pulledMessages) {
+                    pulledMessage.getPackedMessage().release();
+                }
+                return pulledMessages;
+            }
+            for (QueueMessage pulledMessage : pulledMessages) {
+                inflightQueue.put(pulledMessage.getReceiptQueueId(), visibilityTimer.schedule(pulledMessage, visibilityTimeoutFrom + visibilityTimeoutMillis + 1)); // invisible until it times out
+            }
+        }
+
+        return pulledMessages;
+    }
+
+    /**
+     * Hands visible messages to pending async pulls, oldest first, for as long as there are
+     * both. Called after anything that adds to either, so neither is left waiting on the other.
+     */
+    private void completePendingPulls(String queueName, VisibleQueue messageQueue) {
+        Queue<PendingPull> pendingQueue = pendingPulls.get(queueName);
+        if (pendingQueue == null) {
+            return; // deleted
+        }
+
+        while (!pendingQueue.isEmpty()) { // nothing pending is the common case and costs no more than this
+            PackedMessage dequeued = messageQueue.poll();
+            if (dequeued == null) {
+                return;
+            }
+            PendingPull pending;
+            do {
+                pending = pendingQueue.poll();
+            } while (pending != null && pending.future.isDone()); // cancelled by the caller
+            if (pending == null) { // taken by a concurrent push or timed out, put the message back
+                messageQueue.offerFirst(dequeued);
+                continue;
+            }
+            Map<QueueId, TimingWheel<QueueMessage>.Timeout> inflightQueue = inflightQueues.get(queueName);
+            TimingWheel<QueueMessage> visibilityTimer = visibilityTimers.get(queueName);
+            if (inflightQueue == null || visibilityTimer == null) { // deleted as it was dequeued
+                dequeued.release();
+                pending.complete(new QueueMessage());
+                return;
+            }
+            pending.complete(makeInflight(queueName, inflightQueue, visibilityTimer, Collections.singletonList(dequeued), visibilityTimeoutMillis).get(0));
+        }
+    }
+
+    /**
+     * @return the message with its body off heap if the service keeps bodies off heap, otherwise
+     *         on heap, or null if there is no room for the body within the queue's off heap
+     *         budget or the service's
+     */
+    private PackedMessage pack(String queueName, QueueId messageId, byte[] messageBody) {
+        OffHeapArena.Quota offHeapQuota = offHeapQuotas.get(queueName);
+        if (offHeapQuota == null || messageBody.length > offHeapArena.getSlabSize()) {
+            return new PackedMessage(messageId, messageBody);
+        }
+        return offHeapQuota.pack(messageId, messageBody);
+    }
+
+    /**
+     * Gives back the space taken up off heap by the messages left in a queue that has been
+     * deleted, whether left when it was deleted or pushed or redelivered to it as it was.
+     */
+    private void releaseIfDeleted(String queueName, VisibleQueue messageQueue) {
+        if (offHeapArena == null || messageQueues.get(queueName) == messageQueue) {
+            return;
+        }
+        PackedMessage message;
+        while ((message = messageQueue.poll()) != null) {
+            message.release();
+        }
+    }
+
     private String toUrl(String queueName) {
         return urlPrefix + queueName;
     }
@@ -170,21 +707,384 @@ public class InMemoryQueueService implements QueueService {
         return queueUrl.substring(queueUrl.lastIndexOf('/') + 1);
     }
 
-    private void processInflightMessages(String queueName) {
-        synchronized (messageQueues.get(queueName)) {
-            // process any messages on the invisible queue that have elapsed past their timeout and put back onto the head of the main queue
-            Stack<QueueMessage> visibleAgain = new Stack<>(); // via a temporary stack because want to enqueue onto the head of the main queue in as close to original FIFO order as possible
+    /**
+     * Puts every in flight message whose visibility timeout has elapsed back onto the head of its
+     * queue, waking a waiting consumer, or moves it to the queue's dead letter queue if it has
+     * been pulled as many times as the queue's redrive policy allows. Run by the ticker every
+     * tick, off the request path.
+     */
+    private void processInflightMessages() {
+        for (Map.Entry<String, TimingWheel<QueueMessage>> entry : visibilityTimers.entrySet()) {
+            VisibleQueue messageQueue = messageQueues.get(entry.getKey());
+            Map<QueueId, TimingWheel<QueueMessage>.Timeout> inflightQueue = inflightQueues.get(entry.getKey());
+            if (messageQueue == null || inflightQueue == null) {
+                continue; // deleted
+            }
+
+            List<TimingWheel<QueueMessage>.Timeout> visibleAgain;
+            synchronized (entry.getValue()) {
+                visibleAgain = entry.getValue().advance(now());
+                for (TimingWheel<QueueMessage>.Timeout timeout : visibleAgain) {
+                    inflightQueue.remove(timeout.item().getReceiptQueueId());
+                }
+            }
+
+            List<PackedMessage> redelivered = new ArrayList<>(visibleAgain.size());
+            List<PackedMessage> deadLetters = new ArrayList<>();
+            RedrivePolicy redrivePolicy = redrivePolicies.get(entry.getKey());
+            for (TimingWheel<QueueMessage>.Timeout timeout : visibleAgain) {
+                PackedMessage message = timeout.item().getPackedMessage();
+                if (redrivePolicy != null && message.getReceiveCount() >= redrivePolicy.maxReceiveCount) {
+                    deadLetters.add(message);
+                } else {
+                    redelivered.add(message);
+                }
+            }
+            if (!deadLetters.isEmpty()) {
+                redelivered.addAll(moveToDeadLetterQueue(entry.getKey(), redrivePolicy.deadLetterQueueName, deadLetters)); // any it could not take
+            }
+
+            for (int i = redelivered.size() - 1; i >= 0; i--) { // in reverse because want to enqueue onto the head of the main queue in as close to original FIFO order as possible
+                messageQueue.offerFirst(redelivered.get(i));
+            }
+            releaseIfDeleted(entry.getKey(), messageQueue);
+            if (!visibleAgain.isEmpty()) {
+                completePendingPulls(entry.getKey(), messageQueue);
+            }
+        }
+    }
+
+    /**
+     * Pushes copies of the messages, with the same message ids, to the tail of the dead letter
+     * queue, where their bodies count against its off heap budget rather than the queue's, and
+     * releases the messages themselves. The copies are in no group, the next message of each
+     * moved message's group is released instead.
+     *
+     * @return the messages the dead letter queue did not take, because it has been deleted, is
+     *         full or is over its off heap budget, to be redelivered instead
+     */
+    private List<PackedMessage> moveToDeadLetterQueue(String queueName, String deadLetterQueueName, List<PackedMessage> deadLetters) {
+        VisibleQueue deadLetterQueue = messageQueues.get(deadLetterQueueName);
+        if (deadLetterQueue == null) {
+            return deadLetters; // deleted
+        }
+
+        List<PackedMessage> copies = new ArrayList<>(deadLetters.size());
+        for (PackedMessage deadLetter : deadLetters) {
+            PackedMessage copy = pack(deadLetterQueueName, new QueueId(deadLetter.getMessageIdHigh(), deadLetter.getMessageIdLow()), deadLetter.getMessageBody());
+            if (copy == null) {
+                break; // no room for it, nor for the ones after it if they are to stay in order
+            }
+            copies.add(copy);
+        }
 
-            for (QueueMessage invisibleMessage = inflightQueues.get(queueName).peek(); invisibleMessage != null; invisibleMessage = inflightQueues.get(queueName).peek()) {
-                if (now() - invisibleMessage.getVisibilityTimeoutFrom() > visibilityTimeoutMillis) {
-                    visibleAgain.push(inflightQueues.get(queueName).poll()); // if the message on the head of the invisible queue's visibility timeout has elapsed, dequeue and push onto temp stack
+        int accepted = deadLetterQueue.offerAll(copies);
+        for (int i = 0; i < copies.size(); i++) {
+            if (i < accepted) {
+                deadLetters.get(i).release(); // moved
+            } else {
+                copies.get(i).release(); // dead letter queue full
+            }
+        }
+        releaseIfDeleted(deadLetterQueueName, deadLetterQueue);
+        completePendingPulls(deadLetterQueueName, deadLetterQueue);
+        releaseNextOfGroups(queueName, deadLetters.subList(0, accepted));
+
+        return deadLetters.subList(accepted, deadLetters.size());
+    }
+
+    /**
+     * Releases the next message held back in the group of each finished message, deleted or
+     * moved to a dead letter queue, onto the tail of the visible queue, or forgets the group if
+     * none is held back. A message whose delay is not up yet is scheduled on the queue's delay
+     * timer instead.
+     */
+    private void releaseNextOfGroups(String queueName, List<PackedMessage> finishedMessages) {
+        VisibleQueue messageQueue = messageQueues.get(queueName);
+        Map<String, Queue<HeldBackMessage>> groups = messageGroups.get(queueName);
+        if (messageQueue == null || groups == null) {
+            return; // deleted
+        }
+
+        List<PackedMessage> nextMessages = new ArrayList<>();
+        List<HeldBackMessage> delayedMessages = new ArrayList<>();
+        synchronized (groups) {
+            for (PackedMessage finishedMessage : finishedMessages) {
+                Queue<HeldBackMessage> heldBack = (finishedMessage.getGroupId() == null) ? null : groups.get(finishedMessage.getGroupId());
+                if (heldBack == null) {
+                    continue; // in no group
+                }
+                HeldBackMessage nextMessage = heldBack.poll();
+                if (nextMessage == null) {
+                    groups.remove(finishedMessage.getGroupId());
+                } else if (nextMessage.visibleAt > now()) {
+                    delayedMessages.add(nextMessage);
                 } else {
-                    break; // if the the message on the head's invisible queue is still valid then stop
+                    nextMessages.add(nextMessage.packedMessage);
+                }
+            }
+        }
+        for (HeldBackMessage delayedMessage : delayedMessages) {
+            scheduleDelayed(queueName, delayedMessage.packedMessage, delayedMessage.visibleAt);
+        }
+        if (nextMessages.isEmpty()) {
+            return;
+        }
+
+        int offered = messageQueue.offerAll(nextMessages);
+        for (int i = nextMessages.size() - 1; i >= offered; i--) { // a full ring buffer, never lose them
+            messageQueue.offerFirst(nextMessages.get(i));
+        }
+        releaseIfDeleted(queueName, messageQueue);
+        completePendingPulls(queueName, messageQueue);
+    }
+
+    /**
+     * Schedules a message on the queue's delay timer, or releases it if the queue has been
+     * deleted, so it can never become visible.
+     */
+    private void scheduleDelayed(String queueName, PackedMessage packedMessage, long visibleAt) {
+        TimingWheel<PackedMessage> delayTimer = delayTimers.get(queueName);
+        if (delayTimer == null) {
+            packedMessage.release();
+            return;
+        }
+        synchronized (delayTimer) {
+            if (delayTimers.get(queueName) != delayTimer) {
+                packedMessage.release();
+            } else {
+                delayTimer.schedule(packedMessage, visibleAt);
+            }
+        }
+    }
+
+    /**
+     * Makes every delayed message that is due visible, at the tail of its queue in the order it
+     * was pushed. Run by the ticker every tick, off the request path.
+     */
+    private void processDelayedMessages() {
+        for (Map.Entry<String, TimingWheel<PackedMessage>> entry : delayTimers.entrySet()) {
+            VisibleQueue messageQueue = messageQueues.get(entry.getKey());
+            if (messageQueue == null) {
+                continue; // deleted
+            }
+
+            List<TimingWheel<PackedMessage>.Timeout> due = entry.getValue().advance(now());
+            if (due.isEmpty()) {
+                continue;
+            }
+
+            List<PackedMessage> dueMessages = new ArrayList<>(due.size());
+            for (TimingWheel<PackedMessage>.Timeout timeout : due) {
+                dueMessages.add(timeout.item());
+            }
+            int offered = messageQueue.offerAll(dueMessages);
+            for (int i = dueMessages.size() - 1; i >= offered; i--) { // a full ring buffer, never lose them
+                messageQueue.offerFirst(dueMessages.get(i));
+            }
+            releaseIfDeleted(entry.getKey(), messageQueue);
+            completePendingPulls(entry.getKey(), messageQueue);
+        }
+    }
+
+    /**
+     * Ticks the visibility and delay timers of a service for as long as the service is in use,
+     * holding it weakly so that an abandoned service can be garbage collected.
+     */
+    private static class VisibilityTicker implements Runnable {
+        private final WeakReference<InMemoryQueueService> service;
+
+        VisibilityTicker(InMemoryQueueService service) {
+            this.service = new WeakReference<>(service);
+        }
+
+        @Override
+        public void run() {
+            InMemoryQueueService target = service.get();
+            if (target == null) {
+                throw new CancellationException(); // garbage collected, an exception stops the ticks
+            }
+            target.processInflightMessages();
+            target.processDelayedMessages();
+        }
+    }
+
+    /**
+     * Where the messages of a queue go once they have been pulled too many times.
+     */
+    private static class RedrivePolicy {
+        private final String deadLetterQueueName;
+        private final int maxReceiveCount;
+
+        RedrivePolicy(String deadLetterQueueName, int maxReceiveCount) {
+            this.deadLetterQueueName = deadLetterQueueName;
+            this.maxReceiveCount = maxReceiveCount;
+        }
+    }
+
+    /**
+     * A message held back behind its group, with when the queue's delay lets it become visible.
+     */
+    private static class HeldBackMessage {
+        private final PackedMessage packedMessage;
+        private final long visibleAt; // 0 for as soon as it is released
+
+        HeldBackMessage(PackedMessage packedMessage, long visibleAt) {
+            this.packedMessage = packedMessage;
+            this.visibleAt = visibleAt;
+        }
+    }
+
+    /**
+     * An async pull waiting for a message.
+     */
+    private static class PendingPull {
+        private final CompletableFuture<QueueMessage> future = new CompletableFuture<>();
+        private volatile ScheduledFuture<?> timeout; // set just after the pull is pending
+
+        /**
+         * Completes the pull, if the caller has not cancelled it, and stops it timing out.
+         */
+        void complete(QueueMessage message) {
+            ScheduledFuture<?> pendingTimeout = timeout;
+            if (pendingTimeout != null) {
+                pendingTimeout.cancel(false);
+            }
+            future.complete(message); // if cancelled once pulled, the message is redelivered when it times out
+        }
+    }
+
+    /**
+     * The visible messages of a queue, in FIFO order but for redelivered messages, which go to
+     * the head.
+     */
+    private interface VisibleQueue {
+        /**
+         * @return the number of messages offered from the start of the list before the queue was
+         *         full
+         */
+        int offerAll(List<PackedMessage> messages);
+
+        /**
+         * Puts a redelivered message at the head, never refused, waking a waiting consumer.
+         */
+        void offerFirst(PackedMessage message);
+
+        /**
+         * @return the message at the head, waiting up to the specified time for one, or null if
+         *         there is none
+         */
+        PackedMessage poll(long waitTimeMillis) throws InterruptedException;
+
+        /**
+         * @return the message at the head, or null if there is none, without waiting
+         */
+        PackedMessage poll();
+    }
+
+    private static class LinkedVisibleQueue implements VisibleQueue {
+        private final BlockingDeque<PackedMessage> deque = new LinkedBlockingDeque<>();
+
+        @Override
+        public int offerAll(List<PackedMessage> messages) {
+            deque.addAll(messages); // links them in one go on Java 9 and later
+            return messages.size();
+        }
+
+        @Override
+        public void offerFirst(PackedMessage message) {
+            deque.addFirst(message);
+        }
+
+        @Override
+        public PackedMessage poll(long waitTimeMillis) throws InterruptedException {
+            return deque.poll(waitTimeMillis, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public PackedMessage poll() {
+            return deque.poll();
+        }
+    }
+
+    /**
+     * Pushes and pulls go through a lock-free ring buffer. Redelivered messages are kept apart in
+     * an unbounded deque that is pulled from first, so a timed out message is never lost to a
+     * full ring. Consumers only take a lock once there is nothing to pull and they have to wait,
+     * and producers only take it to wake them.
+     */
+    private static class RingVisibleQueue implements VisibleQueue {
+        private final MpmcRingBuffer<PackedMessage> ring;
+        private final ConcurrentLinkedDeque<PackedMessage> redelivered = new ConcurrentLinkedDeque<>();
+        private final Object waitLock = new Object();
+        private volatile int waiters; // only changed holding the wait lock
+
+        RingVisibleQueue(int capacity) {
+            this.ring = new MpmcRingBuffer<>(capacity);
+        }
+
+        @Override
+        public int offerAll(List<PackedMessage> messages) {
+            int offered = 0;
+            while (offered < messages.size() && ring.offer(messages.get(offered))) {
+                offered++;
+            }
+            if (offered > 0) {
+                signal(offered);
+            }
+            return offered;
+        }
+
+        @Override
+        public void offerFirst(PackedMessage message) {
+            redelivered.addFirst(message);
+            signal(1);
+        }
+
+        @Override
+        public PackedMessage poll(long waitTimeMillis) throws InterruptedException {
+            PackedMessage message = pollNow();
+            if (message != null || waitTimeMillis <= 0) {
+                return message;
+            }
+
+            long waitUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitTimeMillis);
+            synchronized (waitLock) {
+                waiters++; // a producer that offers after this will see us waiting and signal
+                try {
+                    while ((message = pollNow()) == null) {
+                        long remaining = waitUntil - System.nanoTime();
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        TimeUnit.NANOSECONDS.timedWait(waitLock, remaining);
+                    }
+                } finally {
+                    waiters--;
                 }
             }
+            return message;
+        }
+
+        @Override
+        public PackedMessage poll() {
+            return pollNow();
+        }
+
+        private PackedMessage pollNow() {
+            PackedMessage message = redelivered.pollFirst();
+            return (message != null) ? message : ring.poll();
+        }
 
-            while (!visibleAgain.empty()) { // finally pop from the temp stack and add to the head of the regular queue until temp stack is empty
-                messageQueues.get(queueName).addFirst(visibleAgain.pop());
+        private void signal(int messages) {
+            if (waiters > 0) { // nobody waiting is the common case under load, and costs no lock
+                synchronized (waitLock) {
+                    if (messages == 1) {
+                        waitLock.notify();
+                    } else {
+                        waitLock.notifyAll();
+                    }
+                }
             }
         }
     }
@@ -0,0 +1,116 @@
+package com.example;
+
+import static com.google.common.base.Preconditions.*;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free multi-producer multi-consumer queue over a preallocated ring of slots.
+ *
+ * <p>Each slot carries a sequence number that says whose turn it is: a producer may fill the
+ * slot once the sequence equals its claimed tail position and a consumer may empty it once the
+ * sequence is one past its claimed head position. Producers and consumers claim positions by CAS
+ * on the tail and head counters and never block each other, and nothing is allocated per
+ * element. The counters are each padded out to their own cache line so producers and consumers
+ * don't invalidate each other's caches.
+ *
+ * @param <E> the element type
+ */
+public class MpmcRingBuffer<E> {
+    // Constants
+    private static final int PADDED = 15; // longs, the counter sits in the middle with a cache line either side
+    private static final int COUNTER = 7;
+
+    // Fields
+    private final int mask;
+    private final Object[] elements;
+    private final AtomicLongArray sequences; // slot > position it is next ready for
+    private final AtomicLongArray tail = new AtomicLongArray(PADDED); // next position to fill
+    private final AtomicLongArray head = new AtomicLongArray(PADDED); // next position to empty
+
+    /**
+     * @param capacity the number of slots, rounded up to a power of 2
+     * @throws IllegalArgumentException if the capacity is not positive or too large
+     */
+    public MpmcRingBuffer(int capacity) {
+        checkArgument(capacity > 0 && capacity <= (1 << 30), "Capacity must be between 1 and 2^30");
+        int slots = Math.max(Integer.highestOneBit(capacity - 1) << 1, 1);
+        this.mask = slots - 1;
+        this.elements = new Object[slots];
+        this.sequences = new AtomicLongArray(slots);
+        for (int i = 0; i < slots; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * @return false if the ring is full, not just because a consumer has yet to finish emptying
+     *         the next slot
+     */
+    public boolean offer(E element) {
+        checkNotNull(element);
+        long position = tail.get(COUNTER);
+        while (true) {
+            int slot = (int) position & mask;
+            long difference = sequences.get(slot) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(COUNTER, position, position + 1)) {
+                    elements[slot] = element;
+                    sequences.set(slot, position + 1); // publishes the element to consumers
+                    return true;
+                }
+                position = tail.get(COUNTER); // lost the race for the slot
+            } else if (difference < 0) {
+                if (position - head.get(COUNTER) >= capacity()) {
+                    return false; // not yet emptied since the last lap, full
+                }
+                Thread.yield(); // a consumer is part way through emptying it, let it finish and try again
+                position = tail.get(COUNTER);
+            } else {
+                position = tail.get(COUNTER); // another producer has filled it already
+            }
+        }
+    }
+
+    /**
+     * @return the oldest element, or null if the ring is empty, not just because a producer has
+     *         yet to finish filling the next slot
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long position = head.get(COUNTER);
+        while (true) {
+            int slot = (int) position & mask;
+            long difference = sequences.get(slot) - (position + 1);
+            if (difference == 0) {
+                if (head.compareAndSet(COUNTER, position, position + 1)) {
+                    E element = (E) elements[slot];
+                    elements[slot] = null;
+                    sequences.set(slot, position + mask + 1); // hands the slot back to producers for the next lap
+                    return element;
+                }
+                position = head.get(COUNTER); // lost the race for the slot
+            } else if (difference < 0) {
+                if (tail.get(COUNTER) == position) {
+                    return null; // not yet claimed by a producer, empty
+                }
+                Thread.yield(); // a producer is part way through filling it, let it finish and try again
+                position = head.get(COUNTER);
+            } else {
+                position = head.get(COUNTER); // another consumer has emptied it already
+            }
+        }
+    }
+
+    /**
+     * @return roughly how many elements are in the ring, exact only when it is not being used
+     */
+    public int size() {
+        long size = tail.get(COUNTER) - head.get(COUNTER);
+        return (int) Math.max(0, Math.min(size, capacity()));
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+}
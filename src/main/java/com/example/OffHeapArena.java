@@ -0,0 +1,299 @@
+package com.example;
+
+import static com.google.common.base.Preconditions.*;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Off heap storage for message bodies, so that a large backlog does not fill the old generation
+ * and lengthen GC pauses. Bodies are copied into direct buffer slabs, and all that is left on
+ * heap per message is a handle to where in the slabs its body is.
+ *
+ * <p>Space is handed out by a buddy allocator: every block is a power of 2 from 64 bytes up to a
+ * whole slab, a larger free block is split in halves to make a smaller one, and a freed block is
+ * merged with its buddy whenever that is free too, so the slabs do not fragment. Free blocks are
+ * kept in one list per size, linked through the first bytes of the blocks themselves, so the free
+ * lists cost no heap either.
+ *
+ * <p>Slabs are allocated as they are needed, up to the byte budget of the arena, and kept until
+ * the arena is garbage collected. They count towards the JVM's direct memory limit,
+ * {@code -XX:MaxDirectMemorySize}. Each queue takes space through a {@link Quota} with a budget
+ * of its own.
+ *
+ * <p>Thread safe, allocating and freeing synchronize on the arena. Copying a body in and out
+ * takes no lock.
+ */
+public class OffHeapArena {
+    // Constants
+    protected static final int DEFAULT_SLAB_SIZE = 1 << 20;
+
+    private static final int MIN_BLOCK_SHIFT = 6; // 64 bytes, room for the free list links
+    private static final long NONE = -1; // no block
+    private static final int NEXT = 0; // offset of the link to the next free block of the same size
+    private static final int PREV = 8; // offset of the link to the previous
+
+    // Fields
+    private final int slabShift;
+    private final int maxOrder; // the order of a whole slab, a block of order n is 64 << n bytes
+    private final ByteBuffer[] slabs; // up to the budget, allocated as needed
+    private final byte[][] freeOrders; // slab > 64 byte unit > order + 1 of the free block that starts there, 0 if none
+    private final long[] freeHeads; // order > first free block, NONE if none
+    private int slabCount;
+    private long allocatedBytes;
+
+    /**
+     * @param budgetBytes the most memory the arena may take, rounded down to whole slabs
+     * @throws IllegalArgumentException if the budget does not hold a slab
+     */
+    public OffHeapArena(long budgetBytes) {
+        this(budgetBytes, DEFAULT_SLAB_SIZE);
+    }
+
+    /**
+     * @param budgetBytes the most memory the arena may take, rounded down to whole slabs
+     * @param slabSize the size of each direct buffer, a power of 2 of at least 64 bytes, and the
+     *                 largest body the arena can hold
+     * @throws IllegalArgumentException if the slab size is not a power of 2 of at least 64 bytes,
+     *         or the budget does not hold a slab
+     */
+    public OffHeapArena(long budgetBytes, int slabSize) {
+        checkArgument(slabSize >= (1 << MIN_BLOCK_SHIFT) && Integer.bitCount(slabSize) == 1, "Slab size must be a power of 2 of at least 64 bytes");
+        checkArgument(budgetBytes >= slabSize, "Budget must hold at least one slab");
+        this.slabShift = Integer.numberOfTrailingZeros(slabSize);
+        this.maxOrder = slabShift - MIN_BLOCK_SHIFT;
+        int maxSlabs = (int) Math.min(budgetBytes >> slabShift, Integer.MAX_VALUE);
+        this.slabs = new ByteBuffer[maxSlabs];
+        this.freeOrders = new byte[maxSlabs][];
+        this.freeHeads = new long[maxOrder + 1];
+        Arrays.fill(freeHeads, NONE);
+    }
+
+    /**
+     * @param budgetBytes the most space the bodies taken through the quota may take up
+     * @throws IllegalArgumentException if the budget is not positive
+     */
+    public Quota newQuota(long budgetBytes) {
+        checkArgument(budgetBytes > 0, "Budget must be a positive number");
+        return new Quota(budgetBytes);
+    }
+
+    public int getSlabSize() {
+        return 1 << slabShift;
+    }
+
+    /**
+     * @return the memory taken by the slabs allocated so far
+     */
+    public synchronized long getReservedBytes() {
+        return (long) slabCount << slabShift;
+    }
+
+    /**
+     * @return the space taken up by bodies, including what they are rounded up by
+     */
+    public synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    // Private methods
+
+    private static int orderOf(int length) {
+        int shift = 32 - Integer.numberOfLeadingZeros(length - 1); // smallest power of 2 that holds the length
+        return Math.max(shift - MIN_BLOCK_SHIFT, 0);
+    }
+
+    private static long blockSize(int order) {
+        return 1L << (order + MIN_BLOCK_SHIFT);
+    }
+
+    /**
+     * @return the start of a free block of the specified order, or NONE if there is no room left
+     *         within the budget
+     */
+    private long allocate(int order) {
+        int available = order;
+        while (available <= maxOrder && freeHeads[available] == NONE) {
+            available++;
+        }
+        if (available > maxOrder) {
+            if (slabCount == slabs.length) {
+                return NONE;
+            }
+            slabs[slabCount] = ByteBuffer.allocateDirect(getSlabSize());
+            freeOrders[slabCount] = new byte[getSlabSize() >> MIN_BLOCK_SHIFT];
+            linkFree((long) slabCount++ << 32, maxOrder); // the whole slab is one free block
+            available = maxOrder;
+        }
+
+        long block = freeHeads[available];
+        unlinkFree(block, available);
+        while (available > order) { // split, keeping the lower half and freeing the upper
+            available--;
+            linkFree(block + blockSize(available), available);
+        }
+        allocatedBytes += blockSize(order);
+        return block;
+    }
+
+    private void free(long block, int order) {
+        allocatedBytes -= blockSize(order);
+        while (order < maxOrder) {
+            long buddy = block ^ blockSize(order);
+            if (freeOrderAt(buddy) != order + 1) {
+                break; // in use, or split
+            }
+            unlinkFree(buddy, order); // merge
+            block = Math.min(block, buddy);
+            order++;
+        }
+        linkFree(block, order);
+    }
+
+    private void linkFree(long block, int order) {
+        long next = freeHeads[order];
+        putLink(block, NEXT, next);
+        putLink(block, PREV, NONE);
+        if (next != NONE) {
+            putLink(next, PREV, block);
+        }
+        freeHeads[order] = block;
+        freeOrders[slabOf(block)][offsetOf(block) >> MIN_BLOCK_SHIFT] = (byte) (order + 1);
+    }
+
+    private void unlinkFree(long block, int order) {
+        long next = getLink(block, NEXT);
+        long prev = getLink(block, PREV);
+        if (prev == NONE) {
+            freeHeads[order] = next;
+        } else {
+            putLink(prev, NEXT, next);
+        }
+        if (next != NONE) {
+            putLink(next, PREV, prev);
+        }
+        freeOrders[slabOf(block)][offsetOf(block) >> MIN_BLOCK_SHIFT] = 0;
+    }
+
+    private int freeOrderAt(long block) {
+        return freeOrders[slabOf(block)][offsetOf(block) >> MIN_BLOCK_SHIFT];
+    }
+
+    private long getLink(long block, int link) {
+        return slabs[slabOf(block)].getLong(offsetOf(block) + link);
+    }
+
+    private void putLink(long block, int link, long value) {
+        slabs[slabOf(block)].putLong(offsetOf(block) + link, value);
+    }
+
+    /**
+     * @return a view of the slab positioned at the start of the block
+     */
+    private ByteBuffer view(long block) {
+        ByteBuffer view = slabs[slabOf(block)].duplicate();
+        view.position(offsetOf(block));
+        return view;
+    }
+
+    private static int slabOf(long block) {
+        return (int) (block >>> 32);
+    }
+
+    private static int offsetOf(long block) {
+        return (int) block;
+    }
+
+    /**
+     * A share of the arena with its own byte budget, e.g. for one queue.
+     */
+    public class Quota {
+        private final long budgetBytes;
+        private long allocatedBytes; // guarded by the arena
+
+        private Quota(long budgetBytes) {
+            this.budgetBytes = budgetBytes;
+        }
+
+        /**
+         * Copies a body into the arena.
+         *
+         * @param messageId a numeric message id
+         * @param messageBody the UTF-8 message body, no larger than a slab
+         * @return a packed message holding a handle to the copy, or null if there is no room
+         *         for it within this quota's budget or the arena's
+         * @throws IllegalArgumentException if the body is empty or larger than a slab
+         */
+        public PackedMessage pack(QueueId messageId, byte[] messageBody) {
+            checkArgument(messageBody.length > 0 && messageBody.length <= getSlabSize(), "Body must be between 1 byte and the slab size");
+            int order = orderOf(messageBody.length);
+            long block;
+            synchronized (OffHeapArena.this) {
+                if (allocatedBytes + blockSize(order) > budgetBytes) {
+                    return null;
+                }
+                block = allocate(order);
+                if (block == NONE) {
+                    return null;
+                }
+                allocatedBytes += blockSize(order);
+            }
+            view(block).put(messageBody); // ours alone until freed, no lock needed
+            return new OffHeapMessage(messageId, this, block, messageBody.length);
+        }
+
+        /**
+         * @return the space taken up by the bodies in this quota
+         */
+        public long getAllocatedBytes() {
+            synchronized (OffHeapArena.this) {
+                return allocatedBytes;
+            }
+        }
+
+        private byte[] read(long block, int length) {
+            byte[] messageBody = new byte[length];
+            view(block).get(messageBody);
+            return messageBody;
+        }
+
+        private void free(long block, int length) {
+            int order = orderOf(length);
+            synchronized (OffHeapArena.this) {
+                allocatedBytes -= blockSize(order);
+                OffHeapArena.this.free(block, order);
+            }
+        }
+    }
+
+    /**
+     * A packed message whose body is in the arena.
+     */
+    private static class OffHeapMessage extends PackedMessage {
+        private final Quota quota;
+        private final long block;
+        private final int length;
+
+        OffHeapMessage(QueueId messageId, Quota quota, long block, int length) {
+            super(messageId, null);
+            this.quota = quota;
+            this.block = block;
+            this.length = length;
+        }
+
+        @Override
+        protected byte[] getMessageBody() {
+            return quota.read(block, length); // a copy, the block is reused once released
+        }
+
+        @Override
+        protected boolean isOffHeap() {
+            return true;
+        }
+
+        @Override
+        protected void release() {
+            quota.free(block, length);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.example;
+
+/**
+ * Compact form of a pushed message, as held in the backlog of an in-memory queue: the message id
+ * as two longs and the body as UTF-8 bytes, with no strings and nothing else per message. A
+ * {@link QueueMessage} handed to a caller is a view over it, which only renders the id and
+ * decodes the body when they are asked for.
+ *
+ * <p>For a short body this takes less heap than the message id and body would as strings alone,
+ * e.g. 88 bytes for a message in no group with a 30 byte body, receive count included, rather
+ * than 152 for the two strings, as measured on a 64 bit JDK 17 with compressed oops. The body
+ * can be kept off heap instead, see {@link OffHeapArena}.
+ */
+public class PackedMessage {
+    // Fields
+    private final long messageIdHigh;
+    private final long messageIdLow;
+    private final byte[] messageBody; // UTF-8, never modified, null when off heap
+    private int receiveCount; // times pulled, only changed by the puller that holds it
+    private String groupId; // null if not pushed to a message group, set before the message is queued
+
+    /**
+     * @param messageId a numeric message id
+     * @param messageBody the UTF-8 message body, which is not copied and must not be modified
+     * @throws IllegalStateException if the message id is not numeric
+     */
+    public PackedMessage(QueueId messageId, byte[] messageBody) {
+        this.messageIdHigh = messageId.getHigh();
+        this.messageIdLow = messageId.getLow();
+        this.messageBody = messageBody;
+    }
+
+    public long getMessageIdHigh() {
+        return messageIdHigh;
+    }
+
+    public long getMessageIdLow() {
+        return messageIdLow;
+    }
+
+    /**
+     * @return the UTF-8 message body, not a copy if it is on heap
+     */
+    protected byte[] getMessageBody() {
+        return messageBody;
+    }
+
+    /**
+     * @return the message group the message was pushed to, or null if none
+     */
+    protected String getGroupId() {
+        return groupId;
+    }
+
+    protected void setGroupId(String groupId) {
+        this.groupId = groupId;
+    }
+
+    /**
+     * @return the number of times the message has been pulled from its queue
+     */
+    protected int getReceiveCount() {
+        return receiveCount;
+    }
+
+    /**
+     * Counts another pull, called by the puller that dequeued the message before it is made
+     * in flight.
+     */
+    protected void incrementReceiveCount() {
+        receiveCount++;
+    }
+
+    /**
+     * @return true if the body is off heap, so that {@link #getMessageBody()} copies it and it is
+     *         only valid until released
+     */
+    protected boolean isOffHeap() {
+        return false;
+    }
+
+    /**
+     * Frees the space the body takes up off heap, if it is. Called once, when the message has
+     * been deleted or its queue has.
+     */
+    protected void release() {
+    }
+}
@@ -0,0 +1,315 @@
+package com.example;
+
+import static com.example.QueueServiceUtil.*;
+
+import static com.google.common.base.Preconditions.*;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a handler over the messages of a queue, each message on a thread of its own.
+ *
+ * <p>One loop pulls messages in batches of up to 10, as long as fewer than the maximum number of
+ * handlers are running, and starts a handler for each. A message is deleted once its handler
+ * returns. If the handler throws, the message is left in flight to be redelivered when its
+ * visibility timeout expires.
+ *
+ * <p>Messages are pulled with a visibility timeout of the consumer's own, a lease, which is
+ * extended by another lease for every message still being handled each time half a lease goes
+ * by. A handler that takes longer than one lease is therefore not redelivered to another
+ * consumer while it runs, while a consumer that dies lets its messages go after one lease at most.
+ *
+ * <p>On Java 21 and later the handlers, and the pull loop, run on virtual threads, so thousands
+ * of slow, I/O bound handlers can run at once without a thread pool to size. Virtual threads are
+ * looked up reflectively since the library targets Java 11. On earlier Java versions a cached
+ * pool of platform threads, bounded by the maximum number of handlers, is used instead, and the
+ * default maximum is far lower. Handlers never run on the pull loop's thread.
+ */
+public class QueueConsumer implements AutoCloseable {
+    // Constants
+    protected static final int DEFAULT_MAX_CONCURRENCY = 1000; // on virtual threads
+    protected static final int DEFAULT_PLATFORM_MAX_CONCURRENCY = 32; // on platform threads, each of which takes a stack
+    protected static final long DEFAULT_VISIBILITY_TIMEOUT_MILLIS = 30000L;
+    private static final long PULL_FAILURE_BACKOFF_MILLIS = 1000L;
+    private static final int MAX_CHANGE_VISIBILITY_BATCH = 10; // as many as SQS takes in one request
+    private static final long REJECTED_RETRY_MILLIS = 1L; // until a finished handler's platform thread is idle
+    private static final Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = findNewVirtualThreadPerTaskExecutor(); // null before Java 21
+    private static final ScheduledExecutorService HEARTBEAT = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "queue-consumer-heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    }); // extends the leases of every consumer's running handlers
+
+    // Fields
+    private final QueueService queueService;
+    private final String queueUrl;
+    private final QueueMessageHandler handler;
+    private final int maxConcurrency;
+    private final long visibilityTimeoutMillis; // the lease on each pulled message
+    private final Semaphore running; // a permit per handler that may start
+    private final ExecutorService executor; // the pull loop and the handlers
+    private final AtomicLong handledCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final Set<String> handlingReceiptIds = ConcurrentHashMap.newKeySet(); // leases to extend
+    private volatile ScheduledFuture<?> heartbeat;
+    private volatile boolean stopped;
+
+    /**
+     * Runs up to 1000 handlers at once on virtual threads, or 32 on platform threads.
+     */
+    public QueueConsumer(QueueService queueService, String queueUrl, QueueMessageHandler handler) {
+        this(queueService, queueUrl, handler, (NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null) ? DEFAULT_MAX_CONCURRENCY : DEFAULT_PLATFORM_MAX_CONCURRENCY);
+    }
+
+    public QueueConsumer(QueueService queueService, String queueUrl, QueueMessageHandler handler, int maxConcurrency) {
+        this(queueService, queueUrl, handler, maxConcurrency, DEFAULT_VISIBILITY_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param maxConcurrency the most handlers that may run at once for the queue
+     * @param visibilityTimeoutMillis the lease on each pulled message, extended every half lease
+     *                                while its handler runs
+     * @throws NullPointerException if the queue service, queue URL or handler is null
+     * @throws IllegalArgumentException if the queue URL is empty, the maximum concurrency is not
+     *         positive or the lease is not from 1 millisecond to 12 hours
+     */
+    public QueueConsumer(QueueService queueService, String queueUrl, QueueMessageHandler handler, int maxConcurrency, long visibilityTimeoutMillis) {
+        checkNotNull(queueService, "Queue service cannot be null");
+        checkQueueUrl(queueUrl);
+        checkNotNull(handler, "Handler cannot be null");
+        checkArgument(maxConcurrency > 0, "Max concurrency must be a positive number");
+        checkArgument(visibilityTimeoutMillis > 0 && visibilityTimeoutMillis <= MAX_VISIBILITY_TIMEOUT_MILLIS, "Lease must be between 1 millisecond and 12 hours");
+        this.queueService = queueService;
+        this.queueUrl = queueUrl;
+        this.handler = handler;
+        this.maxConcurrency = maxConcurrency;
+        this.visibilityTimeoutMillis = visibilityTimeoutMillis;
+        this.running = new Semaphore(maxConcurrency);
+        this.executor = newExecutor();
+    }
+
+    /**
+     * Starts pulling and handling messages.
+     *
+     * @return this consumer
+     */
+    public QueueConsumer start() {
+        long heartbeatMillis = Math.max(visibilityTimeoutMillis / 2, 1);
+        heartbeat = HEARTBEAT.scheduleAtFixedRate(this::extendLeases, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+        executor.execute(this::pullLoop);
+        return this;
+    }
+
+    /**
+     * @return true if handlers run on virtual threads
+     */
+    public boolean isVirtual() {
+        return !(executor instanceof PlatformExecutor);
+    }
+
+    /**
+     * @return the most handlers that may run at once
+     */
+    protected int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     * @return the number of messages handled and deleted
+     */
+    public long getHandledCount() {
+        return handledCount.get();
+    }
+
+    /**
+     * @return the number of messages whose handler threw, left to be redelivered
+     */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * Stops pulling, once any pull under way has returned, and waits for running handlers to
+     * finish. If interrupted while waiting, returns with the interrupt flag set, leaving any
+     * handlers still running to finish on their own.
+     */
+    @Override
+    public void close() {
+        stopped = true;
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (heartbeat != null) {
+            heartbeat.cancel(false); // only once no handler is left running, or the caller gave up waiting
+        }
+    }
+
+    // Private methods
+
+    private void pullLoop() {
+        while (!stopped) {
+            int permits;
+            try {
+                running.acquire(); // wait for a handler to finish if as many as allowed are running
+                permits = 1 + drainPermits(MAX_PULL_MESSAGES - 1);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (stopped) {
+                return; // closed while waiting for a handler to finish
+            }
+
+            List<QueueMessage> pulledMessages;
+            try {
+                pulledMessages = queueService.pull(queueUrl, permits, visibilityTimeoutMillis); // long polls, on a virtual thread this parks rather than blocking a carrier
+            } catch (RuntimeException e) {
+                running.release(permits);
+                backOff(); // e.g. the queue has been deleted, try again in a while rather than spinning
+                continue;
+            }
+
+            running.release(permits - pulledMessages.size()); // not needed for this batch
+            for (QueueMessage pulledMessage : pulledMessages) {
+                handlingReceiptIds.add(pulledMessage.getReceiptId());
+                if (!startHandler(pulledMessage)) {
+                    handlingReceiptIds.remove(pulledMessage.getReceiptId());
+                    running.release(); // closed as we pulled, the message is redelivered when it times out
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts a handler for the message. If the platform thread pool hands it back because a
+     * handler that has released its permit is not quite finished with its thread, tries again
+     * in a moment rather than run the handler on the pull loop.
+     *
+     * @return false if the consumer has been closed or the pull loop interrupted
+     */
+    private boolean startHandler(QueueMessage message) {
+        while (true) {
+            try {
+                executor.execute(() -> handle(message));
+                return true;
+            } catch (RejectedExecutionException e) {
+                if (executor.isShutdown()) {
+                    return false;
+                }
+            }
+            try {
+                Thread.sleep(REJECTED_RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt(); // ends the pull loop at its next wait
+                return false;
+            }
+        }
+    }
+
+    private void handle(QueueMessage message) {
+        try {
+            handler.handle(message);
+            queueService.deleteMessage(queueUrl, message.getReceiptId());
+            handledCount.incrementAndGet();
+        } catch (Exception e) {
+            failedCount.incrementAndGet(); // left in flight, redelivered when its visibility timeout expires
+        } finally {
+            handlingReceiptIds.remove(message.getReceiptId());
+            running.release();
+        }
+    }
+
+    /**
+     * Extends the lease on every message still being handled, in batches. A failed batch is
+     * tried again on the next heartbeat, which still leaves half a lease to go.
+     */
+    private void extendLeases() {
+        List<String> receiptIds = new ArrayList<>(handlingReceiptIds);
+        for (int from = 0; from < receiptIds.size(); from += MAX_CHANGE_VISIBILITY_BATCH) {
+            try {
+                queueService.changeVisibilityBatch(queueUrl, receiptIds.subList(from, Math.min(from + MAX_CHANGE_VISIBILITY_BATCH, receiptIds.size())), visibilityTimeoutMillis);
+            } catch (RuntimeException e) {
+                // e.g. the queue has been deleted, a running handler's message can't be redelivered then anyway
+            }
+        }
+    }
+
+    /**
+     * @return how many of up to the specified number of permits were free to take without
+     *         waiting
+     */
+    private int drainPermits(int max) {
+        int taken = 0;
+        while (taken < max && running.tryAcquire()) {
+            taken++;
+        }
+        return taken;
+    }
+
+    private void backOff() {
+        try {
+            Thread.sleep(PULL_FAILURE_BACKOFF_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            stopped = true;
+        }
+    }
+
+    /**
+     * @return a virtual thread per task executor where the JVM has them, otherwise a cached pool
+     *         of platform threads, enough for every handler and the pull loop
+     */
+    private ExecutorService newExecutor() {
+        if (NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null) {
+            try {
+                return (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                // fall back to platform threads
+            }
+        }
+        return new PlatformExecutor(maxConcurrency + 1);
+    }
+
+    /**
+     * @return {@code Executors.newVirtualThreadPerTaskExecutor()}, or null if the JVM has no
+     *         virtual threads
+     */
+    private static Method findNewVirtualThreadPerTaskExecutor() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Platform threads for JVMs without virtual threads, started as needed and kept for a minute
+     * once idle. A task is handed back to the caller, rather than run by it, if every thread is
+     * busy.
+     */
+    private static class PlatformExecutor extends ThreadPoolExecutor {
+        PlatformExecutor(int maxThreads) {
+            super(0, maxThreads, 60L, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "queue-consumer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
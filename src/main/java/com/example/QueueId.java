@@ -0,0 +1,136 @@
+package com.example;
+
+import static com.google.common.base.Preconditions.*;
+
+/**
+ * Message or receipt id. Ids this library issues are 128 bits held as two longs and only
+ * rendered to their UUID style string, e.g. 0000015f-2d5e-4d9b-00a3-f21c0000002a, when a caller
+ * asks for it. Ids issued by someone else, e.g. SQS receipt handles, are held as the string they
+ * came as.
+ */
+public final class QueueId {
+    // Constants
+    protected static final QueueId EMPTY = new QueueId("");
+
+    private static final int LENGTH = 36; // 32 hex digits and 4 dashes
+    private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+
+    // Fields
+    private final long high;
+    private final long low;
+    private final boolean numeric; // false if only the text is known
+    private String text; // rendered on first use when numeric
+
+    public QueueId(long high, long low) {
+        this.high = high;
+        this.low = low;
+        this.numeric = true;
+    }
+
+    private QueueId(String text) {
+        this.high = 0;
+        this.low = 0;
+        this.numeric = false;
+        this.text = text;
+    }
+
+    /**
+     * @return the id the specified string renders, with its high and low bits when it is in the
+     *         UUID style format, otherwise an id that is just the string
+     * @throws NullPointerException if the specified id is null
+     */
+    public static QueueId fromString(String id) {
+        checkNotNull(id, "Id cannot be null");
+        if (id.length() != LENGTH || id.charAt(8) != '-' || id.charAt(13) != '-' || id.charAt(18) != '-' || id.charAt(23) != '-') {
+            return id.isEmpty() ? EMPTY : new QueueId(id);
+        }
+        long high = 0;
+        long low = 0;
+        for (int i = 0; i < LENGTH; i++) {
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                continue;
+            }
+            int digit = Character.digit(id.charAt(i), 16);
+            if (digit < 0) {
+                return new QueueId(id);
+            }
+            if (i < 19) {
+                high = high << 4 | digit;
+            } else {
+                low = low << 4 | digit;
+            }
+        }
+        return new QueueId(high, low);
+    }
+
+    /**
+     * @return true if this id is held as its high and low bits
+     */
+    public boolean isNumeric() {
+        return numeric;
+    }
+
+    /**
+     * @throws IllegalStateException if this id is not numeric
+     */
+    public long getHigh() {
+        checkState(numeric, "Id is not numeric");
+        return high;
+    }
+
+    /**
+     * @throws IllegalStateException if this id is not numeric
+     */
+    public long getLow() {
+        checkState(numeric, "Id is not numeric");
+        return low;
+    }
+
+    public boolean isEmpty() {
+        return !numeric && text.isEmpty();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof QueueId))
+            return false;
+
+        QueueId other = (QueueId) obj;
+        if (numeric != other.numeric)
+            return false;
+
+        return numeric ? high == other.high && low == other.low : text.equals(other.text);
+    }
+
+    @Override
+    public int hashCode() {
+        return numeric ? Long.hashCode(high * 31 + low) : text.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        if (text == null) {
+            char[] chars = new char[LENGTH];
+            render(high >>> 32, 8, chars, 0);
+            chars[8] = '-';
+            render(high >>> 16, 4, chars, 9);
+            chars[13] = '-';
+            render(high, 4, chars, 14);
+            chars[18] = '-';
+            render(low >>> 48, 4, chars, 19);
+            chars[23] = '-';
+            render(low, 12, chars, 24);
+            text = new String(chars);
+        }
+        return text;
+    }
+
+    // Private methods
+
+    private static void render(long bits, int digits, char[] chars, int offset) {
+        for (int i = offset + digits - 1; i >= offset; i--) {
+            chars[i] = DIGITS[(int) bits & 0xf];
+            bits >>>= 4;
+        }
+    }
+}
@@ -2,15 +2,21 @@ package com.example;
 
 import static com.google.common.base.Preconditions.*;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
 public class QueueMessage {
     private static String EMPTY = "";
 
-    private String messageBody; // RFC1321, 256KB
-    private String messageId; // 100 char
-    private String receiptId; // 1024 char
+    private String messageBody; // RFC1321, 256KB, decoded from the buffer on first use when there is one
+    private ByteBuffer messageBodyBuffer; // read only UTF-8 view, e.g. of a memory mapped file queue segment or a heap copy of an off heap body
+    private PackedMessage packedMessage; // compact form held by an in-memory queue, when this is a view over one
+    private QueueId messageId; // 100 char, taken from the packed message and rendered to a string on first use when it can be
+    private QueueId receiptId; // 1024 char, same
 //    private String deduplicationId; // optional, 128 char, [a-zA-Z0-9!"#$%&'()*+,-./:;<=>?@[\]^_`{|}~]
-//    private String groupId; // same as deduplicationId, required by SQS for FIFO
+    private String groupId; // same as deduplicationId, required by SQS for FIFO, null if in no group or a view, which takes it from the packed message
     private long visibilityTimeoutFrom;
+    private int receiveCount; // times pulled, including this time, 0 if not pulled or not known
 
     /**
      * Intended for when pull operation receives no message or when push is unable to
@@ -18,8 +24,8 @@ public class QueueMessage {
      */
     public QueueMessage() {
         messageBody = EMPTY;
-        messageId = EMPTY;
-        receiptId = EMPTY;
+        messageId = QueueId.EMPTY;
+        receiptId = QueueId.EMPTY;
         visibilityTimeoutFrom = 0;
     }
 
@@ -33,18 +39,120 @@ public class QueueMessage {
      *         an empty string
      */
     public QueueMessage(String messageBody, String messageId) {
+        this(messageBody, QueueId.fromString(QueueServiceUtil.checkMessageId(messageId)));
+    }
+
+    /**
+     * Intended to be used when a message is pushed with an id generated by this library.
+     *
+     * @param messageBody the message body of the pushed queue message
+     * @param messageId the message id of the pushed queue message
+     * @throws NullPointerException if the specified message body or message ID is null
+     * @throws IllegalArgumentException if the specified message body or message ID is empty
+     */
+    protected QueueMessage(String messageBody, QueueId messageId) {
         this.messageBody = QueueServiceUtil.checkMessageBody(messageBody);
-        this.messageId = QueueServiceUtil.checkMessageId(messageId);
-        this.receiptId = EMPTY;
+        this.messageId = checkId(messageId, QueueServiceUtil.MESSAGE_ID_CANNOT_BE_NULL, QueueServiceUtil.MESSAGE_ID_CANNOT_BE_EMPTY);
+        this.receiptId = QueueId.EMPTY;
+        this.visibilityTimeoutFrom = 0;
+    }
+
+    /**
+     * Intended to be used when a message is pushed to a message group.
+     *
+     * @param groupId the message group, or null if none
+     */
+    protected QueueMessage(String messageBody, QueueId messageId, String groupId) {
+        this(messageBody, messageId);
+        this.groupId = groupId;
+    }
+
+    /**
+     * Intended to be used when a message is read from storage that holds the body as UTF-8, so
+     * the body is only decoded if it is asked for as a string.
+     *
+     * @param messageBody a read only view of the UTF-8 message body, which is not copied
+     * @param messageId the message id of the pushed queue message
+     * @throws NullPointerException if the specified message body or message ID is null
+     * @throws IllegalArgumentException if the specified message body or message ID is empty
+     */
+    protected QueueMessage(ByteBuffer messageBody, String messageId) {
+        this(messageBody, QueueId.fromString(QueueServiceUtil.checkMessageId(messageId)));
+    }
+
+    protected QueueMessage(ByteBuffer messageBody, QueueId messageId) {
+        checkNotNull(messageBody, QueueServiceUtil.MESSAGE_BODY_CANNOT_BE_NULL);
+        checkArgument(messageBody.hasRemaining(), QueueServiceUtil.MESSAGE_BODY_CANNOT_BE_EMPTY);
+        this.messageBodyBuffer = messageBody.asReadOnlyBuffer();
+        this.messageId = checkId(messageId, QueueServiceUtil.MESSAGE_ID_CANNOT_BE_NULL, QueueServiceUtil.MESSAGE_ID_CANNOT_BE_EMPTY);
+        this.receiptId = QueueId.EMPTY;
         this.visibilityTimeoutFrom = 0;
     }
 
+    /**
+     * @param groupId the message group, or null if none
+     */
+    protected QueueMessage(ByteBuffer messageBody, QueueId messageId, String groupId) {
+        this(messageBody, messageId);
+        this.groupId = groupId;
+    }
+
+    /**
+     * Intended to be used when a message has been pushed to an in-memory queue, as a view over
+     * the compact form the queue holds it in.
+     *
+     * @param packedMessage the compact form, which has already been checked
+     */
+    protected QueueMessage(PackedMessage packedMessage) {
+        this.packedMessage = checkNotNull(packedMessage, "Packed message cannot be null");
+        this.messageBodyBuffer = copyOffHeapBody(packedMessage);
+        this.receiptId = QueueId.EMPTY;
+        this.visibilityTimeoutFrom = 0;
+    }
+
+    /**
+     * Intended to be used when a message has been pulled from an in-memory queue, as a view over
+     * the compact form the queue holds it in, so nothing is copied, decoded or checked again.
+     *
+     * @param packedMessage the compact form, which has already been checked
+     * @param receiptId the receipt ID of the pulled message
+     * @param visibilityTimeoutFrom when the message was pulled
+     */
+    protected QueueMessage(PackedMessage packedMessage, QueueId receiptId, long visibilityTimeoutFrom) {
+        this.packedMessage = checkNotNull(packedMessage, "Packed message cannot be null");
+        this.messageBodyBuffer = copyOffHeapBody(packedMessage);
+        this.receiptId = checkId(receiptId, QueueServiceUtil.RECEIPT_ID_CANNOT_BE_NULL, QueueServiceUtil.RECEIPT_ID_CANNOT_BE_EMPTY);
+        this.visibilityTimeoutFrom = visibilityTimeoutFrom;
+        this.receiveCount = packedMessage.getReceiveCount();
+    }
+
     public QueueMessage(String messageBody, String messageId, String receiptId) {
         this(messageBody, messageId);
-        this.receiptId = QueueServiceUtil.checkReceiptId(receiptId);
+        this.receiptId = QueueId.fromString(QueueServiceUtil.checkReceiptId(receiptId));
         this.visibilityTimeoutFrom = 0;
     }
 
+    /**
+     * Intended to be used when a message has been received from a queue that counts how many
+     * times each message has been received.
+     *
+     * @param receiveCount the number of times the message has been received, including this time
+     */
+    public QueueMessage(String messageBody, String messageId, String receiptId, int receiveCount) {
+        this(messageBody, messageId, receiptId);
+        this.receiveCount = receiveCount;
+    }
+
+    /**
+     * Intended to be used when a message has been received from a message group.
+     *
+     * @param groupId the message group, or null if none
+     */
+    public QueueMessage(String messageBody, String messageId, String receiptId, int receiveCount, String groupId) {
+        this(messageBody, messageId, receiptId, receiveCount);
+        this.groupId = groupId;
+    }
+
     /**
      * Intended to be used when a message has been pulled successfully from the queue.
      *
@@ -55,34 +163,97 @@ public class QueueMessage {
      * @throws IllegalArgumentException if the specified receipt ID is an empty string
      */
     protected QueueMessage(QueueMessage dequeued, String receiptId, long visibilityTimeoutFrom) {
-        this(checkNotNull(dequeued, "Dequeued cannot be null").getMessageBody(),
-                dequeued.getMessageId());
+        this(dequeued, QueueId.fromString(QueueServiceUtil.checkReceiptId(receiptId)), visibilityTimeoutFrom);
+    }
 
-        this.receiptId = QueueServiceUtil.checkReceiptId(receiptId);
+    protected QueueMessage(QueueMessage dequeued, QueueId receiptId, long visibilityTimeoutFrom) {
+        this(dequeued, receiptId, visibilityTimeoutFrom, 0);
+    }
+
+    /**
+     * @param receiveCount the number of times the message has been pulled, including this time
+     */
+    protected QueueMessage(QueueMessage dequeued, QueueId receiptId, long visibilityTimeoutFrom, int receiveCount) {
+        checkNotNull(dequeued, "Dequeued cannot be null");
+        checkArgument(!dequeued.isEmpty(), "Dequeued cannot be empty"); // otherwise checked when it was constructed
+        this.messageBody = dequeued.messageBody; // shared as it is rather than decoded or copied
+        this.messageBodyBuffer = dequeued.messageBodyBuffer;
+        this.packedMessage = dequeued.packedMessage;
+        this.messageId = dequeued.messageId;
+        this.groupId = dequeued.groupId;
+
+        this.receiptId = checkId(receiptId, QueueServiceUtil.RECEIPT_ID_CANNOT_BE_NULL, QueueServiceUtil.RECEIPT_ID_CANNOT_BE_EMPTY);
 
         checkArgument(visibilityTimeoutFrom >= 0, "Visibility timeout from cannot be a negative number");
         this.visibilityTimeoutFrom = visibilityTimeoutFrom;
+        this.receiveCount = receiveCount;
     }
 
     public String getMessageBody() {
+        if (messageBody == null) {
+            messageBody = (messageBodyBuffer == null)
+                    ? new String(packedMessage.getMessageBody(), StandardCharsets.UTF_8)
+                    : StandardCharsets.UTF_8.decode(messageBodyBuffer.duplicate()).toString();
+        }
         return messageBody;
     }
 
+    /**
+     * @return a read only view of the UTF-8 encoded message body. For a message pulled from a
+     *         file queue this is a view of the memory mapped log rather than a copy
+     */
+    public ByteBuffer getMessageBodyBuffer() {
+        if (messageBodyBuffer == null && packedMessage != null) {
+            return ByteBuffer.wrap(packedMessage.getMessageBody()).asReadOnlyBuffer();
+        }
+        if (messageBodyBuffer == null) {
+            return ByteBuffer.wrap(messageBody.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+        }
+        return messageBodyBuffer.duplicate();
+    }
+
     public String getMessageId() {
-        return messageId;
+        return getMessageQueueId().toString();
     }
 
     public String getReceiptId() {
-        return receiptId;
+        return receiptId.toString();
     }
 
+    protected QueueId getMessageQueueId() {
+        if (messageId == null) {
+            messageId = new QueueId(packedMessage.getMessageIdHigh(), packedMessage.getMessageIdLow());
+        }
+        return messageId;
+    }
+
+    protected QueueId getReceiptQueueId() { return receiptId; }
+
     protected long getVisibilityTimeoutFrom() { return visibilityTimeoutFrom; }
 
+    /**
+     * @return the message group the message was pushed to, or null if none
+     */
+    public String getGroupId() {
+        return (groupId == null && packedMessage != null) ? packedMessage.getGroupId() : groupId;
+    }
+
+    /**
+     * @return the number of times a pulled message has been pulled, including this time, e.g. to
+     *         tell a poison message apart, or 0 if it was not pulled or the queue does not count
+     */
+    public int getReceiveCount() { return receiveCount; }
+
+    /**
+     * @return the compact form this is a view over, or null if it is not a view
+     */
+    protected PackedMessage getPackedMessage() { return packedMessage; }
+
     /**
      * @return if queue message is empty
      */
     public boolean isEmpty() {
-        return messageId.equals(EMPTY);
+        return packedMessage == null && messageId.isEmpty();
     }
 
     /**
@@ -97,16 +268,34 @@ public class QueueMessage {
 
         QueueMessage other = (QueueMessage) obj;
 
-        return other.getMessageId().equalsIgnoreCase(messageId) && other.getMessageBody().equals(messageBody);
+        return (other.getMessageQueueId().equals(getMessageQueueId()) || other.getMessageId().equalsIgnoreCase(getMessageId()))
+                && other.getMessageBody().equals(getMessageBody());
     }
 
     @Override
     public String toString() {
         return "QueueMessage{" +
-                "messageBody='" + messageBody + '\'' +
-                ", messageId='" + messageId + '\'' +
+                "messageBody='" + getMessageBody() + '\'' +
+                ", messageId='" + getMessageQueueId() + '\'' +
                 ", receiptId='" + receiptId + '\'' +
                 ", visibilityTimeoutFrom=" + visibilityTimeoutFrom +
+                ", receiveCount=" + receiveCount +
                 '}';
     }
+
+    // Private methods
+
+    /**
+     * @return a heap copy of the body if it is off heap, where it only stays valid until the
+     *         message is deleted, otherwise null
+     */
+    private static ByteBuffer copyOffHeapBody(PackedMessage packedMessage) {
+        return packedMessage.isOffHeap() ? ByteBuffer.wrap(packedMessage.getMessageBody()).asReadOnlyBuffer() : null;
+    }
+
+    private static QueueId checkId(QueueId id, String nullMessage, String emptyMessage) {
+        checkNotNull(id, nullMessage);
+        checkArgument(!id.isEmpty(), emptyMessage);
+        return id;
+    }
 }
@@ -0,0 +1,13 @@
+package com.example;
+
+/**
+ * Processes a message for a {@link QueueConsumer}. Implementations must be thread safe, the
+ * consumer runs many at once.
+ */
+public interface QueueMessageHandler {
+    /**
+     * Returning normally deletes the message. Throwing leaves it to be redelivered once its
+     * visibility timeout expires.
+     */
+    void handle(QueueMessage message) throws Exception;
+}
@@ -0,0 +1,85 @@
+package com.example;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+import static com.example.QueueServiceUtil.*;
+
+import static com.google.common.base.Preconditions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Moves the messages of a dead letter queue back to the queue they were dead lettered from, on
+ * the calling thread, through any {@link QueueService}.
+ *
+ * <p>Messages are moved a batch at a time: pulled from the dead letter queue, pushed to the queue
+ * with a single batch push and only then deleted from the dead letter queue with a single batch
+ * delete, so a failure part way leaves a message in both queues rather than in neither. The
+ * batch is sized to the rate and its permits are taken before it is pulled, so pulled messages
+ * never wait on the rate limiter long enough to time out. A message the queue does not accept,
+ * e.g. because it is full, is left to be redelivered in the dead letter queue and the redrive
+ * stops.
+ */
+public class QueueRedrive {
+    // Fields
+    private final QueueService queueService;
+    private final String deadLetterQueueUrl;
+    private final String queueUrl;
+    private final int batchSize;
+    private final RateLimiter rateLimiter; // messages moved per second
+
+    /**
+     * @param maxMessagesPerSecond the most messages to move a second
+     * @throws NullPointerException if the queue service, dead letter queue URL or queue URL is null
+     * @throws IllegalArgumentException if either URL is empty or the rate is not positive
+     */
+    public QueueRedrive(QueueService queueService, String deadLetterQueueUrl, String queueUrl, int maxMessagesPerSecond) {
+        checkNotNull(queueService, "Queue service cannot be null");
+        checkQueueUrl(deadLetterQueueUrl);
+        checkQueueUrl(queueUrl);
+        checkArgument(maxMessagesPerSecond > 0, "Redrive rate must be a positive number");
+        this.queueService = queueService;
+        this.deadLetterQueueUrl = deadLetterQueueUrl;
+        this.queueUrl = queueUrl;
+        this.batchSize = Math.min(maxMessagesPerSecond, MAX_PULL_MESSAGES);
+        this.rateLimiter = RateLimiter.create(maxMessagesPerSecond);
+    }
+
+    /**
+     * Moves messages until a pull of the dead letter queue comes back empty.
+     *
+     * @return the number of messages moved
+     */
+    public long run() {
+        long moved = 0;
+        while (true) {
+            rateLimiter.acquire(batchSize); // before pulling, so the wait is never on messages in flight
+            List<QueueMessage> pulledMessages = queueService.pull(deadLetterQueueUrl, batchSize);
+            if (pulledMessages.isEmpty()) {
+                return moved;
+            }
+
+            List<String> messageBodies = new ArrayList<>(pulledMessages.size());
+            for (QueueMessage pulledMessage : pulledMessages) {
+                messageBodies.add(pulledMessage.getMessageBody());
+            }
+            List<QueueMessage> pushMessages = queueService.pushBatch(queueUrl, messageBodies);
+
+            List<String> receiptIds = new ArrayList<>(pulledMessages.size());
+            for (int i = 0; i < pulledMessages.size(); i++) {
+                if (!pushMessages.get(i).isEmpty()) {
+                    receiptIds.add(pulledMessages.get(i).getReceiptId());
+                }
+            }
+            if (!receiptIds.isEmpty()) {
+                queueService.deleteBatch(deadLetterQueueUrl, receiptIds);
+                moved += receiptIds.size();
+            }
+
+            if (receiptIds.size() < pulledMessages.size()) {
+                return moved; // not accepted, the rest are redelivered in the dead letter queue
+            }
+        }
+    }
+}
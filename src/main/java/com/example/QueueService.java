@@ -1,7 +1,10 @@
 package com.example;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
 
 public interface QueueService {
 
@@ -114,6 +117,130 @@ public interface QueueService {
      */
     QueueMessage push(String queueUrl, String message);
 
+    /**
+     * Maps to {@code SendMessageResult	sendMessage(SendMessageRequest request)}
+     * with {@code DelaySeconds} in SQS.
+     *
+     * <p>Pushes a message to the specified queue that only becomes
+     * visible once the specified delay has gone by, instead of the
+     * queue's delay, e.g. to back off before retrying work.
+     *
+     * @param queueUrl the queue URL
+     * @param message the message body
+     * @param delayMillis how long the message stays invisible, up to 15
+     *        minutes
+     * @return a queue message containing the message body and a system
+     *         assigned message ID to indicate that the message was
+     *         successfully accepted
+     * @throws NullPointerException if either the specified queue URL or
+     *         message body is null
+     * @throws IllegalArgumentException if either the specifed queue URL
+     *         or message body is empty, or the delay is not between 0
+     *         and 15 minutes
+     * @throws IllegalStateException if the specified queue URL does not
+     *         exist
+     */
+    QueueMessage push(String queueUrl, String message, long delayMillis);
+
+    /**
+     * Maps to {@code SendMessageResult	sendMessage(SendMessageRequest request)}
+     * with {@code MessageGroupId} in SQS.
+     *
+     * <p>Pushes a message to a message group of the specified queue.
+     * Messages of a group are pulled in the order they were pushed, one
+     * at a time: while a message of the group is visible or in flight
+     * the rest of the group is held back, and the next is only released
+     * once it is deleted or moved to a dead letter queue. A message that
+     * times out is redelivered before the rest of its group. Messages of
+     * different groups, and messages pushed without a group, are pulled
+     * independently, so consumers can work on as many groups at once as
+     * there are. The queue's delay applies to grouped messages too, from
+     * when each is pushed, and a message released before its delay is up
+     * holds back the rest of its group until it is visible and deleted.
+     *
+     * @param queueUrl the queue URL
+     * @param message the message body
+     * @param groupId the message group, up to 128 characters
+     * @return a queue message containing the message body and a system
+     *         assigned message ID to indicate that the message was
+     *         successfully accepted
+     * @throws NullPointerException if either the specified queue URL,
+     *         message body or group is null
+     * @throws IllegalArgumentException if either the specifed queue URL,
+     *         message body or group is empty, or the group is longer than
+     *         128 characters
+     * @throws IllegalStateException if the specified queue URL does not
+     *         exist
+     */
+    QueueMessage push(String queueUrl, String message, String groupId);
+
+    /**
+     * Maps to {@code SetQueueAttributesResult	setQueueAttributes(String queueUrl, Map<String, String> attributes)}
+     * with {@code DelaySeconds} in SQS.
+     *
+     * <p>Sets how long every message pushed to the specified queue from
+     * now on stays invisible, unless pushed with a delay of its own.
+     * Messages already pushed are not affected. Queues are created with
+     * no delay.
+     *
+     * @param queueUrl the queue URL
+     * @param delayMillis how long pushed messages stay invisible, up to
+     *        15 minutes
+     * @throws NullPointerException if the specified queue URL is null
+     * @throws IllegalArgumentException if the specifed queue URL is
+     *         empty or the delay is not between 0 and 15 minutes
+     * @throws IllegalStateException if the specified queue URL does not
+     *         exist
+     */
+    void setQueueDelay(String queueUrl, long delayMillis);
+
+    /**
+     * Maps to {@code SetQueueAttributesResult	setQueueAttributes(String queueUrl, Map<String, String> attributes)}
+     * with {@code RedrivePolicy} in SQS.
+     *
+     * <p>Moves a message of the specified queue to the dead letter
+     * queue instead of redelivering it once it has been pulled the
+     * specified number of times without being deleted, so that a
+     * message no consumer can handle stops taking up their time. The
+     * message keeps its message id and body. If the dead letter queue
+     * is deleted messages are redelivered as before.
+     *
+     * @param queueUrl the queue URL
+     * @param deadLetterQueueUrl the URL of the queue to move messages to
+     * @param maxReceiveCount how many times a message may be pulled
+     *        before it is moved, from 1 to 1000
+     * @throws NullPointerException if either the specified queue URL or
+     *         dead letter queue URL is null
+     * @throws IllegalArgumentException if either the specifed queue URL
+     *         or dead letter queue URL is empty, they are the same queue
+     *         or the maximum is not between 1 and 1000
+     * @throws IllegalStateException if either the specified queue URL
+     *         or dead letter queue URL does not exist
+     */
+    void setRedrivePolicy(String queueUrl, String deadLetterQueueUrl, int maxReceiveCount);
+
+    /**
+     * Maps to {@code SendMessageBatchResult	sendMessageBatch(SendMessageBatchRequest request)}
+     * in SQS.
+     *
+     * <p>Pushes several messages to the specified queue at once, in order,
+     * for the cost of about one push. A message may not be accepted, e.g.
+     * if the queue is full, without the others failing.
+     *
+     * @param queueUrl the queue URL
+     * @param messages the message bodies
+     * @return a queue message for each message body, in the same order,
+     *         containing the message body and a system assigned message
+     *         ID, or an empty queue message if it was not accepted
+     * @throws NullPointerException if either the specified queue URL,
+     *         list of message bodies or any message body is null
+     * @throws IllegalArgumentException if either the specifed queue URL,
+     *         list of message bodies or any message body is empty
+     * @throws IllegalStateException if the specified queue URL does not
+     *         exist
+     */
+    List<QueueMessage> pushBatch(String queueUrl, List<String> messages);
+
     /**
      * Maps to {@code ReceiveMessageResult	receiveMessage(String queueUrl)}
      * in SQS.
@@ -133,6 +260,50 @@ public interface QueueService {
      */
     QueueMessage pull(String queueUrl);
 
+    /**
+     * Maps to {@code ReceiveMessageResult	receiveMessage(ReceiveMessageRequest request)}
+     * with {@code MaxNumberOfMessages} in SQS.
+     *
+     * <p>Receives up to the specified number of messages from the
+     * specified queue at once, waiting as {@link #pull(String)} does
+     * until there is at least one.
+     *
+     * @param queueUrl the queue URL
+     * @param maxMessages the most messages to receive, from 1 to 10
+     * @return the queue messages received, each with a receipt id, or an
+     *         empty list if there were none
+     * @throws NullPointerException if the specified queue URL is null
+     * @throws IllegalArgumentException is the specified queue URL is an
+     *         empty string or the maximum is not between 1 and 10
+     * @throws IllegalStateException if the specified queue URL does not
+     *         exist
+     */
+    List<QueueMessage> pull(String queueUrl, int maxMessages);
+
+    /**
+     * Maps to {@code ReceiveMessageResult	receiveMessage(ReceiveMessageRequest request)}
+     * with {@code MaxNumberOfMessages} and {@code VisibilityTimeout} in
+     * SQS.
+     *
+     * <p>Receives up to the specified number of messages as
+     * {@link #pull(String, int)} does, but keeps them invisible for the
+     * specified time instead of the queue's visibility timeout.
+     *
+     * @param queueUrl the queue URL
+     * @param maxMessages the most messages to receive, from 1 to 10
+     * @param visibilityTimeoutMillis how long the messages stay invisible,
+     *        up to 12 hours
+     * @return the queue messages received, each with a receipt id, or an
+     *         empty list if there were none
+     * @throws NullPointerException if the specified queue URL is null
+     * @throws IllegalArgumentException is the specified queue URL is an
+     *         empty string, the maximum is not between 1 and 10 or the
+     *         visibility timeout is not between 0 and 12 hours
+     * @throws IllegalStateException if the specified queue URL does not
+     *         exist
+     */
+    List<QueueMessage> pull(String queueUrl, int maxMessages, long visibilityTimeoutMillis);
+
     /**
      * Maps to {@code DeleteMessageResult	deleteMessage(String queueUrl, String receiptHandle)}
      * in SQS.
@@ -153,4 +324,158 @@ public interface QueueService {
      */
     boolean deleteMessage(String queueUrl, String receiptId);
 
+    /**
+     * Maps to {@code DeleteMessageBatchResult	deleteMessageBatch(DeleteMessageBatchRequest request)}
+     * in SQS.
+     *
+     * <p>Deletes several pulled messages from the specified queue at
+     * once, for the cost of about one delete.
+     *
+     * @param queueUrl the queue URL
+     * @param receiptIds the receipt IDs
+     * @return for each receipt ID, in the same order, false if the
+     *         receipt handle isn't valid
+     * @throws NullPointerException if either the specified queue URL,
+     *         list of receipt IDs or any receipt ID is null
+     * @throws IllegalArgumentException if either the specifed queue URL,
+     *         list of receipt IDs or any receipt ID is empty
+     * @throws IllegalStateException if the specified queue URL does not
+     *         exist
+     */
+    List<Boolean> deleteBatch(String queueUrl, List<String> receiptIds);
+
+    /**
+     * Maps to {@code ChangeMessageVisibilityResult	changeMessageVisibility(String queueUrl, String receiptHandle, Integer visibilityTimeout)}
+     * in SQS.
+     *
+     * <p>Makes a pulled message visible again the specified time from
+     * now instead of when its visibility timeout would have expired,
+     * e.g. to extend the lease of a slow handler, or with 0 to give the
+     * message up straight away. The receipt ID stays valid until then.
+     *
+     * @param queueUrl the queue URL
+     * @param receiptId the receipt ID
+     * @param visibilityTimeoutMillis how long from now the message stays
+     *        invisible, up to 12 hours
+     * @return false if the receipt handle isn't valid
+     * @throws NullPointerException if either the specified queue URL or
+     *         receipt ID is null
+     * @throws IllegalArgumentException if either the specifed queue URL
+     *         or receipt ID is empty, or the visibility timeout is not
+     *         between 0 and 12 hours
+     * @throws IllegalStateException if the specified queue URL does not
+     *         exist
+     */
+    boolean changeVisibility(String queueUrl, String receiptId, long visibilityTimeoutMillis);
+
+    /**
+     * Maps to {@code ChangeMessageVisibilityBatchResult	changeMessageVisibilityBatch(ChangeMessageVisibilityBatchRequest request)}
+     * in SQS.
+     *
+     * <p>Changes the visibility of several pulled messages at once, as
+     * {@link #changeVisibility(String, String, long)} does.
+     *
+     * @param queueUrl the queue URL
+     * @param receiptIds the receipt IDs
+     * @param visibilityTimeoutMillis how long from now the messages stay
+     *        invisible, up to 12 hours
+     * @return for each receipt ID, in the same order, false if the
+     *         receipt handle isn't valid
+     * @throws NullPointerException if either the specified queue URL,
+     *         list of receipt IDs or any receipt ID is null
+     * @throws IllegalArgumentException if either the specifed queue URL,
+     *         list of receipt IDs or any receipt ID is empty, or the
+     *         visibility timeout is not between 0 and 12 hours
+     * @throws IllegalStateException if the specified queue URL does not
+     *         exist
+     */
+    List<Boolean> changeVisibilityBatch(String queueUrl, List<String> receiptIds, long visibilityTimeoutMillis);
+
+    /**
+     * Maps to {@code Future<SendMessageResult>	sendMessageAsync(SendMessageRequest request, AsyncHandler asyncHandler)}
+     * in SQS.
+     *
+     * <p>Pushes a message to the specified queue without blocking the
+     * calling thread on the push.
+     *
+     * @param queueUrl the queue URL
+     * @param message the message body
+     * @return a future of what {@link #push(String, String)} returns,
+     *         completed exceptionally with whatever it throws
+     */
+    CompletableFuture<QueueMessage> pushAsync(String queueUrl, String message);
+
+    /**
+     * Maps to {@code Future<ReceiveMessageResult>	receiveMessageAsync(ReceiveMessageRequest request, AsyncHandler asyncHandler)}
+     * in SQS.
+     *
+     * <p>Receives one message from the specified queue without blocking
+     * the calling thread while waiting for one. No thread waits on a
+     * pending pull either, so any number can be pending at once. If the
+     * future is cancelled once a message has been pulled for it, the
+     * message is redelivered when its visibility timeout expires.
+     *
+     * @param queueUrl the queue URL
+     * @return a future of what {@link #pull(String)} returns, completed
+     *         exceptionally with whatever it throws
+     */
+    CompletableFuture<QueueMessage> pullAsync(String queueUrl);
+
+    /**
+     * Maps to {@code Future<DeleteMessageResult>	deleteMessageAsync(DeleteMessageRequest request, AsyncHandler asyncHandler)}
+     * in SQS.
+     *
+     * <p>Deletes the specified message from the specified queue without
+     * blocking the calling thread on the delete.
+     *
+     * @param queueUrl the queue URL
+     * @param receiptId the receipt ID
+     * @return a future of what {@link #deleteMessage(String, String)}
+     *         returns, completed exceptionally with whatever it throws
+     */
+    CompletableFuture<Boolean> deleteMessageAsync(String queueUrl, String receiptId);
+
+    /**
+     * Delivers messages from the specified queue to the subscriber as
+     * it requests them, instead of the subscriber pulling. Delivered
+     * messages carry a receipt id and are in flight, as pulled messages
+     * are, until deleted or their visibility timeout expires. No thread
+     * polls the queue for the subscriber. See {@link QueueSubscription}.
+     *
+     * @param queueUrl the queue URL
+     * @param subscriber the subscriber
+     * @throws NullPointerException if either the specified queue URL or
+     *         subscriber is null
+     * @throws IllegalArgumentException is the specified queue URL is an
+     *         empty string
+     */
+    default void subscribe(String queueUrl, Flow.Subscriber<? super QueueMessage> subscriber) {
+        new QueueSubscription(this, queueUrl, subscriber, QueueSubscription.DEFAULT_MAX_PENDING_PULLS).start();
+    }
+
+    /**
+     * Moves every message in the specified dead letter queue back to
+     * the specified queue, e.g. once the bug that made consumers fail
+     * on them has been fixed, at no more than the specified rate so as
+     * not to swamp the consumers. Each message is pushed to the queue
+     * before it is deleted from the dead letter queue, so it is moved
+     * at least once, with a new message id. Stops once a pull of the
+     * dead letter queue comes back empty. See {@link QueueRedrive}.
+     *
+     * @param deadLetterQueueUrl the dead letter queue URL
+     * @param queueUrl the URL of the queue to move messages back to
+     * @param maxMessagesPerSecond the most messages to move a second
+     * @return the number of messages moved
+     * @throws NullPointerException if either the specified dead letter
+     *         queue URL or queue URL is null
+     * @throws IllegalArgumentException if either the specifed dead
+     *         letter queue URL or queue URL is empty, or the rate is not
+     *         positive
+     * @throws IllegalStateException if either the specified dead letter
+     *         queue URL or queue URL does not exist
+     */
+    default long redrive(String deadLetterQueueUrl, String queueUrl, int maxMessagesPerSecond) {
+        return new QueueRedrive(this, deadLetterQueueUrl, queueUrl, maxMessagesPerSecond).run();
+    }
+
 }
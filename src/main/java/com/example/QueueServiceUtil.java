@@ -1,6 +1,7 @@
 package com.example;
 
-import java.util.UUID;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -13,6 +14,8 @@ public class QueueServiceUtil {
     protected static final String QUEUE_URL_CANNOT_BE_NULL = "Queue URL cannot be null";
     protected static final String QUEUE_URL_CANNOT_BE_EMPTY = "Queue URL cannot be an empty string";
     protected static final String QUEUE_URL_DOES_NOT_EXIST = "Queue URL does not exist";
+    protected static final String QUEUE_IS_FULL = "Queue is full";
+    protected static final String SERVICE_IS_CLOSED = "Service is closed";
 
     protected static final String MESSAGE_BODY_CANNOT_BE_NULL = "Message body cannot be null";
     protected static final String MESSAGE_BODY_CANNOT_BE_EMPTY = "Message body cannot be an empty string";
@@ -23,6 +26,19 @@ public class QueueServiceUtil {
     protected static final String MESSAGE_ID_CANNOT_BE_NULL = "Message ID cannot be null";
     protected static final String MESSAGE_ID_CANNOT_BE_EMPTY = "Message ID cannot be an empty string";
 
+    protected static final String GROUP_ID_CANNOT_BE_NULL = "Group ID cannot be null";
+    protected static final String GROUP_ID_CANNOT_BE_EMPTY = "Group ID cannot be an empty string";
+    protected static final int MAX_GROUP_ID_LENGTH = 128; // as for SQS
+
+    protected static final int MAX_PULL_MESSAGES = 10; // as for SQS
+    protected static final String BATCH_CANNOT_BE_NULL = "Batch cannot be null";
+    protected static final String BATCH_CANNOT_BE_EMPTY = "Batch cannot be empty";
+    protected static final long MAX_VISIBILITY_TIMEOUT_MILLIS = 12 * 60 * 60 * 1000L; // as for SQS
+    protected static final long MAX_DELAY_MILLIS = 15 * 60 * 1000L; // as for SQS
+    protected static final int MAX_RECEIVE_COUNT = 1000; // as for SQS
+    protected static final String DEAD_LETTER_QUEUE_CANNOT_BE_THE_QUEUE = "Dead letter queue cannot be the queue itself";
+
+    private static volatile IdGenerator idGenerator = new SnowflakeIdGenerator();
 
     public static String checkQueueName(String queueName) {
         checkNotNull(queueName, QUEUE_NAME_CANNOT_BE_NULL);
@@ -54,12 +70,89 @@ public class QueueServiceUtil {
         return receiptId;
     }
 
+    public static String checkGroupId(String groupId) {
+        checkNotNull(groupId, GROUP_ID_CANNOT_BE_NULL);
+        checkArgument(!groupId.trim().isEmpty(), GROUP_ID_CANNOT_BE_EMPTY);
+        checkArgument(groupId.length() <= MAX_GROUP_ID_LENGTH, "Group ID cannot be longer than " + MAX_GROUP_ID_LENGTH + " characters");
+        return groupId;
+    }
+
+    /**
+     * Replaces the generator message and receipt ids are issued by, for every queue service in
+     * this process.
+     *
+     * @throws NullPointerException if the specified generator is null
+     */
+    public static void setIdGenerator(IdGenerator idGenerator) {
+        QueueServiceUtil.idGenerator = checkNotNull(idGenerator, "Id generator cannot be null");
+    }
+
+    /**
+     * @return a new id, not rendered to a string until asked for
+     */
+    public static QueueId generateId() {
+        return idGenerator.nextId();
+    }
+
+    /**
+     * @return the specified message bodies, having checked each of them
+     */
+    public static List<String> checkMessageBodies(List<String> messageBodies) {
+        checkNotNull(messageBodies, BATCH_CANNOT_BE_NULL);
+        checkArgument(!messageBodies.isEmpty(), BATCH_CANNOT_BE_EMPTY);
+        for (String messageBody : messageBodies) {
+            checkMessageBody(messageBody);
+        }
+        return messageBodies;
+    }
+
+    /**
+     * @return the specified receipt ids, having checked each of them
+     */
+    public static List<String> checkReceiptIds(List<String> receiptIds) {
+        checkNotNull(receiptIds, BATCH_CANNOT_BE_NULL);
+        checkArgument(!receiptIds.isEmpty(), BATCH_CANNOT_BE_EMPTY);
+        for (String receiptId : receiptIds) {
+            checkReceiptId(receiptId);
+        }
+        return receiptIds;
+    }
+
+    public static int checkMaxMessages(int maxMessages) {
+        checkArgument(maxMessages >= 1 && maxMessages <= MAX_PULL_MESSAGES, "Max messages must be between 1 and " + MAX_PULL_MESSAGES);
+        return maxMessages;
+    }
+
+    public static long checkVisibilityTimeout(long visibilityTimeoutMillis) {
+        checkArgument(visibilityTimeoutMillis >= 0 && visibilityTimeoutMillis <= MAX_VISIBILITY_TIMEOUT_MILLIS, "Visibility timeout must be between 0 and 12 hours");
+        return visibilityTimeoutMillis;
+    }
+
+    public static long checkDelay(long delayMillis) {
+        checkArgument(delayMillis >= 0 && delayMillis <= MAX_DELAY_MILLIS, "Delay must be between 0 and 15 minutes");
+        return delayMillis;
+    }
+
+    public static int checkMaxReceiveCount(int maxReceiveCount) {
+        checkArgument(maxReceiveCount >= 1 && maxReceiveCount <= MAX_RECEIVE_COUNT, "Max receive count must be between 1 and " + MAX_RECEIVE_COUNT);
+        return maxReceiveCount;
+    }
+
     public static String generateMessageId() {
-        return UUID.randomUUID().toString();
+        return generateId().toString();
     }
 
     public static String generateReceiptId() {
-        return UUID.randomUUID().toString();
+        return generateId().toString();
+    }
+
+    /**
+     * @return a future already completed exceptionally with the specified exception
+     */
+    public static <T> CompletableFuture<T> failedFuture(Throwable ex) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(ex);
+        return future;
     }
 
     public static long now() {
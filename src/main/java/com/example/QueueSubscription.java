@@ -0,0 +1,137 @@
+package com.example;
+
+import static com.example.QueueServiceUtil.*;
+
+import static com.google.common.base.Preconditions.*;
+
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Push based delivery of a queue's messages to a {@link Flow.Subscriber}, as demand arrives.
+ *
+ * <p>Each message requested is pulled with {@link QueueService#pullAsync(String)}, so no thread
+ * waits on the queue for the subscriber, and at most a fixed number of pulls are pending at once
+ * however much is requested. A delivered message is in flight like any pulled message: the
+ * subscriber deletes it with its receipt id, or it is redelivered once its visibility timeout
+ * expires. A pull that times out empty is simply pulled again.
+ *
+ * <p>Signals to the subscriber are serialized by a drain loop, which whichever thread completes
+ * a pull or requests more runs. The subscription never completes. It fails if a pull does, e.g.
+ * because the queue has been deleted. Messages pulled after it is cancelled are not delivered
+ * and are redelivered when their visibility timeout expires.
+ */
+public class QueueSubscription implements Flow.Subscription {
+    // Constants
+    protected static final int DEFAULT_MAX_PENDING_PULLS = 10;
+
+    // Fields
+    private final QueueService queueService;
+    private final String queueUrl;
+    private final Flow.Subscriber<? super QueueMessage> subscriber;
+    private final int maxPendingPulls;
+    private final AtomicLong demand = new AtomicLong(); // requested and not yet pulled for
+    private final Set<CompletableFuture<QueueMessage>> pendingPulls = ConcurrentHashMap.newKeySet(); // only added to by the drain loop
+    private final Queue<QueueMessage> pulledMessages = new ConcurrentLinkedQueue<>(); // pulled and not yet delivered
+    private final AtomicInteger drains = new AtomicInteger(); // drain loop runs wanted, only the first thread in runs it
+    private volatile Throwable failure;
+    private volatile boolean cancelled;
+
+    /**
+     * @param maxPendingPulls the most pulls that may be pending at once, which caps how many
+     *                        messages are pulled and not yet delivered
+     * @throws NullPointerException if the queue service, queue URL or subscriber is null
+     * @throws IllegalArgumentException if the queue URL is empty or the most pending pulls is
+     *         not positive
+     */
+    public QueueSubscription(QueueService queueService, String queueUrl, Flow.Subscriber<? super QueueMessage> subscriber, int maxPendingPulls) {
+        checkNotNull(queueService, "Queue service cannot be null");
+        checkQueueUrl(queueUrl);
+        checkNotNull(subscriber, "Subscriber cannot be null");
+        checkArgument(maxPendingPulls > 0, "Most pending pulls must be a positive number");
+        this.queueService = queueService;
+        this.queueUrl = queueUrl;
+        this.subscriber = subscriber;
+        this.maxPendingPulls = maxPendingPulls;
+    }
+
+    /**
+     * Hands the subscription to the subscriber, nothing is pulled until it requests messages.
+     */
+    public void start() {
+        subscriber.onSubscribe(this);
+    }
+
+    /**
+     * Fails the subscription if the number is not positive.
+     */
+    @Override
+    public void request(long n) {
+        if (n <= 0) {
+            failure = new IllegalArgumentException("Number of messages requested must be a positive number");
+        } else {
+            demand.accumulateAndGet(n, (requested, more) -> (requested + more < 0) ? Long.MAX_VALUE : requested + more); // unbounded once it overflows
+        }
+        drain();
+    }
+
+    @Override
+    public void cancel() {
+        cancelled = true;
+        for (CompletableFuture<QueueMessage> pendingPull : pendingPulls) {
+            pendingPull.cancel(false); // a pending in memory pull gives up its place, if it hasn't been handed a message
+        }
+    }
+
+    // Private methods
+
+    private void onPulled(CompletableFuture<QueueMessage> pendingPull, QueueMessage pulledMessage, Throwable e) {
+        pendingPulls.remove(pendingPull);
+        if (e != null) {
+            failure = e;
+        } else if (pulledMessage.isEmpty()) {
+            demand.incrementAndGet(); // timed out, pull again
+        } else {
+            pulledMessages.add(pulledMessage);
+        }
+        drain();
+    }
+
+    /**
+     * Delivers pulled messages and pulls for outstanding demand until there is nothing more to
+     * do. Only one thread runs the loop at a time, anyone else arriving just makes it go round
+     * again.
+     */
+    private void drain() {
+        if (drains.getAndIncrement() != 0) {
+            return;
+        }
+
+        int wanted = 1;
+        do {
+            QueueMessage pulledMessage;
+            while (!cancelled && (pulledMessage = pulledMessages.poll()) != null) {
+                subscriber.onNext(pulledMessage);
+            }
+            if (!cancelled && failure != null) {
+                cancel();
+                subscriber.onError(failure);
+            }
+            while (!cancelled && pendingPulls.size() < maxPendingPulls && demand.get() > 0) {
+                if (demand.get() != Long.MAX_VALUE) {
+                    demand.decrementAndGet();
+                }
+                CompletableFuture<QueueMessage> pendingPull = queueService.pullAsync(queueUrl);
+                pendingPulls.add(pendingPull);
+                pendingPull.whenComplete((message, e) -> onPulled(pendingPull, message, e)); // runs straight away if already pulled
+            }
+            wanted = drains.addAndGet(-wanted);
+        } while (wanted != 0);
+    }
+}
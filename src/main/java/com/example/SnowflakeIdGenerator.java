@@ -0,0 +1,72 @@
+package com.example;
+
+import static com.google.common.base.Preconditions.*;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Snowflake style id generator, the default. An id is 128 bits:
+ *
+ * <pre>
+ * high  64 bits  milliseconds since the epoch
+ * low   24 bits  node, random per generator unless specified
+ *       40 bits  sequence, unique per generator
+ * </pre>
+ *
+ * <p>Each thread takes a block of sequence numbers at a time from a shared counter and hands them
+ * out without any further coordination, so issuing an id is lock-free and mostly contention
+ * free, and no randomness is needed after the node is picked. Ids issued by the same thread are
+ * in increasing order, even if the clock goes back.
+ *
+ * <p>The sequence starts again from 0 when the process restarts, so ids stay unique across
+ * restarts through the timestamp, and across processes issuing ids at the same time, e.g. several
+ * processes sharing a file queue, through the node.
+ */
+public class SnowflakeIdGenerator implements IdGenerator {
+    // Constants
+    private static final int SEQUENCE_BITS = 40;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    private static final int NODE_BITS = 24;
+    protected static final int MAX_NODE = (1 << NODE_BITS) - 1;
+    private static final int SEQUENCE_BLOCK = 1024; // sequence numbers a thread takes at a time
+
+    // Fields
+    private final long node;
+    private final AtomicLong sequence = new AtomicLong(); // start of the next unclaimed block
+    private final ThreadLocal<Block> blocks = ThreadLocal.withInitial(Block::new);
+
+    public SnowflakeIdGenerator() {
+        this(new SecureRandom().nextInt(MAX_NODE + 1));
+    }
+
+    /**
+     * @param node identifies this generator among the generators that may issue ids at the same
+     *             time, e.g. one per host
+     * @throws IllegalArgumentException if the node is not between 0 and 2^24 - 1
+     */
+    public SnowflakeIdGenerator(int node) {
+        checkArgument(node >= 0 && node <= MAX_NODE, "Node must be between 0 and " + MAX_NODE);
+        this.node = (long) node << SEQUENCE_BITS;
+    }
+
+    @Override
+    public QueueId nextId() {
+        Block block = blocks.get();
+        if (block.next == block.end) {
+            block.next = sequence.getAndAdd(SEQUENCE_BLOCK);
+            block.end = block.next + SEQUENCE_BLOCK;
+        }
+        block.lastMillis = Math.max(block.lastMillis, QueueServiceUtil.now()); // never goes back for a thread
+        return new QueueId(block.lastMillis, node | (block.next++ & SEQUENCE_MASK));
+    }
+
+    /**
+     * The sequence numbers a thread has claimed and not yet used.
+     */
+    private static class Block {
+        private long next;
+        private long end;
+        private long lastMillis;
+    }
+}
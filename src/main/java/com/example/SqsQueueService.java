@@ -1,24 +1,54 @@
 package com.example;
 
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.sqs.AmazonSQSAsyncClient;
 import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResultEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityRequest;
 import com.amazonaws.services.sqs.model.CreateQueueRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResultEntry;
 import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageResult;
 import com.amazonaws.services.sqs.model.DeleteQueueRequest;
+import com.amazonaws.services.sqs.model.GetQueueAttributesResult;
 import com.amazonaws.services.sqs.model.InvalidMessageContentsException;
 import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageNotInflightException;
 import com.amazonaws.services.sqs.model.QueueDeletedRecentlyException;
 import com.amazonaws.services.sqs.model.QueueDoesNotExistException;
 import com.amazonaws.services.sqs.model.QueueNameExistsException;
+import com.amazonaws.services.sqs.model.ReceiptHandleIsInvalidException;
 import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchResultEntry;
 import com.amazonaws.services.sqs.model.SendMessageRequest;
 import com.amazonaws.services.sqs.model.SendMessageResult;
+import com.amazonaws.services.sqs.model.SetQueueAttributesRequest;
 import com.amazonaws.services.sqs.model.UnsupportedOperationException;
 
+import static com.example.QueueServiceUtil.*;
+
+import static com.google.common.base.Preconditions.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 public class SqsQueueService implements QueueService {
   //
@@ -31,16 +61,31 @@ public class SqsQueueService implements QueueService {
 
     // CONSTANTS
     private static long VISIBILITY_TIMEOUT_EMPTY;
+    private static final String ASYNC_CLIENT_REQUIRED = "Async methods need the service to be created with an async client";
+    private static final String PER_MESSAGE_DELAY_UNSUPPORTED = "FIFO queues take no delay per message, use setQueueDelay instead";
+    private static final int MAX_BATCH_ENTRIES = 10;
+    private static final int MAX_BATCH_BYTES = 256 * 1024;
+    private static final String RECEIVE_COUNT_ATTRIBUTE = "ApproximateReceiveCount";
+    private static final String GROUP_ID_ATTRIBUTE = "MessageGroupId";
 
     // Fields
     private AmazonSQSClient sqs;
-    private String groupId;
+    private AmazonSQSAsyncClient sqsAsync; // null if the async methods are not supported
+    private String groupId; // of messages pushed without one
 
     public SqsQueueService(AmazonSQSClient sqsClient, String groupId) {
         this.sqs = sqsClient;
         this.groupId = groupId;
     }
 
+    /**
+     * Supports the async methods as well, which go through the async client's own I/O.
+     */
+    public SqsQueueService(AmazonSQSAsyncClient sqsClient, String groupId) {
+        this((AmazonSQSClient) sqsClient, groupId);
+        this.sqsAsync = sqsClient;
+    }
+
     @Override
     public String createQueue(String queueName) {
         // Create a FIFO queue
@@ -102,12 +147,123 @@ public class SqsQueueService implements QueueService {
         return new QueueMessage(message, sendMessageResult.getMessageId());
     }
 
+    /**
+     * Not supported. SQS only takes a delay per message on standard queues, and the queues
+     * {@link #createQueue(String)} makes are FIFO queues, which reject it. Use
+     * {@link #setQueueDelay(String, long)} instead.
+     *
+     * @throws java.lang.UnsupportedOperationException always, once the delay is checked
+     */
+    @Override
+    public QueueMessage push(String queueUrl, String message, long delayMillis) {
+        checkDelay(delayMillis);
+
+        throw new java.lang.UnsupportedOperationException(PER_MESSAGE_DELAY_UNSUPPORTED);
+    }
+
+    /**
+     * Sends the message with its own MessageGroupId rather than the service's, so that SQS
+     * delivers the messages of different groups in parallel.
+     */
+    @Override
+    public QueueMessage push(String queueUrl, String message, String groupId) {
+        checkGroupId(groupId);
+
+        // Send a message
+        SendMessageRequest sendMessageRequest = new SendMessageRequest(queueUrl, message);
+        // Messages of the group are delivered in order, one group blocks no other
+        sendMessageRequest.setMessageGroupId(groupId);
+        // Send message
+        SendMessageResult sendMessageResult;
+        try {
+            sendMessageResult = sqs.sendMessage(sendMessageRequest);
+        } catch (InvalidMessageContentsException e) {
+            throw new IllegalArgumentException(e);
+        } catch (UnsupportedOperationException e) {
+            throw new java.lang.UnsupportedOperationException("Unexpected error in SqsQueueService method push", e);
+        }
+        // If successful, return message id
+        return new QueueMessage(message, QueueId.fromString(checkMessageId(sendMessageResult.getMessageId())), groupId);
+    }
+
+    /**
+     * Sets the queue's DelaySeconds attribute, rounded up to whole seconds.
+     */
+    @Override
+    public void setQueueDelay(String queueUrl, long delayMillis) {
+        checkDelay(delayMillis);
+
+        Map<String, String> attributes = new HashMap<String, String>();
+        // The length of time, in seconds, for which the delivery of all messages in the queue is delayed
+        attributes.put("DelaySeconds", Integer.toString(toSeconds(delayMillis)));
+        try {
+            sqs.setQueueAttributes(new SetQueueAttributesRequest(queueUrl, attributes));
+        } catch (QueueDoesNotExistException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Sets the queue's RedrivePolicy attribute to the dead letter queue's ARN, as looked up with
+     * GetQueueAttributes, and the maximum receive count. SQS needs the dead letter queue of a
+     * FIFO queue to be a FIFO queue too.
+     */
+    @Override
+    public void setRedrivePolicy(String queueUrl, String deadLetterQueueUrl, int maxReceiveCount) {
+        checkQueueUrl(queueUrl);
+        checkQueueUrl(deadLetterQueueUrl);
+        checkMaxReceiveCount(maxReceiveCount);
+        checkArgument(!queueUrl.equals(deadLetterQueueUrl), DEAD_LETTER_QUEUE_CANNOT_BE_THE_QUEUE);
+
+        Map<String, String> attributes = new HashMap<String, String>();
+        try {
+            // The redrive policy refers to the dead letter queue by its ARN rather than its URL
+            GetQueueAttributesResult deadLetterQueueAttributes = sqs.getQueueAttributes(deadLetterQueueUrl, Collections.singletonList("QueueArn"));
+            // Messages received more than maxReceiveCount times are moved to the dead letter queue
+            attributes.put("RedrivePolicy", "{\"maxReceiveCount\":\"" + maxReceiveCount + "\","
+                    + "\"deadLetterTargetArn\":\"" + deadLetterQueueAttributes.getAttributes().get("QueueArn") + "\"}");
+            sqs.setQueueAttributes(new SetQueueAttributesRequest(queueUrl, attributes));
+        } catch (QueueDoesNotExistException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Sends the batch as SendMessageBatch requests of up to 10 messages and 256KB each. A message
+     * SQS fails to send comes back as an empty message.
+     */
+    @Override
+    public List<QueueMessage> pushBatch(String queueUrl, List<String> messages) {
+        checkMessageBodies(messages);
+
+        List<QueueMessage> pushMessages = new ArrayList<>(messages.size());
+        List<SendMessageBatchRequestEntry> entries = new ArrayList<>(MAX_BATCH_ENTRIES);
+        int batchBytes = 0;
+        for (int i = 0; i < messages.size(); i++) {
+            int messageBytes = messages.get(i).getBytes(StandardCharsets.UTF_8).length;
+            if (entries.size() == MAX_BATCH_ENTRIES || (!entries.isEmpty() && batchBytes + messageBytes > MAX_BATCH_BYTES)) {
+                sendMessageBatch(queueUrl, entries, messages, pushMessages);
+                entries.clear();
+                batchBytes = 0;
+            }
+            // Entry ids only need to be unique within the request, the index maps the result back
+            // You must provide a non-empty MessageGroupId when sending messages to a FIFO queue
+            entries.add(new SendMessageBatchRequestEntry(Integer.toString(i), messages.get(i)).withMessageGroupId(groupId));
+            batchBytes += messageBytes;
+        }
+        sendMessageBatch(queueUrl, entries, messages, pushMessages);
+
+        return pushMessages;
+    }
+
     @Override
     public QueueMessage pull(String queueUrl) {
         // Receive messages
         ReceiveMessageRequest receiveMessageRequest = new ReceiveMessageRequest(queueUrl);
         // Set messages to fetch to 1
         receiveMessageRequest.setMaxNumberOfMessages(1);
+        // Count how many times the message has been received
+        receiveMessageRequest.withAttributeNames(RECEIVE_COUNT_ATTRIBUTE, GROUP_ID_ATTRIBUTE);
         // Receive message
         List<Message> messages = sqs.receiveMessage(receiveMessageRequest).getMessages();
 
@@ -120,7 +276,7 @@ public class SqsQueueService implements QueueService {
         QueueMessage result = new QueueMessage();
 
         for (Message message : messages) {
-            return new QueueMessage(message.getBody(), message.getMessageId(), message.getReceiptHandle());
+            return toQueueMessage(message);
         }
 
         return result;
@@ -132,4 +288,236 @@ public class SqsQueueService implements QueueService {
         sqs.deleteMessage(new DeleteMessageRequest(queueUrl, receiptId));
         return true; // see notes
     }
+
+    /**
+     * Receives up to the specified number of messages with a single ReceiveMessage request.
+     */
+    @Override
+    public List<QueueMessage> pull(String queueUrl, int maxMessages) {
+        checkMaxMessages(maxMessages);
+
+        // Receive messages
+        ReceiveMessageRequest receiveMessageRequest = new ReceiveMessageRequest(queueUrl);
+        // SQS returns at most 10 messages per request
+        receiveMessageRequest.setMaxNumberOfMessages(maxMessages);
+        // Count how many times each message has been received
+        receiveMessageRequest.withAttributeNames(RECEIVE_COUNT_ATTRIBUTE, GROUP_ID_ATTRIBUTE);
+        // Receive messages
+        return toQueueMessages(sqs.receiveMessage(receiveMessageRequest).getMessages());
+    }
+
+    /**
+     * Receives with the visibility timeout set on the ReceiveMessage request, rounded up to
+     * whole seconds.
+     */
+    @Override
+    public List<QueueMessage> pull(String queueUrl, int maxMessages, long visibilityTimeoutMillis) {
+        checkMaxMessages(maxMessages);
+        checkVisibilityTimeout(visibilityTimeoutMillis);
+
+        // Receive messages
+        ReceiveMessageRequest receiveMessageRequest = new ReceiveMessageRequest(queueUrl);
+        // SQS returns at most 10 messages per request
+        receiveMessageRequest.setMaxNumberOfMessages(maxMessages);
+        // Override the queue's visibility timeout for these messages
+        receiveMessageRequest.setVisibilityTimeout(toSeconds(visibilityTimeoutMillis));
+        // Count how many times each message has been received
+        receiveMessageRequest.withAttributeNames(RECEIVE_COUNT_ATTRIBUTE, GROUP_ID_ATTRIBUTE);
+        // Receive messages
+        return toQueueMessages(sqs.receiveMessage(receiveMessageRequest).getMessages());
+    }
+
+    /**
+     * Changes the visibility timeout with a ChangeMessageVisibility request, rounded up to whole
+     * seconds.
+     */
+    @Override
+    public boolean changeVisibility(String queueUrl, String receiptId, long visibilityTimeoutMillis) {
+        checkVisibilityTimeout(visibilityTimeoutMillis);
+
+        try {
+            // Change the visibility timeout
+            sqs.changeMessageVisibility(new ChangeMessageVisibilityRequest(queueUrl, receiptId, toSeconds(visibilityTimeoutMillis)));
+        } catch (MessageNotInflightException | ReceiptHandleIsInvalidException e) {
+            return false; // deleted, timed out or never pulled
+        }
+        return true;
+    }
+
+    /**
+     * Changes the batch with ChangeMessageVisibilityBatch requests of up to 10 messages each.
+     */
+    @Override
+    public List<Boolean> changeVisibilityBatch(String queueUrl, List<String> receiptIds, long visibilityTimeoutMillis) {
+        checkReceiptIds(receiptIds);
+        checkVisibilityTimeout(visibilityTimeoutMillis);
+
+        List<Boolean> changed = new ArrayList<>(Collections.nCopies(receiptIds.size(), false));
+        for (int from = 0; from < receiptIds.size(); from += MAX_BATCH_ENTRIES) {
+            List<ChangeMessageVisibilityBatchRequestEntry> entries = new ArrayList<>(MAX_BATCH_ENTRIES);
+            for (int i = from; i < Math.min(from + MAX_BATCH_ENTRIES, receiptIds.size()); i++) {
+                entries.add(new ChangeMessageVisibilityBatchRequestEntry(Integer.toString(i), receiptIds.get(i))
+                        .withVisibilityTimeout(toSeconds(visibilityTimeoutMillis)));
+            }
+            // Change the visibility timeouts
+            ChangeMessageVisibilityBatchResult result = sqs.changeMessageVisibilityBatch(new ChangeMessageVisibilityBatchRequest(queueUrl, entries));
+            for (ChangeMessageVisibilityBatchResultEntry entry : result.getSuccessful()) {
+                changed.set(Integer.parseInt(entry.getId()), true);
+            }
+        }
+
+        return changed;
+    }
+
+    /**
+     * Deletes the batch with DeleteMessageBatch requests of up to 10 messages each.
+     */
+    @Override
+    public List<Boolean> deleteBatch(String queueUrl, List<String> receiptIds) {
+        checkReceiptIds(receiptIds);
+
+        List<Boolean> deleted = new ArrayList<>(Collections.nCopies(receiptIds.size(), false));
+        for (int from = 0; from < receiptIds.size(); from += MAX_BATCH_ENTRIES) {
+            List<DeleteMessageBatchRequestEntry> entries = new ArrayList<>(MAX_BATCH_ENTRIES);
+            for (int i = from; i < Math.min(from + MAX_BATCH_ENTRIES, receiptIds.size()); i++) {
+                entries.add(new DeleteMessageBatchRequestEntry(Integer.toString(i), receiptIds.get(i)));
+            }
+            // Delete the messages
+            DeleteMessageBatchResult result = sqs.deleteMessageBatch(new DeleteMessageBatchRequest(queueUrl, entries));
+            for (DeleteMessageBatchResultEntry entry : result.getSuccessful()) {
+                deleted.set(Integer.parseInt(entry.getId()), true);
+            }
+        }
+
+        return deleted;
+    }
+
+    @Override
+    public CompletableFuture<QueueMessage> pushAsync(String queueUrl, String message) {
+        if (sqsAsync == null) {
+            return failedFuture(new java.lang.UnsupportedOperationException(ASYNC_CLIENT_REQUIRED));
+        }
+        // Send a message
+        SendMessageRequest sendMessageRequest = new SendMessageRequest(queueUrl, message);
+        // You must provide a non-empty MessageGroupId when sending messages to a FIFO queue
+        sendMessageRequest.setMessageGroupId(groupId);
+        // Send message
+        CompletableFuture<SendMessageResult> result = new CompletableFuture<>();
+        sqsAsync.sendMessageAsync(sendMessageRequest, toHandler(result));
+        // If successful, return message id
+        return result.thenApply(sendMessageResult -> new QueueMessage(message, sendMessageResult.getMessageId()));
+    }
+
+    @Override
+    public CompletableFuture<QueueMessage> pullAsync(String queueUrl) {
+        if (sqsAsync == null) {
+            return failedFuture(new java.lang.UnsupportedOperationException(ASYNC_CLIENT_REQUIRED));
+        }
+        // Receive messages
+        ReceiveMessageRequest receiveMessageRequest = new ReceiveMessageRequest(queueUrl);
+        // Set messages to fetch to 1
+        receiveMessageRequest.setMaxNumberOfMessages(1);
+        // Count how many times the message has been received
+        receiveMessageRequest.withAttributeNames(RECEIVE_COUNT_ATTRIBUTE, GROUP_ID_ATTRIBUTE);
+        // Receive message
+        CompletableFuture<ReceiveMessageResult> result = new CompletableFuture<>();
+        sqsAsync.receiveMessageAsync(receiveMessageRequest, toHandler(result));
+
+        return result.thenApply(receiveMessageResult -> {
+            List<Message> messages = receiveMessageResult.getMessages();
+            if (messages.size() == 0) {
+                return new QueueMessage(); // empty message
+            } else if (messages.size() > 1) {
+                throw new IllegalStateException("Requested 1 message from SQS but received " + messages.size());
+            }
+            return toQueueMessage(messages.get(0));
+        });
+    }
+
+    @Override
+    public CompletableFuture<Boolean> deleteMessageAsync(String queueUrl, String receiptId) {
+        if (sqsAsync == null) {
+            return failedFuture(new java.lang.UnsupportedOperationException(ASYNC_CLIENT_REQUIRED));
+        }
+        // Delete the message
+        CompletableFuture<DeleteMessageResult> result = new CompletableFuture<>();
+        sqsAsync.deleteMessageAsync(new DeleteMessageRequest(queueUrl, receiptId), toHandler(result));
+        return result.thenApply(deleteMessageResult -> true); // see notes
+    }
+
+    // Private methods
+
+    private static List<QueueMessage> toQueueMessages(List<Message> messages) {
+        List<QueueMessage> pulledMessages = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            pulledMessages.add(toQueueMessage(message));
+        }
+
+        return pulledMessages;
+    }
+
+    /**
+     * @return the received message, with its receive count and group if SQS returned them
+     */
+    private static QueueMessage toQueueMessage(Message message) {
+        String receiveCount = (message.getAttributes() == null) ? null : message.getAttributes().get(RECEIVE_COUNT_ATTRIBUTE);
+        String groupId = (message.getAttributes() == null) ? null : message.getAttributes().get(GROUP_ID_ATTRIBUTE);
+        return new QueueMessage(message.getBody(), message.getMessageId(), message.getReceiptHandle(),
+                (receiveCount == null) ? 0 : Integer.parseInt(receiveCount), groupId);
+    }
+
+    /**
+     * @return the specified milliseconds as whole seconds, rounded up, since SQS timeouts are in
+     *         seconds
+     */
+    private static int toSeconds(long millis) {
+        return (int) ((millis + 999) / 1000);
+    }
+
+    /**
+     * @return a handler that completes the specified future with the result of an async
+     *         request, mapping errors as the synchronous methods do
+     */
+    private static <REQUEST extends AmazonWebServiceRequest, RESULT> AsyncHandler<REQUEST, RESULT> toHandler(CompletableFuture<RESULT> future) {
+        return new AsyncHandler<REQUEST, RESULT>() {
+            @Override
+            public void onError(Exception e) {
+                if (e instanceof InvalidMessageContentsException) {
+                    future.completeExceptionally(new IllegalArgumentException(e));
+                } else if (e instanceof QueueDoesNotExistException) {
+                    future.completeExceptionally(new IllegalStateException(e));
+                } else {
+                    future.completeExceptionally(e);
+                }
+            }
+
+            @Override
+            public void onSuccess(REQUEST request, RESULT result) {
+                future.complete(result);
+            }
+        };
+    }
+
+    private void sendMessageBatch(String queueUrl, List<SendMessageBatchRequestEntry> entries, List<String> messages, List<QueueMessage> pushMessages) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        // Send messages
+        SendMessageBatchResult result;
+        try {
+            result = sqs.sendMessageBatch(new SendMessageBatchRequest(queueUrl, entries));
+        } catch (UnsupportedOperationException e) {
+            throw new java.lang.UnsupportedOperationException("Unexpected error in SqsQueueService method pushBatch", e);
+        }
+        Map<String, String> messageIds = new HashMap<>(); // entry id > message id
+        for (SendMessageBatchResultEntry entry : result.getSuccessful()) {
+            messageIds.put(entry.getId(), entry.getMessageId());
+        }
+        for (SendMessageBatchRequestEntry entry : entries) {
+            String messageId = messageIds.get(entry.getId());
+            pushMessages.add(messageId == null
+                    ? new QueueMessage() // failed, see the result's failed entries
+                    : new QueueMessage(messages.get(Integer.parseInt(entry.getId())), messageId));
+        }
+    }
 }
@@ -0,0 +1,279 @@
+package com.example;
+
+import static com.google.common.base.Preconditions.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel, for expiring large numbers of timeouts at a fixed tick.
+ *
+ * <p>The first wheel is a ring of buckets, one per tick. A timeout is linked into the bucket of
+ * the first tick at or after its deadline, so scheduling and cancelling are O(1). Each call to
+ * {@link #advance(long)} visits the buckets of the ticks that have gone by since the last call
+ * and unlinks the timeouts that are due. A timeout further away than the rest of the first
+ * wheel's turn goes into a coarser wheel, whose buckets each span a whole turn of the wheel
+ * below, and so on up. When the first wheel starts a turn, the coarser bucket for that turn is
+ * moved down into it, so a timeout is only touched once per wheel on its way down, however far
+ * away it is. Coarser wheels are only added once a timeout needs them. Timeouts expire at most
+ * one tick late, and timeouts that fall due in the same tick expire in the order they were
+ * scheduled.
+ *
+ * <p>Thread safe, every method synchronizes on the wheel. Callers may also synchronize on the
+ * wheel to keep their own bookkeeping in step with it.
+ *
+ * @param <T> the item each timeout carries
+ */
+public class TimingWheel<T> {
+    // Fields
+    private final long tickMillis;
+    private final int mask; // ticks per wheel - 1
+    private final int bits; // log2 ticks per wheel
+    private final List<List<Timeout>> heads; // wheel > bucket > first timeout
+    private final List<List<Timeout>> tails; // wheel > bucket > last timeout
+    private long currentTick; // the next tick to be visited
+    private int size;
+
+    /**
+     * @param tickMillis how often the wheel is advanced, the most a timeout can expire late by
+     * @param ticksPerWheel the number of buckets in each wheel, rounded up to a power of 2 of at
+     *                      least 2
+     * @param nowMillis the time the wheel starts turning from
+     * @throws IllegalArgumentException if the tick or number of buckets are not positive
+     */
+    public TimingWheel(long tickMillis, int ticksPerWheel, long nowMillis) {
+        checkArgument(tickMillis > 0, "Tick must be a positive number");
+        checkArgument(ticksPerWheel > 0 && ticksPerWheel <= (1 << 30), "Ticks per wheel must be between 1 and 2^30");
+        int buckets = Integer.highestOneBit(ticksPerWheel - 1) << 1;
+        buckets = Math.max(buckets, 2);
+        this.tickMillis = tickMillis;
+        this.mask = buckets - 1;
+        this.bits = Integer.numberOfTrailingZeros(buckets);
+        this.heads = new ArrayList<>();
+        this.tails = new ArrayList<>();
+        this.currentTick = nowMillis / tickMillis;
+    }
+
+    /**
+     * @param deadlineMillis when the item is due, a deadline that has already passed is due at
+     *                       the next tick
+     * @return a handle for cancelling the timeout
+     */
+    public synchronized Timeout schedule(T item, long deadlineMillis) {
+        Timeout timeout = new Timeout(item, deadlineMillis, tickOf(deadlineMillis));
+        link(timeout);
+        size++;
+        return timeout;
+    }
+
+    /**
+     * Moves a timeout to a new deadline, O(1) like scheduling it.
+     *
+     * @param deadlineMillis when the item is now due, earlier or later than before
+     * @return false if the timeout has already expired or been cancelled
+     */
+    public synchronized boolean reschedule(Timeout timeout, long deadlineMillis) {
+        if (!timeout.scheduled) {
+            return false;
+        }
+        unlink(timeout);
+        timeout.deadlineMillis = deadlineMillis;
+        timeout.tick = tickOf(deadlineMillis);
+        link(timeout);
+        return true;
+    }
+
+    /**
+     * Turns the wheel up to the specified time.
+     *
+     * @return the timeouts that have fallen due, in tick order, or an empty list if none have
+     */
+    public synchronized List<Timeout> advance(long nowMillis) {
+        long nowTick = nowMillis / tickMillis;
+        if (nowTick < currentTick) {
+            return Collections.emptyList();
+        }
+
+        List<Timeout> expired = Collections.emptyList();
+        for (long tick = currentTick; tick <= nowTick && size > 0; tick++) { // every tick, so no turn of a coarser wheel is missed
+            Timeout timeout = heads.get(0).get(bucketOf(tick, 0));
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                unlink(timeout);
+                timeout.scheduled = false;
+                size--;
+                if (expired.isEmpty()) {
+                    expired = new ArrayList<>();
+                }
+                expired.add(timeout);
+                timeout = next;
+            }
+            currentTick = tick + 1;
+            for (int wheel = heads.size() - 1; wheel > 0; wheel--) { // coarsest first, each moves down into the wheel below
+                if ((currentTick & ((1L << (wheel * bits)) - 1)) == 0) { // the wheel below starts a turn, move its timeouts before any more are scheduled
+                    cascade(wheel, bucketOf(currentTick, wheel));
+                }
+            }
+        }
+        currentTick = nowTick + 1;
+        return expired;
+    }
+
+    /**
+     * Cancels every timeout still scheduled.
+     *
+     * @return the timeouts that were cancelled, in no particular order
+     */
+    public synchronized List<Timeout> clear() {
+        List<Timeout> cleared = new ArrayList<>(size);
+        for (List<Timeout> wheelHeads : heads) {
+            for (int bucket = 0; bucket < wheelHeads.size(); bucket++) {
+                for (Timeout timeout = wheelHeads.get(bucket); timeout != null; timeout = timeout.next) {
+                    timeout.scheduled = false;
+                    cleared.add(timeout);
+                }
+            }
+        }
+        heads.clear();
+        tails.clear();
+        size = 0;
+        return cleared;
+    }
+
+    /**
+     * @return the number of timeouts scheduled and not yet expired or cancelled
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    // Private methods
+
+    /**
+     * @return the first tick at or after the deadline, or the next tick if it has passed
+     */
+    private long tickOf(long deadlineMillis) {
+        return Math.max((deadlineMillis + tickMillis - 1) / tickMillis, currentTick);
+    }
+
+    /**
+     * @return the finest wheel whose current turn the tick falls in, the first wheel if it is
+     *         in the first wheel's current turn
+     */
+    private int wheelOf(long tick) {
+        int wheel = 0;
+        while (turnOf(tick, wheel) != turnOf(currentTick, wheel)) {
+            wheel++;
+        }
+        return wheel;
+    }
+
+    private long turnOf(long tick, int wheel) {
+        int shift = (wheel + 1) * bits;
+        return (shift >= Long.SIZE - 1) ? 0 : tick >> shift;
+    }
+
+    private int bucketOf(long tick, int wheel) {
+        int shift = wheel * bits;
+        return (shift >= Long.SIZE - 1) ? 0 : (int) ((tick >> shift) & mask);
+    }
+
+    /**
+     * Moves the timeouts in a bucket of a coarser wheel down into the finer wheels, in order.
+     */
+    private void cascade(int wheel, int bucket) {
+        Timeout timeout = heads.get(wheel).get(bucket);
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            unlink(timeout);
+            link(timeout);
+            timeout = next;
+        }
+    }
+
+    private void link(Timeout timeout) {
+        timeout.wheel = wheelOf(timeout.tick);
+        while (heads.size() <= timeout.wheel) { // the first timeout this far away
+            heads.add(new ArrayList<>(Collections.nCopies(mask + 1, (Timeout) null)));
+            tails.add(new ArrayList<>(Collections.nCopies(mask + 1, (Timeout) null)));
+        }
+        List<Timeout> wheelHeads = heads.get(timeout.wheel);
+        List<Timeout> wheelTails = tails.get(timeout.wheel);
+        int bucket = bucketOf(timeout.tick, timeout.wheel);
+        timeout.prev = wheelTails.get(bucket);
+        if (timeout.prev == null) {
+            wheelHeads.set(bucket, timeout);
+        } else {
+            timeout.prev.next = timeout;
+        }
+        wheelTails.set(bucket, timeout);
+        timeout.scheduled = true;
+    }
+
+    private void unlink(Timeout timeout) {
+        List<Timeout> wheelHeads = heads.get(timeout.wheel);
+        List<Timeout> wheelTails = tails.get(timeout.wheel);
+        int bucket = bucketOf(timeout.tick, timeout.wheel);
+        if (timeout.prev == null) {
+            wheelHeads.set(bucket, timeout.next);
+        } else {
+            timeout.prev.next = timeout.next;
+        }
+        if (timeout.next == null) {
+            wheelTails.set(bucket, timeout.prev);
+        } else {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+    }
+
+    /**
+     * A scheduled item, linked into the bucket of the tick it is due in the finest wheel that
+     * reaches it.
+     */
+    public class Timeout {
+        private final T item;
+        private long deadlineMillis;
+        private long tick;
+        private int wheel;
+        private Timeout prev;
+        private Timeout next;
+        private boolean scheduled; // false once expired or cancelled
+
+        private Timeout(T item, long deadlineMillis, long tick) {
+            this.item = item;
+            this.deadlineMillis = deadlineMillis;
+            this.tick = tick;
+        }
+
+        public T item() {
+            return item;
+        }
+
+        /**
+         * @return when the item is due, as last scheduled
+         */
+        public long getDeadline() {
+            synchronized (TimingWheel.this) {
+                return deadlineMillis;
+            }
+        }
+
+        /**
+         * @return true if cancelled, false if it has already expired or been cancelled
+         */
+        public boolean cancel() {
+            synchronized (TimingWheel.this) {
+                if (!scheduled) {
+                    return false;
+                }
+                unlink(this);
+                scheduled = false;
+                size--;
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.example;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class FileQueueRecordTest {
+    private static final String MESSAGE_BODY_1 = "{\"message\":\"My message 1\",...}";
+    private static final String MESSAGE_ID_1 = "5fea7756-0ea4-451a-a703-a558b933e274";
+    private static final String RECEIPT_ID_1 = "614c58b8-c319-4137-a1da-eb0b75fa19a2";
+    private static final long VISIBILITY_TIMEOUT_FROM = 1488253482146L;
+    private static final long POSITION = (3L << 32) | 4096L;
+
+    private ByteBuffer encodePull() {
+        return FileQueueRecord.encode(FileQueueRecord.PULL, VISIBILITY_TIMEOUT_FROM,
+                FileQueueRecord.idHigh(MESSAGE_ID_1), FileQueueRecord.idLow(MESSAGE_ID_1),
+                FileQueueRecord.idHigh(RECEIPT_ID_1), FileQueueRecord.idLow(RECEIPT_ID_1),
+                POSITION,
+                MESSAGE_BODY_1.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Method: static ByteBuffer encode(...)
+
+    @Test
+    public void encoded_record_decodes_to_the_same_fields() {
+        // Given an encoded record
+        ByteBuffer encoded = encodePull();
+
+        // When decoded
+        FileQueueRecord actual = new FileQueueRecord().wrap(encoded, 0);
+
+        // Then every field matches
+        Assert.assertEquals("Record is whole and intact", encoded.limit(), actual.check(encoded.limit()));
+        Assert.assertEquals("Record type", FileQueueRecord.PULL, actual.getRecordType());
+        Assert.assertEquals("Visibility timeout from", VISIBILITY_TIMEOUT_FROM, actual.getVisibilityTimeoutFrom());
+        Assert.assertEquals("Message ID", MESSAGE_ID_1, actual.getMessageId());
+        Assert.assertEquals("Receipt ID", RECEIPT_ID_1, FileQueueRecord.toId(actual.getReceiptIdHigh(), actual.getReceiptIdLow()));
+        Assert.assertEquals("Position", POSITION, actual.getPosition());
+        Assert.assertEquals("Message body", MESSAGE_BODY_1, actual.getMessageBody());
+    }
+
+    @Test
+    public void receive_count_decodes_to_the_same_count() {
+        // Given a pull record encoded with a receive count
+        ByteBuffer encoded = FileQueueRecord.encode(FileQueueRecord.PULL, VISIBILITY_TIMEOUT_FROM,
+                FileQueueRecord.idHigh(MESSAGE_ID_1), FileQueueRecord.idLow(MESSAGE_ID_1),
+                FileQueueRecord.idHigh(RECEIPT_ID_1), FileQueueRecord.idLow(RECEIPT_ID_1),
+                POSITION, 40000,
+                new byte[0]);
+
+        // When decoded
+        FileQueueRecord actual = new FileQueueRecord().wrap(encoded, 0);
+
+        // Then the count is read back unsigned, and the record is intact
+        Assert.assertEquals("Record is whole and intact", encoded.limit(), actual.check(encoded.limit()));
+        Assert.assertEquals("Receive count", 40000, actual.getReceiveCount());
+        Assert.assertEquals("Receive count of a record encoded without one", 0, new FileQueueRecord().wrap(encodePull(), 0).getReceiveCount());
+    }
+
+    @Test
+    public void group_id_decodes_to_the_same_group_id_and_leaves_the_body_alone() {
+        // Given a push record encoded with a group id
+        ByteBuffer encoded = FileQueueRecord.encode(FileQueueRecord.PUSH, 0,
+                FileQueueRecord.idHigh(MESSAGE_ID_1), FileQueueRecord.idLow(MESSAGE_ID_1),
+                0, 0,
+                0,
+                "MyGroup".getBytes(StandardCharsets.UTF_8),
+                ByteBuffer.wrap(MESSAGE_BODY_1.getBytes(StandardCharsets.UTF_8)));
+
+        // When decoded
+        FileQueueRecord actual = new FileQueueRecord().wrap(encoded, 0);
+
+        // Then the group id and body are read back separately, and the record is intact
+        Assert.assertEquals("Record is whole and intact", encoded.limit(), actual.check(encoded.limit()));
+        Assert.assertEquals("Group id", "MyGroup", actual.getGroupId());
+        Assert.assertEquals("Message body", MESSAGE_BODY_1, actual.getMessageBody());
+        Assert.assertEquals("Group id of a push encoded without one", null, new FileQueueRecord().wrap(FileQueueRecord.encode(FileQueueRecord.PUSH, 0,
+                FileQueueRecord.idHigh(MESSAGE_ID_1), FileQueueRecord.idLow(MESSAGE_ID_1),
+                0, 0,
+                0,
+                MESSAGE_BODY_1.getBytes(StandardCharsets.UTF_8)), 0).getGroupId());
+    }
+
+    @Test
+    public void record_can_be_decoded_at_an_offset_within_a_buffer() {
+        // Given a buffer holding two records back to back
+        ByteBuffer first = encodePull();
+        ByteBuffer buffer = ByteBuffer.allocate(first.limit() * 2);
+        buffer.put(first);
+        buffer.put(encodePull());
+        buffer.flip();
+
+        // When decode the second
+        FileQueueRecord actual = new FileQueueRecord().wrap(buffer, first.limit());
+
+        // Then it is whole and intact
+        Assert.assertEquals("Second record is whole and intact", first.limit(), actual.check(buffer.limit()));
+        Assert.assertEquals("Message body", MESSAGE_BODY_1, actual.getMessageBody());
+    }
+
+    // Method: ByteBuffer getMessageBodyBuffer()
+
+    @Test
+    public void message_body_buffer_is_a_read_only_view_of_the_record() {
+        // Given a buffer holding two records back to back
+        ByteBuffer first = encodePull();
+        ByteBuffer buffer = ByteBuffer.allocate(first.limit() * 2);
+        buffer.put(first);
+        buffer.put(encodePull());
+        buffer.flip();
+
+        // When take the body of the second
+        ByteBuffer actual = new FileQueueRecord().wrap(buffer, first.limit()).getMessageBodyBuffer();
+
+        // Then it is a read only view of just the body, not a copy
+        Assert.assertEquals("Body buffer is read only", true, actual.isReadOnly());
+        Assert.assertEquals("Body buffer contents", ByteBuffer.wrap(MESSAGE_BODY_1.getBytes(StandardCharsets.UTF_8)), actual);
+        buffer.put(buffer.limit() - 1, (byte) '!');
+        Assert.assertEquals("Body buffer shares the record buffer", (byte) '!', actual.get(actual.limit() - 1));
+    }
+
+    // Method: int check(int limit)
+
+    @Test
+    public void damaged_record_is_detected() {
+        // Given an encoded record with a byte of the body flipped
+        ByteBuffer encoded = encodePull();
+        int lastByte = encoded.limit() - 1;
+        encoded.put(lastByte, (byte) (encoded.get(lastByte) ^ 0x01));
+
+        // When checked
+        int actual = new FileQueueRecord().wrap(encoded, 0).check(encoded.limit());
+
+        // Then corrupt
+        Assert.assertEquals("Damaged record fails the CRC check", FileQueueRecord.CORRUPT, actual);
+    }
+
+    @Test
+    public void torn_record_is_detected() {
+        // Given only part of an encoded record
+        ByteBuffer encoded = encodePull();
+
+        // When checked against a limit before its end
+        int actual = new FileQueueRecord().wrap(encoded, 0).check(encoded.limit() - 1);
+
+        // Then incomplete
+        Assert.assertEquals("Torn record is incomplete", FileQueueRecord.INCOMPLETE, actual);
+    }
+
+    @Test
+    public void torn_header_is_detected() {
+        // Given less than a header
+        ByteBuffer encoded = encodePull();
+
+        // When checked against a limit within the header
+        int actual = new FileQueueRecord().wrap(encoded, 0).check(FileQueueRecord.HEADER_SIZE - 1);
+
+        // Then incomplete
+        Assert.assertEquals("Torn header is incomplete", FileQueueRecord.INCOMPLETE, actual);
+    }
+
+    // Method: static int crc32c(ByteBuffer buffer, int from, int to)
+
+    @Test
+    public void crc32c_matches_the_standard_check_value() {
+        // Given the standard check input
+        ByteBuffer input = ByteBuffer.wrap("123456789".getBytes(StandardCharsets.US_ASCII));
+
+        // When crc
+        int actual = FileQueueRecord.crc32c(input, 0, input.limit());
+
+        // Then the published CRC-32C check value
+        Assert.assertEquals("CRC-32C check value", 0xE3069283, actual);
+    }
+}
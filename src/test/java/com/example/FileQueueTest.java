@@ -10,15 +10,23 @@ import org.junit.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileVisitOption;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -29,6 +37,8 @@ public class FileQueueTest {
     private static final String TEST_DIR = "fileQueueRoot";
     private static final long PULL_WAIT_TIME_MILLIS = 100L;
     private static final long VISIBILITY_TIMEOUT_MILLIS = 250L;
+    private static final long LONG_PULL_WAIT_TIME_MILLIS = 3000L;
+    private static final long DELAY_MILLIS = 300L;
     private static final String URL_PREFIX = "http://sqs.us-east-2.amazonaws.com/123456789012/";
 
     private static final String FIRST_QUEUE_NAME = "MyQueue";
@@ -46,13 +56,18 @@ public class FileQueueTest {
     private static final String QUEUE_MESSAGE_2 = "{\"message\":\"My message 2\",...}";
     private static final String[] QUEUE_MESSAGES = new String [] {QUEUE_MESSAGE_1, QUEUE_MESSAGE_2,
             QUEUE_MESSAGE_1 + " 3", QUEUE_MESSAGE_1 + " 4", QUEUE_MESSAGE_1 + " 5"};
+    private static final String FIRST_GROUP_ID = "MyGroup";
+    private static final String SECOND_GROUP_ID = "MyGroup2";
 
     private static final String INVALID_QUEUE_NAME = "My invalid#queue$name";
     private static final String EMPTY_QUEUE_NAME = " ";
 
     private static final int MESSAGE_ID_MAX_LENGTH = 100;
 
+    private static final long SMALL_SEGMENT_SIZE_BYTES = 256L;
+
     private FileQueueService target;
+    private File testRoot;
     private static File testRootDir;
 
     @BeforeClass
@@ -64,7 +79,7 @@ public class FileQueueTest {
 
     @Before
     public void setup() {
-        File testRoot = createUnitTestDir();
+        testRoot = createUnitTestDir();
         target = new FileQueueService(testRoot.getAbsolutePath(), URL_PREFIX, PULL_WAIT_TIME_MILLIS, VISIBILITY_TIMEOUT_MILLIS);
     }
 
@@ -93,6 +108,10 @@ public class FileQueueTest {
         return target.createQueue(FIRST_QUEUE_NAME);
     }
 
+    private FileQueueService withLongPullWaitTime() {
+        return new FileQueueService(testRoot.getAbsolutePath(), URL_PREFIX, LONG_PULL_WAIT_TIME_MILLIS, VISIBILITY_TIMEOUT_MILLIS);
+    }
+
     private void setupFirstAndSecondQueues() {
         setupFirstQueue();
         target.createQueue(SECOND_QUEUE_NAME);
@@ -105,6 +124,42 @@ public class FileQueueTest {
         }
     }
 
+    private int countSegmentFiles(String queueName) {
+        return Paths.get(testRoot.getAbsolutePath(), queueName).toFile().list((dir, name) -> name.endsWith(".log")).length;
+    }
+
+    private int countJournalFiles(String queueName) {
+        return Paths.get(testRoot.getAbsolutePath(), queueName).toFile().list((dir, name) -> name.endsWith(".journal")).length;
+    }
+
+    private void assertRecoveredAfterRestart(QueueMessage[] inflightMessages, QueueMessage[] unreadMessages) {
+        FileQueueService restarted = new FileQueueService(testRoot.getAbsolutePath(), URL_PREFIX, PULL_WAIT_TIME_MILLIS, VISIBILITY_TIMEOUT_MILLIS, SMALL_SEGMENT_SIZE_BYTES);
+        for (QueueMessage inflightMessage : inflightMessages) {
+            Assert.assertEquals("In flight message can be deleted by the new service", true, restarted.deleteMessage(FIRST_QUEUE_URL, inflightMessage.getReceiptId()));
+        }
+        for (QueueMessage unreadMessage : unreadMessages) {
+            Assert.assertEquals("Next pull returns the next unread message", unreadMessage, restarted.pull(FIRST_QUEUE_URL));
+        }
+        Assert.assertEquals("Queue is empty", true, restarted.pull(FIRST_QUEUE_URL).isEmpty());
+    }
+
+    private QueueMessage[] setupInflightMessagesOverSeveralSegments(QueueMessage[] unreadMessages) {
+        target = new FileQueueService(testRoot.getAbsolutePath(), URL_PREFIX, PULL_WAIT_TIME_MILLIS, VISIBILITY_TIMEOUT_MILLIS, SMALL_SEGMENT_SIZE_BYTES);
+        setupFirstQueue();
+        for (int i=0; i<10; i++) {
+            target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1 + i);
+        }
+        for (int i=0; i<unreadMessages.length; i++) {
+            unreadMessages[i] = target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_2 + i);
+        }
+        QueueMessage[] inflightMessages = new QueueMessage[5];
+        for (int i=0; i<5; i++) {
+            inflightMessages[i] = target.pull(FIRST_QUEUE_URL);
+            target.deleteMessage(FIRST_QUEUE_URL, target.pull(FIRST_QUEUE_URL).getReceiptId());
+        }
+        return inflightMessages;
+    }
+
     private QueueMessage setupAPulledMessageForTheFirstQueue() {
         target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1);
         return target.pull(FIRST_QUEUE_URL);
@@ -889,8 +944,1295 @@ public class FileQueueTest {
         // Then illegal argument exception
     }
 
+    // Segmented log
+
+    @Test
+    public void pushing_past_the_segment_size_rolls_over_to_new_segments() {
+        // Given a service with small segments and a single queue
+        target = new FileQueueService(testRoot.getAbsolutePath(), URL_PREFIX, PULL_WAIT_TIME_MILLIS, VISIBILITY_TIMEOUT_MILLIS, SMALL_SEGMENT_SIZE_BYTES);
+        setupFirstQueue();
+
+        // When push enough messages to fill several segments
+        for (int i=0; i<20; i++) {
+            target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1 + i);
+        }
+
+        // Then the log spans several segment files and messages are still pulled in order
+        Assert.assertEquals("Log has rolled over to more than one segment", true, countSegmentFiles(FIRST_QUEUE_NAME) > 1);
+        for (int i=0; i<20; i++) {
+            Assert.assertEquals("Message pulled in push order", QUEUE_MESSAGE_1 + i, target.pull(FIRST_QUEUE_URL).getMessageBody());
+        }
+    }
+
+    @Test
+    public void fully_consumed_segments_are_dropped() {
+        // Given a service with small segments and a queue spanning several segments
+        target = new FileQueueService(testRoot.getAbsolutePath(), URL_PREFIX, PULL_WAIT_TIME_MILLIS, VISIBILITY_TIMEOUT_MILLIS, SMALL_SEGMENT_SIZE_BYTES);
+        setupFirstQueue();
+        for (int i=0; i<20; i++) {
+            target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1 + i);
+        }
+
+        // When every message is pulled and deleted
+        for (int i=0; i<20; i++) {
+            QueueMessage message = target.pull(FIRST_QUEUE_URL);
+            target.deleteMessage(FIRST_QUEUE_URL, message.getReceiptId());
+        }
+
+        // Then once the queue is found empty only the tail segment remains
+        Assert.assertEquals("Queue is empty", true, target.pull(FIRST_QUEUE_URL).isEmpty());
+        Assert.assertEquals("Consumed segments are dropped", 1, countSegmentFiles(FIRST_QUEUE_NAME));
+    }
+
+    @Test
+    public void an_in_flight_message_pins_its_segment() {
+        // Given a service with small segments and a message left in flight at the start of the log
+        target = new FileQueueService(testRoot.getAbsolutePath(), URL_PREFIX, PULL_WAIT_TIME_MILLIS, VISIBILITY_TIMEOUT_MILLIS, SMALL_SEGMENT_SIZE_BYTES);
+        setupFirstQueue();
+        for (int i=0; i<20; i++) {
+            target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1 + i);
+        }
+        QueueMessage inflightMessage = target.pull(FIRST_QUEUE_URL);
+
+        // When every other message is pulled and deleted
+        for (int i=1; i<20; i++) {
+            QueueMessage message = target.pull(FIRST_QUEUE_URL);
+            target.deleteMessage(FIRST_QUEUE_URL, message.getReceiptId());
+        }
+
+        // Then the in flight message can still be deleted
+        Assert.assertEquals("In flight message is still deletable", true, target.deleteMessage(FIRST_QUEUE_URL, inflightMessage.getReceiptId()));
+        Assert.assertEquals("Queue is empty", true, target.pull(FIRST_QUEUE_URL).isEmpty());
+    }
+
+    @Test
+    public void compaction_drops_segments_pinned_by_in_flight_messages() throws InterruptedException {
+        // Given a service with small segments and a message left in flight while the rest of the log is consumed
+        target = new FileQueueService(testRoot.getAbsolutePath(), URL_PREFIX, PULL_WAIT_TIME_MILLIS, VISIBILITY_TIMEOUT_MILLIS, SMALL_SEGMENT_SIZE_BYTES,
+                FileQueueFsyncPolicy.NONE, TimeUnit.HOURS.toMillis(1), 1024 * 1024);
+        setupFirstQueue();
+        for (int i=0; i<20; i++) {
+            target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1 + i);
+        }
+        QueueMessage inflightMessage = target.pull(FIRST_QUEUE_URL);
+        for (int i=1; i<20; i++) {
+            target.deleteMessage(FIRST_QUEUE_URL, target.pull(FIRST_QUEUE_URL).getReceiptId());
+        }
+        target.pull(FIRST_QUEUE_URL); // reads to the end of the log
+        int pinnedSegments = countSegmentFiles(FIRST_QUEUE_NAME);
+
+        // When the queue is compacted
+        long reclaimedBytes = target.getCompactor().compact(FIRST_QUEUE_NAME);
+
+        // Then the pinned segments are dropped and the in flight message can still be deleted
+        Assert.assertEquals("Segments were pinned", true, pinnedSegments > 2);
+        Assert.assertEquals("Segments dropped", true, countSegmentFiles(FIRST_QUEUE_NAME) <= 2);
+        Assert.assertEquals("Reclaimed bytes", reclaimedBytes, target.getCompactor().getReclaimedBytes());
+        Assert.assertEquals("Reclaimed bytes", true, reclaimedBytes > 0);
+        Assert.assertEquals("One compaction", 1, target.getCompactor().getCompactions());
+        Assert.assertEquals("In flight message is still deletable", true, target.deleteMessage(FIRST_QUEUE_URL, inflightMessage.getReceiptId()));
+        Assert.assertEquals("Queue is empty", true, target.pull(FIRST_QUEUE_URL).isEmpty());
+        target.close();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void cannot_compact_a_deleted_queue() throws InterruptedException {
+        // Given a service with compaction on and a queue that has since been deleted
+        target = new FileQueueService(testRoot.getAbsolutePath(), URL_PREFIX, PULL_WAIT_TIME_MILLIS, VISIBILITY_TIMEOUT_MILLIS, SMALL_SEGMENT_SIZE_BYTES,
+                FileQueueFsyncPolicy.NONE, TimeUnit.HOURS.toMillis(1), 1024 * 1024);
+        setupFirstQueue();
+        target.deleteQueue(FIRST_QUEUE_URL);
+
+        // When compact it
+        target.getCompactor().compact(FIRST_QUEUE_NAME);
+
+        // Then illegal state exception
+    }
+
+    @Test
+    public void a_compacted_in_flight_message_is_redelivered_by_a_new_service_instance() throws InterruptedException {
+        // Given a compacted queue whose only in flight message was pulled from a segment that has been dropped
+        target = new FileQueueService(testRoot.getAbsolutePath(), URL_PREFIX, PULL_WAIT_TIME_MILLIS, VISIBILITY_TIMEOUT_MILLIS, SMALL_SEGMENT_SIZE_BYTES,
+                FileQueueFsyncPolicy.NONE, TimeUnit.HOURS.toMillis(1), 1024 * 1024);
+        setupFirstQueue();
+        for (int i=0; i<20; i++) {
+            target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1 + i);
+        }
+        QueueMessage inflightMessage = target.pull(FIRST_QUEUE_URL);
+        for (int i=1; i<20; i++) {
+            target.deleteMessage(FIRST_QUEUE_URL, target.pull(FIRST_QUEUE_URL).getReceiptId());
+        }
+        target.getCompactor().compact(FIRST_QUEUE_NAME);
+        target.close();
+
+        // When a new service is started over the same root dir and pulls once the visibility timeout elapses
+        FileQueueService restarted = new FileQueueService(testRoot.getAbsolutePath(), URL_PREFIX, PULL_WAIT_TIME_MILLIS, VISIBILITY_TIMEOUT_MILLIS, SMALL_SEGMENT_SIZE_BYTES);
+        Thread.sleep(VISIBILITY_TIMEOUT_MILLIS + 50);
+        QueueMessage redeliveredMessage = restarted.pull(FIRST_QUEUE_URL);
+
+        // Then the moved message is redelivered
+        Assert.assertEquals("Redelivered message", inflightMessage, redeliveredMessage);
+        Assert.assertEquals("Redelivered message can be deleted", true, restarted.deleteMessage(FIRST_QUEUE_URL, redeliveredMessage.getReceiptId()));
+        Assert.assertEquals("Queue is empty", true, restarted.pull(FIRST_QUEUE_URL).isEmpty());
+    }
+
+    @Test
+    public void a_compacted_held_back_message_of_a_group_is_released_once_the_message_before_it_is_deleted() throws InterruptedException {
+        // Given a service with small segments, a queue with 2 messages of a group, the first in flight and the second held back, and the rest of the log consumed
+        target = new FileQueueService(testRoot.getAbsolutePath(), URL_PREFIX, PULL_WAIT_TIME_MILLIS, VISIBILITY_TIMEOUT_MILLIS, SMALL_SEGMENT_SIZE_BYTES,
+                FileQueueFsyncPolicy.NONE, TimeUnit.HOURS.toMillis(1), 1024 * 1024);
+        setupFirstQueue();
+        target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1 + 1, FIRST_GROUP_ID);
+        QueueMessage heldBackMessage = target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1 + 2, FIRST_GROUP_ID);
+        QueueMessage inflightMessage = target.pull(FIRST_QUEUE_URL, 10, TimeUnit.HOURS.toMillis(1)).get(0); // reads to the end of the log, holding the second back
+        for (int i=0; i<20; i++) {
+            target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_2 + i);
+            target.deleteMessage(FIRST_QUEUE_URL, target.pull(FIRST_QUEUE_URL).getReceiptId());
+        }
+
+        // When the queue is compacted and the first message deleted
+        target.getCompactor().compact(FIRST_QUEUE_NAME);
+        target.deleteMessage(FIRST_QUEUE_URL, inflightMessage.getReceiptId());
+        QueueMessage pulledMessage = target.pull(FIRST_QUEUE_URL);
+
+        // Then the moved second message is released and pulled
+        Assert.assertEquals("Messages were moved", true, target.getCompactor().getReclaimedBytes() > 0);
+        Assert.assertEquals("Pulled message id", heldBackMessage.getMessageId(), pulledMessage.getMessageId());
+        target.close();
+    }
+
+    @Test
+    public void queue_state_is_recovered_by_a_new_service_instance() {
+        // Given a queue with one deleted, one in flight and one unread message
+        setupFirstQueue();
+        target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1 + 1);
+        target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1 + 2);
+        QueueMessage unreadMessage = target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1 + 3);
+        target.deleteMessage(FIRST_QUEUE_URL, target.pull(FIRST_QUEUE_URL).getReceiptId());
+        QueueMessage inflightMessage = target.pull(FIRST_QUEUE_URL);
+
+        // When a new service is started over the same root dir
+        FileQueueService restarted = new FileQueueService(testRoot.getAbsolutePath(), URL_PREFIX, PULL_WAIT_TIME_MILLIS, VISIBILITY_TIMEOUT_MILLIS);
+
+        // Then it continues from the persisted head
+        Assert.assertEquals("Next pull returns the unread message", unreadMessage, restarted.pull(FIRST_QUEUE_URL));
+        Assert.assertEquals("In flight message can be deleted by the new service", true, restarted.deleteMessage(FIRST_QUEUE_URL, inflightMessage.getReceiptId()));
+        Assert.assertEquals("Queue is empty", true, restarted.pull(FIRST_QUEUE_URL).isEmpty());
+    }
+
+    @Test
+    public void in_flight_messages_can_be_deleted_in_any_order() {
+        // Given a queue with 3 messages in flight
+        setupFirstQueue();
+        QueueMessage[] pulledMessages = new QueueMessage[3];
+        for (int i = 0; i < pulledMessages.length; i++) {
+            target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1 + i);
+            pulledMessages[i] = target.pull(FIRST_QUEUE_URL);
+        }
+
+        // When deleted newest, oldest then middle
+        boolean newestDeleted = target.deleteMessage(FIRST_QUEUE_URL, pulledMessages[2].getReceiptId());
+        boolean newestDeletedAgain = target.deleteMessage(FIRST_QUEUE_URL, pulledMessages[2].getReceiptId());
+        boolean oldestDeleted = target.deleteMessage(FIRST_QUEUE_URL, pulledMessages[0].getReceiptId());
+        boolean middleDeleted = target.deleteMessage(FIRST_QUEUE_URL, pulledMessages[1].getReceiptId());
+
+        // Then each receipt deletes its message exactly once and nothing is redelivered
+        Assert.assertEquals("Newest deleted", true, newestDeleted);
+        Assert.assertEquals("Newest cannot be deleted twice", false, newestDeletedAgain);
+        Assert.assertEquals("Oldest deleted", true, oldestDeleted);
+        Assert.assertEquals("Middle deleted", true, middleDeleted);
+        Assert.assertEquals("Queue is empty", true, target.pull(FIRST_QUEUE_URL).isEmpty());
+    }
+
+    @Test
+    public void queue_state_is_recovered_from_a_checkpoint() {
+        // Given a queue with in flight, deleted and unread messages spread over several segments
+        QueueMessage[] unreadMessages = new QueueMessage[10];
+        QueueMessage[] inflightMessages = setupInflightMessagesOverSeveralSegments(unreadMessages);
+
+        // When a new service is started over the same root dir
+
+        // Then a checkpoint has been written and the new service carries on from where the old one left off
+        Assert.assertEquals("Checkpoint written", true, Paths.get(testRoot.getAbsolutePath(), FIRST_QUEUE_NAME, "checkpoint").toFile().exists());
+        assertRecoveredAfterRestart(inflightMessages, unreadMessages);
+    }
+
+    @Test
+    public void a_damaged_checkpoint_is_ignored() throws IOException {
+        // Given a queue with in flight, deleted and unread messages spread over several segments
+        QueueMessage[] unreadMessages = new QueueMessage[10];
+        QueueMessage[] inflightMessages = setupInflightMessagesOverSeveralSegments(unreadMessages);
+
+        // When its checkpoint is damaged and a new service is started over the same root dir
+        Path checkpoint = Paths.get(testRoot.getAbsolutePath(), FIRST_QUEUE_NAME, "checkpoint");
+        byte[] damaged = Files.readAllBytes(checkpoint);
+        damaged[damaged.length - 1] ^= 0x01;
+        Files.write(checkpoint, damaged);
+
+        // Then the new service replays the log from the head instead
+        assertRecoveredAfterRestart(inflightMessages, unreadMessages);
+    }
+
+    @Test
+    public void a_checkpoint_of_an_unknown_version_is_ignored() throws IOException {
+        // Given a queue with in flight, deleted and unread messages spread over several segments
+        QueueMessage[] unreadMessages = new QueueMessage[10];
+        QueueMessage[] inflightMessages = setupInflightMessagesOverSeveralSegments(unreadMessages);
+
+        // When its checkpoint is rewritten with a version this code does not know, as a later one might write, and a new service is started over the same root dir
+        Path checkpoint = Paths.get(testRoot.getAbsolutePath(), FIRST_QUEUE_NAME, "checkpoint");
+        ByteBuffer unknown = ByteBuffer.wrap(Files.readAllBytes(checkpoint));
+        unknown.putInt(4, unknown.getInt(4) + 1);
+        unknown.putInt(0, FileQueueRecord.crc32c(unknown, 4, unknown.limit()));
+        Files.write(checkpoint, unknown.array());
+
+        // Then the new service replays the log from the head instead
+        assertRecoveredAfterRestart(inflightMessages, unreadMessages);
+    }
+
+    @Test
+    public void pulls_and_deletes_do_not_grow_the_message_log() {
+        // Given a queue with a pushed message
+        setupFirstQueue();
+        target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1);
+        File segment = Paths.get(testRoot.getAbsolutePath(), FIRST_QUEUE_NAME, "0000000000.log").toFile();
+        long pushedLength = segment.length();
+
+        // When the message is pulled and deleted
+        QueueMessage pulledMessage = target.pull(FIRST_QUEUE_URL);
+        target.deleteMessage(FIRST_QUEUE_URL, pulledMessage.getReceiptId());
+
+        // Then only the in flight journal has been appended to
+        Assert.assertEquals("Message log is unchanged", pushedLength, segment.length());
+        Assert.assertEquals("Pull and delete are journalled", 2L * FileQueueRecord.HEADER_SIZE,
+                Paths.get(testRoot.getAbsolutePath(), FIRST_QUEUE_NAME, "0000000000.journal").toFile().length());
+    }
+
+    @Test
+    public void checkpointed_journal_segments_are_dropped() {
+        // Given a queue with small segments
+        target = new FileQueueService(testRoot.getAbsolutePath(), URL_PREFIX, PULL_WAIT_TIME_MILLIS, VISIBILITY_TIMEOUT_MILLIS, SMALL_SEGMENT_SIZE_BYTES);
+        setupFirstQueue();
+
+        // When many messages are pulled and deleted
+        for (int i=0; i<50; i++) {
+            target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1 + i);
+            target.deleteMessage(FIRST_QUEUE_URL, target.pull(FIRST_QUEUE_URL).getReceiptId());
+        }
+
+        // Then only the journal since the previous checkpoint is kept
+        Assert.assertEquals("Journal segments are dropped", true, countJournalFiles(FIRST_QUEUE_NAME) <= 3);
+        Assert.assertEquals("Queue is empty", true, target.pull(FIRST_QUEUE_URL).isEmpty());
+    }
+
+    @Test(timeout = 5000)
+    public void a_lock_file_left_behind_by_a_crashed_process_does_not_wedge_the_queue() throws IOException {
+        // Given a queue with lock files left behind as if by a crashed process
+        setupFirstQueue();
+        Paths.get(testRoot.getAbsolutePath(), FIRST_QUEUE_NAME, ".lock").toFile().createNewFile();
+        Paths.get(testRoot.getAbsolutePath(), ".lock").toFile().createNewFile();
+
+        // When push and pull
+        QueueMessage pushedMessage = target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1);
+        QueueMessage pulledMessage = target.pull(FIRST_QUEUE_URL);
+
+        // Then the queue is still usable
+        Assert.assertEquals("Pulled message equals the pushed message", pushedMessage, pulledMessage);
+        Assert.assertEquals("Queue is still listed", true, target.listQueues().contains(FIRST_QUEUE_URL));
+    }
+
+    @Test
+    public void a_write_torn_by_a_crash_is_skipped() throws IOException {
+        // Given a queue whose log ends in a record torn part way through by a crashed process
+        setupFirstQueue();
+        QueueMessage firstMessage = target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1);
+        ByteBuffer tornRecord = FileQueueRecord.encode(FileQueueRecord.PUSH, 0, 1L, 2L, 0, 0, 0,
+                QUEUE_MESSAGE_2.getBytes(StandardCharsets.UTF_8));
+        Files.write(Paths.get(testRoot.getAbsolutePath(), FIRST_QUEUE_NAME, "0000000000.log"),
+                Arrays.copyOf(tornRecord.array(), tornRecord.limit() - 5), StandardOpenOption.APPEND);
+
+        // When another message is pushed after the torn record and the queue is pulled
+        QueueMessage secondMessage = target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1 + 2);
+        QueueMessage actualFirst = target.pull(FIRST_QUEUE_URL);
+        QueueMessage actualSecond = target.pull(FIRST_QUEUE_URL);
+
+        // Then both good messages are pulled and the torn one is not
+        Assert.assertEquals("First good message is pulled", firstMessage, actualFirst);
+        Assert.assertEquals("Good message after the torn write is pulled", secondMessage, actualSecond);
+        Assert.assertEquals("Nothing else is in the queue", true, target.pull(FIRST_QUEUE_URL).isEmpty());
+    }
+
+    @Test
+    public void a_torn_tail_is_truncated_before_further_pushes() throws IOException {
+        // Given a queue whose log ends in a torn record
+        setupFirstQueue();
+        target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1);
+        File segment = Paths.get(testRoot.getAbsolutePath(), FIRST_QUEUE_NAME, "0000000000.log").toFile();
+        long goodLength = segment.length();
+        Files.write(segment.toPath(), new byte[] {1, 2, 3}, StandardOpenOption.APPEND);
+
+        // When the queue is pulled until it is empty
+        target.pull(FIRST_QUEUE_URL);
+        target.pull(FIRST_QUEUE_URL);
+
+        // Then the torn bytes are cut off
+        Assert.assertEquals("Torn tail is truncated", goodLength, segment.length());
+        QueueMessage pushedMessage = target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_2);
+        Assert.assertEquals("Message pushed after the truncation is pulled", pushedMessage, target.pull(FIRST_QUEUE_URL));
+    }
+
+    // Long polling
+
+    @Test
+    public void a_waiting_pull_is_woken_by_a_push() throws InterruptedException, ExecutionException {
+        // Given a service with a long pull wait time and a single empty queue
+        target = new FileQueueService(testRoot.getAbsolutePath(), URL_PREFIX, LONG_PULL_WAIT_TIME_MILLIS, VISIBILITY_TIMEOUT_MILLIS);
+        setupFirstQueue();
+
+        // When a message is pushed while a pull is waiting
+        ScheduledExecutorService scheduledExecutorService = Executors.newScheduledThreadPool(1);
+        scheduledExecutorService.schedule(() -> target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1), 100, TimeUnit.MILLISECONDS);
+        long startTime = System.currentTimeMillis();
+        QueueMessage actualMessage = target.pull(FIRST_QUEUE_URL);
+        long elapsed = System.currentTimeMillis() - startTime;
+        scheduledExecutorService.shutdown();
+
+        // Then the pull returns the message well before the wait time elapses
+        Assert.assertEquals("Pulled message body", QUEUE_MESSAGE_1, actualMessage.getMessageBody());
+        Assert.assertEquals("Pull returned soon after the push", true, elapsed < LONG_PULL_WAIT_TIME_MILLIS / 2);
+    }
+
+    @Test
+    public void a_waiting_pull_is_woken_by_a_push_from_another_process() throws InterruptedException, ExecutionException {
+        // Given a service with a long pull wait time and a single empty queue
+        target = new FileQueueService(testRoot.getAbsolutePath(), URL_PREFIX, LONG_PULL_WAIT_TIME_MILLIS, VISIBILITY_TIMEOUT_MILLIS);
+        setupFirstQueue();
+        File queueDir = Paths.get(testRoot.getAbsolutePath(), FIRST_QUEUE_NAME).toFile();
+
+        // When a message is appended straight to the log while a pull is waiting, as another process would
+        Callable<Object> otherProcessPush = () -> {
+            FileQueueLock lock = new FileQueueLock(new File(queueDir, ".lock"));
+            lock.lock();
+            try {
+                return new FileQueueLog(queueDir, FileQueueLog.DEFAULT_SEGMENT_SIZE_BYTES, VISIBILITY_TIMEOUT_MILLIS)
+                        .push(new QueueMessage(QUEUE_MESSAGE_1, QueueServiceUtil.generateMessageId()));
+            } finally {
+                lock.unlock();
+            }
+        };
+        ScheduledExecutorService scheduledExecutorService = Executors.newScheduledThreadPool(1);
+        scheduledExecutorService.schedule(otherProcessPush, 100, TimeUnit.MILLISECONDS);
+        long startTime = System.currentTimeMillis();
+        QueueMessage actualMessage = target.pull(FIRST_QUEUE_URL);
+        long elapsed = System.currentTimeMillis() - startTime;
+        scheduledExecutorService.shutdown();
+
+        // Then the pull returns the message well before the wait time elapses
+        Assert.assertEquals("Pulled message body", QUEUE_MESSAGE_1, actualMessage.getMessageBody());
+        Assert.assertEquals("Pull returned soon after the push", true, elapsed < LONG_PULL_WAIT_TIME_MILLIS / 2);
+    }
+
+    @Test
+    public void a_waiting_pull_is_woken_by_a_visibility_change_from_another_process() throws InterruptedException, ExecutionException {
+        // Given a service with a long pull wait time and a single message in flight for longer than the wait
+        target = new FileQueueService(testRoot.getAbsolutePath(), URL_PREFIX, LONG_PULL_WAIT_TIME_MILLIS, VISIBILITY_TIMEOUT_MILLIS);
+        setupFirstQueue();
+        target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1);
+        QueueMessage pulledMessage = target.pull(FIRST_QUEUE_URL, 1, LONG_PULL_WAIT_TIME_MILLIS * 2).get(0);
+        File queueDir = Paths.get(testRoot.getAbsolutePath(), FIRST_QUEUE_NAME).toFile();
+
+        // When its visibility timeout is journalled straight to 0 while a pull is waiting, as another process would
+        Callable<Object> otherProcessChangeVisibility = () -> {
+            FileQueueLock lock = new FileQueueLock(new File(queueDir, ".lock"));
+            lock.lock();
+            try {
+                return new FileQueueLog(queueDir, FileQueueLog.DEFAULT_SEGMENT_SIZE_BYTES, VISIBILITY_TIMEOUT_MILLIS)
+                        .changeVisibilityAll(Arrays.asList(pulledMessage.getReceiptId()), 0);
+            } finally {
+                lock.unlock();
+            }
+        };
+        ScheduledExecutorService scheduledExecutorService = Executors.newScheduledThreadPool(1);
+        scheduledExecutorService.schedule(otherProcessChangeVisibility, 100, TimeUnit.MILLISECONDS);
+        long startTime = System.currentTimeMillis();
+        QueueMessage actualMessage = target.pull(FIRST_QUEUE_URL);
+        long elapsed = System.currentTimeMillis() - startTime;
+        scheduledExecutorService.shutdown();
+
+        // Then the pull returns the message again well before the wait time elapses
+        Assert.assertEquals("Pulled message id", pulledMessage.getMessageId(), actualMessage.getMessageId());
+        Assert.assertEquals("Pull returned soon after the visibility change", true, elapsed < LONG_PULL_WAIT_TIME_MILLIS / 2);
+    }
+
+    @Test
+    public void a_pull_from_another_process_does_not_signal_the_queue() throws Exception {
+        // Given a service with a queue of two messages, whose signal has settled after the pushes
+        setupFirstQueue();
+        target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1);
+        target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_2);
+        File queueDir = Paths.get(testRoot.getAbsolutePath(), FIRST_QUEUE_NAME).toFile();
+        FileQueueSignal signal = FileQueueSignal.forQueue(queueDir);
+        Thread.sleep(PULL_WAIT_TIME_MILLIS);
+        long version = signal.version();
+
+        // When another process pulls one, journalling its pull
+        FileQueueLock lock = new FileQueueLock(new File(queueDir, ".lock"));
+        lock.lock();
+        try {
+            new FileQueueLog(queueDir, FileQueueLog.DEFAULT_SEGMENT_SIZE_BYTES, VISIBILITY_TIMEOUT_MILLIS).pull();
+        } finally {
+            lock.unlock();
+        }
+        Thread.sleep(PULL_WAIT_TIME_MILLIS);
+
+        // Then nobody waiting on the queue is woken, as nothing became visible
+        Assert.assertEquals("Signal version", version, signal.version());
+    }
+
+    @Test
+    public void a_waiting_pull_receives_a_message_once_its_visibility_timeout_elapses() {
+        // Given a service with a pull wait time longer than the visibility timeout and a single in flight message
+        target = new FileQueueService(testRoot.getAbsolutePath(), URL_PREFIX, LONG_PULL_WAIT_TIME_MILLIS, VISIBILITY_TIMEOUT_MILLIS);
+        setupFirstQueue();
+        QueueMessage pulledMessageFixture = setupAPulledMessageForTheFirstQueue();
+
+        // When pull again
+        long startTime = System.currentTimeMillis();
+        QueueMessage actualMessage = target.pull(FIRST_QUEUE_URL);
+        long elapsed = System.currentTimeMillis() - startTime;
+
+        // Then the same message is redelivered as soon as it becomes visible
+        Assert.assertEquals("Redelivered message equals the first pulled", pulledMessageFixture, actualMessage);
+        Assert.assertEquals("Pull returned soon after the visibility timeout", true, elapsed < LONG_PULL_WAIT_TIME_MILLIS / 2);
+    }
+
     // java.util.ConcurrentModificationException ???
 
+    @Test
+    public void pulled_message_body_is_available_as_a_read_only_buffer() {
+        // Given a single queue with a message larger than a page
+        setupFirstQueue();
+        char[] largeBody = new char[256 * 1024];
+        Arrays.fill(largeBody, 'x');
+        target.push(FIRST_QUEUE_URL, new String(largeBody));
+
+        // When the message is pulled
+        QueueMessage actualMessage = target.pull(FIRST_QUEUE_URL);
+
+        // Then its body can be read from the log without decoding it
+        Assert.assertEquals("Message body buffer is read only", true, actualMessage.getMessageBodyBuffer().isReadOnly());
+        Assert.assertEquals("Message body buffer length", largeBody.length, actualMessage.getMessageBodyBuffer().remaining());
+        Assert.assertEquals("Message body", new String(largeBody), actualMessage.getMessageBody());
+    }
+
+    @Test
+    public void concurrent_pushes_are_group_committed_with_every_batch_fsync() throws InterruptedException {
+        // Given a service that forces every batch of pushes to disk and a single queue
+        target = new FileQueueService(testRoot.getAbsolutePath(), URL_PREFIX, PULL_WAIT_TIME_MILLIS, VISIBILITY_TIMEOUT_MILLIS,
+                FileQueueLog.DEFAULT_SEGMENT_SIZE_BYTES, FileQueueFsyncPolicy.EVERY_BATCH);
+        setupFirstQueue();
+
+        // When 4 producers push 25 messages each at the same time
+        Thread[] producers = new Thread[4];
+        for (int p = 0; p < producers.length; p++) {
+            String prefix = "producer" + p + "-";
+            producers[p] = new Thread(() -> {
+                for (int i = 0; i < 25; i++) {
+                    target.push(FIRST_QUEUE_URL, prefix + i);
+                }
+            });
+            producers[p].start();
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+
+        // Then every message is pulled exactly once
+        Set<String> pulledBodies = new HashSet<>();
+        for (QueueMessage message = target.pull(FIRST_QUEUE_URL); !message.isEmpty(); message = target.pull(FIRST_QUEUE_URL)) {
+            Assert.assertEquals("Message pulled for the first time", true, pulledBodies.add(message.getMessageBody()));
+            target.deleteMessage(FIRST_QUEUE_URL, message.getReceiptId());
+        }
+        Assert.assertEquals("Number of messages pulled", 100, pulledBodies.size());
+    }
+
+    @Test
+    public void pushes_are_forced_to_disk_in_the_background_with_an_interval_fsync() throws IOException, InterruptedException {
+        // Given a queue log with a writer that forces it to disk every 20ms
+        setupFirstQueue();
+        File queueDir = Paths.get(testRoot.getAbsolutePath(), FIRST_QUEUE_NAME).toFile();
+        FileQueueFsyncPolicy fsyncPolicy = FileQueueFsyncPolicy.everyMillis(20);
+        FileQueueLog queueLog = new FileQueueLog(queueDir, FileQueueLog.DEFAULT_SEGMENT_SIZE_BYTES, VISIBILITY_TIMEOUT_MILLIS, fsyncPolicy);
+        FileQueueWriter queueWriter = new FileQueueWriter(new File(queueDir, ".lock"), queueLog, fsyncPolicy);
+
+        // When a message is pushed
+        queueWriter.write(FileQueueLog.encodePush(new QueueMessage(QUEUE_MESSAGE_1, QueueServiceUtil.generateMessageId())));
+        long deadline = System.currentTimeMillis() + 2000;
+        while (queueLog.isDirty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        queueWriter.close();
+        queueLog.close();
+
+        // Then it is forced to disk shortly after and can be pulled
+        Assert.assertEquals("Forced to disk by the background fsync", false, queueLog.isDirty());
+        Assert.assertEquals("Pulled message body", QUEUE_MESSAGE_1, target.pull(FIRST_QUEUE_URL).getMessageBody());
+    }
+
+    @Test
+    public void pushes_in_a_batch_whose_committer_is_interrupted_fail_too() throws IOException, InterruptedException {
+        // Given a queue locked as if by another process, a push waiting on the lock to commit its batch, and 2 more pushes batched up behind it
+        setupFirstQueue();
+        File queueDir = Paths.get(testRoot.getAbsolutePath(), FIRST_QUEUE_NAME).toFile();
+        FileQueueLog queueLog = new FileQueueLog(queueDir, FileQueueLog.DEFAULT_SEGMENT_SIZE_BYTES, VISIBILITY_TIMEOUT_MILLIS);
+        FileQueueWriter queueWriter = new FileQueueWriter(new File(queueDir, ".lock"), queueLog, FileQueueFsyncPolicy.NONE);
+        FileQueueLock queueLock = new FileQueueLock(new File(queueDir, ".lock"));
+        queueLock.lock();
+        Map<Thread, Throwable> failures = new ConcurrentHashMap<>();
+        Thread firstPusher = startPusher(queueWriter, QUEUE_MESSAGE_1, failures);
+        awaitCommitting(firstPusher);
+        Thread secondPusher = startPusher(queueWriter, QUEUE_MESSAGE_2, failures);
+        Thread thirdPusher = startPusher(queueWriter, QUEUE_MESSAGE_2, failures);
+        awaitWaiting(secondPusher);
+        awaitWaiting(thirdPusher);
+
+        // When the first is interrupted, then whichever of the other 2 commits their batch
+        firstPusher.interrupt();
+        firstPusher.join();
+        Thread committer = awaitCommitting(secondPusher, thirdPusher);
+        Thread other = (committer == secondPusher) ? thirdPusher : secondPusher;
+        committer.interrupt();
+        committer.join();
+        other.join();
+        queueLock.unlock();
+
+        // Then every push fails, none returns as if its message was written, and nothing is written
+        Assert.assertEquals("First push fails", true, failures.get(firstPusher) instanceof InterruptedException);
+        Assert.assertEquals("Interrupted committer fails", true, failures.get(committer) instanceof InterruptedException);
+        Assert.assertEquals("Push in the interrupted committer's batch fails", true, failures.get(other) instanceof IOException);
+        Assert.assertEquals("Nothing written", true, target.pull(FIRST_QUEUE_URL).isEmpty());
+        queueWriter.close();
+        queueLog.close();
+    }
+
+    private Thread startPusher(FileQueueWriter queueWriter, String message, Map<Thread, Throwable> failures) {
+        Thread pusher = new Thread(() -> {
+            try {
+                queueWriter.write(FileQueueLog.encodePush(new QueueMessage(message, QueueServiceUtil.generateMessageId())));
+            } catch (IOException | InterruptedException e) {
+                failures.put(Thread.currentThread(), e);
+            }
+        });
+        pusher.start();
+        return pusher;
+    }
+
+    private static void awaitWaiting(Thread thread) throws InterruptedException {
+        while (thread.getState() != Thread.State.WAITING) {
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * @return whichever of the threads is waiting on the queue lock to commit a batch
+     */
+    private static Thread awaitCommitting(Thread... threads) throws InterruptedException {
+        while (true) {
+            for (Thread thread : threads) {
+                if (thread.getState() == Thread.State.WAITING && Arrays.stream(thread.getStackTrace())
+                        .anyMatch(frame -> frame.getClassName().equals(FileQueueWriter.class.getName()) && frame.getMethodName().equals("commit"))) {
+                    return thread;
+                }
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cannot_create_an_interval_fsync_policy_without_a_positive_interval() {
+        // Given a file queue fsync policy
+
+        // When created with a zero interval
+        FileQueueFsyncPolicy.everyMillis(0);
+
+        // Then illegal argument exception
+    }
+
+    // Batch operations
+
+    @Test
+    public void can_push_a_batch_and_pull_it_in_order() {
+        // Given a service with a single queue
+        setupFirstQueue();
+
+        // When push a batch of 5 messages, then pull up to 10
+        List<QueueMessage> pushedMessages = target.pushBatch(FIRST_QUEUE_URL, Arrays.asList(QUEUE_MESSAGES));
+        List<QueueMessage> pulledMessages = target.pull(FIRST_QUEUE_URL, 10);
+
+        // Then all 5 are pulled, in the order they were pushed
+        Assert.assertEquals("Number of messages pushed", QUEUE_MESSAGES.length, pushedMessages.size());
+        Assert.assertEquals("Number of messages pulled", QUEUE_MESSAGES.length, pulledMessages.size());
+        for (int i=0; i<QUEUE_MESSAGES.length; i++) {
+            Assert.assertEquals("Pulled message id", pushedMessages.get(i).getMessageId(), pulledMessages.get(i).getMessageId());
+            Assert.assertEquals("Pulled message body", QUEUE_MESSAGES[i], pulledMessages.get(i).getMessageBody());
+        }
+    }
+
+    @Test
+    public void pull_returns_no_more_than_max_messages() {
+        // Given a service with a single queue and 5 pushed messages
+        setupFirstQueue();
+        target.pushBatch(FIRST_QUEUE_URL, Arrays.asList(QUEUE_MESSAGES));
+
+        // When pull up to 2, then up to 10
+        List<QueueMessage> firstPull = target.pull(FIRST_QUEUE_URL, 2);
+        List<QueueMessage> secondPull = target.pull(FIRST_QUEUE_URL, 10);
+
+        // Then 2 are pulled, then the other 3
+        Assert.assertEquals("Number of messages in the first pull", 2, firstPull.size());
+        Assert.assertEquals("Number of messages in the second pull", 3, secondPull.size());
+    }
+
+    @Test
+    public void pull_from_an_empty_queue_returns_no_messages() {
+        // Given a service with an empty queue
+        setupFirstQueue();
+
+        // When pull up to 10
+        List<QueueMessage> pulledMessages = target.pull(FIRST_QUEUE_URL, 10);
+
+        // Then no messages
+        Assert.assertEquals("Number of messages pulled", 0, pulledMessages.size());
+    }
+
+    @Test
+    public void can_delete_a_batch_of_pulled_messages() throws InterruptedException {
+        // Given a service with a single queue and 5 pulled messages
+        setupFirstQueue();
+        target.pushBatch(FIRST_QUEUE_URL, Arrays.asList(QUEUE_MESSAGES));
+        List<String> receiptIds = new ArrayList<>();
+        for (QueueMessage pulledMessage : target.pull(FIRST_QUEUE_URL, 10)) {
+            receiptIds.add(pulledMessage.getReceiptId());
+        }
+        receiptIds.add(receiptIds.get(0)); // already deleted by then
+        receiptIds.add("not-a-receipt-id");
+
+        // When delete them as a batch, then wait past the visibility timeout
+        List<Boolean> deleted = target.deleteBatch(FIRST_QUEUE_URL, receiptIds);
+        Thread.sleep(VISIBILITY_TIMEOUT_MILLIS * 2);
+
+        // Then each pulled message is deleted once and none are redelivered
+        Assert.assertEquals("Deleted", Arrays.asList(true, true, true, true, true, false, false), deleted);
+        Assert.assertEquals("Number of messages redelivered", 0, target.pull(FIRST_QUEUE_URL, 10).size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cannot_pull_more_than_10_messages() {
+        // Given a service with a single queue
+        setupFirstQueue();
+
+        // When pull up to 11
+        target.pull(FIRST_QUEUE_URL, 11);
+
+        // Then illegal argument exception
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cannot_push_an_empty_batch() {
+        // Given a service with a single queue
+        setupFirstQueue();
+
+        // When push an empty batch
+        target.pushBatch(FIRST_QUEUE_URL, new ArrayList<>());
+
+        // Then illegal argument exception
+    }
+
+    // Async
+
+    @Test
+    public void pending_async_pull_is_completed_by_a_push() throws Exception {
+        // Given a service with an empty queue and a pending async pull
+        setupFirstQueue();
+        target = withLongPullWaitTime();
+        CompletableFuture<QueueMessage> pulledFuture = target.pullAsync(FIRST_QUEUE_URL);
+
+        // When push a message
+        QueueMessage pushedMessage = target.pushAsync(FIRST_QUEUE_URL, QUEUE_MESSAGE_1).get();
+
+        // Then the pull completes with the pushed message, which can be deleted
+        QueueMessage pulledMessage = pulledFuture.get(LONG_PULL_WAIT_TIME_MILLIS, TimeUnit.MILLISECONDS);
+        Assert.assertEquals("Pulled message id", pushedMessage.getMessageId(), pulledMessage.getMessageId());
+        Assert.assertEquals("Pulled message deleted", true, target.deleteMessageAsync(FIRST_QUEUE_URL, pulledMessage.getReceiptId()).get());
+    }
+
+    @Test
+    public void pending_async_pull_of_an_empty_queue_completes_empty_after_the_wait_time() throws Exception {
+        // Given a service with an empty queue
+        setupFirstQueue();
+
+        // When pull async
+        long startTime = System.currentTimeMillis();
+        QueueMessage pulledMessage = target.pullAsync(FIRST_QUEUE_URL).get(LONG_PULL_WAIT_TIME_MILLIS, TimeUnit.MILLISECONDS);
+
+        // Then an empty message once the pull wait time is up
+        Assert.assertEquals("Pulled message is empty", true, pulledMessage.isEmpty());
+        Assert.assertEquals("Waited for the pull wait time", true, System.currentTimeMillis() - startTime >= PULL_WAIT_TIME_MILLIS);
+    }
+
+    @Test
+    public void pending_async_pulls_take_no_threads() throws Exception {
+        // Given a service with an empty queue, whose messages stay in flight for longer than the test takes
+        setupFirstQueue();
+        target = new FileQueueService(testRoot.getAbsolutePath(), URL_PREFIX, LONG_PULL_WAIT_TIME_MILLIS, LONG_PULL_WAIT_TIME_MILLIS * 10);
+        int threadsBefore = Thread.activeCount();
+
+        // When pull async 100 times, then push as many messages
+        List<CompletableFuture<QueueMessage>> pulledFutures = new ArrayList<>();
+        for (int i=0; i<100; i++) {
+            pulledFutures.add(target.pullAsync(FIRST_QUEUE_URL));
+        }
+        int threadsPending = Thread.activeCount();
+        Set<String> pushedIds = new HashSet<>();
+        for (int i=0; i<100; i++) {
+            pushedIds.add(target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1 + i).getMessageId());
+        }
+
+        // Then no more than the service's 2 puller threads and the watcher thread were started, and each pull gets a different message
+        Assert.assertEquals("Threads started", true, threadsPending - threadsBefore <= 3);
+        Set<String> pulledIds = new HashSet<>();
+        for (CompletableFuture<QueueMessage> pulledFuture : pulledFutures) {
+            pulledIds.add(pulledFuture.get(LONG_PULL_WAIT_TIME_MILLIS, TimeUnit.MILLISECONDS).getMessageId());
+        }
+        Assert.assertEquals("Pulled message ids", pushedIds, pulledIds);
+    }
+
+    @Test
+    public void closing_the_service_completes_pending_async_pulls() throws Exception {
+        // Given a service with an empty queue and a pending async pull
+        setupFirstQueue();
+        target = withLongPullWaitTime();
+        CompletableFuture<QueueMessage> pendingFuture = target.pullAsync(FIRST_QUEUE_URL);
+
+        // When close the service, then pull async again
+        target.close();
+        CompletableFuture<QueueMessage> closedFuture = target.pullAsync(FIRST_QUEUE_URL);
+
+        // Then the pending pull completes with no message well before its wait time, and the later pull fails
+        Assert.assertEquals("Pending pull is empty", true, pendingFuture.get(LONG_PULL_WAIT_TIME_MILLIS / 2, TimeUnit.MILLISECONDS).isEmpty());
+        try {
+            closedFuture.get();
+            Assert.fail("Pull from a closed service succeeded");
+        } catch (ExecutionException e) {
+            Assert.assertEquals("Cause", IllegalStateException.class, e.getCause().getClass());
+        }
+    }
+
+    @Test
+    public void async_pulls_are_not_held_up_by_a_queue_locked_elsewhere() throws Exception {
+        // Given two queues with messages, the first locked as if by another process
+        setupFirstAndSecondQueues();
+        target = withLongPullWaitTime();
+        for (int i=0; i<3; i++) {
+            target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1 + i);
+        }
+        QueueMessage secondQueueMessage = target.push(SECOND_QUEUE_URL, QUEUE_MESSAGE_2);
+        FileQueueLock firstQueueLock = target.getQueueLock(FIRST_QUEUE_NAME);
+        firstQueueLock.lock();
+
+        // When pull the first queue async more times than there are puller threads, then the second
+        List<CompletableFuture<QueueMessage>> firstPulledFutures = new ArrayList<>();
+        for (int i=0; i<3; i++) {
+            firstPulledFutures.add(target.pullAsync(FIRST_QUEUE_URL));
+        }
+        CompletableFuture<QueueMessage> secondPulledFuture = target.pullAsync(SECOND_QUEUE_URL);
+
+        // Then the second queue's pull completes while the first is locked, and the first's once it is unlocked
+        try {
+            Assert.assertEquals("Second queue's message", secondQueueMessage.getMessageId(),
+                    secondPulledFuture.get(LONG_PULL_WAIT_TIME_MILLIS, TimeUnit.MILLISECONDS).getMessageId());
+            for (CompletableFuture<QueueMessage> firstPulledFuture : firstPulledFutures) {
+                Assert.assertEquals("First queue's pull waits", false, firstPulledFuture.isDone());
+            }
+        } finally {
+            firstQueueLock.unlock();
+        }
+        for (CompletableFuture<QueueMessage> firstPulledFuture : firstPulledFutures) {
+            Assert.assertEquals("First queue's message", false, firstPulledFuture.get(LONG_PULL_WAIT_TIME_MILLIS, TimeUnit.MILLISECONDS).isEmpty());
+        }
+    }
+
+    @Test
+    public void async_pulls_are_not_held_up_by_a_dead_letter_queue_locked_elsewhere() throws Exception {
+        // Given a queue whose messages go to a dead letter queue after 1 receive, with a message due to be dead lettered and another pushed after it, and the dead letter queue locked as if by another process
+        setupFirstAndSecondQueues();
+        target = withLongPullWaitTime();
+        target.setRedrivePolicy(FIRST_QUEUE_URL, SECOND_QUEUE_URL, 1);
+        QueueMessage deadLetterMessage = target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1);
+        target.changeVisibility(FIRST_QUEUE_URL, target.pull(FIRST_QUEUE_URL).getReceiptId(), 0);
+        QueueMessage nextMessage = target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_2);
+        FileQueueLock deadLetterQueueLock = target.getQueueLock(SECOND_QUEUE_NAME);
+        deadLetterQueueLock.lock();
+
+        // When pull the queue async
+        CompletableFuture<QueueMessage> pulledFuture = target.pullAsync(FIRST_QUEUE_URL);
+
+        // Then the pull completes while the dead letter queue is locked, and the dead letter is moved once it is unlocked
+        try {
+            Assert.assertEquals("Next message", nextMessage.getMessageId(),
+                    pulledFuture.get(LONG_PULL_WAIT_TIME_MILLIS / 2, TimeUnit.MILLISECONDS).getMessageId());
+        } finally {
+            deadLetterQueueLock.unlock();
+        }
+        Assert.assertEquals("Dead letter message id", deadLetterMessage.getMessageId(), target.pull(SECOND_QUEUE_URL).getMessageId());
+        Assert.assertEquals("No failed dead letter moves", 0, target.getFailedDeadLetterMoves());
+    }
+
+    @Test
+    public void async_push_to_a_non_existent_queue_completes_exceptionally() throws Exception {
+        // Given a service with no queues
+
+        // When push async
+        CompletableFuture<QueueMessage> pushedFuture = target.pushAsync(NON_EXISTENT_QUEUE_URL, QUEUE_MESSAGE_1);
+
+        // Then the future completes with an illegal state exception
+        try {
+            pushedFuture.get();
+            Assert.fail("Push to a non-existent queue succeeded");
+        } catch (ExecutionException e) {
+            Assert.assertEquals("Cause", IllegalStateException.class, e.getCause().getClass());
+        }
+    }
+
+    // Visibility timeout changes
+
+    @Test
+    public void extended_message_is_not_redelivered_until_its_new_timeout_expires() throws InterruptedException {
+        // Given a service with a single queue and a pulled message
+        setupFirstQueue();
+        target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1);
+        QueueMessage pulledMessage = target.pull(FIRST_QUEUE_URL);
+
+        // When extend its visibility timeout to 4 timeouts, then wait past the queue's timeout
+        boolean changed = target.changeVisibility(FIRST_QUEUE_URL, pulledMessage.getReceiptId(), VISIBILITY_TIMEOUT_MILLIS * 4);
+        Thread.sleep(VISIBILITY_TIMEOUT_MILLIS * 2);
+
+        // Then it is not redelivered, and can still be deleted
+        Assert.assertEquals("Visibility timeout changed", true, changed);
+        Assert.assertEquals("Queue looks empty", true, target.pull(FIRST_QUEUE_URL).isEmpty());
+        Assert.assertEquals("Message deleted", true, target.deleteMessage(FIRST_QUEUE_URL, pulledMessage.getReceiptId()));
+    }
+
+    @Test
+    public void message_changed_to_a_0_visibility_timeout_is_redelivered_straight_away() {
+        // Given a service with a single queue and a pulled message
+        setupFirstQueue();
+        QueueMessage pushedMessage = target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1);
+        QueueMessage pulledMessage = target.pull(FIRST_QUEUE_URL);
+
+        // When change its visibility timeout to 0, then pull again
+        target.changeVisibility(FIRST_QUEUE_URL, pulledMessage.getReceiptId(), 0);
+        QueueMessage redeliveredMessage = target.pull(FIRST_QUEUE_URL);
+
+        // Then it is redelivered with a new receipt id, and the old one is no longer valid
+        Assert.assertEquals("Redelivered message id", pushedMessage.getMessageId(), redeliveredMessage.getMessageId());
+        Assert.assertEquals("Old receipt id deleted", false, target.deleteMessage(FIRST_QUEUE_URL, pulledMessage.getReceiptId()));
+        Assert.assertEquals("New receipt id deleted", true, target.deleteMessage(FIRST_QUEUE_URL, redeliveredMessage.getReceiptId()));
+    }
+
+    @Test
+    public void pull_with_a_visibility_timeout_overrides_the_queues() throws InterruptedException {
+        // Given a service with a single queue and 2 pushed messages
+        setupFirstQueue();
+        target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1);
+        target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_2);
+
+        // When pull one with a visibility timeout of 4 timeouts and the other with the queue's, then wait past the queue's timeout
+        QueueMessage extendedMessage = target.pull(FIRST_QUEUE_URL, 1, VISIBILITY_TIMEOUT_MILLIS * 4).get(0);
+        QueueMessage pulledMessage = target.pull(FIRST_QUEUE_URL);
+        Thread.sleep(VISIBILITY_TIMEOUT_MILLIS * 2);
+
+        // Then only the one pulled with the queue's timeout is redelivered
+        List<QueueMessage> redeliveredMessages = target.pull(FIRST_QUEUE_URL, 10);
+        Assert.assertEquals("Number of messages redelivered", 1, redeliveredMessages.size());
+        Assert.assertEquals("Redelivered message id", pulledMessage.getMessageId(), redeliveredMessages.get(0).getMessageId());
+        Assert.assertEquals("Extended message deleted", true, target.deleteMessage(FIRST_QUEUE_URL, extendedMessage.getReceiptId()));
+    }
+
+    @Test
+    public void can_change_the_visibility_of_a_batch_of_pulled_messages() {
+        // Given a service with a single queue, 5 pulled messages and one of them deleted
+        setupFirstQueue();
+        target.pushBatch(FIRST_QUEUE_URL, Arrays.asList(QUEUE_MESSAGES));
+        List<String> receiptIds = new ArrayList<>();
+        for (QueueMessage pulledMessage : target.pull(FIRST_QUEUE_URL, 10)) {
+            receiptIds.add(pulledMessage.getReceiptId());
+        }
+        target.deleteMessage(FIRST_QUEUE_URL, receiptIds.get(0));
+        receiptIds.add("not-a-receipt-id");
+
+        // When change their visibility timeout to 0 as a batch
+        List<Boolean> changed = target.changeVisibilityBatch(FIRST_QUEUE_URL, receiptIds, 0);
+
+        // Then all but the deleted and unknown ones are changed, and redelivered
+        Assert.assertEquals("Changed", Arrays.asList(false, true, true, true, true, false), changed);
+        Assert.assertEquals("Number of messages redelivered", 4, target.pull(FIRST_QUEUE_URL, 10).size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cannot_change_the_visibility_timeout_to_more_than_12_hours() {
+        // Given a service with a single queue and a pulled message
+        setupFirstQueue();
+        target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1);
+        QueueMessage pulledMessage = target.pull(FIRST_QUEUE_URL);
+
+        // When change its visibility timeout to more than 12 hours
+        target.changeVisibility(FIRST_QUEUE_URL, pulledMessage.getReceiptId(), TimeUnit.HOURS.toMillis(12) + 1);
+
+        // Then illegal argument exception
+    }
+
+    @Test
+    public void changed_visibility_timeout_is_recovered_by_a_new_service_instance() throws InterruptedException {
+        // Given a queue with a pulled message whose visibility timeout is extended to 4 timeouts
+        setupFirstQueue();
+        target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1);
+        QueueMessage pulledMessage = target.pull(FIRST_QUEUE_URL);
+        target.changeVisibility(FIRST_QUEUE_URL, pulledMessage.getReceiptId(), VISIBILITY_TIMEOUT_MILLIS * 4);
+
+        // When a new service is started over the same root dir and pulls once the queue's timeout elapses
+        FileQueueService restarted = new FileQueueService(testRoot.getAbsolutePath(), URL_PREFIX, PULL_WAIT_TIME_MILLIS, VISIBILITY_TIMEOUT_MILLIS);
+        Thread.sleep(VISIBILITY_TIMEOUT_MILLIS * 2);
+
+        // Then it is not redelivered, and can be deleted with the original receipt id
+        Assert.assertEquals("Queue looks empty", true, restarted.pull(FIRST_QUEUE_URL).isEmpty());
+        Assert.assertEquals("Message deleted", true, restarted.deleteMessage(FIRST_QUEUE_URL, pulledMessage.getReceiptId()));
+    }
+
+    // Delivery delay
+
+    @Test
+    public void delayed_message_is_not_pulled_until_its_delay_has_gone_by() throws InterruptedException {
+        // Given a service with a single queue
+        setupFirstQueue();
+
+        // When push a message with a delay, then pull before and after the delay has gone by
+        QueueMessage pushedMessage = target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1, DELAY_MILLIS);
+        QueueMessage earlyMessage = target.pull(FIRST_QUEUE_URL);
+        Thread.sleep(DELAY_MILLIS);
+        QueueMessage pulledMessage = target.pull(FIRST_QUEUE_URL);
+
+        // Then it is only pulled once the delay has gone by
+        Assert.assertEquals("Not pulled before the delay", true, earlyMessage.isEmpty());
+        Assert.assertEquals("Pulled message id", pushedMessage.getMessageId(), pulledMessage.getMessageId());
+        Assert.assertEquals("Pulled message deleted", true, target.deleteMessage(FIRST_QUEUE_URL, pulledMessage.getReceiptId()));
+    }
+
+    @Test
+    public void delayed_message_does_not_hold_up_the_messages_pushed_after_it() {
+        // Given a service with a single queue
+        setupFirstQueue();
+
+        // When push a message with a delay, then one without
+        target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1, DELAY_MILLIS);
+        QueueMessage undelayedMessage = target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_2, 0);
+
+        // Then the one without a delay is pulled first
+        Assert.assertEquals("Pulled message id", undelayedMessage.getMessageId(), target.pull(FIRST_QUEUE_URL).getMessageId());
+    }
+
+    @Test
+    public void queue_delay_applies_to_messages_pushed_without_a_delay_of_their_own() throws InterruptedException {
+        // Given a service with a single queue with a delay
+        setupFirstQueue();
+        target.setQueueDelay(FIRST_QUEUE_URL, DELAY_MILLIS);
+
+        // When push a message, then pull before and after the delay has gone by
+        QueueMessage pushedMessage = target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1);
+        QueueMessage earlyMessage = target.pull(FIRST_QUEUE_URL);
+        Thread.sleep(DELAY_MILLIS);
+        QueueMessage pulledMessage = target.pull(FIRST_QUEUE_URL);
+
+        // Then it is only pulled once the delay has gone by
+        Assert.assertEquals("Not pulled before the delay", true, earlyMessage.isEmpty());
+        Assert.assertEquals("Pulled message id", pushedMessage.getMessageId(), pulledMessage.getMessageId());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cannot_push_with_a_delay_of_more_than_15_minutes() {
+        // Given a service with a single queue
+        setupFirstQueue();
+
+        // When push with a delay of more than 15 minutes
+        target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1, TimeUnit.MINUTES.toMillis(15) + 1);
+
+        // Then illegal argument exception
+    }
+
+    @Test
+    public void delayed_message_is_recovered_by_a_new_service_instance() throws InterruptedException {
+        // Given a queue with a delayed message that a pull has already stepped over
+        setupFirstQueue();
+        QueueMessage pushedMessage = target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1, DELAY_MILLIS);
+        target.pull(FIRST_QUEUE_URL);
+
+        // When a new service is started over the same root dir and pulls once the delay has gone by
+        FileQueueService restarted = new FileQueueService(testRoot.getAbsolutePath(), URL_PREFIX, PULL_WAIT_TIME_MILLIS, VISIBILITY_TIMEOUT_MILLIS);
+        Thread.sleep(DELAY_MILLIS);
+        QueueMessage pulledMessage = restarted.pull(FIRST_QUEUE_URL);
+
+        // Then the message is pulled, and can be deleted
+        Assert.assertEquals("Pulled message id", pushedMessage.getMessageId(), pulledMessage.getMessageId());
+        Assert.assertEquals("Pulled message deleted", true, restarted.deleteMessage(FIRST_QUEUE_URL, pulledMessage.getReceiptId()));
+    }
+
+    // Dead letter queues
+
+    @Test
+    public void pulled_message_counts_how_many_times_it_has_been_pulled() {
+        // Given a service with a single queue with a pushed message
+        setupFirstQueue();
+        target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1);
+
+        // When pull, give it up straight away, then pull again
+        QueueMessage firstPulledMessage = target.pull(FIRST_QUEUE_URL);
+        target.changeVisibility(FIRST_QUEUE_URL, firstPulledMessage.getReceiptId(), 0);
+        QueueMessage secondPulledMessage = target.pull(FIRST_QUEUE_URL);
+
+        // Then the receive count goes up with each pull
+        Assert.assertEquals("First receive count", 1, firstPulledMessage.getReceiveCount());
+        Assert.assertEquals("Second receive count", 2, secondPulledMessage.getReceiveCount());
+    }
+
+    @Test
+    public void message_is_moved_to_the_dead_letter_queue_once_pulled_the_max_receive_count() {
+        // Given a queue whose messages go to a dead letter queue after 2 receives, with a pushed message
+        setupFirstAndSecondQueues();
+        target.setRedrivePolicy(FIRST_QUEUE_URL, SECOND_QUEUE_URL, 2);
+        QueueMessage pushedMessage = target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1);
+
+        // When pulled and given up twice
+        for (int i=0; i<2; i++) {
+            QueueMessage pulledMessage = target.pull(FIRST_QUEUE_URL);
+            Assert.assertEquals("Pulled message id", pushedMessage.getMessageId(), pulledMessage.getMessageId());
+            target.changeVisibility(FIRST_QUEUE_URL, pulledMessage.getReceiptId(), 0);
+        }
+
+        // Then it is not redelivered, but is in the dead letter queue with the same id and body
+        Assert.assertEquals("Not redelivered", true, target.pull(FIRST_QUEUE_URL).isEmpty());
+        QueueMessage deadLetter = target.pull(SECOND_QUEUE_URL);
+        Assert.assertEquals("Dead letter message id", pushedMessage.getMessageId(), deadLetter.getMessageId());
+        Assert.assertEquals("Dead letter message body", QUEUE_MESSAGE_1, deadLetter.getMessageBody());
+    }
+
+    @Test
+    public void redrive_moves_every_dead_letter_back_to_the_queue() {
+        // Given a dead letter queue with 3 messages
+        setupFirstAndSecondQueues();
+        for (int i=0; i<3; i++) {
+            target.push(SECOND_QUEUE_URL, QUEUE_MESSAGE_1 + i);
+        }
+
+        // When redrive them back to the queue
+        long moved = target.redrive(SECOND_QUEUE_URL, FIRST_QUEUE_URL, 100);
+
+        // Then all 3 are in the queue, in order, and none are left in the dead letter queue
+        Assert.assertEquals("Messages moved", 3, moved);
+        List<QueueMessage> pulledMessages = target.pull(FIRST_QUEUE_URL, 10);
+        Assert.assertEquals("Messages in the queue", 3, pulledMessages.size());
+        for (int i=0; i<3; i++) {
+            Assert.assertEquals("Message body", QUEUE_MESSAGE_1 + i, pulledMessages.get(i).getMessageBody());
+        }
+        Assert.assertEquals("Dead letter queue empty", true, target.pull(SECOND_QUEUE_URL).isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cannot_set_a_queue_as_its_own_dead_letter_queue() {
+        // Given a service with a single queue
+        setupFirstQueue();
+
+        // When set the queue as its own dead letter queue
+        target.setRedrivePolicy(FIRST_QUEUE_URL, FIRST_QUEUE_URL, 2);
+
+        // Then illegal argument exception
+    }
+
+    @Test
+    public void receive_count_is_recovered_by_a_new_service_instance() throws InterruptedException {
+        // Given a queue with a message that has been pulled once and timed out
+        setupFirstQueue();
+        target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1);
+        target.pull(FIRST_QUEUE_URL);
+        Thread.sleep(VISIBILITY_TIMEOUT_MILLIS);
+
+        // When a new service is started over the same root dir and pulls it again
+        FileQueueService restarted = new FileQueueService(testRoot.getAbsolutePath(), URL_PREFIX, PULL_WAIT_TIME_MILLIS, VISIBILITY_TIMEOUT_MILLIS);
+        QueueMessage pulledMessage = restarted.pull(FIRST_QUEUE_URL);
+
+        // Then its receive count carries on from the first pull
+        Assert.assertEquals("Receive count", 2, pulledMessage.getReceiveCount());
+    }
+
+    // Message groups
+
+    @Test
+    public void messages_of_a_group_are_pulled_one_at_a_time_in_order() {
+        // Given a queue with 3 messages pushed to the same group
+        setupFirstQueue();
+        for (int i=0; i<3; i++) {
+            target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1 + i, FIRST_GROUP_ID);
+        }
+
+        // When pull as many as there are, deleting each one pulled
+        // Then only one is pulled at a time, in the order they were pushed
+        for (int i=0; i<3; i++) {
+            List<QueueMessage> pulledMessages = target.pull(FIRST_QUEUE_URL, 10);
+            Assert.assertEquals("Messages pulled", 1, pulledMessages.size());
+            Assert.assertEquals("Message body", QUEUE_MESSAGE_1 + i, pulledMessages.get(0).getMessageBody());
+            Assert.assertEquals("Group id", FIRST_GROUP_ID, pulledMessages.get(0).getGroupId());
+            target.deleteMessage(FIRST_QUEUE_URL, pulledMessages.get(0).getReceiptId());
+        }
+        Assert.assertEquals("Queue is empty", true, target.pull(FIRST_QUEUE_URL).isEmpty());
+    }
+
+    @Test
+    public void a_group_with_a_message_in_flight_does_not_block_other_messages() {
+        // Given a queue with 2 messages in one group, 1 in another and 1 in no group
+        setupFirstQueue();
+        QueueMessage firstMessage = target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1 + 1, FIRST_GROUP_ID);
+        target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1 + 2, FIRST_GROUP_ID);
+        QueueMessage secondGroupMessage = target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1 + 3, SECOND_GROUP_ID);
+        QueueMessage ungroupedMessage = target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1 + 4);
+
+        // When pull as many as there are
+        List<QueueMessage> pulledMessages = target.pull(FIRST_QUEUE_URL, 10);
+
+        // Then the first of each group and the ungrouped message are pulled, the second of the first group is held back
+        Assert.assertEquals("Messages pulled", 3, pulledMessages.size());
+        Assert.assertEquals("First group's first message", firstMessage.getMessageId(), pulledMessages.get(0).getMessageId());
+        Assert.assertEquals("Second group's message", secondGroupMessage.getMessageId(), pulledMessages.get(1).getMessageId());
+        Assert.assertEquals("Ungrouped message", ungroupedMessage.getMessageId(), pulledMessages.get(2).getMessageId());
+        Assert.assertEquals("Ungrouped message's group", null, pulledMessages.get(2).getGroupId());
+        Assert.assertEquals("Held back", true, target.pull(FIRST_QUEUE_URL).isEmpty());
+    }
+
+    @Test
+    public void message_of_a_group_that_times_out_is_redelivered_before_the_rest_of_its_group() {
+        // Given a queue with 2 messages in the same group, the first pulled
+        setupFirstQueue();
+        QueueMessage firstMessage = target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1 + 1, FIRST_GROUP_ID);
+        target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1 + 2, FIRST_GROUP_ID);
+        QueueMessage pulledMessage = target.pull(FIRST_QUEUE_URL);
+
+        // When it is given up
+        target.changeVisibility(FIRST_QUEUE_URL, pulledMessage.getReceiptId(), 0);
+        List<QueueMessage> redeliveredMessages = target.pull(FIRST_QUEUE_URL, 10);
+
+        // Then it alone is redelivered
+        Assert.assertEquals("Messages redelivered", 1, redeliveredMessages.size());
+        Assert.assertEquals("Redelivered message id", firstMessage.getMessageId(), redeliveredMessages.get(0).getMessageId());
+    }
+
+    @Test
+    public void a_waiting_pull_of_one_service_is_woken_when_another_releases_the_next_message_of_a_group() {
+        // Given two services with a long pull wait time over the same root dir, and a queue with 2 messages in the same group, the first in flight for longer than the wait
+        target = new FileQueueService(testRoot.getAbsolutePath(), URL_PREFIX, LONG_PULL_WAIT_TIME_MILLIS, VISIBILITY_TIMEOUT_MILLIS);
+        setupFirstQueue();
+        target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1 + 1, FIRST_GROUP_ID);
+        QueueMessage secondMessage = target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1 + 2, FIRST_GROUP_ID);
+        QueueMessage pulledMessage = target.pull(FIRST_QUEUE_URL, 10, LONG_PULL_WAIT_TIME_MILLIS * 2).get(0); // reads to the end of the log, holding the second back
+        FileQueueService other = new FileQueueService(testRoot.getAbsolutePath(), URL_PREFIX, LONG_PULL_WAIT_TIME_MILLIS, VISIBILITY_TIMEOUT_MILLIS);
+
+        // When the first service deletes the first message while a pull on the other is waiting
+        ScheduledExecutorService scheduledExecutorService = Executors.newScheduledThreadPool(1);
+        scheduledExecutorService.schedule(() -> target.deleteMessage(FIRST_QUEUE_URL, pulledMessage.getReceiptId()), 100, TimeUnit.MILLISECONDS);
+        long startTime = System.currentTimeMillis();
+        QueueMessage actualMessage = other.pull(FIRST_QUEUE_URL);
+        long elapsed = System.currentTimeMillis() - startTime;
+        scheduledExecutorService.shutdown();
+        other.close();
+
+        // Then the other's pull returns the second message well before the wait time elapses
+        Assert.assertEquals("Pulled message id", secondMessage.getMessageId(), actualMessage.getMessageId());
+        Assert.assertEquals("Pull returned soon after the delete", true, elapsed < LONG_PULL_WAIT_TIME_MILLIS / 2);
+    }
+
+    @Test
+    public void queue_delay_applies_to_messages_of_a_group() throws InterruptedException {
+        // Given a service with a single queue with a delay
+        setupFirstQueue();
+        target.setQueueDelay(FIRST_QUEUE_URL, DELAY_MILLIS);
+
+        // When push 2 messages to the same group, then pull before and after the delay has gone by
+        QueueMessage firstMessage = target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1 + 1, FIRST_GROUP_ID);
+        target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1 + 2, FIRST_GROUP_ID);
+        List<QueueMessage> earlyMessages = target.pull(FIRST_QUEUE_URL, 10);
+        Thread.sleep(DELAY_MILLIS);
+        List<QueueMessage> pulledMessages = target.pull(FIRST_QUEUE_URL, 10);
+
+        // Then only the first is pulled, once the delay has gone by
+        Assert.assertEquals("Not pulled before the delay", true, earlyMessages.isEmpty());
+        Assert.assertEquals("Messages pulled", 1, pulledMessages.size());
+        Assert.assertEquals("Pulled message id", firstMessage.getMessageId(), pulledMessages.get(0).getMessageId());
+    }
+
+    @Test
+    public void message_of_a_group_released_before_its_delay_is_up_is_not_pulled_until_it_is() throws InterruptedException {
+        // Given a queue with a message of a group in flight, and another of the group pushed behind it once the queue has a delay
+        setupFirstQueue();
+        target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1 + 1, FIRST_GROUP_ID);
+        QueueMessage inflightMessage = target.pull(FIRST_QUEUE_URL);
+        target.setQueueDelay(FIRST_QUEUE_URL, DELAY_MILLIS);
+        QueueMessage secondMessage = target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1 + 2, FIRST_GROUP_ID);
+
+        // When the first is deleted, then pull before and after the delay has gone by
+        target.deleteMessage(FIRST_QUEUE_URL, inflightMessage.getReceiptId());
+        QueueMessage earlyMessage = target.pull(FIRST_QUEUE_URL);
+        Thread.sleep(DELAY_MILLIS);
+        QueueMessage pulledMessage = target.pull(FIRST_QUEUE_URL);
+
+        // Then the second is only pulled once the delay has gone by
+        Assert.assertEquals("Not pulled before the delay", true, earlyMessage.isEmpty());
+        Assert.assertEquals("Pulled message id", secondMessage.getMessageId(), pulledMessage.getMessageId());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cannot_push_a_message_to_an_empty_group() {
+        // Given a service with a single queue
+        setupFirstQueue();
+
+        // When push a message to an empty group
+        target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1, " ");
+
+        // Then illegal argument exception
+    }
+
+    @Test
+    public void held_back_messages_of_a_group_are_recovered_from_a_checkpoint() {
+        // Given a queue with small segments and 20 messages in the same group, the first in flight and the rest held back
+        target = new FileQueueService(testRoot.getAbsolutePath(), URL_PREFIX, PULL_WAIT_TIME_MILLIS, VISIBILITY_TIMEOUT_MILLIS, SMALL_SEGMENT_SIZE_BYTES);
+        setupFirstQueue();
+        for (int i=0; i<20; i++) {
+            target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1 + i, FIRST_GROUP_ID);
+        }
+        QueueMessage inflightMessage = target.pull(FIRST_QUEUE_URL);
+        Assert.assertEquals("Rest held back", true, target.pull(FIRST_QUEUE_URL).isEmpty()); // reads to the end of the log
+
+        // When a new service is started over the same root dir and deletes the in flight message
+        FileQueueService restarted = new FileQueueService(testRoot.getAbsolutePath(), URL_PREFIX, PULL_WAIT_TIME_MILLIS, VISIBILITY_TIMEOUT_MILLIS, SMALL_SEGMENT_SIZE_BYTES);
+        restarted.deleteMessage(FIRST_QUEUE_URL, inflightMessage.getReceiptId());
+
+        // Then a checkpoint has been written and the rest of the group are pulled one at a time, in order
+        Assert.assertEquals("Checkpoint written", true, Paths.get(testRoot.getAbsolutePath(), FIRST_QUEUE_NAME, "checkpoint").toFile().exists());
+        for (int i=1; i<20; i++) {
+            List<QueueMessage> pulledMessages = restarted.pull(FIRST_QUEUE_URL, 10);
+            Assert.assertEquals("Messages pulled", 1, pulledMessages.size());
+            Assert.assertEquals("Message body", QUEUE_MESSAGE_1 + i, pulledMessages.get(0).getMessageBody());
+            restarted.deleteMessage(FIRST_QUEUE_URL, pulledMessages.get(0).getReceiptId());
+        }
+        Assert.assertEquals("Queue is empty", true, restarted.pull(FIRST_QUEUE_URL).isEmpty());
+    }
+
     // Concurrency tests
 
     @Test
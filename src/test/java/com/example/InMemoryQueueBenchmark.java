@@ -0,0 +1,146 @@
+package com.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the visible queue backends of {@link InMemoryQueueService}, the linked deque and the
+ * lock-free ring buffer, on their own and through the service, with 4 threads each pushing and
+ * then pulling. Also measures how consumer throughput scales with the number of consumer
+ * threads, when each message takes a while to process. Run with
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.example.InMemoryQueueBenchmark
+ * </pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class InMemoryQueueBenchmark {
+    private static final String URL_PREFIX = "http://sqs.us-east-2.amazonaws.com/123456789012/";
+    private static final String QUEUE_NAME = "MyQueue";
+    private static final String QUEUE_MESSAGE = "{\"message\":\"My message 1\",...}";
+    private static final long VISIBILITY_TIMEOUT_MILLIS = 60000L;
+    private static final int CAPACITY = 1024;
+
+    @State(Scope.Benchmark)
+    public static class DequeState {
+        private final LinkedBlockingDeque<Integer> deque = new LinkedBlockingDeque<>();
+    }
+
+    @State(Scope.Benchmark)
+    public static class RingState {
+        private final MpmcRingBuffer<Integer> ring = new MpmcRingBuffer<>(CAPACITY);
+    }
+
+    @State(Scope.Benchmark)
+    public static class ServiceState {
+        @Param({"0", "1024"}) // linked deque, ring buffer
+        public int ringBufferCapacity;
+
+        private InMemoryQueueService service;
+        private String queueUrl;
+
+        @Setup
+        public void setup() {
+            service = new InMemoryQueueService(URL_PREFIX, 0, VISIBILITY_TIMEOUT_MILLIS);
+            queueUrl = service.createQueue(QUEUE_NAME, ringBufferCapacity);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class ConsumerState {
+        @Param({"1"})
+        public long processingMillis;
+
+        private InMemoryQueueService service;
+        private String queueUrl;
+
+        @Setup
+        public void setup() {
+            service = new InMemoryQueueService(URL_PREFIX, 0, VISIBILITY_TIMEOUT_MILLIS);
+            queueUrl = service.createQueue(QUEUE_NAME);
+        }
+    }
+
+    @Benchmark
+    public Integer dequeOfferPoll(DequeState state) {
+        state.deque.offer(1);
+        return state.deque.poll();
+    }
+
+    @Benchmark
+    public Integer ringOfferPoll(RingState state) {
+        state.ring.offer(1);
+        return state.ring.poll();
+    }
+
+    @Benchmark
+    public boolean servicePushPullDelete(ServiceState state) {
+        state.service.push(state.queueUrl, QUEUE_MESSAGE);
+        QueueMessage pulledMessage = state.service.pull(state.queueUrl);
+        return pulledMessage.isEmpty() || state.service.deleteMessage(state.queueUrl, pulledMessage.getReceiptId());
+    }
+
+    @Benchmark
+    @Threads(1)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public boolean consume1Thread(ConsumerState state) throws InterruptedException {
+        return consume(state);
+    }
+
+    @Benchmark
+    @Threads(2)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public boolean consume2Threads(ConsumerState state) throws InterruptedException {
+        return consume(state);
+    }
+
+    @Benchmark
+    @Threads(4)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public boolean consume4Threads(ConsumerState state) throws InterruptedException {
+        return consume(state);
+    }
+
+    @Benchmark
+    @Threads(8)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public boolean consume8Threads(ConsumerState state) throws InterruptedException {
+        return consume(state);
+    }
+
+    /**
+     * Pushes a message, so there is always one to pull, then pulls one, processes it and deletes
+     * it, as a consumer would.
+     */
+    private static boolean consume(ConsumerState state) throws InterruptedException {
+        state.service.push(state.queueUrl, QUEUE_MESSAGE);
+        QueueMessage pulledMessage = state.service.pull(state.queueUrl);
+        TimeUnit.MILLISECONDS.sleep(state.processingMillis); // process the message
+        return pulledMessage.isEmpty() || state.service.deleteMessage(state.queueUrl, pulledMessage.getReceiptId());
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(InMemoryQueueBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -6,12 +6,20 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.Ignore;
 
+import com.google.common.base.Strings;
+
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
@@ -19,6 +27,11 @@ import java.util.concurrent.TimeUnit;
 public class InMemoryQueueTest {
     private static final long PULL_WAIT_TIME_MILLIS = 100L;
     private static final long VISIBILITY_TIMEOUT_MILLIS = 500L;
+    private static final long LONG_PULL_WAIT_TIME_MILLIS = 1000L;
+    private static final long LONG_VISIBILITY_TIMEOUT_MILLIS = 60000L;
+    private static final long DELAY_MILLIS = 300L;
+    private static final long OFF_HEAP_BUDGET_BYTES = 1 << 20;
+    private static final long OFF_HEAP_QUEUE_BUDGET_BYTES = 1 << 20;
     private static final String URL_PREFIX = "http://sqs.us-east-2.amazonaws.com/123456789012/";
 
     private static final String FIRST_QUEUE_NAME = "MyQueue";
@@ -36,6 +49,8 @@ public class InMemoryQueueTest {
     private static final String QUEUE_MESSAGE_2 = "{\"message\":\"My message 2\",...}";
     private static final String[] QUEUE_MESSAGES = new String [] {QUEUE_MESSAGE_1, QUEUE_MESSAGE_2,
                                                                     QUEUE_MESSAGE_1 + " 3", QUEUE_MESSAGE_1 + " 4", QUEUE_MESSAGE_1 + " 5"};
+    private static final String FIRST_GROUP_ID = "MyGroup";
+    private static final String SECOND_GROUP_ID = "MyGroup2";
 
 
     private static final String INVALID_QUEUE_NAME = "My invalid#queue$name";
@@ -57,6 +72,12 @@ public class InMemoryQueueTest {
         return target.createQueue(FIRST_QUEUE_NAME);
     }
 
+    private InMemoryQueueService withLongPullWaitTime() {
+        InMemoryQueueService longPolling = new InMemoryQueueService(URL_PREFIX, LONG_PULL_WAIT_TIME_MILLIS, VISIBILITY_TIMEOUT_MILLIS);
+        longPolling.createQueue(FIRST_QUEUE_NAME);
+        return longPolling;
+    }
+
     private void setupFirstAndSecondQueues() {
         setupFirstQueue();
         target.createQueue(SECOND_QUEUE_NAME);
@@ -767,6 +788,30 @@ public class InMemoryQueueTest {
         Assert.assertEquals("Pulling from a queue of 1 message after a unsuccessful once visibility timeout has elapsed should return the same message", pulledMessageFixture, actualMessage);
     }
 
+    @Test(timeout = 5000)
+    public void can_delete_many_in_flight_messages_in_any_order() {
+        // Given a queue with many messages in flight
+        target = new InMemoryQueueService(URL_PREFIX, PULL_WAIT_TIME_MILLIS, LONG_VISIBILITY_TIMEOUT_MILLIS);
+        setupFirstQueue();
+        QueueMessage[] inflightMessages = new QueueMessage[20000];
+        for (int i=0; i<inflightMessages.length; i++) {
+            target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1 + i);
+        }
+        for (int i=0; i<inflightMessages.length; i++) {
+            inflightMessages[i] = target.pull(FIRST_QUEUE_URL);
+        }
+
+        // When they are deleted newest first
+        int deleted = 0;
+        for (int i=inflightMessages.length - 1; i>=0; i--) {
+            deleted += target.deleteMessage(FIRST_QUEUE_URL, inflightMessages[i].getReceiptId()) ? 1 : 0;
+        }
+
+        // Then every delete finds its message without scanning the rest
+        Assert.assertEquals("Every message deleted", inflightMessages.length, deleted);
+        Assert.assertEquals("Cannot delete twice", false, target.deleteMessage(FIRST_QUEUE_URL, inflightMessages[0].getReceiptId()));
+    }
+
     @Test(expected = IllegalStateException.class)
     public void cannot_delete_message_from_a_service_with_no_queues() {
         // Given a service with a single queue and a pushed and pulled message
@@ -855,6 +900,517 @@ public class InMemoryQueueTest {
 
     // java.util.ConcurrentModificationException ???
 
+    // Batch operations
+
+    @Test
+    public void can_push_a_batch_and_pull_it_in_order() {
+        // Given a service with a single queue
+        setupFirstQueue();
+
+        // When push a batch of 5 messages, then pull up to 10
+        List<QueueMessage> pushedMessages = target.pushBatch(FIRST_QUEUE_URL, Arrays.asList(QUEUE_MESSAGES));
+        List<QueueMessage> pulledMessages = target.pull(FIRST_QUEUE_URL, 10);
+
+        // Then all 5 are pulled, in the order they were pushed
+        Assert.assertEquals("Number of messages pushed", QUEUE_MESSAGES.length, pushedMessages.size());
+        Assert.assertEquals("Number of messages pulled", QUEUE_MESSAGES.length, pulledMessages.size());
+        for (int i=0; i<QUEUE_MESSAGES.length; i++) {
+            Assert.assertEquals("Pulled message id", pushedMessages.get(i).getMessageId(), pulledMessages.get(i).getMessageId());
+            Assert.assertEquals("Pulled message body", QUEUE_MESSAGES[i], pulledMessages.get(i).getMessageBody());
+        }
+    }
+
+    @Test
+    public void pull_returns_no_more_than_max_messages() {
+        // Given a service with a single queue and 5 pushed messages
+        setupFirstQueue();
+        target.pushBatch(FIRST_QUEUE_URL, Arrays.asList(QUEUE_MESSAGES));
+
+        // When pull up to 2, then up to 10
+        List<QueueMessage> firstPull = target.pull(FIRST_QUEUE_URL, 2);
+        List<QueueMessage> secondPull = target.pull(FIRST_QUEUE_URL, 10);
+
+        // Then 2 are pulled, then the other 3
+        Assert.assertEquals("Number of messages in the first pull", 2, firstPull.size());
+        Assert.assertEquals("Number of messages in the second pull", 3, secondPull.size());
+    }
+
+    @Test
+    public void pull_from_an_empty_queue_returns_no_messages() {
+        // Given a service with an empty queue
+        setupFirstQueue();
+
+        // When pull up to 10
+        List<QueueMessage> pulledMessages = target.pull(FIRST_QUEUE_URL, 10);
+
+        // Then no messages
+        Assert.assertEquals("Number of messages pulled", 0, pulledMessages.size());
+    }
+
+    @Test
+    public void can_delete_a_batch_of_pulled_messages() throws InterruptedException {
+        // Given a service with a single queue and 5 pulled messages
+        setupFirstQueue();
+        target.pushBatch(FIRST_QUEUE_URL, Arrays.asList(QUEUE_MESSAGES));
+        List<String> receiptIds = new ArrayList<>();
+        for (QueueMessage pulledMessage : target.pull(FIRST_QUEUE_URL, 10)) {
+            receiptIds.add(pulledMessage.getReceiptId());
+        }
+        receiptIds.add(receiptIds.get(0)); // already deleted by then
+        receiptIds.add("not-a-receipt-id");
+
+        // When delete them as a batch, then wait past the visibility timeout
+        List<Boolean> deleted = target.deleteBatch(FIRST_QUEUE_URL, receiptIds);
+        Thread.sleep(VISIBILITY_TIMEOUT_MILLIS * 2);
+
+        // Then each pulled message is deleted once and none are redelivered
+        Assert.assertEquals("Deleted", Arrays.asList(true, true, true, true, true, false, false), deleted);
+        Assert.assertEquals("Number of messages redelivered", 0, target.pull(FIRST_QUEUE_URL, 10).size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cannot_pull_more_than_10_messages() {
+        // Given a service with a single queue
+        setupFirstQueue();
+
+        // When pull up to 11
+        target.pull(FIRST_QUEUE_URL, 11);
+
+        // Then illegal argument exception
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cannot_push_an_empty_batch() {
+        // Given a service with a single queue
+        setupFirstQueue();
+
+        // When push an empty batch
+        target.pushBatch(FIRST_QUEUE_URL, new ArrayList<>());
+
+        // Then illegal argument exception
+    }
+
+    @Test
+    public void messages_with_no_room_off_heap_are_not_accepted() {
+        // Given a service that keeps bodies off heap with room for 2 small bodies per queue
+        target = new InMemoryQueueService(URL_PREFIX, PULL_WAIT_TIME_MILLIS, VISIBILITY_TIMEOUT_MILLIS,
+                InMemoryQueueService.DEFAULT_TICK_MILLIS, OFF_HEAP_BUDGET_BYTES, 128);
+        setupFirstQueue();
+
+        // When push a batch of 5 messages
+        List<QueueMessage> pushedMessages = target.pushBatch(FIRST_QUEUE_URL, Arrays.asList(QUEUE_MESSAGES));
+
+        // Then the first 2 are accepted and the rest come back empty
+        for (int i=0; i<QUEUE_MESSAGES.length; i++) {
+            Assert.assertEquals("Message " + i + " accepted", i < 2, !pushedMessages.get(i).isEmpty());
+        }
+        Assert.assertEquals("Number of messages pulled", 2, target.pull(FIRST_QUEUE_URL, 10).size());
+    }
+
+    // Async
+
+    @Test
+    public void pending_async_pull_is_completed_by_a_push() throws Exception {
+        // Given a service with an empty queue and a pending async pull
+        setupFirstQueue();
+        target = withLongPullWaitTime();
+        CompletableFuture<QueueMessage> pulledFuture = target.pullAsync(FIRST_QUEUE_URL);
+
+        // When push a message
+        QueueMessage pushedMessage = target.pushAsync(FIRST_QUEUE_URL, QUEUE_MESSAGE_1).get();
+
+        // Then the pull completes with the pushed message, which can be deleted
+        QueueMessage pulledMessage = pulledFuture.get(LONG_PULL_WAIT_TIME_MILLIS, TimeUnit.MILLISECONDS);
+        Assert.assertEquals("Pulled message id", pushedMessage.getMessageId(), pulledMessage.getMessageId());
+        Assert.assertEquals("Pulled message deleted", true, target.deleteMessageAsync(FIRST_QUEUE_URL, pulledMessage.getReceiptId()).get());
+    }
+
+    @Test
+    public void pending_async_pull_of_an_empty_queue_completes_empty_after_the_wait_time() throws Exception {
+        // Given a service with an empty queue
+        setupFirstQueue();
+
+        // When pull async
+        long startTime = System.currentTimeMillis();
+        QueueMessage pulledMessage = target.pullAsync(FIRST_QUEUE_URL).get(LONG_PULL_WAIT_TIME_MILLIS, TimeUnit.MILLISECONDS);
+
+        // Then an empty message once the pull wait time is up
+        Assert.assertEquals("Pulled message is empty", true, pulledMessage.isEmpty());
+        Assert.assertEquals("Waited for the pull wait time", true, System.currentTimeMillis() - startTime >= PULL_WAIT_TIME_MILLIS);
+    }
+
+    @Test
+    public void pending_async_pulls_take_no_threads() throws Exception {
+        // Given a service with an empty queue
+        setupFirstQueue();
+        target = withLongPullWaitTime();
+        int threadsBefore = Thread.activeCount();
+
+        // When pull async 1000 times, then push as many messages
+        List<CompletableFuture<QueueMessage>> pulledFutures = new ArrayList<>();
+        for (int i=0; i<1000; i++) {
+            pulledFutures.add(target.pullAsync(FIRST_QUEUE_URL));
+        }
+        int threadsPending = Thread.activeCount();
+        Set<String> pushedIds = new HashSet<>();
+        for (int i=0; i<1000; i++) {
+            pushedIds.add(target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1 + i).getMessageId());
+        }
+
+        // Then no more than a shared thread was started, and each pull gets a different message
+        Assert.assertEquals("Threads started", true, threadsPending - threadsBefore <= 1);
+        Set<String> pulledIds = new HashSet<>();
+        for (CompletableFuture<QueueMessage> pulledFuture : pulledFutures) {
+            pulledIds.add(pulledFuture.get(LONG_PULL_WAIT_TIME_MILLIS, TimeUnit.MILLISECONDS).getMessageId());
+        }
+        Assert.assertEquals("Pulled message ids", pushedIds, pulledIds);
+    }
+
+    @Test
+    public void async_push_to_a_non_existent_queue_completes_exceptionally() throws Exception {
+        // Given a service with no queues
+
+        // When push async
+        CompletableFuture<QueueMessage> pushedFuture = target.pushAsync(NON_EXISTENT_QUEUE_URL, QUEUE_MESSAGE_1);
+
+        // Then the future completes with an illegal state exception
+        try {
+            pushedFuture.get();
+            Assert.fail("Push to a non-existent queue succeeded");
+        } catch (ExecutionException e) {
+            Assert.assertEquals("Cause", IllegalStateException.class, e.getCause().getClass());
+        }
+    }
+
+    // Visibility timeout changes
+
+    @Test
+    public void extended_message_is_not_redelivered_until_its_new_timeout_expires() throws InterruptedException {
+        // Given a service with a single queue and a pulled message
+        setupFirstQueue();
+        target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1);
+        QueueMessage pulledMessage = target.pull(FIRST_QUEUE_URL);
+
+        // When extend its visibility timeout to 4 timeouts, then wait past the queue's timeout
+        boolean changed = target.changeVisibility(FIRST_QUEUE_URL, pulledMessage.getReceiptId(), VISIBILITY_TIMEOUT_MILLIS * 4);
+        Thread.sleep(VISIBILITY_TIMEOUT_MILLIS * 2);
+
+        // Then it is not redelivered, and can still be deleted
+        Assert.assertEquals("Visibility timeout changed", true, changed);
+        Assert.assertEquals("Queue looks empty", true, target.pull(FIRST_QUEUE_URL).isEmpty());
+        Assert.assertEquals("Message deleted", true, target.deleteMessage(FIRST_QUEUE_URL, pulledMessage.getReceiptId()));
+    }
+
+    @Test
+    public void message_changed_to_a_0_visibility_timeout_is_redelivered_straight_away() {
+        // Given a service with a single queue and a pulled message
+        setupFirstQueue();
+        QueueMessage pushedMessage = target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1);
+        QueueMessage pulledMessage = target.pull(FIRST_QUEUE_URL);
+
+        // When change its visibility timeout to 0, then pull again
+        target.changeVisibility(FIRST_QUEUE_URL, pulledMessage.getReceiptId(), 0);
+        QueueMessage redeliveredMessage = target.pull(FIRST_QUEUE_URL);
+
+        // Then it is redelivered with a new receipt id, and the old one is no longer valid
+        Assert.assertEquals("Redelivered message id", pushedMessage.getMessageId(), redeliveredMessage.getMessageId());
+        Assert.assertEquals("Old receipt id deleted", false, target.deleteMessage(FIRST_QUEUE_URL, pulledMessage.getReceiptId()));
+        Assert.assertEquals("New receipt id deleted", true, target.deleteMessage(FIRST_QUEUE_URL, redeliveredMessage.getReceiptId()));
+    }
+
+    @Test
+    public void pull_with_a_visibility_timeout_overrides_the_queues() throws InterruptedException {
+        // Given a service with a single queue and 2 pushed messages
+        setupFirstQueue();
+        target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1);
+        target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_2);
+
+        // When pull one with a visibility timeout of 4 timeouts and the other with the queue's, then wait past the queue's timeout
+        QueueMessage extendedMessage = target.pull(FIRST_QUEUE_URL, 1, VISIBILITY_TIMEOUT_MILLIS * 4).get(0);
+        QueueMessage pulledMessage = target.pull(FIRST_QUEUE_URL);
+        Thread.sleep(VISIBILITY_TIMEOUT_MILLIS * 2);
+
+        // Then only the one pulled with the queue's timeout is redelivered
+        List<QueueMessage> redeliveredMessages = target.pull(FIRST_QUEUE_URL, 10);
+        Assert.assertEquals("Number of messages redelivered", 1, redeliveredMessages.size());
+        Assert.assertEquals("Redelivered message id", pulledMessage.getMessageId(), redeliveredMessages.get(0).getMessageId());
+        Assert.assertEquals("Extended message deleted", true, target.deleteMessage(FIRST_QUEUE_URL, extendedMessage.getReceiptId()));
+    }
+
+    @Test
+    public void can_change_the_visibility_of_a_batch_of_pulled_messages() {
+        // Given a service with a single queue, 5 pulled messages and one of them deleted
+        setupFirstQueue();
+        target.pushBatch(FIRST_QUEUE_URL, Arrays.asList(QUEUE_MESSAGES));
+        List<String> receiptIds = new ArrayList<>();
+        for (QueueMessage pulledMessage : target.pull(FIRST_QUEUE_URL, 10)) {
+            receiptIds.add(pulledMessage.getReceiptId());
+        }
+        target.deleteMessage(FIRST_QUEUE_URL, receiptIds.get(0));
+        receiptIds.add("not-a-receipt-id");
+
+        // When change their visibility timeout to 0 as a batch
+        List<Boolean> changed = target.changeVisibilityBatch(FIRST_QUEUE_URL, receiptIds, 0);
+
+        // Then all but the deleted and unknown ones are changed, and redelivered
+        Assert.assertEquals("Changed", Arrays.asList(false, true, true, true, true, false), changed);
+        Assert.assertEquals("Number of messages redelivered", 4, target.pull(FIRST_QUEUE_URL, 10).size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cannot_change_the_visibility_timeout_to_more_than_12_hours() {
+        // Given a service with a single queue and a pulled message
+        setupFirstQueue();
+        target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1);
+        QueueMessage pulledMessage = target.pull(FIRST_QUEUE_URL);
+
+        // When change its visibility timeout to more than 12 hours
+        target.changeVisibility(FIRST_QUEUE_URL, pulledMessage.getReceiptId(), TimeUnit.HOURS.toMillis(12) + 1);
+
+        // Then illegal argument exception
+    }
+
+    // Delivery delay
+
+    @Test
+    public void delayed_message_is_not_pulled_until_its_delay_has_gone_by() throws InterruptedException {
+        // Given a service with a single queue
+        setupFirstQueue();
+
+        // When push a message with a delay, then pull before and after the delay has gone by
+        QueueMessage pushedMessage = target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1, DELAY_MILLIS);
+        QueueMessage earlyMessage = target.pull(FIRST_QUEUE_URL);
+        Thread.sleep(DELAY_MILLIS);
+        QueueMessage pulledMessage = target.pull(FIRST_QUEUE_URL);
+
+        // Then it is only pulled once the delay has gone by
+        Assert.assertEquals("Not pulled before the delay", true, earlyMessage.isEmpty());
+        Assert.assertEquals("Pulled message id", pushedMessage.getMessageId(), pulledMessage.getMessageId());
+        Assert.assertEquals("Pulled message deleted", true, target.deleteMessage(FIRST_QUEUE_URL, pulledMessage.getReceiptId()));
+    }
+
+    @Test
+    public void delayed_message_does_not_hold_up_the_messages_pushed_after_it() {
+        // Given a service with a single queue
+        setupFirstQueue();
+
+        // When push a message with a delay, then one without
+        target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1, DELAY_MILLIS);
+        QueueMessage undelayedMessage = target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_2, 0);
+
+        // Then the one without a delay is pulled first
+        Assert.assertEquals("Pulled message id", undelayedMessage.getMessageId(), target.pull(FIRST_QUEUE_URL).getMessageId());
+    }
+
+    @Test
+    public void queue_delay_applies_to_messages_pushed_without_a_delay_of_their_own() throws InterruptedException {
+        // Given a service with a single queue with a delay
+        setupFirstQueue();
+        target.setQueueDelay(FIRST_QUEUE_URL, DELAY_MILLIS);
+
+        // When push a message, then pull before and after the delay has gone by
+        QueueMessage pushedMessage = target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1);
+        QueueMessage earlyMessage = target.pull(FIRST_QUEUE_URL);
+        Thread.sleep(DELAY_MILLIS);
+        QueueMessage pulledMessage = target.pull(FIRST_QUEUE_URL);
+
+        // Then it is only pulled once the delay has gone by
+        Assert.assertEquals("Not pulled before the delay", true, earlyMessage.isEmpty());
+        Assert.assertEquals("Pulled message id", pushedMessage.getMessageId(), pulledMessage.getMessageId());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cannot_push_with_a_delay_of_more_than_15_minutes() {
+        // Given a service with a single queue
+        setupFirstQueue();
+
+        // When push with a delay of more than 15 minutes
+        target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1, TimeUnit.MINUTES.toMillis(15) + 1);
+
+        // Then illegal argument exception
+    }
+
+    // Dead letter queues
+
+    @Test
+    public void pulled_message_counts_how_many_times_it_has_been_pulled() {
+        // Given a service with a single queue with a pushed message
+        setupFirstQueue();
+        target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1);
+
+        // When pull, give it up straight away, then pull again
+        QueueMessage firstPulledMessage = target.pull(FIRST_QUEUE_URL);
+        target.changeVisibility(FIRST_QUEUE_URL, firstPulledMessage.getReceiptId(), 0);
+        QueueMessage secondPulledMessage = target.pull(FIRST_QUEUE_URL);
+
+        // Then the receive count goes up with each pull
+        Assert.assertEquals("First receive count", 1, firstPulledMessage.getReceiveCount());
+        Assert.assertEquals("Second receive count", 2, secondPulledMessage.getReceiveCount());
+    }
+
+    @Test
+    public void message_is_moved_to_the_dead_letter_queue_once_pulled_the_max_receive_count() {
+        // Given a queue whose messages go to a dead letter queue after 2 receives, with a pushed message
+        setupFirstAndSecondQueues();
+        target.setRedrivePolicy(FIRST_QUEUE_URL, SECOND_QUEUE_URL, 2);
+        QueueMessage pushedMessage = target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1);
+
+        // When pulled and given up twice
+        for (int i=0; i<2; i++) {
+            QueueMessage pulledMessage = target.pull(FIRST_QUEUE_URL);
+            Assert.assertEquals("Pulled message id", pushedMessage.getMessageId(), pulledMessage.getMessageId());
+            target.changeVisibility(FIRST_QUEUE_URL, pulledMessage.getReceiptId(), 0);
+        }
+
+        // Then it is not redelivered, but is in the dead letter queue with the same id and body
+        Assert.assertEquals("Not redelivered", true, target.pull(FIRST_QUEUE_URL).isEmpty());
+        QueueMessage deadLetter = target.pull(SECOND_QUEUE_URL);
+        Assert.assertEquals("Dead letter message id", pushedMessage.getMessageId(), deadLetter.getMessageId());
+        Assert.assertEquals("Dead letter message body", QUEUE_MESSAGE_1, deadLetter.getMessageBody());
+    }
+
+    @Test
+    public void redrive_moves_every_dead_letter_back_to_the_queue() {
+        // Given a dead letter queue with 3 messages
+        setupFirstAndSecondQueues();
+        for (int i=0; i<3; i++) {
+            target.push(SECOND_QUEUE_URL, QUEUE_MESSAGE_1 + i);
+        }
+
+        // When redrive them back to the queue
+        long moved = target.redrive(SECOND_QUEUE_URL, FIRST_QUEUE_URL, 100);
+
+        // Then all 3 are in the queue, in order, and none are left in the dead letter queue
+        Assert.assertEquals("Messages moved", 3, moved);
+        List<QueueMessage> pulledMessages = target.pull(FIRST_QUEUE_URL, 10);
+        Assert.assertEquals("Messages in the queue", 3, pulledMessages.size());
+        for (int i=0; i<3; i++) {
+            Assert.assertEquals("Message body", QUEUE_MESSAGE_1 + i, pulledMessages.get(i).getMessageBody());
+        }
+        Assert.assertEquals("Dead letter queue empty", true, target.pull(SECOND_QUEUE_URL).isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cannot_set_a_queue_as_its_own_dead_letter_queue() {
+        // Given a service with a single queue
+        setupFirstQueue();
+
+        // When set the queue as its own dead letter queue
+        target.setRedrivePolicy(FIRST_QUEUE_URL, FIRST_QUEUE_URL, 2);
+
+        // Then illegal argument exception
+    }
+
+    // Message groups
+
+    @Test
+    public void messages_of_a_group_are_pulled_one_at_a_time_in_order() {
+        // Given a queue with 3 messages pushed to the same group
+        setupFirstQueue();
+        for (int i=0; i<3; i++) {
+            target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1 + i, FIRST_GROUP_ID);
+        }
+
+        // When pull as many as there are, deleting each one pulled
+        // Then only one is pulled at a time, in the order they were pushed
+        for (int i=0; i<3; i++) {
+            List<QueueMessage> pulledMessages = target.pull(FIRST_QUEUE_URL, 10);
+            Assert.assertEquals("Messages pulled", 1, pulledMessages.size());
+            Assert.assertEquals("Message body", QUEUE_MESSAGE_1 + i, pulledMessages.get(0).getMessageBody());
+            Assert.assertEquals("Group id", FIRST_GROUP_ID, pulledMessages.get(0).getGroupId());
+            target.deleteMessage(FIRST_QUEUE_URL, pulledMessages.get(0).getReceiptId());
+        }
+        Assert.assertEquals("Queue is empty", true, target.pull(FIRST_QUEUE_URL).isEmpty());
+    }
+
+    @Test
+    public void a_group_with_a_message_in_flight_does_not_block_other_messages() {
+        // Given a queue with 2 messages in one group, 1 in another and 1 in no group
+        setupFirstQueue();
+        QueueMessage firstMessage = target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1 + 1, FIRST_GROUP_ID);
+        target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1 + 2, FIRST_GROUP_ID);
+        QueueMessage secondGroupMessage = target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1 + 3, SECOND_GROUP_ID);
+        QueueMessage ungroupedMessage = target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1 + 4);
+
+        // When pull as many as there are
+        List<QueueMessage> pulledMessages = target.pull(FIRST_QUEUE_URL, 10);
+
+        // Then the first of each group and the ungrouped message are pulled, the second of the first group is held back
+        Assert.assertEquals("Messages pulled", 3, pulledMessages.size());
+        Assert.assertEquals("First group's first message", firstMessage.getMessageId(), pulledMessages.get(0).getMessageId());
+        Assert.assertEquals("Second group's message", secondGroupMessage.getMessageId(), pulledMessages.get(1).getMessageId());
+        Assert.assertEquals("Ungrouped message", ungroupedMessage.getMessageId(), pulledMessages.get(2).getMessageId());
+        Assert.assertEquals("Ungrouped message's group", null, pulledMessages.get(2).getGroupId());
+        Assert.assertEquals("Held back", true, target.pull(FIRST_QUEUE_URL).isEmpty());
+    }
+
+    @Test
+    public void message_of_a_group_that_times_out_is_redelivered_before_the_rest_of_its_group() {
+        // Given a queue with 2 messages in the same group, the first pulled
+        setupFirstQueue();
+        QueueMessage firstMessage = target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1 + 1, FIRST_GROUP_ID);
+        target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1 + 2, FIRST_GROUP_ID);
+        QueueMessage pulledMessage = target.pull(FIRST_QUEUE_URL);
+
+        // When it is given up
+        target.changeVisibility(FIRST_QUEUE_URL, pulledMessage.getReceiptId(), 0);
+        List<QueueMessage> redeliveredMessages = target.pull(FIRST_QUEUE_URL, 10);
+
+        // Then it alone is redelivered
+        Assert.assertEquals("Messages redelivered", 1, redeliveredMessages.size());
+        Assert.assertEquals("Redelivered message id", firstMessage.getMessageId(), redeliveredMessages.get(0).getMessageId());
+    }
+
+    @Test
+    public void queue_delay_applies_to_messages_of_a_group() throws InterruptedException {
+        // Given a service with a single queue with a delay
+        setupFirstQueue();
+        target.setQueueDelay(FIRST_QUEUE_URL, DELAY_MILLIS);
+
+        // When push 2 messages to the same group, then pull before and after the delay has gone by
+        QueueMessage firstMessage = target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1 + 1, FIRST_GROUP_ID);
+        target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1 + 2, FIRST_GROUP_ID);
+        List<QueueMessage> earlyMessages = target.pull(FIRST_QUEUE_URL, 10);
+        Thread.sleep(DELAY_MILLIS);
+        List<QueueMessage> pulledMessages = target.pull(FIRST_QUEUE_URL, 10);
+
+        // Then only the first is pulled, once the delay has gone by
+        Assert.assertEquals("Not pulled before the delay", true, earlyMessages.isEmpty());
+        Assert.assertEquals("Messages pulled", 1, pulledMessages.size());
+        Assert.assertEquals("Pulled message id", firstMessage.getMessageId(), pulledMessages.get(0).getMessageId());
+    }
+
+    @Test
+    public void message_of_a_group_released_before_its_delay_is_up_is_not_pulled_until_it_is() throws InterruptedException {
+        // Given a queue with a message of a group in flight, and another of the group pushed behind it once the queue has a delay
+        setupFirstQueue();
+        target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1 + 1, FIRST_GROUP_ID);
+        QueueMessage inflightMessage = target.pull(FIRST_QUEUE_URL);
+        target.setQueueDelay(FIRST_QUEUE_URL, DELAY_MILLIS);
+        QueueMessage secondMessage = target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1 + 2, FIRST_GROUP_ID);
+
+        // When the first is deleted, then pull before and after the delay has gone by
+        target.deleteMessage(FIRST_QUEUE_URL, inflightMessage.getReceiptId());
+        QueueMessage earlyMessage = target.pull(FIRST_QUEUE_URL);
+        Thread.sleep(DELAY_MILLIS);
+        QueueMessage pulledMessage = target.pull(FIRST_QUEUE_URL);
+
+        // Then the second is only pulled once the delay has gone by
+        Assert.assertEquals("Not pulled before the delay", true, earlyMessage.isEmpty());
+        Assert.assertEquals("Pulled message id", secondMessage.getMessageId(), pulledMessage.getMessageId());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cannot_push_a_message_to_an_empty_group() {
+        // Given a service with a single queue
+        setupFirstQueue();
+
+        // When push a message to an empty group
+        target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1, " ");
+
+        // Then illegal argument exception
+    }
+
     // Concurrency tests
 
     @Test
@@ -970,4 +1526,240 @@ public class InMemoryQueueTest {
         Assert.assertEquals("Any subsequent pulls returns an empty queue message because the queue should be empty",
                 true, target.pull(SECOND_QUEUE_URL).isEmpty());
     }
+
+    @Test
+    public void consumers_wait_on_the_same_queue_in_parallel() throws InterruptedException, ExecutionException {
+        // Given a service with a long pull wait time and a single empty queue
+        target = new InMemoryQueueService(URL_PREFIX, LONG_PULL_WAIT_TIME_MILLIS, VISIBILITY_TIMEOUT_MILLIS);
+        setupFirstQueue();
+
+        // When 4 consumers pull at the same time
+        ExecutorService executorService = Executors.newFixedThreadPool(4);
+        long startTime = System.currentTimeMillis();
+        Future<?>[] pulls = new Future<?>[4];
+        for (int i=0; i<pulls.length; i++) {
+            pulls[i] = executorService.submit(() -> target.pull(FIRST_QUEUE_URL));
+        }
+        for (Future<?> pull : pulls) {
+            pull.get();
+        }
+        long elapsed = System.currentTimeMillis() - startTime;
+        executorService.shutdown();
+
+        // Then they all wait at once rather than one after another
+        Assert.assertEquals("Pulls waited in parallel", true, elapsed < 2 * LONG_PULL_WAIT_TIME_MILLIS);
+    }
+
+    @Test
+    public void a_delete_is_not_blocked_by_a_waiting_pull() throws InterruptedException, ExecutionException {
+        // Given a service with a long pull wait time and a pulled message
+        target = new InMemoryQueueService(URL_PREFIX, LONG_PULL_WAIT_TIME_MILLIS, VISIBILITY_TIMEOUT_MILLIS);
+        setupFirstQueue();
+        QueueMessage pulledMessage = setupAPulledMessageForTheFirstQueue();
+
+        // When the message is deleted while another consumer is waiting on the empty queue
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        CountDownLatch waiting = new CountDownLatch(1);
+        Future<QueueMessage> waitingPull = executorService.submit(() -> {
+            waiting.countDown();
+            return target.pull(FIRST_QUEUE_URL);
+        });
+        waiting.await();
+        Thread.sleep(50); // let the pull start waiting
+        long startTime = System.currentTimeMillis();
+        boolean deleted = target.deleteMessage(FIRST_QUEUE_URL, pulledMessage.getReceiptId());
+        long elapsed = System.currentTimeMillis() - startTime;
+
+        // Then the delete returns straight away
+        Assert.assertEquals("Message is deleted", true, deleted);
+        Assert.assertEquals("Delete did not wait for the pull", true, elapsed < LONG_PULL_WAIT_TIME_MILLIS / 2);
+        Assert.assertEquals("Waiting pull finds nothing", true, waitingPull.get().isEmpty());
+        executorService.shutdown();
+    }
+
+    @Test
+    public void a_timed_out_message_is_redelivered_to_a_waiting_consumer() throws InterruptedException {
+        // Given a service with a long pull wait time and a pulled message
+        target = new InMemoryQueueService(URL_PREFIX, LONG_PULL_WAIT_TIME_MILLIS, VISIBILITY_TIMEOUT_MILLIS);
+        setupFirstQueue();
+        QueueMessage pulledMessage = setupAPulledMessageForTheFirstQueue();
+
+        // When another consumer waits on the queue until the message times out
+        long startTime = System.currentTimeMillis();
+        QueueMessage redelivered = target.pull(FIRST_QUEUE_URL);
+        long elapsed = System.currentTimeMillis() - startTime;
+
+        // Then the message is redelivered within a tick of timing out, with no other request to prompt it
+        Assert.assertEquals("Same message is redelivered", pulledMessage.getMessageId(), redelivered.getMessageId());
+        Assert.assertEquals("Redelivered soon after timing out", true,
+                elapsed < VISIBILITY_TIMEOUT_MILLIS + InMemoryQueueService.DEFAULT_TICK_MILLIS * 10);
+    }
+
+    // Ring buffer queues
+
+    @Test
+    public void a_ring_buffer_queue_pulls_messages_in_the_order_they_were_pushed() {
+        // Given a queue backed by a ring buffer
+        target.createQueue(FIRST_QUEUE_NAME, 16);
+
+        // When push messages
+        QueueMessage[] pushedMessages = new QueueMessage[QUEUE_MESSAGES.length];
+        for (int i=0; i<QUEUE_MESSAGES.length; i++) {
+            pushedMessages[i] = target.push(FIRST_QUEUE_URL, QUEUE_MESSAGES[i]);
+        }
+
+        // Then they are pulled in FIFO order and the queue is then empty
+        for (QueueMessage pushedMessage : pushedMessages) {
+            Assert.assertEquals("Pulled in order", pushedMessage, target.pull(FIRST_QUEUE_URL));
+        }
+        Assert.assertEquals("Queue is empty", true, target.pull(FIRST_QUEUE_URL).isEmpty());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void cannot_push_to_a_full_ring_buffer_queue() {
+        // Given a full queue backed by a ring buffer
+        target.createQueue(FIRST_QUEUE_NAME, 2);
+        target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1);
+        target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_2);
+
+        // When push another message
+        target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1);
+
+        // Then exception thrown
+    }
+
+    @Test
+    public void a_timed_out_message_is_redelivered_from_a_full_ring_buffer_queue_first() throws InterruptedException {
+        // Given a queue backed by a ring buffer that is full again after a message has been pulled
+        target.createQueue(FIRST_QUEUE_NAME, 2);
+        target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1);
+        target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_2);
+        QueueMessage pulledMessage = target.pull(FIRST_QUEUE_URL);
+        target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1 + 3);
+
+        // When the pulled message times out
+        Thread.sleep(VISIBILITY_TIMEOUT_MILLIS + InMemoryQueueService.DEFAULT_TICK_MILLIS * 5);
+
+        // Then it is not lost and is redelivered ahead of the rest
+        Assert.assertEquals("Timed out message is redelivered first", pulledMessage.getMessageId(), target.pull(FIRST_QUEUE_URL).getMessageId());
+    }
+
+    @Test
+    public void a_waiting_pull_on_a_ring_buffer_queue_is_woken_by_a_push() throws InterruptedException {
+        // Given a service with a long pull wait time and an empty queue backed by a ring buffer
+        target = new InMemoryQueueService(URL_PREFIX, LONG_PULL_WAIT_TIME_MILLIS, VISIBILITY_TIMEOUT_MILLIS);
+        target.createQueue(FIRST_QUEUE_NAME, 16);
+
+        // When a message is pushed while a pull is waiting
+        ScheduledExecutorService scheduledExecutorService = Executors.newScheduledThreadPool(1);
+        scheduledExecutorService.schedule(() -> target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1), 100, TimeUnit.MILLISECONDS);
+        long startTime = System.currentTimeMillis();
+        QueueMessage actualMessage = target.pull(FIRST_QUEUE_URL);
+        long elapsed = System.currentTimeMillis() - startTime;
+        scheduledExecutorService.shutdown();
+
+        // Then the pull returns the message well before the wait time elapses
+        Assert.assertEquals("Pulled message body", QUEUE_MESSAGE_1, actualMessage.getMessageBody());
+        Assert.assertEquals("Pull returned soon after the push", true, elapsed < LONG_PULL_WAIT_TIME_MILLIS / 2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cannot_create_a_ring_buffer_queue_with_a_negative_capacity() {
+        target.createQueue(FIRST_QUEUE_NAME, -1);
+    }
+
+    // Off heap bodies
+
+    @Test
+    public void off_heap_bodies_are_pulled_intact() {
+        // Given a service that keeps bodies off heap
+        target = new InMemoryQueueService(URL_PREFIX, PULL_WAIT_TIME_MILLIS, VISIBILITY_TIMEOUT_MILLIS,
+                InMemoryQueueService.DEFAULT_TICK_MILLIS, OFF_HEAP_BUDGET_BYTES, OFF_HEAP_QUEUE_BUDGET_BYTES);
+        setupFirstQueue();
+
+        // When push messages of different sizes, then pull and delete them
+        List<String> pushedBodies = new ArrayList<>();
+        List<QueueMessage> pulledMessages = new ArrayList<>();
+        for (int i=1; i<=100; i++) {
+            pushedBodies.add(Strings.repeat(QUEUE_MESSAGE_1, i));
+            target.push(FIRST_QUEUE_URL, pushedBodies.get(i - 1));
+        }
+        for (int i=1; i<=100; i++) {
+            QueueMessage pulledMessage = target.pull(FIRST_QUEUE_URL);
+            target.deleteMessage(FIRST_QUEUE_URL, pulledMessage.getReceiptId());
+            pulledMessages.add(pulledMessage);
+        }
+        target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_2); // reuses the space just freed
+
+        // Then the bodies are intact, even after their space off heap has been reused
+        for (int i=0; i<100; i++) {
+            Assert.assertEquals("Pulled message body", pushedBodies.get(i), pulledMessages.get(i).getMessageBody());
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void cannot_push_beyond_the_off_heap_queue_budget() {
+        // Given a queue whose off heap budget holds 2 bodies, and is used up
+        target = new InMemoryQueueService(URL_PREFIX, PULL_WAIT_TIME_MILLIS, VISIBILITY_TIMEOUT_MILLIS,
+                InMemoryQueueService.DEFAULT_TICK_MILLIS, OFF_HEAP_BUDGET_BYTES, 128);
+        setupFirstQueue();
+        target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1);
+        target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_2);
+
+        // When push another message
+        target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1);
+
+        // Then exception thrown
+    }
+
+    @Test
+    public void deleted_messages_and_queues_give_back_their_off_heap_space() {
+        // Given a queue whose off heap budget holds 2 bodies, and is used up
+        target = new InMemoryQueueService(URL_PREFIX, PULL_WAIT_TIME_MILLIS, VISIBILITY_TIMEOUT_MILLIS,
+                InMemoryQueueService.DEFAULT_TICK_MILLIS, OFF_HEAP_BUDGET_BYTES, 128);
+        setupFirstQueue();
+        target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1);
+        target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_2);
+
+        // When a message is deleted
+        target.deleteMessage(FIRST_QUEUE_URL, target.pull(FIRST_QUEUE_URL).getReceiptId());
+
+        // Then there is room for another
+        target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1);
+
+        // When the queue is deleted and created again
+        target.deleteQueue(FIRST_QUEUE_URL);
+        setupFirstQueue();
+
+        // Then its budget is all there again
+        target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_1);
+        target.push(FIRST_QUEUE_URL, QUEUE_MESSAGE_2);
+        Assert.assertEquals("Pulled message body", QUEUE_MESSAGE_1, target.pull(FIRST_QUEUE_URL).getMessageBody());
+    }
+
+    // Concurrent pulls
+
+    @Test
+    public void waiting_pulls_do_not_wait_one_after_the_other() throws InterruptedException {
+        // Given a service with a long pull wait time and an empty queue
+        target = withLongPullWaitTime();
+        int consumers = 4;
+        CountDownLatch started = new CountDownLatch(consumers);
+        CountDownLatch finished = new CountDownLatch(consumers);
+        ExecutorService executorService = Executors.newFixedThreadPool(consumers);
+
+        // When 4 consumers all pull at once
+        for (int i=0; i<consumers; i++) {
+            executorService.submit(() -> {
+                started.countDown();
+                target.pull(FIRST_QUEUE_URL);
+                finished.countDown();
+            });
+        }
+
+        // Then they all wait at the same time, so all give up in about one pull wait time rather than 4
+        Assert.assertEquals("Started", true, started.await(LONG_PULL_WAIT_TIME_MILLIS, TimeUnit.MILLISECONDS));
+        Assert.assertEquals("Finished within 2 pull wait times", true, finished.await(LONG_PULL_WAIT_TIME_MILLIS * 2, TimeUnit.MILLISECONDS));
+        executorService.shutdown();
+    }
 }
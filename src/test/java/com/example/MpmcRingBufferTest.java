@@ -0,0 +1,121 @@
+package com.example;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MpmcRingBufferTest {
+    private static final int CAPACITY = 8;
+
+    private MpmcRingBuffer<Integer> target = new MpmcRingBuffer<>(CAPACITY);
+
+    // Method: boolean offer(E element) and E poll()
+
+    @Test
+    public void elements_are_polled_in_the_order_they_were_offered() {
+        // Given a ring that has gone round more than once
+        for (int i=0; i<CAPACITY + 3; i++) {
+            target.offer(i);
+            target.poll();
+        }
+
+        // When elements are offered and polled
+        for (int i=0; i<CAPACITY; i++) {
+            target.offer(i);
+        }
+
+        // Then they come out in FIFO order
+        for (int i=0; i<CAPACITY; i++) {
+            Assert.assertEquals("Polled in order", Integer.valueOf(i), target.poll());
+        }
+        Assert.assertEquals("Empty ring", null, target.poll());
+    }
+
+    @Test
+    public void a_full_ring_refuses_an_offer() {
+        // Given a full ring
+        for (int i=0; i<CAPACITY; i++) {
+            target.offer(i);
+        }
+
+        // When offered another element
+        boolean actual = target.offer(CAPACITY);
+
+        // Then it is refused until there is room
+        Assert.assertEquals("Refused when full", false, actual);
+        Assert.assertEquals("Size", CAPACITY, target.size());
+        target.poll();
+        Assert.assertEquals("Accepted once there is room", true, target.offer(CAPACITY));
+    }
+
+    @Test
+    public void capacity_is_rounded_up_to_a_power_of_2() {
+        // Given a capacity that is not a power of 2
+
+        // When a ring is created
+        MpmcRingBuffer<Integer> actual = new MpmcRingBuffer<>(100);
+
+        // Then its capacity is rounded up
+        Assert.assertEquals("Capacity", 128, actual.capacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cannot_create_a_ring_without_a_positive_capacity() {
+        new MpmcRingBuffer<Integer>(0);
+    }
+
+    @Test(timeout = 10000)
+    public void concurrent_producers_and_consumers_neither_lose_nor_duplicate_elements() throws InterruptedException, ExecutionException {
+        // Given 4 producers offering 50000 elements each
+        int producers = 4;
+        int elements = 50000;
+        ExecutorService executorService = Executors.newFixedThreadPool(producers * 2);
+        Future<?>[] futures = new Future<?>[producers * 2];
+        for (int p=0; p<producers; p++) {
+            int first = p * elements;
+            futures[p] = executorService.submit(() -> {
+                for (int i=first; i<first + elements; i++) {
+                    while (!target.offer(i)) {
+                        Thread.yield();
+                    }
+                }
+            });
+        }
+
+        // When 4 consumers poll until everything has been consumed
+        Set<Integer> polled = ConcurrentHashMap.newKeySet();
+        AtomicInteger duplicates = new AtomicInteger();
+        AtomicInteger remaining = new AtomicInteger(producers * elements);
+        for (int c=0; c<producers; c++) {
+            futures[producers + c] = executorService.submit(() -> {
+                while (remaining.get() > 0) {
+                    Integer element = target.poll();
+                    if (element == null) {
+                        Thread.yield();
+                    } else {
+                        remaining.decrementAndGet();
+                        if (!polled.add(element)) {
+                            duplicates.incrementAndGet();
+                        }
+                    }
+                }
+            });
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executorService.shutdown();
+
+        // Then every element was polled exactly once
+        Assert.assertEquals("No duplicates", 0, duplicates.get());
+        Assert.assertEquals("Nothing lost", producers * elements, polled.size());
+        Assert.assertEquals("Empty ring", null, target.poll());
+    }
+}
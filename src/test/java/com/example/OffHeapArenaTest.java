@@ -0,0 +1,137 @@
+package com.example;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class OffHeapArenaTest {
+    private static final int SLAB_SIZE = 4096;
+    private static final int MIN_BLOCK_SIZE = 64;
+
+    private OffHeapArena target = new OffHeapArena(SLAB_SIZE, SLAB_SIZE);
+
+    private static byte[] body(int length, int fill) {
+        byte[] body = new byte[length];
+        Arrays.fill(body, (byte) fill);
+        return body;
+    }
+
+    // Method: PackedMessage pack(QueueId messageId, byte[] messageBody)
+
+    @Test
+    public void bodies_are_read_back_as_they_were_packed() {
+        // Given a quota
+        OffHeapArena.Quota quota = target.newQuota(SLAB_SIZE);
+
+        // When bodies of different sizes are packed
+        List<PackedMessage> packedMessages = new ArrayList<>();
+        for (int i=1; i<=10; i++) {
+            packedMessages.add(quota.pack(new QueueId(0, i), body(i * 37, i)));
+        }
+
+        // Then each is read back intact, as a copy
+        for (int i=1; i<=10; i++) {
+            PackedMessage packedMessage = packedMessages.get(i - 1);
+            Assert.assertEquals("Off heap", true, packedMessage.isOffHeap());
+            Assert.assertEquals("Message id", i, packedMessage.getMessageIdLow());
+            Assert.assertArrayEquals("Message body", body(i * 37, i), packedMessage.getMessageBody());
+        }
+    }
+
+    @Test
+    public void freed_blocks_are_merged_back_into_a_whole_slab() {
+        // Given a slab split up into the smallest blocks
+        OffHeapArena.Quota quota = target.newQuota(SLAB_SIZE);
+        List<PackedMessage> packedMessages = new ArrayList<>();
+        for (int i=0; i<SLAB_SIZE / MIN_BLOCK_SIZE; i++) {
+            packedMessages.add(quota.pack(new QueueId(0, i), body(1, i)));
+        }
+        Assert.assertEquals("Slab is full", null, quota.pack(new QueueId(0, 0), body(1, 0)));
+
+        // When they are all freed, in no particular order
+        for (int i=0; i<packedMessages.size(); i+=2) {
+            packedMessages.get(i).release();
+        }
+        for (int i=packedMessages.size() - 1; i>0; i-=2) {
+            packedMessages.get(i).release();
+        }
+
+        // Then the whole slab can be taken by a single body again
+        Assert.assertEquals("Nothing allocated", 0, target.getAllocatedBytes());
+        Assert.assertNotEquals("Slab sized body", null, quota.pack(new QueueId(0, 0), body(SLAB_SIZE, 1)));
+        Assert.assertEquals("No more slabs reserved", SLAB_SIZE, target.getReservedBytes());
+    }
+
+    @Test
+    public void bodies_are_rounded_up_to_a_power_of_2() {
+        // Given a quota
+        OffHeapArena.Quota quota = target.newQuota(SLAB_SIZE);
+
+        // When bodies just over a power of 2 are packed
+        quota.pack(new QueueId(0, 1), body(65, 1));
+        quota.pack(new QueueId(0, 2), body(1025, 2));
+
+        // Then the space they take is rounded up
+        Assert.assertEquals("Quota allocated bytes", 128 + 2048, quota.getAllocatedBytes());
+        Assert.assertEquals("Arena allocated bytes", 128 + 2048, target.getAllocatedBytes());
+    }
+
+    @Test
+    public void a_quota_cannot_go_over_its_own_budget() {
+        // Given a quota with room for 2 of the smallest blocks, and another quota
+        OffHeapArena.Quota quota = target.newQuota(2 * MIN_BLOCK_SIZE);
+        OffHeapArena.Quota other = target.newQuota(SLAB_SIZE);
+        quota.pack(new QueueId(0, 1), body(1, 1));
+        quota.pack(new QueueId(0, 2), body(1, 2));
+
+        // When another body is packed through each
+        PackedMessage actual = quota.pack(new QueueId(0, 3), body(1, 3));
+        PackedMessage actualOther = other.pack(new QueueId(0, 4), body(1, 4));
+
+        // Then only the quota with room takes it
+        Assert.assertEquals("Over the quota's budget", null, actual);
+        Assert.assertNotEquals("Within the other quota's budget", null, actualOther);
+    }
+
+    @Test
+    public void quotas_cannot_go_over_the_arena_budget() {
+        // Given two quotas that each could take the whole arena, and one that has
+        OffHeapArena.Quota quota = target.newQuota(SLAB_SIZE);
+        OffHeapArena.Quota other = target.newQuota(SLAB_SIZE);
+        quota.pack(new QueueId(0, 1), body(SLAB_SIZE, 1));
+
+        // When a body is packed through the other
+        PackedMessage actual = other.pack(new QueueId(0, 2), body(1, 2));
+
+        // Then there is no room for it
+        Assert.assertEquals("Over the arena's budget", null, actual);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cannot_pack_a_body_larger_than_a_slab() {
+        target.newQuota(SLAB_SIZE).pack(new QueueId(0, 1), body(SLAB_SIZE + 1, 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void slab_size_must_be_a_power_of_2() {
+        new OffHeapArena(SLAB_SIZE * 3, 3000);
+    }
+
+    @Test
+    public void a_packed_message_reads_back_through_a_queue_message() {
+        // Given a body packed off heap
+        byte[] messageBody = "{\"message\":\"My message 1\",...}".getBytes(StandardCharsets.UTF_8);
+        PackedMessage packedMessage = target.newQuota(SLAB_SIZE).pack(new QueueId(1, 2), messageBody);
+
+        // When viewed as a queue message and then released
+        QueueMessage actual = new QueueMessage(packedMessage, new QueueId(3, 4), 0);
+        packedMessage.release();
+
+        // Then the view kept its own copy of the body
+        Assert.assertEquals("Message body", new String(messageBody, StandardCharsets.UTF_8), actual.getMessageBody());
+    }
+}
@@ -0,0 +1,170 @@
+package com.example;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class QueueConsumerTest {
+    private static final long PULL_WAIT_TIME_MILLIS = 100L;
+    private static final long VISIBILITY_TIMEOUT_MILLIS = 300L;
+    private static final long HANDLE_WAIT_TIME_MILLIS = 5000L;
+    private static final String URL_PREFIX = "http://sqs.us-east-2.amazonaws.com/123456789012/";
+    private static final String QUEUE_NAME = "MyQueue";
+    private static final String QUEUE_MESSAGE = "{\"message\":\"My message\",...}";
+
+    private InMemoryQueueService target;
+    private String queueUrl;
+    private QueueConsumer consumer;
+
+    @Before
+    public void setup() {
+        target = new InMemoryQueueService(URL_PREFIX, PULL_WAIT_TIME_MILLIS, VISIBILITY_TIMEOUT_MILLIS);
+        queueUrl = target.createQueue(QUEUE_NAME);
+    }
+
+    @After
+    public void teardown() throws InterruptedException {
+        if (consumer != null) {
+            consumer.close();
+        }
+    }
+
+    @Test
+    public void handles_and_deletes_every_message() throws InterruptedException {
+        // Given a queue with 100 messages
+        for (int i=0; i<100; i++) {
+            target.push(queueUrl, QUEUE_MESSAGE + i);
+        }
+
+        // When consumed
+        Set<String> handledBodies = ConcurrentHashMap.newKeySet();
+        CountDownLatch handled = new CountDownLatch(100);
+        consumer = new QueueConsumer(target, queueUrl, message -> {
+            handledBodies.add(message.getMessageBody());
+            handled.countDown();
+        }).start();
+
+        // Then each is handled once and deleted, so never redelivered
+        Assert.assertEquals("Handled in time", true, handled.await(HANDLE_WAIT_TIME_MILLIS, TimeUnit.MILLISECONDS));
+        Thread.sleep(VISIBILITY_TIMEOUT_MILLIS * 2);
+        Assert.assertEquals("Messages handled", 100, handledBodies.size());
+        Assert.assertEquals("Handled count", 100, consumer.getHandledCount());
+    }
+
+    @Test
+    public void failed_message_is_redelivered() throws InterruptedException {
+        // Given a queue with a message
+        target.push(queueUrl, QUEUE_MESSAGE);
+
+        // When consumed with a short lease by a handler that fails the first time only
+        AtomicInteger attempts = new AtomicInteger();
+        CountDownLatch handled = new CountDownLatch(2);
+        consumer = new QueueConsumer(target, queueUrl, message -> {
+            handled.countDown();
+            if (attempts.incrementAndGet() == 1) {
+                throw new IllegalStateException("First attempt fails");
+            }
+        }, 1, VISIBILITY_TIMEOUT_MILLIS).start();
+
+        // Then it is handled again once its visibility timeout expires
+        Assert.assertEquals("Handled twice in time", true, handled.await(HANDLE_WAIT_TIME_MILLIS, TimeUnit.MILLISECONDS));
+        Thread.sleep(PULL_WAIT_TIME_MILLIS);
+        Assert.assertEquals("Failed count", 1, consumer.getFailedCount());
+        Assert.assertEquals("Handled count", 1, consumer.getHandledCount());
+    }
+
+    @Test
+    public void slow_message_is_not_redelivered_while_its_handler_runs() throws InterruptedException {
+        // Given a queue with a message
+        target.push(queueUrl, QUEUE_MESSAGE);
+
+        // When consumed with a short lease by a handler that takes 3 leases
+        AtomicInteger attempts = new AtomicInteger();
+        CountDownLatch handled = new CountDownLatch(1);
+        consumer = new QueueConsumer(target, queueUrl, message -> {
+            attempts.incrementAndGet();
+            Thread.sleep(VISIBILITY_TIMEOUT_MILLIS * 3);
+            handled.countDown();
+        }, 1, VISIBILITY_TIMEOUT_MILLIS).start();
+
+        // Then its lease is kept extended, so it is handled once and deleted
+        Assert.assertEquals("Handled in time", true, handled.await(HANDLE_WAIT_TIME_MILLIS, TimeUnit.MILLISECONDS));
+        Thread.sleep(VISIBILITY_TIMEOUT_MILLIS * 2);
+        Assert.assertEquals("Attempts", 1, attempts.get());
+        Assert.assertEquals("Handled count", 1, consumer.getHandledCount());
+    }
+
+    @Test
+    public void runs_no_more_handlers_at_once_than_the_maximum() throws InterruptedException {
+        // Given a queue with 50 messages
+        for (int i=0; i<50; i++) {
+            target.push(queueUrl, QUEUE_MESSAGE + i);
+        }
+
+        // When consumed by slow handlers, at most 5 at once
+        AtomicInteger runningHandlers = new AtomicInteger();
+        AtomicInteger mostRunningHandlers = new AtomicInteger();
+        CountDownLatch handled = new CountDownLatch(50);
+        consumer = new QueueConsumer(target, queueUrl, message -> {
+            mostRunningHandlers.accumulateAndGet(runningHandlers.incrementAndGet(), Math::max);
+            Thread.sleep(10);
+            runningHandlers.decrementAndGet();
+            handled.countDown();
+        }, 5).start();
+
+        // Then all are handled, never more than 5 at once
+        Assert.assertEquals("Handled in time", true, handled.await(HANDLE_WAIT_TIME_MILLIS, TimeUnit.MILLISECONDS));
+        Assert.assertEquals("Most handlers running at once", 5, mostRunningHandlers.get());
+    }
+
+    @Test
+    public void runs_fewer_handlers_at_once_by_default_on_platform_threads() {
+        // Given a queue
+
+        // When create a consumer with the default max concurrency
+        consumer = new QueueConsumer(target, queueUrl, message -> { });
+
+        // Then 1000 on virtual threads, far fewer on platform threads
+        int expected = (Runtime.version().feature() >= 21) ? QueueConsumer.DEFAULT_MAX_CONCURRENCY : QueueConsumer.DEFAULT_PLATFORM_MAX_CONCURRENCY;
+        Assert.assertEquals("Max concurrency", expected, consumer.getMaxConcurrency());
+    }
+
+    @Test
+    public void close_interrupted_while_waiting_returns_with_the_interrupt_flag_set() throws InterruptedException {
+        // Given a consumer with a handler that does not finish
+        target.push(queueUrl, QUEUE_MESSAGE);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        consumer = new QueueConsumer(target, queueUrl, message -> {
+            started.countDown();
+            finish.await();
+        }).start();
+        Assert.assertEquals("Handler started", true, started.await(HANDLE_WAIT_TIME_MILLIS, TimeUnit.MILLISECONDS));
+
+        // When closed from an interrupted thread
+        Thread.currentThread().interrupt();
+        consumer.close();
+
+        // Then returns without waiting, with the interrupt flag still set
+        boolean interrupted = Thread.interrupted();
+        finish.countDown();
+        Assert.assertEquals("Interrupt flag", true, interrupted);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cannot_create_a_consumer_without_a_positive_max_concurrency() {
+        // Given a queue
+
+        // When create a consumer with a max concurrency of 0
+        new QueueConsumer(target, queueUrl, message -> { }, 0);
+
+        // Then illegal argument exception
+    }
+}
@@ -0,0 +1,70 @@
+package com.example;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.UUID;
+
+public class QueueIdTest {
+    private static final String UUID_ID = "5fea7756-0ea4-451a-a703-a558b933e274";
+    private static final String RECEIPT_HANDLE = "MbZj6wDWli+JvwwJaBV+3dcjk2YW2vA3+STFFljTM8tJJg6HRG6PYSasuWXPJB+CwLj1FjgXUv1uSj1gUPAWV66FU/WeR4mq2OKpEGYWbnLmpRCJVAyeMjeU5ZBdtcQ+QEauMZc8ZRv37sIW2iJKq3M9MFx1YvV11A2x/KSbkJ0=";
+
+    // Method: String toString()
+
+    @Test
+    public void renders_the_same_as_a_uuid() {
+        // Given ids with their high bits set and not set
+        long[][] bits = {{0L, 0L}, {-1L, -1L}, {0x0000015f2d5e4d9bL, 0x00a3f21c0000002aL}, {Long.MIN_VALUE, 1L}};
+
+        for (long[] id : bits) {
+            // When rendered
+            String actual = new QueueId(id[0], id[1]).toString();
+
+            // Then the same as the UUID with the same bits
+            Assert.assertEquals("Rendered as a UUID", new UUID(id[0], id[1]).toString(), actual);
+        }
+    }
+
+    // Method: QueueId fromString(String id)
+
+    @Test
+    public void a_uuid_is_parsed_into_its_bits() {
+        // Given a UUID style id
+        // When parsed
+        QueueId actual = QueueId.fromString(UUID_ID);
+
+        // Then numeric, with the bits of the UUID, and renders back the same
+        Assert.assertEquals("Numeric", true, actual.isNumeric());
+        Assert.assertEquals("High bits", UUID.fromString(UUID_ID).getMostSignificantBits(), actual.getHigh());
+        Assert.assertEquals("Low bits", UUID.fromString(UUID_ID).getLeastSignificantBits(), actual.getLow());
+        Assert.assertEquals("Rendered", UUID_ID, actual.toString());
+    }
+
+    @Test
+    public void any_other_id_is_kept_as_it_is() {
+        // Given an SQS receipt handle
+        // When parsed
+        QueueId actual = QueueId.fromString(RECEIPT_HANDLE);
+
+        // Then not numeric, just the string
+        Assert.assertEquals("Not numeric", false, actual.isNumeric());
+        Assert.assertEquals("Rendered", RECEIPT_HANDLE, actual.toString());
+    }
+
+    // Method: boolean equals(Object obj)
+
+    @Test
+    public void a_parsed_id_is_equal_to_the_id_it_was_rendered_from() {
+        // Given a generated id
+        QueueId generated = new SnowflakeIdGenerator().nextId();
+
+        // When rendered and parsed back, in either case
+        QueueId lower = QueueId.fromString(generated.toString());
+        QueueId upper = QueueId.fromString(generated.toString().toUpperCase());
+
+        // Then equal, with the same hash code
+        Assert.assertEquals("Equal", generated, lower);
+        Assert.assertEquals("Equal ignoring case", generated, upper);
+        Assert.assertEquals("Same hash code", generated.hashCode(), upper.hashCode());
+    }
+}
@@ -4,6 +4,8 @@ import org.junit.Assert;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Objects;
 
 public class QueueMessageTest {
@@ -101,6 +103,53 @@ public class QueueMessageTest {
         // Then a null pointer exception
     }
 
+    // Constructor: QueueMessage(ByteBuffer messageBody, String messageId)
+
+    @Test
+    public void can_instantiate_queue_message_from_a_body_buffer() {
+        // Given a UTF-8 message body in a buffer and a valid message id string
+        ByteBuffer messageBodyBuffer = ByteBuffer.wrap(MESSAGE_BODY_1.getBytes(StandardCharsets.UTF_8));
+
+        // When calling the (ByteBuffer, String) message constructor and pulling it
+        target = new QueueMessage(new QueueMessage(messageBodyBuffer, MESSAGE_ID_1), RECEIPT_ID_1, VISIBILITY_TIMEOUT);
+
+        // Then the body is decoded from the buffer and is also available as a read only view
+        Assert.assertEquals("Message body field after queue message instantiation", MESSAGE_BODY_1, target.getMessageBody());
+        Assert.assertEquals("Message body buffer is read only", true, target.getMessageBodyBuffer().isReadOnly());
+        Assert.assertEquals("Message body buffer contents", messageBodyBuffer, target.getMessageBodyBuffer());
+        Assert.assertEquals("Same as a message created from the string", setupPulledQueueMessage(), target);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cannot_instantiate_queue_message_from_an_empty_body_buffer() {
+        // Given an empty message body buffer but valid message id string
+
+        // When calling the (ByteBuffer, String) args constructor
+        target = new QueueMessage(ByteBuffer.allocate(0), MESSAGE_ID_1);
+
+        // Then illegal argument exception
+    }
+
+    // Constructor: QueueMessage(PackedMessage packedMessage, QueueId receiptId, long visibilityTimeoutFrom)
+
+    @Test
+    public void can_instantiate_queue_message_as_a_view_over_a_packed_message() {
+        // Given a packed message
+        byte[] messageBody = MESSAGE_BODY_1.getBytes(StandardCharsets.UTF_8);
+        PackedMessage packedMessage = new PackedMessage(QueueId.fromString(MESSAGE_ID_1), messageBody);
+
+        // When calling the (PackedMessage, QueueId, long) constructor
+        target = new QueueMessage(packedMessage, QueueId.fromString(RECEIPT_ID_1), VISIBILITY_TIMEOUT);
+
+        // Then the id and body are rendered from it, and the body buffer is a view of its bytes
+        Assert.assertEquals("Message id", MESSAGE_ID_1, target.getMessageId());
+        Assert.assertEquals("Receipt id", RECEIPT_ID_1, target.getReceiptId());
+        Assert.assertEquals("Message body", MESSAGE_BODY_1, target.getMessageBody());
+        Assert.assertEquals("Message body buffer contents", ByteBuffer.wrap(messageBody), target.getMessageBodyBuffer());
+        Assert.assertEquals("Same packed message", packedMessage, target.getPackedMessage());
+        Assert.assertEquals("Same as a message created from the strings", setupPulledQueueMessage(), target);
+    }
+
     // Constructor: QueueMessage(QueueMessage dequeued, String receiptId)
 
     @Test
@@ -0,0 +1,160 @@
+package com.example;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class QueueSubscriptionTest {
+    private static final long PULL_WAIT_TIME_MILLIS = 100L;
+    private static final long VISIBILITY_TIMEOUT_MILLIS = 500L;
+    private static final long DELIVERY_WAIT_TIME_MILLIS = 2000L;
+    private static final String URL_PREFIX = "http://sqs.us-east-2.amazonaws.com/123456789012/";
+    private static final String QUEUE_NAME = "MyQueue";
+    private static final String QUEUE_MESSAGE = "{\"message\":\"My message\",...}";
+
+    private InMemoryQueueService target;
+    private String queueUrl;
+
+    @Before
+    public void setup() {
+        target = new InMemoryQueueService(URL_PREFIX, PULL_WAIT_TIME_MILLIS, VISIBILITY_TIMEOUT_MILLIS);
+        queueUrl = target.createQueue(QUEUE_NAME);
+    }
+
+    @Test
+    public void delivers_no_more_messages_than_requested() throws InterruptedException {
+        // Given a queue with 5 messages and a subscriber
+        for (int i=0; i<5; i++) {
+            target.push(queueUrl, QUEUE_MESSAGE + i);
+        }
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        target.subscribe(queueUrl, subscriber);
+
+        // When request 3
+        subscriber.subscription.request(3);
+
+        // Then 3 are delivered and no more
+        for (int i=0; i<3; i++) {
+            Assert.assertEquals("Delivered message", QUEUE_MESSAGE + i, subscriber.next().getMessageBody());
+        }
+        Assert.assertEquals("No more messages delivered", null, subscriber.messages.poll(PULL_WAIT_TIME_MILLIS * 2, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void delivers_messages_pushed_after_requesting() throws InterruptedException {
+        // Given a subscriber that has requested 2 messages of an empty queue, and waited past the pull wait time
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        target.subscribe(queueUrl, subscriber);
+        subscriber.subscription.request(2);
+        Thread.sleep(PULL_WAIT_TIME_MILLIS * 2);
+
+        // When push 2 messages
+        QueueMessage firstPushed = target.push(queueUrl, QUEUE_MESSAGE + 1);
+        QueueMessage secondPushed = target.push(queueUrl, QUEUE_MESSAGE + 2);
+
+        // Then both are delivered and in flight, and can be deleted
+        Set<String> deliveredIds = new HashSet<>();
+        for (int i=0; i<2; i++) {
+            QueueMessage delivered = subscriber.next();
+            deliveredIds.add(delivered.getMessageId());
+            Assert.assertEquals("Delivered message deleted", true, target.deleteMessage(queueUrl, delivered.getReceiptId()));
+        }
+        Assert.assertEquals("Delivered message ids", new HashSet<>(Arrays.asList(firstPushed.getMessageId(), secondPushed.getMessageId())), deliveredIds);
+    }
+
+    @Test
+    public void delivers_nothing_once_cancelled() throws InterruptedException {
+        // Given a subscriber that has requested a message of an empty queue
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        target.subscribe(queueUrl, subscriber);
+        subscriber.subscription.request(1);
+
+        // When cancel, then push a message
+        subscriber.subscription.cancel();
+        target.push(queueUrl, QUEUE_MESSAGE);
+
+        // Then nothing is delivered, and the message is still there to pull
+        Assert.assertEquals("No message delivered", null, subscriber.messages.poll(PULL_WAIT_TIME_MILLIS * 2, TimeUnit.MILLISECONDS));
+        Assert.assertEquals("Pulled message", QUEUE_MESSAGE, target.pull(queueUrl).getMessageBody());
+    }
+
+    @Test
+    public void fails_on_a_request_of_0() throws InterruptedException {
+        // Given a subscriber
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        target.subscribe(queueUrl, subscriber);
+
+        // When request 0
+        subscriber.subscription.request(0);
+
+        // Then the subscription fails with an illegal argument exception
+        Assert.assertEquals("Failure", IllegalArgumentException.class, subscriber.failure.poll(DELIVERY_WAIT_TIME_MILLIS, TimeUnit.MILLISECONDS).getClass());
+    }
+
+    @Test
+    public void delivers_from_a_file_queue() throws Exception {
+        // Given a file queue with a message and a subscriber
+        File rootDir = Files.createTempDirectory("queueSubscription").toFile();
+        FileQueueService fileQueueService = new FileQueueService(rootDir.getAbsolutePath(), URL_PREFIX, PULL_WAIT_TIME_MILLIS, VISIBILITY_TIMEOUT_MILLIS);
+        String fileQueueUrl = fileQueueService.createQueue(QUEUE_NAME);
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        fileQueueService.subscribe(fileQueueUrl, subscriber);
+
+        // When request 2, then push a message after the first is delivered
+        fileQueueService.push(fileQueueUrl, QUEUE_MESSAGE + 1);
+        subscriber.subscription.request(2);
+        QueueMessage firstDelivered = subscriber.next();
+        Thread.sleep(PULL_WAIT_TIME_MILLIS * 2);
+        fileQueueService.push(fileQueueUrl, QUEUE_MESSAGE + 2);
+
+        // Then both are delivered in order
+        Assert.assertEquals("First delivered message", QUEUE_MESSAGE + 1, firstDelivered.getMessageBody());
+        Assert.assertEquals("Second delivered message", QUEUE_MESSAGE + 2, subscriber.next().getMessageBody());
+        fileQueueService.deleteQueue(fileQueueUrl);
+        fileQueueService.close();
+    }
+
+    /**
+     * Records what it is sent, requests nothing by itself.
+     */
+    private static class RecordingSubscriber implements Flow.Subscriber<QueueMessage> {
+        private final BlockingQueue<QueueMessage> messages = new LinkedBlockingQueue<>();
+        private final BlockingQueue<Throwable> failure = new LinkedBlockingQueue<>();
+        private volatile Flow.Subscription subscription;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(QueueMessage item) {
+            messages.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            failure.add(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+        }
+
+        QueueMessage next() throws InterruptedException {
+            QueueMessage message = messages.poll(DELIVERY_WAIT_TIME_MILLIS, TimeUnit.MILLISECONDS);
+            Assert.assertNotNull("Message delivered in time", message);
+            return message;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.example;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class SnowflakeIdGeneratorTest {
+    private static final int NODE = 42;
+    private static final int THREADS = 8;
+    private static final int IDS_PER_THREAD = 20000;
+
+    private SnowflakeIdGenerator target = new SnowflakeIdGenerator(NODE);
+
+    // Method: QueueId nextId()
+
+    @Test
+    public void ids_are_unique_across_threads() throws InterruptedException, ExecutionException {
+        // Given many threads issuing ids at once
+        Set<QueueId> ids = ConcurrentHashMap.newKeySet();
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> futures = new ArrayList<>();
+
+        // When each issues many ids
+        for (int i=0; i<THREADS; i++) {
+            futures.add(executor.submit(() -> {
+                for (int j=0; j<IDS_PER_THREAD; j++) {
+                    ids.add(target.nextId());
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        // Then none repeat
+        Assert.assertEquals("Unique ids", THREADS * IDS_PER_THREAD, ids.size());
+    }
+
+    @Test
+    public void ids_issued_by_a_thread_are_in_increasing_order() {
+        // Given an id
+        QueueId previous = target.nextId();
+
+        for (int i=0; i<IDS_PER_THREAD; i++) {
+            // When the same thread issues the next
+            QueueId actual = target.nextId();
+
+            // Then it is greater
+            boolean greater = actual.getHigh() > previous.getHigh()
+                    || (actual.getHigh() == previous.getHigh() && actual.getLow() > previous.getLow());
+            Assert.assertEquals("Increasing, " + previous + " then " + actual, true, greater);
+            previous = actual;
+        }
+    }
+
+    @Test
+    public void ids_are_unique_across_restarts() throws InterruptedException {
+        // Given the ids issued before a restart
+        Set<QueueId> ids = new HashSet<>();
+        for (int i=0; i<IDS_PER_THREAD; i++) {
+            ids.add(target.nextId());
+        }
+        Thread.sleep(2);
+
+        // When the generator is started again on the same node, so its sequence starts again too
+        SnowflakeIdGenerator restarted = new SnowflakeIdGenerator(NODE);
+        for (int i=0; i<IDS_PER_THREAD; i++) {
+            ids.add(restarted.nextId());
+        }
+
+        // Then none repeat
+        Assert.assertEquals("Unique ids", 2 * IDS_PER_THREAD, ids.size());
+    }
+
+    @Test
+    public void ids_render_in_the_uuid_format() {
+        // Given an id
+        QueueId id = target.nextId();
+
+        // When rendered and parsed back
+        QueueId actual = QueueId.fromString(id.toString());
+
+        // Then the same bits, so it can be kept on disk as two longs
+        Assert.assertEquals("Same id", id, actual);
+        Assert.assertEquals("Numeric", true, actual.isNumeric());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void node_must_fit_in_24_bits() {
+        // Given a node too large
+        // When constructed
+        new SnowflakeIdGenerator(SnowflakeIdGenerator.MAX_NODE + 1);
+
+        // Then illegal argument exception
+    }
+}
@@ -0,0 +1,170 @@
+package com.example;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public class TimingWheelTest {
+    private static final long TICK_MILLIS = 10L;
+    private static final int TICKS_PER_WHEEL = 8;
+    private static final long START_MILLIS = 1000L;
+
+    private TimingWheel<String> target = new TimingWheel<>(TICK_MILLIS, TICKS_PER_WHEEL, START_MILLIS);
+
+    private List<String> items(List<TimingWheel<String>.Timeout> timeouts) {
+        return timeouts.stream().map(TimingWheel.Timeout::item).collect(Collectors.toList());
+    }
+
+    // Method: List<Timeout> advance(long nowMillis)
+
+    @Test
+    public void a_timeout_expires_at_the_first_tick_after_its_deadline() {
+        // Given a timeout due part way through a tick
+        target.schedule("A", START_MILLIS + 25);
+
+        // When the wheel is advanced up to and past the deadline
+        List<TimingWheel<String>.Timeout> early = target.advance(START_MILLIS + 29);
+        List<TimingWheel<String>.Timeout> due = target.advance(START_MILLIS + 30);
+
+        // Then it only expires once the tick after the deadline is reached
+        Assert.assertEquals("Not expired before its deadline", true, early.isEmpty());
+        Assert.assertEquals("Expired at the next tick", Arrays.asList("A"), items(due));
+        Assert.assertEquals("Nothing left scheduled", 0, target.size());
+    }
+
+    @Test
+    public void a_timeout_more_than_a_turn_away_expires_on_a_later_turn() {
+        // Given a timeout due after more than 2 turns of the wheel
+        target.schedule("A", START_MILLIS + TICK_MILLIS * TICKS_PER_WHEEL * 2 + 10);
+
+        // When the wheel is turned tick by tick past the bucket it is in
+        int expiredEarly = 0;
+        for (long now = START_MILLIS; now < START_MILLIS + TICK_MILLIS * TICKS_PER_WHEEL * 2 + 10; now += TICK_MILLIS) {
+            expiredEarly += target.advance(now).size();
+        }
+
+        // Then it only expires on its own turn
+        Assert.assertEquals("Not expired on earlier turns", 0, expiredEarly);
+        Assert.assertEquals("Expired on its turn", Arrays.asList("A"),
+                items(target.advance(START_MILLIS + TICK_MILLIS * TICKS_PER_WHEEL * 2 + 10)));
+    }
+
+    @Test
+    public void timeouts_due_in_the_same_tick_expire_in_the_order_they_were_scheduled() {
+        // Given timeouts due in the same tick
+        target.schedule("A", START_MILLIS + 15);
+        target.schedule("B", START_MILLIS + 12);
+        target.schedule("C", START_MILLIS + 18);
+
+        // When the wheel is advanced past them
+        List<TimingWheel<String>.Timeout> due = target.advance(START_MILLIS + 20);
+
+        // Then they expire in the order they were scheduled
+        Assert.assertEquals("Expired in scheduled order", Arrays.asList("A", "B", "C"), items(due));
+    }
+
+    @Test
+    public void timeouts_many_turns_away_expire_on_their_tick_in_the_order_they_were_scheduled() {
+        // Given a timeout due after 100 turns of the wheel, then a turn before it's due another due in the same tick
+        long deadline = START_MILLIS + TICK_MILLIS * TICKS_PER_WHEEL * 100 + 35;
+        target.schedule("A", deadline);
+        target.schedule("B", START_MILLIS + TICK_MILLIS * TICKS_PER_WHEEL * 50);
+        int expiredEarly = 0;
+        long now = START_MILLIS;
+        for (; now < deadline - TICK_MILLIS * TICKS_PER_WHEEL; now += TICK_MILLIS) {
+            expiredEarly += target.advance(now).size();
+        }
+        target.schedule("C", deadline - 3);
+
+        // When the wheel is turned tick by tick up to the deadline
+        for (; now < deadline; now += TICK_MILLIS) {
+            expiredEarly += target.advance(now).size();
+        }
+        List<TimingWheel<String>.Timeout> due = target.advance(deadline + TICK_MILLIS);
+
+        // Then only the nearer timeout expired early, and the other two expire together in the order they were scheduled
+        Assert.assertEquals("Expired early", 1, expiredEarly);
+        Assert.assertEquals("Expired in scheduled order", Arrays.asList("A", "C"), items(due));
+        Assert.assertEquals("Nothing left scheduled", 0, target.size());
+    }
+
+    @Test
+    public void timeouts_missed_by_a_late_advance_all_expire_at_once() {
+        // Given timeouts spread over several turns of the wheel
+        for (int i=0; i<30; i++) {
+            target.schedule("T" + i, START_MILLIS + i * TICK_MILLIS);
+        }
+
+        // When the wheel is advanced late, past all of them
+        List<TimingWheel<String>.Timeout> due = target.advance(START_MILLIS + 1000);
+
+        // Then every one of them expires
+        Assert.assertEquals("All expired", 30, due.size());
+        Assert.assertEquals("Nothing left scheduled", 0, target.size());
+    }
+
+    // Method: boolean Timeout.cancel()
+
+    @Test
+    public void a_cancelled_timeout_does_not_expire() {
+        // Given 2 timeouts in the same bucket
+        TimingWheel<String>.Timeout cancelled = target.schedule("A", START_MILLIS + 10);
+        target.schedule("B", START_MILLIS + 10);
+
+        // When one is cancelled
+        boolean actual = cancelled.cancel();
+
+        // Then only the other one expires and it cannot be cancelled again
+        Assert.assertEquals("Cancelled", true, actual);
+        Assert.assertEquals("Only the other expires", Arrays.asList("B"), items(target.advance(START_MILLIS + 10)));
+        Assert.assertEquals("Cannot cancel twice", false, cancelled.cancel());
+    }
+
+    @Test
+    public void an_expired_timeout_cannot_be_cancelled() {
+        // Given an expired timeout
+        TimingWheel<String>.Timeout timeout = target.schedule("A", START_MILLIS);
+        target.advance(START_MILLIS);
+
+        // When cancelled
+        boolean actual = timeout.cancel();
+
+        // Then it was too late
+        Assert.assertEquals("Not cancelled", false, actual);
+    }
+
+    // Method: boolean reschedule(Timeout timeout, long deadlineMillis)
+
+    @Test
+    public void a_rescheduled_timeout_expires_at_its_new_deadline() {
+        // Given a timeout due in 2 ticks
+        TimingWheel<String>.Timeout timeout = target.schedule("A", START_MILLIS + 20);
+
+        // When rescheduled to more than a turn of the wheel later
+        boolean actual = target.reschedule(timeout, START_MILLIS + TICK_MILLIS * TICKS_PER_WHEEL + 30);
+
+        // Then it does not expire at its old deadline, only its new one
+        Assert.assertEquals("Rescheduled", true, actual);
+        Assert.assertEquals("New deadline", START_MILLIS + TICK_MILLIS * TICKS_PER_WHEEL + 30, timeout.getDeadline());
+        Assert.assertEquals("Not expired at the old deadline", true, target.advance(START_MILLIS + 20).isEmpty());
+        Assert.assertEquals("Not expired a turn later", true, target.advance(START_MILLIS + TICK_MILLIS * TICKS_PER_WHEEL + 20).isEmpty());
+        Assert.assertEquals("Expired at the new deadline", Arrays.asList("A"), items(target.advance(START_MILLIS + TICK_MILLIS * TICKS_PER_WHEEL + 30)));
+    }
+
+    @Test
+    public void an_expired_timeout_cannot_be_rescheduled() {
+        // Given an expired timeout
+        TimingWheel<String>.Timeout timeout = target.schedule("A", START_MILLIS);
+        target.advance(START_MILLIS);
+
+        // When rescheduled
+        boolean actual = target.reschedule(timeout, START_MILLIS + 100);
+
+        // Then it was too late, and nothing is scheduled
+        Assert.assertEquals("Not rescheduled", false, actual);
+        Assert.assertEquals("Nothing scheduled", 0, target.size());
+    }
+}